@@ -0,0 +1,95 @@
+package org.openlcb;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the cost of dispatching an incoming event report through the OlcbInterface when
+ * many listeners are registered. In "broadcast" mode every listener gets every message; in
+ * "filtered" mode the listeners declare the message types they handle, and only one in ten
+ * handles event reports.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DispatchBenchmark {
+    @Param({"1", "10", "100"})
+    public int listeners;
+
+    @Param({"broadcast", "filtered"})
+    public String mode;
+
+    private OlcbInterface iface;
+    private Connection input;
+    private Message eventReport;
+    private Message datagramAck;
+
+    /// A typical protocol handler: overrides one or two handlers, everything else is a no-op.
+    static class Handler extends MessageDecoder {
+        long count;
+
+        @Override
+        public void handleProducerConsumerEventReport(ProducerConsumerEventReportMessage msg,
+                                                      Connection sender) {
+            count++;
+        }
+
+        @Override
+        public void handleDatagramAcknowledged(DatagramAcknowledgedMessage msg, Connection
+                sender) {
+            count++;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        NodeID local = new NodeID(new byte[]{2, 1, 13, 0, 0, 1});
+        NodeID remote = new NodeID(new byte[]{2, 1, 13, 0, 0, 2});
+        iface = new OlcbInterface(local, new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+            }
+        });
+        for (int i = 0; i < listeners; ++i) {
+            Handler h = new Handler();
+            if (mode.equals("broadcast")) {
+                iface.registerMessageListener(h);
+            } else if (i % 10 == 0) {
+                iface.registerMessageListener(h, EnumSet.of(MessageTypeIdentifier
+                        .ProducerConsumerEventReport));
+            } else {
+                iface.registerMessageListener(h, EnumSet.of(MessageTypeIdentifier
+                        .DatagramReceivedOK));
+            }
+        }
+        input = iface.getInputConnection();
+        eventReport = new ProducerConsumerEventReportMessage(remote, new EventID(new byte[]{5,
+                1, 1, 1, 3, 1, 0, 1}));
+        datagramAck = new DatagramAcknowledgedMessage(remote, local);
+    }
+
+    @TearDown
+    public void tearDown() {
+        iface.dispose();
+    }
+
+    @Benchmark
+    public void eventReport() {
+        input.put(eventReport, null);
+    }
+
+    @Benchmark
+    public void datagramAck() {
+        input.put(datagramAck, null);
+    }
+}
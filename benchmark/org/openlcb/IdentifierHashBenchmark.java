@@ -0,0 +1,73 @@
+package org.openlcb;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures using node IDs and event IDs as hash map keys. The lookups use keys that are equal
+ * to, but not the same objects as, the keys in the map, as happens when the IDs come from
+ * decoded messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IdentifierHashBenchmark {
+    @Param({"1000", "50000"})
+    public int size;
+
+    private final Map<NodeID, Integer> nodes = new HashMap<>();
+    private final Map<EventID, Integer> events = new HashMap<>();
+    private NodeID[] nodeKeys;
+    private EventID[] eventKeys;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        nodeKeys = new NodeID[size];
+        eventKeys = new EventID[size];
+        for (int i = 0; i < size; ++i) {
+            // Sequential node IDs of one manufacturer, and the consecutive events of a few nodes.
+            long node = 0x02010D000000L + i;
+            long event = 0x0501010103000000L + (i / 256) * 0x10000L + (i % 256);
+            nodes.put(NodeID.fromLong(node), i);
+            events.put(EventID.fromLong(event), i);
+            nodeKeys[i] = new NodeID(NodeID.fromLong(node).getContents());
+            eventKeys[i] = new EventID(EventID.fromLong(event).getContents());
+        }
+    }
+
+    private int nextIndex() {
+        if (++next >= size) next = 0;
+        return next;
+    }
+
+    @Benchmark
+    public int nodeIdHashCode() {
+        return nodeKeys[nextIndex()].hashCode();
+    }
+
+    @Benchmark
+    public int eventIdHashCode() {
+        return eventKeys[nextIndex()].hashCode();
+    }
+
+    @Benchmark
+    public Integer nodeIdLookup() {
+        return nodes.get(nodeKeys[nextIndex()]);
+    }
+
+    @Benchmark
+    public Integer eventIdLookup() {
+        return events.get(eventKeys[nextIndex()]);
+    }
+}
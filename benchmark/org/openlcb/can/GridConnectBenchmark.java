@@ -0,0 +1,55 @@
+package org.openlcb.can;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openlcb.EventID;
+import org.openlcb.NodeID;
+import org.openlcb.ProducerConsumerEventReportMessage;
+
+/**
+ * Measures formatting a CAN frame into GridConnect text and parsing the text back, using an
+ * event report frame (29-bit header, 8 data bytes) as the typical frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GridConnectBenchmark {
+    private CanFrame frame;
+    private String line;
+    private GridConnect.Input parser;
+    private long frameCount;
+
+    @Setup
+    public void setUp() {
+        NodeID source = new NodeID(new byte[]{2, 1, 13, 0, 0, 1});
+        AliasMap map = new AliasMap();
+        map.insert(0x123, source);
+        frame = new MessageBuilder(map).processMessage(new ProducerConsumerEventReportMessage(
+                source, new EventID(new byte[]{5, 1, 1, 1, 3, 1, 0, 1}))).get(0);
+        line = GridConnect.format(frame);
+        parser = new GridConnect.Input() {
+            @Override
+            public void onFrame(CanFrame f) {
+                frameCount++;
+            }
+        };
+    }
+
+    @Benchmark
+    public String format() {
+        return GridConnect.format(frame);
+    }
+
+    @Benchmark
+    public long parse() {
+        parser.send(line);
+        return frameCount;
+    }
+}
@@ -0,0 +1,103 @@
+package org.openlcb.can;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openlcb.DatagramMessage;
+import org.openlcb.EventID;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.ProducerConsumerEventReportMessage;
+import org.openlcb.StreamDataSendMessage;
+import org.openlcb.VerifyNodeIDNumberMessage;
+
+/**
+ * Measures converting messages to CAN frames and back, for each frame format:
+ * <ul>
+ * <li>global: an event report (format 1, unaddressed);
+ * <li>addressed: a Verify Node ID sent to one node (format 1, addressed);
+ * <li>datagram: a 20-byte datagram (formats 3, 4 and 5);
+ * <li>stream: 7 bytes of stream data (format 7).
+ * </ul>
+ * The parse benchmark feeds all frames of the message to {@link MessageBuilder#processFrame}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageBuilderBenchmark {
+    @Param({"global", "addressed", "datagram", "stream"})
+    public String format;
+
+    private MessageBuilder builder;
+    private Message message;
+    private List<OpenLcbCanFrame> frames;
+    private final CanFrameListener sink = new CanFrameListener() {
+        @Override
+        public void send(CanFrame frame) {
+            sinkCount++;
+        }
+    };
+    private long sinkCount;
+
+    @Setup
+    public void setUp() {
+        NodeID source = new NodeID(new byte[]{2, 1, 13, 0, 0, 1});
+        NodeID dest = new NodeID(new byte[]{2, 1, 13, 0, 0, 2});
+        AliasMap map = new AliasMap();
+        map.insert(0x123, source);
+        map.insert(0x456, dest);
+        builder = new MessageBuilder(map);
+        switch (format) {
+            case "global":
+                message = new ProducerConsumerEventReportMessage(source, new EventID(new
+                        byte[]{5, 1, 1, 1, 3, 1, 0, 1}));
+                break;
+            case "addressed":
+                message = new VerifyNodeIDNumberMessage(source, dest);
+                break;
+            case "datagram": {
+                int[] payload = new int[20];
+                for (int i = 0; i < payload.length; ++i) {
+                    payload[i] = i;
+                }
+                payload[0] = 0x20;
+                message = new DatagramMessage(source, dest, payload);
+                break;
+            }
+            case "stream":
+                message = new StreamDataSendMessage(source, dest, (byte) 4, new int[]{1, 2, 3,
+                        4, 5, 6, 7});
+                break;
+            default:
+                throw new IllegalArgumentException(format);
+        }
+        frames = builder.processMessage(message);
+    }
+
+    @Benchmark
+    public List<OpenLcbCanFrame> processMessage() {
+        return builder.processMessage(message);
+    }
+
+    @Benchmark
+    public long processMessageToSink() {
+        builder.processMessage(message, sink);
+        return sinkCount;
+    }
+
+    @Benchmark
+    public void processFrame(Blackhole bh) {
+        for (int i = 0; i < frames.size(); ++i) {
+            bh.consume(builder.processFrame(frames.get(i)));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.openlcb.cdi.impl;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openlcb.NodeID;
+import org.openlcb.implementations.MemoryConfigurationService;
+
+/**
+ * Measures the memory space cache of a configuration dialog with 500 16-byte string fields
+ * (8000 bytes), each with a change listener. Reads are answered synchronously, so reload
+ * measures the cache bookkeeping and listener notification, not the network.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MemorySpaceCacheBenchmark {
+    static final int FIELDS = 500;
+    static final int FIELD_SIZE = 16;
+    static final int SPACE = 0xFD;
+
+    private MemorySpaceCache cache;
+    private long notifications;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        final NodeID remote = new NodeID(new byte[]{2, 1, 13, 0, 0, 2});
+        final byte[] payload = new byte[64];
+        for (int i = 0; i < payload.length; ++i) {
+            payload[i] = (byte) ('a' + i % 26);
+        }
+        ReadWriteAccess access = new ReadWriteAccess() {
+            @Override
+            public void doWrite(long address, int space, byte[] data,
+                                MemoryConfigurationService.McsWriteHandler handler) {
+                handler.handleSuccess();
+            }
+
+            @Override
+            public void doRead(long address, int space, int length,
+                               MemoryConfigurationService.McsReadHandler handler) {
+                byte[] data = new byte[length];
+                System.arraycopy(payload, 0, data, 0, length);
+                handler.handleReadData(remote, space, address, data);
+            }
+        };
+        cache = new MemorySpaceCache(access, SPACE);
+        PropertyChangeListener listener = new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                notifications++;
+            }
+        };
+        for (int i = 0; i < FIELDS; ++i) {
+            long start = i * FIELD_SIZE;
+            cache.addRangeToCache(start, start + FIELD_SIZE, true);
+            cache.addRangeListener(start, start + FIELD_SIZE, true, listener);
+        }
+        cache.fillCache();
+    }
+
+    private long nextField() {
+        next = (next + 37) % FIELDS;
+        return next * FIELD_SIZE;
+    }
+
+    @Benchmark
+    public byte[] read() {
+        return cache.read(nextField(), FIELD_SIZE);
+    }
+
+    /// Reloads one field; the read completes immediately and notifies the field's listener.
+    @Benchmark
+    public long reloadAndNotify() {
+        cache.reload(nextField(), FIELD_SIZE, true);
+        return notifications;
+    }
+}
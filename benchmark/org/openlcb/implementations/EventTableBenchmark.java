@@ -0,0 +1,52 @@
+package org.openlcb.implementations;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openlcb.EventID;
+
+/**
+ * Measures searching the event table the way the event ID text field does when the user types a
+ * query. The table has 50000 entries with layout-style descriptions ("Block 123 occupied",
+ * "Turnout 45 thrown (east yard)", ...).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EventTableBenchmark {
+    static final int ENTRIES = 50000;
+    static final String[] KINDS = {"Block", "Turnout", "Signal", "Sensor", "Light"};
+    static final String[] STATES = {"occupied", "thrown", "clear", "active", "on"};
+
+    /// A word prefix query, a scattered substring query, and a query that matches nothing.
+    @Param({"Turnout 12", "sg clr", "xyzzy"})
+    public String query;
+
+    private EventTable table;
+
+    @Setup
+    public void setUp() {
+        table = new EventTable();
+        for (int i = 0; i < ENTRIES; ++i) {
+            String description = KINDS[i % KINDS.length] + " " + (i / KINDS.length) + " " +
+                    STATES[(i / 7) % STATES.length];
+            if (i % 10 == 0) {
+                description += " (east yard)";
+            }
+            table.addEvent(EventID.fromLong(0x0501010103000000L + i), description);
+        }
+    }
+
+    @Benchmark
+    public List<EventTable.EventTableEntry> searchForEvent() {
+        return table.searchForEvent(query, 20);
+    }
+}
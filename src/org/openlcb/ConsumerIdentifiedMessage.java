@@ -52,5 +52,7 @@ public class ConsumerIdentifiedMessage extends EventMessage {
         return super.toString() + " Consumer Identified " + eventState.toString() + " for "+eventID.toString();
     }
 
-    public int getMTI() { return MTI_CONSUMER_IDENTIFIED; }
+    public int getMTI() {
+        return (MessageTypeIdentifier.ConsumerIdentifiedValid.mti() & ~3) | eventState.getModifier();
+    }
 }
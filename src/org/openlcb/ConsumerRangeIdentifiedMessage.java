@@ -35,5 +35,7 @@ public class ConsumerRangeIdentifiedMessage extends EventMessage {
                 +" Consumer Range Identified with " + eventID.toString();
     }
     
-    public int getMTI() { return MTI_PRODUCER_RANGE_IDENTIFIED; }
+    public int getMTI() {
+        return MessageTypeIdentifier.ConsumerRangeIdentified.mti();
+    }
 }
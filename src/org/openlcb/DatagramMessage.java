@@ -82,7 +82,9 @@ public class DatagramMessage extends AddressedMessage {
     }
     
     @Override
-    public int getMTI() { return MTI_DATAGRAM; }
+    public int getMTI() {
+        return MessageTypeIdentifier.Datagram.mti();
+    }
 
     @Override
     public String toString() {
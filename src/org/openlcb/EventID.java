@@ -17,14 +17,15 @@ import edu.umd.cs.findbugs.annotations.*;
 public class EventID {
 
     static final int BYTECOUNT = 8;
-    
+
+    /// Size of the interning cache used by {@link #fromLong}; must be a power of two.
+    static final int CACHE_SIZE = 1024;
+    /// Direct-mapped cache of recently used instances. Racy but safe, since EventID is immutable.
+    private static final EventID[] cache = new EventID[CACHE_SIZE];
+
     @CheckReturnValue
     public EventID(@NonNull NodeID node, int b7, int b8) {
-        this.contents = new byte[BYTECOUNT];
-        System.arraycopy(node.contents, 0, this.contents, 0, BYTECOUNT-2);
-            
-        this.contents[6] = (byte)b7;
-        this.contents[7] = (byte)b8;
+        this.value = (node.toLong() << 16) | ((b7 & 0xff) << 8) | (b8 & 0xff);
     }
     
     @CheckReturnValue
@@ -33,8 +34,7 @@ public class EventID {
             throw new java.lang.IllegalArgumentException("null argument invalid");
         if (contents.length != BYTECOUNT)
             throw new java.lang.IllegalArgumentException("Wrong EventID length: "+contents.length);
-        this.contents = new byte[BYTECOUNT];
-        System.arraycopy(contents, 0, this.contents, 0, BYTECOUNT);
+        this.value = Utilities.NetworkToHostUint64(contents, 0);
     }
     
     @CheckReturnValue
@@ -44,78 +44,81 @@ public class EventID {
         byte[] data = org.openlcb.Utilities.bytesFromHexString(value);
         if (data.length != BYTECOUNT)
             throw new java.lang.IllegalArgumentException("Wrong EventID length: "+data.length);
-        this.contents = new byte[BYTECOUNT];
-        System.arraycopy(data, 0, this.contents, 0, BYTECOUNT);
+        this.value = Utilities.NetworkToHostUint64(data, 0);
     }
-    
-    byte[] contents;
-    
+
+    private EventID(long value) {
+        this.value = value;
+    }
+
+    /**
+     * Returns an EventID for a 64-bit value. Recently used instances are reused, so this does not
+     * allocate memory when the same events keep showing up (e.g. when decoding network
+     * traffic).
+     * @param value event ID, as returned by {@link #toLong()}
+     * @return EventID with the given value
+     */
+    @CheckReturnValue
+    @NonNull
+    public static EventID fromLong(long value) {
+        int index = NodeID.mix(value) & (CACHE_SIZE - 1);
+        EventID e = cache[index];
+        if (e == null || e.value != value) {
+            e = new EventID(value);
+            cache[index] = e;
+        }
+        return e;
+    }
+
+    private final long value;
+
     @CheckReturnValue
     @NonNull
     public byte[] getContents() {
-        // copy to ensure immutable
         byte[] retval = new byte[BYTECOUNT];
-        System.arraycopy(contents, 0, retval, 0, BYTECOUNT);
+        Utilities.HostToNetworkUint64(retval, 0, value);
         return retval;
     }
 
+    /**
+     * @param index which byte to return, 0 being the most significant
+     * @return one byte of the event ID, 0..255
+     */
+    public int getByte(int index) {
+        return (int) (value >>> ((BYTECOUNT - 1 - index) * 8)) & 0xff;
+    }
+
     @CheckReturnValue
     @Override
     public boolean equals(Object o){
-        // try to cast, else not equal
-        try {
-            EventID other = (EventID) o;
-            for (int i = 0; i<BYTECOUNT; i++)
-                if (other.contents[i] != this.contents[i]) return false;
-            return true;
-        } catch (Exception e) {
-            return false;
-        }
+        if (!(o instanceof EventID)) return false;
+        return ((EventID) o).value == value;
     }  
 
     /// Checks whether a given Event ID comes from a given Node ID's space.
     public boolean startsWith(NodeID id) {
-        for (int i = 0; i < 6; ++i) {
-            if (contents[i] != id.contents[i]) return false;
-        }
-        return true;
+        return (value >>> 16) == id.toLong();
     }
 
     @CheckReturnValue
     @Override
     public int hashCode() {
-        return (contents[0]<<21)
-            +(contents[1]<<18)
-            +(contents[2]<<15)
-            +(contents[3]<<12)
-            +(contents[4]<<9)
-            +(contents[5]<<6)
-            +(contents[6]<<3)
-            +(contents[7]);
+        return NodeID.mix(value);
     } 
 
     @CheckReturnValue
     @NonNull
     @Override
     public String toString() {
-        return "EventID:"
-                +Utilities.toHexPair(contents[0])+"."
-                +Utilities.toHexPair(contents[1])+"."
-                +Utilities.toHexPair(contents[2])+"."
-                +Utilities.toHexPair(contents[3])+"."
-                +Utilities.toHexPair(contents[4])+"."
-                +Utilities.toHexPair(contents[5])+"."
-                +Utilities.toHexPair(contents[6])+"."
-                +Utilities.toHexPair(contents[7]);
+        StringBuilder b = new StringBuilder("EventID:");
+        for (int i = 0; i < BYTECOUNT; ++i) {
+            if (i > 0) b.append('.');
+            b.append(Utilities.toHexPair(getByte(i)));
+        }
+        return b.toString();
     }
 
     public long toLong() {
-        long ret = 0;
-        for (int i = 0; i < 8; ++i) {
-            ret <<= 8;
-            int e = contents[i];
-            ret |= (e & 0xff);
-        }
-        return ret;
+        return value;
     }
 }
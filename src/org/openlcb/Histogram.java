@@ -0,0 +1,78 @@
+package org.openlcb;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts recorded values in fixed power-of-two buckets.
+ * <p>
+ * Bucket 0 holds the value 0, bucket i (1 &lt;= i &lt; {@link #BUCKETS} - 1) the values from
+ * 2^(i-1) to 2^i - 1, and the last bucket everything above. Recording is lock-free and does not
+ * allocate memory, so it is cheap enough to leave on in production; concurrent recordings are
+ * spread over striped counters.
+ */
+public class Histogram {
+    /// Number of buckets.
+    public static final int BUCKETS = 24;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param value value to record; negative values are counted as 0.
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        int bucket = 64 - Long.numberOfLeadingZeros(value);
+        if (bucket >= BUCKETS) bucket = BUCKETS - 1;
+        counts[bucket].increment();
+        sum.add(value);
+    }
+
+    /// @return the number of recorded values in each bucket.
+    public long[] getCounts() {
+        long[] r = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            r[i] = counts[i].sum();
+        }
+        return r;
+    }
+
+    /// @return the largest value counted in each bucket; the last bucket has no limit.
+    public static long[] getBucketLimits() {
+        long[] r = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS - 1; ++i) {
+            r[i] = (1L << i) - 1;
+        }
+        r[BUCKETS - 1] = Long.MAX_VALUE;
+        return r;
+    }
+
+    /// @return the number of recorded values.
+    public long getCount() {
+        long r = 0;
+        for (LongAdder c : counts) {
+            r += c.sum();
+        }
+        return r;
+    }
+
+    /// @return the average of the recorded values, or 0 if there are none.
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /// Clears all counts. Values recorded concurrently may or may not be kept.
+    public void reset() {
+        for (LongAdder c : counts) {
+            c.reset();
+        }
+        sum.reset();
+    }
+}
@@ -35,5 +35,7 @@ public class IdentifyConsumersMessage extends EventMessage {
                 +" Identify Consumers with "+eventID.toString();     
     }
 
-    public int getMTI() { return MTI_IDENTIFY_CONSUMERS; }
+    public int getMTI() {
+        return MessageTypeIdentifier.IdentifyConsumer.mti();
+    }
 }
@@ -34,5 +34,8 @@ public class IdentifyEventsMessage extends AddressedMessage {
                 +" Identify Events ";   
     }
 
-    public int getMTI() { return MTI_IDENTIFY_EVENTS; }
+    public int getMTI() {
+        return getDestNodeID() == null ? MessageTypeIdentifier.IdentifyEventsGlobal.mti() :
+                MessageTypeIdentifier.IdentifyEventsAddressed.mti();
+    }
 }
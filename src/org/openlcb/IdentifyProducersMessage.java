@@ -34,5 +34,7 @@ public class IdentifyProducersMessage extends EventMessage {
                 +" Identify Producers with "+eventID.toString();     
     }
 
-    public int getMTI() { return MTI_IDENTIFY_PRODUCERS; }
+    public int getMTI() {
+        return MessageTypeIdentifier.IdentifyProducer.mti();
+    }
 }
@@ -0,0 +1,275 @@
+package org.openlcb;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.openlcb.implementations.DatagramMeteringBuffer;
+import org.openlcb.implementations.MemoryConfigurationService;
+
+/**
+ * Runtime statistics of an {@link OlcbInterface}, available via
+ * {@link OlcbInterface#getMetrics()}.
+ * <p>
+ * The counters are always on; recording only increments striped counters ({@link LongAdder})
+ * and fixed-bucket histograms, so it does not allocate memory or take locks. Gauges (queue
+ * depths, node count) are read from the components when queried. Call {@link #register} to
+ * publish the statistics as an MXBean on the platform MBean server.
+ */
+public class InterfaceMetrics implements InterfaceMetricsMXBean {
+    private final static Logger logger = Logger.getLogger(InterfaceMetrics.class.getName());
+    /// Domain of the registered MBeans.
+    public static final String JMX_DOMAIN = "org.openlcb";
+
+    private static final MessageTypeIdentifier[] TYPES = MessageTypeIdentifier.values();
+
+    private final OlcbInterface iface;
+    private final LongAdder framesIn = new LongAdder();
+    private final LongAdder framesOut = new LongAdder();
+    /// Messages by MTI ordinal; the last entry counts the unknown MTIs.
+    private final LongAdder[] messagesIn = newCounters(TYPES.length + 1);
+    private final LongAdder[] messagesOut = newCounters(TYPES.length + 1);
+    private final Histogram outputBatchSizes = new Histogram();
+    private ObjectName registeredName = null; // guarded by this
+
+    InterfaceMetrics(OlcbInterface iface) {
+        this.iface = iface;
+    }
+
+    private static LongAdder[] newCounters(int n) {
+        LongAdder[] r = new LongAdder[n];
+        for (int i = 0; i < n; ++i) {
+            r[i] = new LongAdder();
+        }
+        return r;
+    }
+
+    /// Counts a CAN frame received. Called by the CAN interface.
+    public void recordFrameIn() {
+        framesIn.increment();
+    }
+
+    /// Counts a CAN frame sent. Called by the CAN interface.
+    public void recordFrameOut() {
+        framesOut.increment();
+    }
+
+    /**
+     * Counts a message received from the network.
+     * @param type ordinal of the message type, or negative if unknown
+     */
+    void recordMessageIn(int type) {
+        messagesIn[type < 0 ? TYPES.length : type].increment();
+    }
+
+    /// Counts a message sent to the network.
+    void recordMessageOut(Message msg) {
+        int type = MessageTypeIdentifier.ordinalForMti(msg.getMTI());
+        messagesOut[type < 0 ? TYPES.length : type].increment();
+    }
+
+    /// Records the number of messages the output thread took from the queue at once.
+    void recordOutputBatch(int size) {
+        outputBatchSizes.record(size);
+    }
+
+    @Override
+    public long getFramesIn() {
+        return framesIn.sum();
+    }
+
+    @Override
+    public long getFramesOut() {
+        return framesOut.sum();
+    }
+
+    private static long total(LongAdder[] counters) {
+        long r = 0;
+        for (LongAdder c : counters) {
+            r += c.sum();
+        }
+        return r;
+    }
+
+    private static Map<String, Long> byType(LongAdder[] counters) {
+        Map<String, Long> r = new TreeMap<>();
+        for (int i = 0; i < counters.length; ++i) {
+            long n = counters[i].sum();
+            if (n == 0) continue;
+            r.put(i < TYPES.length ? TYPES[i].name() : "Unknown", n);
+        }
+        return r;
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return total(messagesIn);
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return total(messagesOut);
+    }
+
+    @Override
+    public Map<String, Long> getMessagesInByType() {
+        return byType(messagesIn);
+    }
+
+    @Override
+    public Map<String, Long> getMessagesOutByType() {
+        return byType(messagesOut);
+    }
+
+    @Override
+    public int getOutputQueueDepth() {
+        return iface.getOutputQueueDepth();
+    }
+
+    @Override
+    public long getOutputDroppedCount() {
+        return iface.getOutputDroppedCount();
+    }
+
+    @Override
+    public long[] getOutputBatchSizeHistogram() {
+        return outputBatchSizes.getCounts();
+    }
+
+    @Override
+    public double getOutputAverageBatchSize() {
+        return outputBatchSizes.getMean();
+    }
+
+    @Override
+    public int getDatagramQueueDepth() {
+        return iface.getDatagramMeteringBuffer().getQueueDepth();
+    }
+
+    @Override
+    public int getDatagramsInFlight() {
+        return iface.getDatagramMeteringBuffer().getInFlightCount();
+    }
+
+    @Override
+    public long getDatagramsSent() {
+        return iface.getDatagramMeteringBuffer().getSentCount();
+    }
+
+    @Override
+    public long getDatagramRetries() {
+        return iface.getDatagramMeteringBuffer().getRetryCount();
+    }
+
+    @Override
+    public long getDatagramTimeouts() {
+        return iface.getDatagramMeteringBuffer().getTimeoutCount();
+    }
+
+    @Override
+    public long[] getDatagramRoundTripHistogram() {
+        return iface.getDatagramMeteringBuffer().getRoundTripHistogram().getCounts();
+    }
+
+    @Override
+    public Map<String, Double> getDatagramSmoothedRoundTripByNode() {
+        return iface.getDatagramMeteringBuffer().getRoundTripEstimator().getSmoothedRttByNode();
+    }
+
+    @Override
+    public Map<String, Long> getDatagramTimeoutByNode() {
+        return iface.getDatagramMeteringBuffer().getRoundTripEstimator().getTimeoutsByNode();
+    }
+
+    @Override
+    public int getMemoryConfigPendingRequests() {
+        return iface.getMemoryConfigurationService().getPendingRequestCount();
+    }
+
+    @Override
+    public long getMemoryConfigRetries() {
+        return iface.getMemoryConfigurationService().getRetryCount();
+    }
+
+    @Override
+    public long getMemoryConfigCompletedRequests() {
+        return iface.getMemoryConfigurationService().getCompletedRequestCount();
+    }
+
+    @Override
+    public double getMemoryConfigThroughput() {
+        return iface.getMemoryConfigurationService().getThroughput();
+    }
+
+    @Override
+    public Map<String, Double> getMemoryConfigSmoothedRoundTripByNode() {
+        return iface.getMemoryConfigurationService().getRoundTripEstimator()
+                .getSmoothedRttByNode();
+    }
+
+    @Override
+    public Map<String, Long> getMemoryConfigTimeoutByNode() {
+        return iface.getMemoryConfigurationService().getRoundTripEstimator().getTimeoutsByNode();
+    }
+
+    @Override
+    public int getNodeCount() {
+        return iface.getNodeStore().getNodeCount();
+    }
+
+    @Override
+    public long[] getHistogramBucketLimits() {
+        return Histogram.getBucketLimits();
+    }
+
+    @Override
+    public void reset() {
+        framesIn.reset();
+        framesOut.reset();
+        for (LongAdder c : messagesIn) c.reset();
+        for (LongAdder c : messagesOut) c.reset();
+        outputBatchSizes.reset();
+        DatagramMeteringBuffer dmb = iface.getDatagramMeteringBuffer();
+        dmb.resetStatistics();
+        MemoryConfigurationService mcs = iface.getMemoryConfigurationService();
+        mcs.resetStatistics();
+    }
+
+    /**
+     * Publishes these statistics on the platform MBean server, with the name
+     * org.openlcb:type=OlcbInterface,node=(node ID). Does nothing if already registered.
+     * @return the name of the MBean, or null if it could not be registered (e.g. because an
+     * interface with the same node ID is already registered).
+     */
+    public synchronized ObjectName register() {
+        if (registeredName != null) return registeredName;
+        try {
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=OlcbInterface,node=" + iface
+                    .getNodeId());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Could not register the interface metrics", e);
+        }
+        return registeredName;
+    }
+
+    /// Removes the MBean registered by {@link #register}, if any.
+    public synchronized void unregister() {
+        if (registeredName == null) return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(registeredName);
+        } catch (JMException e) {
+            logger.log(Level.FINE, "Could not unregister the interface metrics", e);
+        }
+        registeredName = null;
+    }
+}
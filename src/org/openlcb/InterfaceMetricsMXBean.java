@@ -0,0 +1,92 @@
+package org.openlcb;
+
+import java.util.Map;
+
+/**
+ * Management interface of the runtime statistics of an {@link OlcbInterface}. Durations are in
+ * milliseconds; histograms are reported as counts per bucket, with the bucket limits given by
+ * {@link #getHistogramBucketLimits}.
+ */
+public interface InterfaceMetricsMXBean {
+    /// @return the number of CAN frames received (0 if the interface is not on CAN).
+    long getFramesIn();
+
+    /// @return the number of CAN frames sent (0 if the interface is not on CAN).
+    long getFramesOut();
+
+    /// @return the number of messages received from the network.
+    long getMessagesIn();
+
+    /// @return the number of messages sent to the network.
+    long getMessagesOut();
+
+    /// @return the number of messages received, by message type. Types not seen are omitted.
+    Map<String, Long> getMessagesInByType();
+
+    /// @return the number of messages sent, by message type. Types not sent are omitted.
+    Map<String, Long> getMessagesOutByType();
+
+    /// @return the number of messages waiting in the output queue.
+    int getOutputQueueDepth();
+
+    /// @return the number of messages discarded by the output queue's overflow policy.
+    long getOutputDroppedCount();
+
+    /// @return how many messages the output thread took from the queue at a time.
+    long[] getOutputBatchSizeHistogram();
+
+    /// @return the average number of messages the output thread took from the queue at a time.
+    double getOutputAverageBatchSize();
+
+    /// @return the number of datagrams waiting to be sent.
+    int getDatagramQueueDepth();
+
+    /// @return the number of datagrams sent and waiting for a reply.
+    int getDatagramsInFlight();
+
+    /// @return the number of datagram transmissions, including the retransmissions.
+    long getDatagramsSent();
+
+    /// @return the number of datagrams retransmitted after a temporary rejection.
+    long getDatagramRetries();
+
+    /// @return the number of datagrams that did not get a reply in time.
+    long getDatagramTimeouts();
+
+    /// @return the time between sending a datagram and getting the reply.
+    long[] getDatagramRoundTripHistogram();
+
+    /// @return the smoothed datagram round trip time of each node, in milliseconds.
+    Map<String, Double> getDatagramSmoothedRoundTripByNode();
+
+    /// @return the current datagram reply timeout of each node, in milliseconds.
+    Map<String, Long> getDatagramTimeoutByNode();
+
+    /// @return the number of memory configuration requests sent or waiting to be sent.
+    int getMemoryConfigPendingRequests();
+
+    /// @return the number of memory configuration requests resent due to a missing reply.
+    long getMemoryConfigRetries();
+
+    /// @return the number of memory configuration reads and writes completed.
+    long getMemoryConfigCompletedRequests();
+
+    /// @return the bytes read and written per second while requests were outstanding.
+    double getMemoryConfigThroughput();
+
+    /// @return the smoothed time from a memory configuration request to its response datagram
+    /// for each node, in milliseconds.
+    Map<String, Double> getMemoryConfigSmoothedRoundTripByNode();
+
+    /// @return the current memory configuration response timeout of each node, in milliseconds.
+    Map<String, Long> getMemoryConfigTimeoutByNode();
+
+    /// @return the number of nodes known on the network.
+    int getNodeCount();
+
+    /// @return the largest value counted in each bucket of the histograms.
+    long[] getHistogramBucketLimits();
+
+    /// Clears the counters and histograms.
+    void reset();
+}
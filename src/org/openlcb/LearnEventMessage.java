@@ -34,5 +34,7 @@ public class LearnEventMessage extends EventMessage {
                 +" LearnEvent "+eventID.toString();     
     }
      
-    public int getMTI() { return MTI_LEARN_EVENT; }
+    public int getMTI() {
+        return MessageTypeIdentifier.LearnEvent.mti();
+    }
 }
@@ -1,7 +1,5 @@
 package org.openlcb;
 
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.logging.Logger;
 import org.openlcb.implementations.DatagramService;
 import org.openlcb.implementations.MemoryConfigurationService;
@@ -54,9 +52,6 @@ public class LoaderClient extends MessageDecoder {
         connection = _connection;
         dcs = _dcs;
         mcs = _mcs;
-        if(timer == null) {
-           timer = new Timer("OpenLCB LoaderClient Timeout Timer");
-        }
     }
 
     /* Protocol:
@@ -117,15 +112,13 @@ public class LoaderClient extends MessageDecoder {
         startTimeout(FREEZE_REBOOT_TIMEOUT_MSEC);
     }
 
-    private static Timer timer;
-    private TimerTask task = null;
+    private Scheduler.Timeout task = null;
     private void startTimeout(int period_msec) {
-        task = new TimerTask(){
+        task = Scheduler.getDefault().scheduleBlocking(new Runnable(){
             public void run(){
                 timerExpired();
             }
-        };
-        timer.schedule(task, period_msec);
+        }, period_msec);
     }
     private void endTimeout() {
         if (task != null) task.cancel();
@@ -365,9 +358,9 @@ public class LoaderClient extends MessageDecoder {
      * clean up local storage
      */
     public void dispose(){
-       if(timer!=null) {
-          timer.cancel();
-          timer = null;
+       Scheduler.Timeout t = task;
+       if(t!=null) {
+          t.cancel();
        }
     }
 }
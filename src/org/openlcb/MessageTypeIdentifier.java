@@ -134,5 +134,71 @@ public enum MessageTypeIdentifier {
         public static MessageTypeIdentifier get(int mti) {
             return mapping.get(Integer.valueOf(mti));
         }
+
+        // Numeric MTI values in ascending order, and the matching enum ordinals. Used for
+        // computing mask bits without allocating memory.
+        private static final int[] sortedMtis;
+        private static final int[] sortedOrdinals;
+
+        static {
+            MessageTypeIdentifier[] all = values();
+            sortedMtis = new int[all.length];
+            sortedOrdinals = new int[all.length];
+            java.util.Arrays.sort(all, new java.util.Comparator<MessageTypeIdentifier>() {
+                @Override
+                public int compare(MessageTypeIdentifier a, MessageTypeIdentifier b) {
+                    return Integer.compare(a.mti(), b.mti());
+                }
+            });
+            for (int i = 0; i < all.length; ++i) {
+                sortedMtis[i] = all[i].mti();
+                sortedOrdinals[i] = all[i].ordinal();
+            }
+        }
+
+        /**
+         * @return the bit representing this MTI in a bitmask of MTIs.
+         */
+        public long bit() {
+            return 1L << ordinal();
+        }
+
+        /**
+         * Computes a bitmask representing a set of MTIs. Such masks are used for quickly
+         * checking whether a message is of interest for a listener.
+         * @param mtis    the message types to include
+         * @return bitmask with the bit of every given MTI set
+         */
+        public static long maskOf(java.util.Collection<MessageTypeIdentifier> mtis) {
+            long mask = 0;
+            for (MessageTypeIdentifier m : mtis) {
+                mask |= m.bit();
+            }
+            return mask;
+        }
+
+        /**
+         * Provides the mask bit for a numeric MTI value. Does not allocate memory.
+         * @param mti    the numeric value of the MTI
+         * @return the bit of the MTI (see {@link #bit()}), or 0 if that numeric value is not a
+         * known MTI.
+         */
+        public static long bitForMti(int mti) {
+            int i = ordinalForMti(mti);
+            if (i < 0) return 0;
+            return 1L << i;
+        }
+
+        /**
+         * Looks up the enum ordinal for a numeric MTI value. Does not allocate memory.
+         * @param mti    the numeric value of the MTI
+         * @return the ordinal of the matching enum value, or -1 if that numeric value is not a
+         * known MTI.
+         */
+        public static int ordinalForMti(int mti) {
+            int i = java.util.Arrays.binarySearch(sortedMtis, mti);
+            if (i < 0) return -1;
+            return sortedOrdinals[i];
+        }
         
 }
@@ -5,8 +5,6 @@ import java.beans.PropertyChangeSupport;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -25,55 +23,65 @@ public class MimicNodeStore extends AbstractConnection {
     public static final String CLEAR_ALL_NODES = "ClearAllNodes";
     private final static Logger logger = Logger.getLogger(MimicNodeStore.class.getName());
     
-    private static class MimicNodeStoreTimer {
-        private Timer timer;
-        
-        private synchronized void init() {
-            if (timer == null) {
-                // only initialize timer if it is not initialized or has been canceled before
-                timer = new Timer("OpenLCB Mimic Node Store Timer");
-            }
-        }
-
-        private synchronized void schedule(final TimerTask t, final int delay) {
-            if (timer != null) {
-                // only schedule task if timer is initialized and not canceled
-                timer.schedule(t,delay);
-            }
-        }
-        
-        private synchronized void cancel() {
-            if (timer != null ) {
-                // only cancel time if it is initialized and not canceled
-                timer.cancel();
-                timer = null;
-            }
-        }
+    /**
+     * Creates the store with its timeouts running on the {@link Scheduler#getDefault() default
+     * scheduler}.
+     * @param connection where to send the requests to the nodes
+     * @param node our node ID
+     */
+    public MimicNodeStore(Connection connection, NodeID node) {
+        this(connection, node, Scheduler.getDefault());
     }
 
-    public MimicNodeStore(Connection connection, NodeID node) {
+    /**
+     * @param connection where to send the requests to the nodes
+     * @param node our node ID
+     * @param scheduler runs the timeouts of the requests
+     */
+    public MimicNodeStore(Connection connection, NodeID node, Scheduler scheduler) {
         this.connection = connection;
         this.node = node;
-        
-        timer.init();
+        this.scheduler = scheduler;
     }
 
     public void dispose() {
-        // cancel the timer.
-        timer.cancel();
+        // The scheduler may be shared; the pending tasks see the flag and do nothing.
+        disposed = true;
     }
 
-    void scheduleTask(TimerTask t, int delay) {
-        timer.schedule(t,delay);
+    /**
+     * Runs a task after a delay on the executor of the scheduler, since the tasks send
+     * messages, unless the store is disposed by then.
+     * @return the handle of the task, or null if the store or the scheduler was disposed.
+     */
+    Scheduler.Timeout scheduleTask(final Runnable t, int delay) {
+        if (disposed) return null;
+        try {
+            return scheduler.scheduleBlocking(new Runnable() {
+                @Override
+                public void run() {
+                    if (!disposed) t.run();
+                }
+            }, delay);
+        } catch (IllegalStateException e) {
+            // scheduler shut down
+            return null;
+        }
     }
     
     Connection connection;
     NodeID node;
-    private static MimicNodeStoreTimer timer = new MimicNodeStoreTimer();
+    private final Scheduler scheduler;
+    private volatile boolean disposed = false;
     
     public Collection<NodeMemo> getNodeMemos() {
         return map.values();
     } 
+
+    /// @return the number of nodes known.
+    public int getNodeCount() {
+        return map.size();
+    }
     
     @Override
     public void put(Message msg, Connection sender) {
@@ -156,7 +164,7 @@ public class MimicNodeStore extends AbstractConnection {
 
         Queue<Interaction> pendingInteractions = new ConcurrentLinkedDeque<>();
         Interaction currentInteraction = null;
-        private TimerTask currentTask;
+        private Scheduler.Timeout currentTask;
 
         public synchronized void startInteraction(final Interaction request) {
             if (currentInteraction == null) {
@@ -173,14 +181,13 @@ public class MimicNodeStore extends AbstractConnection {
             
             currentInteraction = request;
             request.sendRequest(connection);
-            currentTask = new TimerTask() {
+            currentTask = scheduleTask(new Runnable() {
                 @Override
                 public void run() {
                     request.onTimeout();
                     tryCompleteInteraction(request);
                 }
-            };
-            scheduleTask(currentTask, request.deadlineMsec);
+            }, request.deadlineMsec);
         }
 
         public synchronized void tryCompleteInteraction(@Nullable Interaction request) {
@@ -203,7 +210,7 @@ public class MimicNodeStore extends AbstractConnection {
             synchronized (request) {
                 request.isComplete = true;
             }
-            currentTask.cancel();
+            if (currentTask != null) currentTask.cancel();
             currentInteraction = null;
             currentTask = null;
             if (pendingInteractions.isEmpty()) {
@@ -253,7 +260,7 @@ public class MimicNodeStore extends AbstractConnection {
                         }
                         final Interaction request = this;
                         if (--numTriesLeft > 0) {
-                            scheduleTask(new TimerTask() {
+                            scheduleTask(new Runnable() {
                                 @Override
                                 public void run() {
                                     startInteraction(request);
@@ -311,7 +318,7 @@ public class MimicNodeStore extends AbstractConnection {
                         }
                         final Interaction request = this;
                         if (--numTriesLeft > 0) {
-                            scheduleTask(new TimerTask() {
+                            scheduleTask(new Runnable() {
                                 @Override
                                 public void run() {
                                     startInteraction(request);
@@ -16,15 +16,21 @@ import edu.umd.cs.findbugs.annotations.*;
 @ThreadSafe
 public class NodeID {
     static final int BYTECOUNT = 6;
-    
+    private static final long MASK = 0xFFFFFFFFFFFFL;
+
+    /// Size of the interning cache used by {@link #fromLong}; must be a power of two.
+    static final int CACHE_SIZE = 1024;
+    /// Direct-mapped cache of recently used instances. Racy but safe, since NodeID is immutable.
+    private static final NodeID[] cache = new NodeID[CACHE_SIZE];
+
     @CheckReturnValue
     public NodeID(@NonNull NodeID node) {
-        this (node.contents);
+        this.value = node.value;
     }
     
     @CheckReturnValue
     public NodeID() {
-        this (new byte[]{0,0,0,0,0,0});
+        this.value = 0;
     }
     
     @CheckReturnValue
@@ -33,9 +39,7 @@ public class NodeID {
             throw new java.lang.IllegalArgumentException("null argument invalid");
         if (contents.length < BYTECOUNT)
             throw new java.lang.IllegalArgumentException("Wrong NodeID length: "+contents.length);
-        this.contents = new byte[BYTECOUNT];
-        for (int i = 0; i < BYTECOUNT; i++)
-            this.contents[i] = contents[i];
+        this.value = Utilities.NetworkToHostUint48(contents, 0);
     }
     
     @CheckReturnValue
@@ -45,61 +49,76 @@ public class NodeID {
         byte[] contents = org.openlcb.Utilities.bytesFromHexString(value);
         if (contents.length < BYTECOUNT)
             throw new java.lang.IllegalArgumentException("Wrong NodeID length: "+contents.length);
-        this.contents = new byte[BYTECOUNT];
-        for (int i = 0; i < BYTECOUNT; i++)
-            this.contents[i] = contents[i];
+        this.value = Utilities.NetworkToHostUint48(contents, 0);
     }
 
-    byte[] contents;
+    private NodeID(long value) {
+        this.value = value & MASK;
+    }
 
+    /**
+     * Returns a NodeID for a 48-bit value. Recently used instances are reused, so this does not
+     * allocate memory when the same node IDs keep showing up (e.g. when decoding network
+     * traffic).
+     * @param value node ID in the low 48 bits, as returned by {@link #toLong()}
+     * @return NodeID with the given value
+     */
     @CheckReturnValue
-    public boolean equals(Object o){
-        // try to cast, else not equal
-        try {
-            NodeID other = (NodeID) o;
-            for (int i = 0; i<BYTECOUNT; i++)
-                if (other.contents[i] != this.contents[i]) return false;
-            return true;
-        } catch (Exception e) {
-            return false;
+    @NonNull
+    public static NodeID fromLong(long value) {
+        value &= MASK;
+        int index = mix(value) & (CACHE_SIZE - 1);
+        NodeID n = cache[index];
+        if (n == null || n.value != value) {
+            n = new NodeID(value);
+            cache[index] = n;
         }
+        return n;
+    }
+
+    /// Scrambles the bits of a node or event ID to spread IDs sharing a prefix over the range.
+    static int mix(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private final long value;
+
+    @CheckReturnValue
+    public boolean equals(Object o){
+        if (!(o instanceof NodeID)) return false;
+        return ((NodeID) o).value == value;
     }  
     
     @CheckReturnValue
     public int hashCode() {
-        return contents[0]
-            +contents[1]<<5
-            +contents[2]<<10
-            +contents[3]<<15
-            +contents[4]<<20
-            +contents[5]<<25;
+        return mix(value);
     } 
 
     public long toLong() {
-        long retval = 0;
-        retval |= contents[0] & 0xff; retval <<= 8;
-        retval |= contents[1] & 0xff; retval <<= 8;
-        retval |= contents[2] & 0xff; retval <<= 8;
-        retval |= contents[3] & 0xff; retval <<= 8;
-        retval |= contents[4] & 0xff; retval <<= 8;
-        retval |= contents[5] & 0xff;
-        return retval;
+        return value;
+    }
+
+    /**
+     * @param index which byte to return, 0 being the most significant
+     * @return one byte of the node ID, 0..255
+     */
+    public int getByte(int index) {
+        return (int) (value >>> ((BYTECOUNT - 1 - index) * 8)) & 0xff;
     }
 
     @CheckReturnValue
     @NonNull
     public byte[] getContents() {
-        // copy to ensure immutable
         byte[] retval = new byte[BYTECOUNT];
-        for (int i =0; i < BYTECOUNT; i++) 
-            retval[i] = contents[i];
+        Utilities.HostToNetworkUint48(retval, 0, value);
         return retval;
     }
 
     @CheckReturnValue
     @NonNull
     public String toString() {
-        return Utilities.toHexDotsString(contents);
+        return Utilities.toHexDotsString(getContents());
     }
     
 }
@@ -7,17 +7,31 @@ import org.openlcb.implementations.EventTable;
 import org.openlcb.implementations.MemoryConfigurationService;
 import org.openlcb.protocols.VerifyNodeIdHandler;
 
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.Timer;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Logger;
 
 /**
@@ -25,9 +39,19 @@ import java.util.logging.Logger;
  * <p>
  * Created by bracz on 12/27/15.
  */
-public class OlcbInterface {
+public class OlcbInterface implements PropertyListenerSupport {
     private final static Logger log = Logger.getLogger(OlcbInterface.class.getName());
-    private final Timer timer = new Timer();
+    /// Property name for the changes of {@link #isOutputWritable}.
+    public static final String UPDATE_PROP_WRITABLE = "writable";
+    private final PropertyChangeSupport pcs = new PropertyChangeSupport(this);
+    /// Timers and background threads of all components of this interface.
+    private final Scheduler scheduler;
+    /// True if the scheduler was created for this interface and is shut down with it.
+    private final boolean ownsScheduler;
+    /// Created on demand for {@link #getTimer}.
+    private Timer timer = null;
+    /// Runtime statistics.
+    private final InterfaceMetrics metrics = new InterfaceMetrics(this);
 
     /// Object for sending messages to the network.
     protected final Connection internalOutputConnection;
@@ -61,8 +85,6 @@ public class OlcbInterface {
     // events. By default this is null, initialized lazily when needed only.
     private EventTable eventTable = null;
 
-
-    private ThreadPoolExecutor threadPool = null;
     final static int minThreads = 10;
     final static int maxThreads = 100;
     final static long threadTimeout = 10; // allowed idle time for threads, in seconds.
@@ -96,12 +118,14 @@ public class OlcbInterface {
      */
     @Deprecated
     public OlcbInterface(NodeID nodeId_, Connection outputConnection_) {
-          this(nodeId_,outputConnection_, 
-               new ThreadPoolExecutor(minThreads,maxThreads,threadTimeout,
-                                      TimeUnit.SECONDS,
-                                      new LinkedBlockingQueue<Runnable>(),
-                                      new OlcbThreadFactory()));
-          threadPool.allowCoreThreadTimeOut(true);
+        this(nodeId_, outputConnection_, createThreadPool());
+    }
+
+    private static ThreadPoolExecutor createThreadPool() {
+        ThreadPoolExecutor tpe = new ThreadPoolExecutor(minThreads, maxThreads, threadTimeout,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new OlcbThreadFactory());
+        tpe.allowCoreThreadTimeOut(true);
+        return tpe;
     }
 
     /**
@@ -111,10 +135,32 @@ public class OlcbInterface {
      *                          initialized ready with this node ID.
      * @param outputConnection_ implements the hardware interface for sending messages to the
      *                          network. Usually this is an internal object of the CanInterface.
-     * @param tpe ThreadPoolExecutor for the interface.
+     * @param tpe ThreadPoolExecutor for the interface. It is shut down when the interface is
+     *            disposed.
      */
     public OlcbInterface(NodeID nodeId_, Connection outputConnection_,ThreadPoolExecutor tpe) {
-        threadPool = tpe;
+        this(nodeId_, outputConnection_, new Scheduler(tpe), true);
+    }
+
+    /**
+     * Creates the message-level interface.
+     *
+     * @param nodeId_           is the node ID for the node on this interface. Will send out a node
+     *                          initialized ready with this node ID.
+     * @param outputConnection_ implements the hardware interface for sending messages to the
+     *                          network. Usually this is an internal object of the CanInterface.
+     * @param scheduler runs the timers and background tasks of the interface. It may be shared
+     *                  with other interfaces (e.g. {@link Scheduler#getDefault}); it is not shut
+     *                  down when the interface is disposed.
+     */
+    public OlcbInterface(NodeID nodeId_, Connection outputConnection_, Scheduler scheduler) {
+        this(nodeId_, outputConnection_, scheduler, false);
+    }
+
+    private OlcbInterface(NodeID nodeId_, Connection outputConnection_, Scheduler scheduler,
+                          boolean ownsScheduler) {
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
         nodeId = nodeId_;
         this.internalOutputConnection = outputConnection_;
         this.wrappedOutputConnection = new OutputConnectionSniffer(internalOutputConnection);
@@ -122,23 +168,36 @@ public class OlcbInterface {
         this.outputConnection = this.queuedOutputConnection;
         inputConnection = new MessageDispatcher();
 
-        nodeStore = new MimicNodeStore(getOutputConnection(), nodeId);
-        dmb = new DatagramMeteringBuffer(getOutputConnection(),threadPool);
+        nodeStore = new MimicNodeStore(getOutputConnection(), nodeId, scheduler);
+        dmb = new DatagramMeteringBuffer(getOutputConnection(), scheduler);
         dcs = new DatagramService(nodeId, dmb);
-        mcs = new MemoryConfigurationService(nodeId, dcs);
+        mcs = new MemoryConfigurationService(nodeId, dcs, scheduler);
         inputConnection.registerMessageListener(nodeStore);
         inputConnection.registerMessageListener(dmb.connectionForRepliesFromDownstream());
         inputConnection.registerMessageListener(dcs);
+        mcs.enableStreamReads(getOutputConnection(), nodeStore);
+        // Forwards to the current service, which tests may replace.
+        registerMessageListener(new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+                Connection c = mcs.getStreamConnection();
+                if (c != null) c.put(msg, sender);
+            }
+        }, EnumSet.of(MessageTypeIdentifier.StreamInitiateRequest, MessageTypeIdentifier
+                .StreamDataSend, MessageTypeIdentifier.StreamDataComplete, MessageTypeIdentifier
+                .InitializationComplete));
         new VerifyNodeIdHandler(nodeId, this); // will register itself.
 
         outputConnection.registerStartNotification(new Connection.ConnectionListener() {
             @Override
             public void connectionActive(Connection c) {
+                // Must be the first message of the node. It is sent ahead of the output queue,
+                // which may already hold messages of other start listeners.
                 Message m = new InitializationCompleteMessage(nodeId);
-                outputConnection.put(m, getInputConnection());
+                wrappedOutputConnection.put(m, getInputConnection());
                 // Starts the output queue once we have the confirmation from the lower level that
-                // the connection is ready and we have enqueued the initialization complete message.
-                threadPool.execute(new Runnable() {
+                // the connection is ready and we have sent the initialization complete message.
+                scheduler.execute(new Runnable() {
                     @Override
                     public void run() {
                         queuedOutputConnection.run();
@@ -164,13 +223,28 @@ public class OlcbInterface {
      * @param r work to run.
      */
     public void runOnThreadPool(Runnable r) {
-        threadPool.execute(r);
+        scheduler.execute(r);
     }
 
     /**
-     * @return a shared Timer thread to be used by all components in this interface. Tasks scheduled on this timer are not allowed to block (as it's a shared timer thread).
+     * @return the scheduler to be used by all components in this interface for timeouts and
+     * background work.
      */
-    public Timer getTimer() {
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return a Timer thread for this interface. Tasks scheduled on this timer are not allowed to
+     * block (as it's a shared timer thread).
+     * @deprecated Use {@link #getScheduler()} instead, which does not need a thread per
+     * interface.
+     */
+    @Deprecated
+    public synchronized Timer getTimer() {
+        if (timer == null) {
+            timer = new Timer("OpenLCB-interface-timer", true);
+        }
         return timer;
     }
 
@@ -245,14 +319,159 @@ public class OlcbInterface {
         queuedOutputConnection.waitForSendQueue();
     }
 
+    /**
+     * Changes how outgoing messages are prioritized. See {@link OutputQueuePolicy}.
+     * @param policy the new policy. A copy is taken; later changes to the object have no effect.
+     */
+    public void setOutputQueuePolicy(OutputQueuePolicy policy) {
+        queuedOutputConnection.setPolicy(policy);
+    }
+
+    /**
+     * @return a copy of the policy currently used for prioritizing the outgoing messages.
+     */
+    public OutputQueuePolicy getOutputQueuePolicy() {
+        return queuedOutputConnection.getPolicy();
+    }
+
+    /**
+     * Checks whether the output queue can take more messages without growing beyond the high
+     * water mark of the output queue policy. Changes of this state are reported to the property
+     * change listeners as {@link #UPDATE_PROP_WRITABLE}.
+     * @return false if too many messages are waiting to be sent.
+     */
+    public boolean isOutputWritable() {
+        return queuedOutputConnection.isWritable();
+    }
+
+    /**
+     * @return how many outgoing messages were discarded because a newer message replaced them
+     * in a full lane (see {@link OutputQueuePolicy#setReplace}).
+     */
+    public long getOutputDroppedCount() {
+        return queuedOutputConnection.getDroppedCount();
+    }
+
+    /**
+     * @return the number of messages waiting in the output queue.
+     */
+    public int getOutputQueueDepth() {
+        return queuedOutputConnection.getQueueDepth();
+    }
+
+    /**
+     * @return the runtime statistics of this interface. They can be published via JMX by
+     * calling {@link InterfaceMetrics#register}.
+     */
+    public InterfaceMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void addPropertyChangeListener(PropertyChangeListener l) {
+        pcs.addPropertyChangeListener(l);
+    }
+
+    @Override
+    public void removePropertyChangeListener(PropertyChangeListener l) {
+        pcs.removePropertyChangeListener(l);
+    }
+
+    /// Reports a change of the writable state to the property change listeners.
+    private void fireWritableChanged(boolean w) {
+        pcs.firePropertyChange(UPDATE_PROP_WRITABLE, !w, w);
+    }
+
     public void registerMessageListener(Connection c) {
         inputConnection.registerMessageListener(c);
     }
 
+    /**
+     * Registers a listener for all incoming messages, which will be called on a given executor
+     * instead of the thread dispatching the message. Use this for listeners that may be slow
+     * (e.g. user interface updates), so that they do not delay the protocol handlers. The
+     * executor should run tasks in order (e.g. a single thread executor or the UI thread) if
+     * the listener needs the messages in the order they arrived.
+     * @param c listener to call.
+     * @param executor where to call the listener.
+     */
+    public void registerMessageListener(Connection c, Executor executor) {
+        inputConnection.registerMessageListener(c, executor);
+    }
+
+    /**
+     * Registers a listener for the incoming messages of some types only. Messages of other types
+     * are not offered to the listener at all, which saves calling into every MessageDecoder
+     * (whose handlers are mostly no-ops) for frequent messages such as event reports. Use this
+     * for listeners that override only a few handlers.
+     * @param c listener to call.
+     * @param mtis which message types to listen for. Messages with an MTI not known to
+     *             {@link MessageTypeIdentifier} are delivered only to listeners registered
+     *             without a filter.
+     */
+    public void registerMessageListener(Connection c, Set<MessageTypeIdentifier> mtis) {
+        inputConnection.registerMessageListener(c, MessageTypeIdentifier.maskOf(mtis));
+    }
+
     public void unRegisterMessageListener(Connection c) {
         inputConnection.unRegisterMessageListener(c);
     }
 
+    /**
+     * Registers a listener for the messages carrying a specific event ID (event reports and
+     * producer/consumer identify/identified messages). Such listeners also receive the Identify
+     * Events and the producer/consumer range identified messages. This is much cheaper than
+     * registerMessageListener when there are many listeners, because other event messages are
+     * not offered to the listener at all.
+     * @param event which event to listen for. May be called several times for the same listener.
+     * @param c listener to call.
+     */
+    public void registerEventListener(EventID event, Connection c) {
+        inputConnection.registerEventListener(event, c);
+    }
+
+    /**
+     * Registers a listener for the messages carrying an event ID in a range. See
+     * {@link #registerEventListener}.
+     * @param first lowest event ID to listen for.
+     * @param last highest event ID to listen for (inclusive).
+     * @param c listener to call.
+     */
+    public void registerEventRangeListener(EventID first, EventID last, Connection c) {
+        inputConnection.registerEventRangeListener(first, last, c);
+    }
+
+    /**
+     * Removes all event and event range subscriptions of a listener.
+     * @param c listener that was registered with registerEventListener or
+     *          registerEventRangeListener.
+     */
+    public void unRegisterEventListener(Connection c) {
+        inputConnection.unRegisterEventListener(c);
+    }
+
+    /**
+     * Registers a listener for specific types of messages coming from a given node, such as the
+     * replies to requests sent to that node. The dispatcher finds these listeners using an index
+     * by the source node, so they are cheap even when many of them are registered.
+     * @param source which node's messages to listen for.
+     * @param mtis which message types to listen for.
+     * @param c listener to call.
+     */
+    public void registerNodeMessageListener(NodeID source, Set<MessageTypeIdentifier> mtis,
+                                            Connection c) {
+        inputConnection.registerNodeMessageListener(source, MessageTypeIdentifier.maskOf(mtis),
+                c);
+    }
+
+    /**
+     * Removes all subscriptions of a listener registered with registerNodeMessageListener.
+     * @param c listener to remove.
+     */
+    public void unRegisterNodeMessageListener(Connection c) {
+        inputConnection.unRegisterNodeMessageListener(c);
+    }
+
     /**
      * @return how many listeners are currently registered using registerMessageListener.
      */
@@ -261,37 +480,279 @@ public class OlcbInterface {
     }
 
     class MessageDispatcher extends AbstractConnection {
-        // This is not the ideal container for add/remove, but keeping the ordering of
-        // registrations is useful in ensuring that the system components receive the messages
-        // earlier as the later-registered user components.
-        private List<Connection> listeners = new ArrayList<>();
-        private List<Connection> pendingListeners = new ArrayList<>();
-        private List<Connection> unpendingListeners = new ArrayList<>();
+        // All listener containers are immutable arrays (or maps) that are replaced when a
+        // registration changes. The dispatch path reads them without locking, and a put() that is
+        // iterating them is not affected by registrations done from within a callback. Keeping
+        // the ordering of registrations ensures that the system components receive the messages
+        // earlier than the later-registered user components.
+        /// Mask value for listeners that receive every message type.
+        private static final long ALL_TYPES = -1L;
+        /// Slot in listenersByType for messages whose MTI is not known.
+        private final int unknownType = MessageTypeIdentifier.values().length;
+        /// Listeners registered with registerMessageListener, in registration order.
+        private volatile Connection[] listeners = new Connection[0];
+        /// Message type mask of each entry in listeners. Guarded by this.
+        private long[] listenerMasks = new long[0];
+        /// For each MTI ordinal, the listeners that handle that message type, in registration
+        /// order. The last slot is for unknown MTIs and contains the unfiltered listeners only.
+        private volatile Connection[][] listenersByType = buildListenersByType();
+        /// Listeners by the exact event ID they subscribed to.
+        private volatile Map<EventID, Connection[]> eventIndex = new HashMap<>();
+        /// Event range subscriptions, sorted by the first event.
+        private volatile EventRange[] eventRanges = new EventRange[0];
+        /// Every listener that has any event subscription, in registration order.
+        private volatile Connection[] eventListeners = new Connection[0];
+        /// Subscriptions by the source node of the messages.
+        private volatile Map<NodeID, NodeSubscription[]> nodeIndex = new HashMap<>();
 
-        public synchronized void registerMessageListener(Connection c) {
-            pendingListeners.add(c);
+        public void registerMessageListener(Connection c) {
+            registerMessageListener(c, ALL_TYPES);
+        }
+
+        public void registerMessageListener(Connection c, Executor executor) {
+            registerMessageListener(new ExecutorListener(c, executor), ALL_TYPES);
+        }
+
+        public synchronized void registerMessageListener(Connection c, long mtiMask) {
+            listenerMasks = Arrays.copyOf(listenerMasks, listenerMasks.length + 1);
+            listenerMasks[listenerMasks.length - 1] = mtiMask;
+            listeners = append(listeners, c);
+            listenersByType = buildListenersByType();
         }
 
         public synchronized void unRegisterMessageListener(Connection c) {
-            unpendingListeners.add(c);
+            Connection[] l = listeners;
+            long[] masks = new long[l.length];
+            int count = 0;
+            for (int i = 0; i < l.length; ++i) {
+                if (!isListener(l[i], c)) {
+                    masks[count++] = listenerMasks[i];
+                }
+            }
+            listenerMasks = Arrays.copyOf(masks, count);
+            listeners = remove(l, c);
+            listenersByType = buildListenersByType();
+        }
+
+        /// Computes the per-type dispatch table from listeners and listenerMasks.
+        private Connection[][] buildListenersByType() {
+            Connection[][] byType = new Connection[unknownType + 1][];
+            List<Connection> l = new ArrayList<>();
+            for (int type = 0; type <= unknownType; ++type) {
+                l.clear();
+                long bit = type < unknownType ? 1L << type : 0;
+                for (int i = 0; i < listeners.length; ++i) {
+                    if (listenerMasks[i] == ALL_TYPES || (listenerMasks[i] & bit) != 0) {
+                        l.add(listeners[i]);
+                    }
+                }
+                byType[type] = l.toArray(new Connection[l.size()]);
+            }
+            return byType;
+        }
+
+        public int numListeners() {
+            return listeners.length;
+        }
+
+        public synchronized void registerEventListener(EventID event, Connection c) {
+            Connection[] old = eventIndex.get(event);
+            HashMap<EventID, Connection[]> index = new HashMap<>(eventIndex);
+            index.put(event, append(old == null ? new Connection[0] : old, c));
+            eventIndex = index;
+            addEventListener(c);
+        }
+
+        public synchronized void registerEventRangeListener(EventID first, EventID last,
+                                                            Connection c) {
+            EventRange r = new EventRange(first.toLong(), last.toLong(), c);
+            List<EventRange> l = new ArrayList<>(Arrays.asList(eventRanges));
+            int i = 0;
+            while (i < l.size() && Long.compareUnsigned(l.get(i).first, r.first) <= 0) ++i;
+            l.add(i, r);
+            eventRanges = l.toArray(new EventRange[l.size()]);
+            addEventListener(c);
+        }
+
+        public synchronized void unRegisterEventListener(Connection c) {
+            HashMap<EventID, Connection[]> index = new HashMap<>();
+            for (Map.Entry<EventID, Connection[]> e : eventIndex.entrySet()) {
+                Connection[] l = remove(e.getValue(), c);
+                if (l.length > 0) index.put(e.getKey(), l);
+            }
+            eventIndex = index;
+            List<EventRange> ranges = new ArrayList<>();
+            for (EventRange r : eventRanges) {
+                if (r.listener != c) ranges.add(r);
+            }
+            eventRanges = ranges.toArray(new EventRange[ranges.size()]);
+            eventListeners = remove(eventListeners, c);
+        }
+
+        public synchronized void registerNodeMessageListener(NodeID source, long mtiMask,
+                                                             Connection c) {
+            NodeSubscription[] old = nodeIndex.get(source);
+            int len = old == null ? 0 : old.length;
+            NodeSubscription[] l = old == null ? new NodeSubscription[1] : Arrays.copyOf(old,
+                    len + 1);
+            l[len] = new NodeSubscription(mtiMask, c);
+            HashMap<NodeID, NodeSubscription[]> index = new HashMap<>(nodeIndex);
+            index.put(source, l);
+            nodeIndex = index;
+        }
+
+        public synchronized void unRegisterNodeMessageListener(Connection c) {
+            HashMap<NodeID, NodeSubscription[]> index = new HashMap<>();
+            for (Map.Entry<NodeID, NodeSubscription[]> e : nodeIndex.entrySet()) {
+                List<NodeSubscription> l = new ArrayList<>();
+                for (NodeSubscription n : e.getValue()) {
+                    if (n.listener != c) l.add(n);
+                }
+                if (!l.isEmpty()) {
+                    index.put(e.getKey(), l.toArray(new NodeSubscription[l.size()]));
+                }
+            }
+            nodeIndex = index;
         }
 
-        public synchronized int numListeners() {
-            return listeners.size() + pendingListeners.size() - unpendingListeners.size();
+        private void addEventListener(Connection c) {
+            for (Connection l : eventListeners) {
+                if (l == c) return;
+            }
+            eventListeners = append(eventListeners, c);
         }
 
         @Override
-        public synchronized void put(Message msg, Connection sender) {
-            if (!pendingListeners.isEmpty() || !unpendingListeners.isEmpty()) {
-                listeners.addAll(pendingListeners);
-                pendingListeners.clear();
-                listeners.removeAll(unpendingListeners);
-                unpendingListeners.clear();
-            }
-            for (Connection c : listeners) {
+        public void put(Message msg, Connection sender) {
+            int type = MessageTypeIdentifier.ordinalForMti(msg.getMTI());
+            metrics.recordMessageIn(type);
+            dispatch(msg, type, sender);
+        }
+
+        /**
+         * Forwards a message to the listeners without counting it as received from the network.
+         * Used for the local copies of outgoing messages.
+         */
+        void dispatch(Message msg, Connection sender) {
+            dispatch(msg, MessageTypeIdentifier.ordinalForMti(msg.getMTI()), sender);
+        }
+
+        private void dispatch(Message msg, int type, Connection sender) {
+            for (Connection c : listenersByType[type < 0 ? unknownType : type]) {
                 c.put(msg, sender);
             }
+            Map<NodeID, NodeSubscription[]> nodes = nodeIndex;
+            if (!nodes.isEmpty()) {
+                NodeSubscription[] l = nodes.get(msg.getSourceNodeID());
+                if (l != null) {
+                    long bit = MessageTypeIdentifier.bitForMti(msg.getMTI());
+                    for (NodeSubscription n : l) {
+                        if ((n.mtiMask & bit) != 0) {
+                            n.listener.put(msg, sender);
+                        }
+                    }
+                }
+            }
+            Connection[] allEventListeners = eventListeners;
+            if (allEventListeners.length == 0) return;
+            if (msg instanceof IdentifyEventsMessage || msg instanceof
+                    ProducerRangeIdentifiedMessage || msg instanceof
+                    ConsumerRangeIdentifiedMessage) {
+                // Every producer and consumer needs to see these.
+                for (Connection c : allEventListeners) {
+                    c.put(msg, sender);
+                }
+            } else if (msg instanceof EventMessage) {
+                EventID event = ((EventMessage) msg).getEventID();
+                Connection[] l = eventIndex.get(event);
+                if (l != null) {
+                    for (Connection c : l) {
+                        c.put(msg, sender);
+                    }
+                }
+                long e = event.toLong();
+                for (EventRange r : eventRanges) {
+                    if (Long.compareUnsigned(r.first, e) > 0) break;
+                    if (Long.compareUnsigned(e, r.last) <= 0) {
+                        r.listener.put(msg, sender);
+                    }
+                }
+            }
+        }
+    }
+
+    /// An event range subscription of a listener; first and last are inclusive.
+    private static class EventRange {
+        final long first;
+        final long last;
+        final Connection listener;
+
+        EventRange(long first, long last, Connection listener) {
+            this.first = first;
+            this.last = last;
+            this.listener = listener;
+        }
+    }
+
+    /// A subscription of a listener to some message types from a specific node.
+    private static class NodeSubscription {
+        final long mtiMask;
+        final Connection listener;
+
+        NodeSubscription(long mtiMask, Connection listener) {
+            this.mtiMask = mtiMask;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Forwards messages to a listener on a given executor, so that a slow listener does not
+     * hold up the dispatching thread.
+     */
+    private static class ExecutorListener implements Connection {
+        final Connection listener;
+        final Executor executor;
+
+        ExecutorListener(Connection listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        @Override
+        public void put(final Message msg, final Connection sender) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.put(msg, sender);
+                }
+            });
+        }
+
+        @Override
+        public void registerStartNotification(ConnectionListener c) {
+            listener.registerStartNotification(c);
+        }
+    }
+
+    private static Connection[] append(Connection[] array, Connection c) {
+        Connection[] n = Arrays.copyOf(array, array.length + 1);
+        n[array.length] = c;
+        return n;
+    }
+
+    private static Connection[] remove(Connection[] array, Connection c) {
+        List<Connection> l = new ArrayList<>(array.length);
+        for (Connection e : array) {
+            if (!isListener(e, c)) {
+                l.add(e);
+            }
         }
+        return l.toArray(new Connection[l.size()]);
+    }
+
+    /// @return true if the registered entry e stands for the listener c.
+    private static boolean isListener(Connection e, Connection c) {
+        return e == c || (e instanceof ExecutorListener && ((ExecutorListener) e).listener == c);
     }
 
     /**
@@ -328,15 +789,16 @@ public class OlcbInterface {
                 AddressedMessage amsg = (AddressedMessage) msg;
                 if (amsg.destNodeID.equals(nodeId)) {
                     // Addressed to local host. Skip sending to the network.
-                    inputConnection.put(msg, sender);
+                    inputConnection.dispatch(msg, sender);
                     return;
                 }
                 // The MimicNodeStore needs to know about all messages sent.
                 nodeStore.put(msg, sender);
             } else {
                 // For global messages, we always send a copy of the message locally.
-                inputConnection.put(msg, sender);
+                inputConnection.dispatch(msg, sender);
             }
+            metrics.recordMessageOut(msg);
             realOutput.put(msg, sender);
         }
 
@@ -351,28 +813,15 @@ public class OlcbInterface {
      * cleanup local resources
      */
     public void dispose(){
-        // shut down shared timer's thread.
-        timer.cancel();
-        // shut down the thread pool
-        if(threadPool != null && !(threadPool.isShutdown())) {
-           // modified from the javadoc for ExecutorService 
-           threadPool.shutdown(); // Disable new tasks from being submitted
-           try {
-              // Wait a while for existing tasks to terminate
-              if (!threadPool.awaitTermination(100, TimeUnit.MILLISECONDS)) {
-                 threadPool.shutdownNow(); // Cancel currently executing tasks
-                 // Wait a while for tasks to respond to being cancelled
-                 if (!threadPool.awaitTermination(100, TimeUnit.MILLISECONDS))
-                     log.warning("Pool did not terminate");
-              }
-            } catch (InterruptedException ie) {
-                // (Re-)Cancel if current thread also interrupted
-                threadPool.shutdownNow();
-                // Preserve interrupt status
-                Thread.currentThread().interrupt();
+        synchronized (this) {
+            if (timer != null) {
+                timer.cancel();
             }
         }
-        threadPool = null;
+        if (ownsScheduler) {
+            scheduler.shutdown();
+        }
+        metrics.unregister();
         dmb.dispose();
         mcs.dispose();
         nodeStore.dispose();
@@ -380,26 +829,231 @@ public class OlcbInterface {
 
     /**
      * This class keeps an output connection operating using an internal queue. It keeps
-     * messages in an internal thread-safe queue and sends them on a separate thread.
+     * messages in internal lock-free queues (one per lane of the output queue policy) and sends
+     * them on a separate thread.
+     * <p>
+     * Enqueueing a message only takes atomic operations, unless the lane is full and the
+     * overflow policy is to block. The output thread parks when there is nothing to send and is
+     * unparked by the producer that adds the first message. Threads waiting for the queue to
+     * drain (or for space in a lane) wait on a monitor that is notified only when there are
+     * waiters.
+     * <p>
+     * The output thread moves the queued messages to its own staging queues before choosing
+     * what to send. A message is only sent ahead of an earlier one if the two have different
+     * source nodes, or are addressed to different nodes; global messages count as addressed to
+     * every node. This keeps the order the network guarantees between a pair of nodes, e.g. the
+     * stream data before its completion, or a datagram acknowledgement before the reply.
      * <p>
      * The caller must donate a thread to this connection by calling the run() method.
      */
     private class QueuedOutputConnection implements Connection {
+        /// How many messages are sent in one callback of the output thread.
+        private static final int MAX_BATCH = 150;
         private final Connection realOutput;
-        private final BlockingQueue<QEntry> outputQueue = new
-                LinkedBlockingQueue<>();
-        private int pendingCount = 0;
+        /// Queued messages by lane.
+        private final ConcurrentLinkedQueue<QEntry>[] lanes;
+        /// Number of messages in each lane (including the ones being added).
+        private final AtomicIntegerArray laneSizes;
+        /// Number of messages in all lanes. Incremented after a message is added to a lane.
+        private final AtomicInteger queuedCount = new AtomicInteger();
+        /// Number of messages queued or being sent.
+        private final AtomicInteger pendingCount = new AtomicInteger();
+        /// Number of messages discarded due to a full lane.
+        private final AtomicLong droppedCount = new AtomicLong();
+        /// The queued messages that a newer message may replace, by their replace key. Only
+        /// filled for lanes with a depth limit that allow replacing.
+        private final ConcurrentHashMap<Object, QEntry> replaceable = new ConcurrentHashMap<>();
+        /// Value of droppedCount when the staged messages were last cleaned of replaced ones.
+        /// Used by the output thread only.
+        private long purgedDropCount = 0;
+        /// Whether the number of pending messages is below the high water mark.
+        private final AtomicBoolean writable = new AtomicBoolean(true);
+        /// Threads waiting for the queue to drain or for space in a lane wait on this object.
+        private final Object waitLock = new Object();
+        /// Number of threads waiting on waitLock.
+        private final AtomicInteger waiters = new AtomicInteger();
+        private volatile OutputQueuePolicy policy = new OutputQueuePolicy();
+        /// The thread running the output loop.
+        private volatile Thread outputThread = null;
+        /// The thread currently calling realOutput, or null.
+        private volatile Thread sendingThread = null;
+        /// Order in which the messages were put.
+        private final AtomicLong nextSequence = new AtomicLong();
+        /// Messages taken from the lanes but not sent yet, by lane. Used by the output thread
+        /// only.
+        private final ArrayDeque<QEntry>[] staged;
+        /// The staged messages by source node. Used by the output thread only.
+        private final HashMap<NodeID, SourceQueue> stagedBySource = new HashMap<>();
 
+        @SuppressWarnings("unchecked")
         QueuedOutputConnection(Connection realOutput) {
             this.realOutput = realOutput;
+            lanes = new ConcurrentLinkedQueue[OutputQueuePolicy.Lane.values().length];
+            for (int i = 0; i < lanes.length; ++i) {
+                lanes[i] = new ConcurrentLinkedQueue<>();
+            }
+            laneSizes = new AtomicIntegerArray(lanes.length);
+            staged = new ArrayDeque[lanes.length];
+            for (int i = 0; i < staged.length; ++i) {
+                staged[i] = new ArrayDeque<>();
+            }
+        }
+
+        void setPolicy(OutputQueuePolicy p) {
+            policy = new OutputQueuePolicy(p);
+            // Depth limits may have been raised.
+            wakeWaiters();
+            updateWritable();
+        }
+
+        OutputQueuePolicy getPolicy() {
+            return new OutputQueuePolicy(policy);
         }
 
         @Override
         public void put(Message msg, Connection sender) {
-            synchronized(this) {
-                pendingCount++;
+            OutputQueuePolicy p = policy;
+            OutputQueuePolicy.Lane lane = p.getLane(msg);
+            int i = lane.ordinal();
+            // Only computed for lanes that replace messages.
+            Object key = null;
+            if (p.isReplace(lane) && p.getMaxDepth(lane) > 0) {
+                key = OutputQueuePolicy.getReplaceKey(msg);
+            }
+            while (true) {
+                int size = laneSizes.get(i);
+                int limit = p.getMaxDepth(lane);
+                if (limit == 0 || size < limit) {
+                    if (laneSizes.compareAndSet(i, size, size + 1)) break;
+                    continue;
+                }
+                if (key != null && replaceQueued(key)) {
+                    // Freed a place in the lane.
+                    continue;
+                }
+                OutputQueuePolicy.Overflow overflow = p.getOverflow(lane);
+                if (overflow == OutputQueuePolicy.Overflow.FAIL) {
+                    throw new IllegalStateException("Output queue is full for lane " + lane);
+                }
+                Thread current = Thread.currentThread();
+                if (current == outputThread || current == sendingThread) {
+                    // Blocking would deadlock; exceeds the limit instead.
+                    laneSizes.incrementAndGet(i);
+                    break;
+                }
+                if (!waitForSpace(i, lane)) {
+                    // Interrupted; exceeds the limit instead of losing the message.
+                    laneSizes.incrementAndGet(i);
+                    break;
+                }
+                p = policy;
+            }
+            int pending = pendingCount.incrementAndGet();
+            QEntry e = new QEntry(msg, sender, i, nextSequence.getAndIncrement(), key);
+            lanes[i].add(e);
+            if (queuedCount.incrementAndGet() == 1) {
+                Thread t = outputThread;
+                if (t != null) LockSupport.unpark(t);
+            }
+            // Indexed once it is accounted for, so that replacing it cannot happen earlier.
+            if (key != null) replaceable.put(key, e);
+            if (pending > p.getHighWaterMark() && p.getHighWaterMark() > 0 && writable.get()) {
+                updateWritable();
             }
-            outputQueue.add(new QEntry(msg, sender));
+        }
+
+        /**
+         * Discards the queued message a newer message with the same key replaces.
+         * @param key replace key of the newer message
+         * @return true if a message was discarded, false if there is no queued message with the
+         * key (or it is being sent already).
+         */
+        private boolean replaceQueued(Object key) {
+            QEntry e = replaceable.get(key);
+            if (e == null) return false;
+            replaceable.remove(key, e);
+            if (!e.replaced.compareAndSet(false, true)) {
+                // The output thread took it already.
+                return false;
+            }
+            // The output thread skips the entry when it finds it.
+            laneSizes.decrementAndGet(e.lane);
+            queuedCount.decrementAndGet();
+            droppedCount.incrementAndGet();
+            log.fine("Output queue full; replacing " + e.message);
+            messageDone();
+            return true;
+        }
+
+        /**
+         * Blocks until a lane is below its depth limit.
+         * @return false if the thread was interrupted.
+         */
+        private boolean waitForSpace(int i, OutputQueuePolicy.Lane lane) {
+            waiters.incrementAndGet();
+            try {
+                synchronized (waitLock) {
+                    while (policy.getMaxDepth(lane) > 0 && laneSizes.get(i) >= policy
+                            .getMaxDepth(lane)) {
+                        waitLock.wait();
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waiters.decrementAndGet();
+            }
+        }
+
+        /// Notifies the threads waiting for space or for the queue to drain, if there are any.
+        private void wakeWaiters() {
+            if (waiters.get() > 0) {
+                synchronized (waitLock) {
+                    waitLock.notifyAll();
+                }
+            }
+        }
+
+        /// Accounts for a message that is sent or discarded.
+        private void messageDone() {
+            int pending = pendingCount.decrementAndGet();
+            if (pending == 0) {
+                wakeWaiters();
+            }
+            if (pending <= policy.getLowWaterMark() && !writable.get()) {
+                updateWritable();
+            }
+        }
+
+        /// Recomputes the writable state from the number of pending messages.
+        private void updateWritable() {
+            while (true) {
+                OutputQueuePolicy p = policy;
+                int pending = pendingCount.get();
+                boolean w = writable.get();
+                if (w && p.getHighWaterMark() > 0 && pending > p.getHighWaterMark()) {
+                    if (writable.compareAndSet(true, false)) fireWritableChanged(false);
+                } else if (!w && (p.getHighWaterMark() == 0 || pending <= p.getLowWaterMark())) {
+                    if (writable.compareAndSet(false, true)) fireWritableChanged(true);
+                } else {
+                    // Re-checks after a change, as the count may have moved meanwhile.
+                    return;
+                }
+            }
+        }
+
+        boolean isWritable() {
+            return writable.get();
+        }
+
+        long getDroppedCount() {
+            return droppedCount.get();
+        }
+
+        int getQueueDepth() {
+            return queuedCount.get();
         }
 
         @Override
@@ -407,16 +1061,215 @@ public class OlcbInterface {
             internalOutputConnection.registerStartNotification(c);
         }
 
+        /**
+         * Blocks until all messages are sent. Returns as soon as the last message is sent.
+         */
         public void waitForSendQueue() {
-            while(true) {
-                synchronized (this) {
-                    if (pendingCount == 0) return;
+            if (pendingCount.get() == 0) return;
+            waiters.incrementAndGet();
+            try {
+                synchronized (waitLock) {
+                    while (pendingCount.get() != 0) {
+                        waitLock.wait();
+                    }
                 }
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waiters.decrementAndGet();
+            }
+        }
+
+        /**
+         * Moves the next messages to send from the lanes to a list. Strict priority lanes are
+         * emptied when they get their turn; the other lanes contribute up to their weight in
+         * each round. A lane whose next message must not overtake a message of another lane
+         * waits for that lane.
+         * @param l where to put the messages, in the order they need to be sent.
+         */
+        private void takeBatch(List<QEntry> l) {
+            OutputQueuePolicy p = policy;
+            OutputQueuePolicy.Lane[] all = OutputQueuePolicy.Lane.values();
+            for (int i = 0; i < lanes.length; ++i) {
+                QEntry e;
+                while ((e = lanes[i].poll()) != null) {
+                    if (!e.isReplaced()) stage(e);
+                }
+            }
+            long dropped = droppedCount.get();
+            if (dropped != purgedDropCount) {
+                purgedDropCount = dropped;
+                purgeReplaced();
+            }
+            boolean found = true;
+            while (found && l.size() < MAX_BATCH) {
+                found = false;
+                for (int i = 0; i < lanes.length && l.size() < MAX_BATCH; ++i) {
+                    int weight = p.getWeight(all[i]);
+                    for (int n = 0; (weight == 0 || n < weight) && l.size() < MAX_BATCH; ++n) {
+                        QEntry e = staged[i].peek();
+                        if (e == null || mustWait(e)) break;
+                        if (take(i)) {
+                            l.add(e);
+                            found = true;
+                        }
+                    }
+                }
+            }
+            if (l.isEmpty()) {
+                // Every lane waits for another one. This can only happen with messages put
+                // concurrently, whose order is undefined anyway; sends the oldest.
+                int oldest = -1;
+                for (int i = 0; i < staged.length; ++i) {
+                    QEntry e = staged[i].peek();
+                    if (e != null && (oldest < 0 || e.sequence < staged[oldest].peek()
+                            .sequence)) {
+                        oldest = i;
+                    }
+                }
+                if (oldest >= 0) {
+                    QEntry e = staged[oldest].peek();
+                    if (take(oldest)) l.add(e);
+                }
+            }
+        }
+
+        /// Adds a message taken from its lane to the staging queues.
+        private void stage(QEntry e) {
+            staged[e.lane].add(e);
+            SourceQueue s = stagedBySource.get(e.source);
+            if (s == null) {
+                s = new SourceQueue();
+                stagedBySource.put(e.source, s);
+            }
+            s.add(e);
+        }
+
+        /**
+         * Removes the first staged message of a lane to send it, and accounts for it leaving the
+         * queue.
+         * @return false if the message was replaced meanwhile and must not be sent.
+         */
+        private boolean take(int lane) {
+            QEntry e = staged[lane].poll();
+            unstageFromSource(e);
+            if (e.key != null) {
+                if (!e.replaced.compareAndSet(false, true)) {
+                    // Accounted for by the replacing thread.
+                    return false;
+                }
+                replaceable.remove(e.key, e);
+            }
+            laneSizes.decrementAndGet(lane);
+            queuedCount.decrementAndGet();
+            return true;
+        }
+
+        private void unstageFromSource(QEntry e) {
+            SourceQueue s = stagedBySource.get(e.source);
+            s.remove(e);
+            if (s.isEmpty()) stagedBySource.remove(e.source);
+        }
+
+        /// Removes the staged messages that newer messages replaced.
+        private void purgeReplaced() {
+            for (ArrayDeque<QEntry> q : staged) {
+                for (Iterator<QEntry> it = q.iterator(); it.hasNext(); ) {
+                    QEntry e = it.next();
+                    if (e.isReplaced()) {
+                        it.remove();
+                        unstageFromSource(e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param e the first staged message of its lane
+         * @return true if a message of another lane was put earlier and has to be sent first.
+         */
+        private boolean mustWait(QEntry e) {
+            SourceQueue s = stagedBySource.get(e.source);
+            for (int i = 0; i < staged.length; ++i) {
+                if (i == e.lane) continue;
+                if (e.destination == null) {
+                    if (isEarlier(s.all, i, e)) return true;
+                } else {
+                    if (isEarlier(s.global, i, e)) return true;
+                    if (isEarlier(s.byDestination.get(e.destination), i, e)) return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isEarlier(LaneQueues q, int lane, QEntry e) {
+            if (q == null) return false;
+            QEntry first = q.peek(lane);
+            return first != null && first.sequence < e.sequence;
+        }
+
+        /**
+         * The staged messages of one source node. Each lane of the staging queues keeps the
+         * order of the messages, so the first message of a lane here is the earliest one.
+         */
+        private class SourceQueue {
+            /// All the messages of the source.
+            final LaneQueues all = new LaneQueues();
+            /// The global messages of the source.
+            final LaneQueues global = new LaneQueues();
+            /// The addressed messages of the source, by destination node.
+            final HashMap<NodeID, LaneQueues> byDestination = new HashMap<>();
+
+            void add(QEntry e) {
+                all.add(e);
+                if (e.destination == null) {
+                    global.add(e);
                     return;
                 }
+                LaneQueues q = byDestination.get(e.destination);
+                if (q == null) {
+                    q = new LaneQueues();
+                    byDestination.put(e.destination, q);
+                }
+                q.add(e);
+            }
+
+            void remove(QEntry e) {
+                all.remove(e);
+                if (e.destination == null) {
+                    global.remove(e);
+                    return;
+                }
+                LaneQueues q = byDestination.get(e.destination);
+                q.remove(e);
+                if (q.count == 0) byDestination.remove(e.destination);
+            }
+
+            boolean isEmpty() {
+                return all.count == 0;
+            }
+        }
+
+        /// Messages by lane, in the order they were staged.
+        private class LaneQueues {
+            @SuppressWarnings("unchecked")
+            final ArrayDeque<QEntry>[] byLane = new ArrayDeque[lanes.length];
+            int count = 0;
+
+            void add(QEntry e) {
+                if (byLane[e.lane] == null) byLane[e.lane] = new ArrayDeque<>();
+                byLane[e.lane].add(e);
+                ++count;
+            }
+
+            void remove(QEntry e) {
+                // Usually the first one of its lane.
+                byLane[e.lane].remove(e);
+                --count;
+            }
+
+            QEntry peek(int lane) {
+                return byLane[lane] == null ? null : byLane[lane].peek();
             }
         }
 
@@ -424,28 +1277,39 @@ public class OlcbInterface {
          * Never returns.
          */
         private void run() {
-            final ArrayList<QEntry> l = new ArrayList<>(150);
+            outputThread = Thread.currentThread();
+            final ArrayList<QEntry> l = new ArrayList<>(MAX_BATCH);
             while (!Thread.currentThread().isInterrupted()) {
                 try {
-                    QEntry m = outputQueue.take();
                     l.clear();
-                    l.add(m);
-                    outputQueue.drainTo(l, 149);
+                    while (queuedCount.get() == 0) {
+                        LockSupport.park(this);
+                        if (Thread.interrupted()) throw new InterruptedException();
+                    }
+                    takeBatch(l);
+                    // Wakes up producers waiting for space.
+                    wakeWaiters();
+                    if (l.isEmpty()) continue;
+                    metrics.recordOutputBatch(l.size());
                     runCallbackOrAbandon(new Runnable() {
                         @Override
                         public void run() {
-                            for (QEntry m : l) {
-                                try {
-                                    realOutput.put(m.message, m.connection);
-                                } catch (RejectedExecutionException ex) {
-                                    throw ex; // re-throw so the outer try will handle these.
-                                } catch (Throwable e) {
-                                    log.warning("Exception while sending message: " + e.toString());
-                                    e.printStackTrace();
-                                }
-                                synchronized(QueuedOutputConnection.this) {
-                                    pendingCount--;
+                            sendingThread = Thread.currentThread();
+                            try {
+                                for (QEntry m : l) {
+                                    try {
+                                        realOutput.put(m.message, m.connection);
+                                    } catch (RejectedExecutionException ex) {
+                                        throw ex; // re-throw so the outer try will handle these.
+                                    } catch (Throwable e) {
+                                        log.warning("Exception while sending message: " + e
+                                                .toString());
+                                        e.printStackTrace();
+                                    }
+                                    messageDone();
                                 }
+                            } finally {
+                                sendingThread = null;
                             }
                         }
                     });
@@ -459,9 +1323,33 @@ public class OlcbInterface {
         private class QEntry {
             Message message;
             Connection connection;
-            QEntry(Message m, Connection c) {
+            /// Index of the lane of the message.
+            final int lane;
+            final long sequence;
+            final NodeID source;
+            /// Null for global messages.
+            final NodeID destination;
+            /// Replace key if a newer message may replace this one, otherwise null.
+            final Object key;
+            /// Set by whoever takes the message first: the output thread to send it, or a
+            /// newer message replacing it. Null without a key.
+            final AtomicBoolean replaced;
+            QEntry(Message m, Connection c, int lane, long sequence, Object key) {
                 message = m;
                 connection = c;
+                this.lane = lane;
+                this.sequence = sequence;
+                source = m.getSourceNodeID();
+                destination = m instanceof AddressedMessage ? ((AddressedMessage) m)
+                        .getDestNodeID() : null;
+                this.key = key;
+                replaced = key == null ? null : new AtomicBoolean();
+            }
+
+            /// @return true if a newer message replaced this one. Only valid before the output
+            /// thread takes the message.
+            boolean isReplaced() {
+                return replaced != null && replaced.get();
             }
         }
     }
@@ -12,17 +12,27 @@ public class OlcbThreadFactory implements ThreadFactory{
     private String name;
     private int count;
     private int factoryNumber;
+    private final boolean daemon;
     static int factoryCount = 0;
 
     public OlcbThreadFactory(){
+       this(false);
+    }
+
+    /**
+     * @param daemon true if the created threads should not keep the JVM from exiting.
+     */
+    public OlcbThreadFactory(boolean daemon){
        factoryNumber=++factoryCount;
        name = "Olcb-Pool-";
        count = 0;
+       this.daemon = daemon;
     }
 
     @Override
     public Thread newThread(Runnable r){
        Thread t = new Thread(r, name + factoryNumber + "-Thread-" + (count++));
+       if (daemon) t.setDaemon(true);
        return t;
     }
 
@@ -0,0 +1,323 @@
+package org.openlcb;
+
+import java.util.Arrays;
+
+/**
+ * Configures how the output queue of an {@link OlcbInterface} schedules outgoing messages.
+ * <p>
+ * Every outgoing message is assigned to a lane based on its message type; reports of the
+ * well-known emergency stop/off events always go to the {@link Lane#URGENT} lane. Each lane has its own
+ * queue. The lanes are served in the order of the {@link Lane} enum: a lane with weight zero is
+ * strict priority, i.e. it is emptied before any later lane gets a turn; lanes with a positive
+ * weight share the bandwidth in proportion of their weights (weighted round robin). This way a
+ * throttle's speed command does not have to wait behind hundreds of datagrams queued by a
+ * configuration download.
+ * <p>
+ * The lanes only reorder messages where the protocol allows it: a message never overtakes an
+ * earlier message of the same source node to the same destination, and global messages count
+ * as addressed to every node. So a node's messages follow its initialization complete message,
+ * and the messages of one exchange (datagram and acknowledgement, stream data and completion)
+ * stay in order, whichever lanes they are assigned to.
+ * <p>
+ * Each lane may also have a depth limit. What happens when a message is added to a full lane is
+ * determined by the lane's {@link Overflow} setting. Messages sent from the callbacks of the
+ * output thread itself are never blocked, to avoid deadlock. On a lane set to
+ * {@link #setReplace replace}, a message that supersedes a queued one (a newer report of the same
+ * state, see {@link #getReplaceKey}) first takes the place of that message, which is discarded;
+ * only when there is no such message does the overflow setting apply. Other messages, such as
+ * datagrams and all addressed messages, are never discarded.
+ * <p>
+ * Independently of the lanes, the interface reports whether it is "writable", similar to the
+ * channel writability of Netty: the output becomes not writable when more than the high water
+ * mark number of messages are pending, and becomes writable again when the pending messages
+ * drop to the low water mark. Producers of large amounts of traffic should check
+ * {@link OlcbInterface#isOutputWritable} or listen to its changes and pause while the output is
+ * not writable.
+ * <p>
+ * Objects of this class are not thread-safe; configure them before handing them to
+ * {@link OlcbInterface#setOutputQueuePolicy}, which takes a copy.
+ */
+public class OutputQueuePolicy {
+    /**
+     * Output lanes, in priority order.
+     */
+    public enum Lane {
+        /// Traction control and emergency stop.
+        URGENT,
+        /// Event reports and event identification.
+        EVENT,
+        /// Everything else.
+        NORMAL,
+        /// Datagrams and stream data.
+        BULK
+    }
+
+    /**
+     * What to do when a message is added to a lane that is at its depth limit, and it does not
+     * replace a queued message.
+     */
+    public enum Overflow {
+        /// Wait until the lane has space.
+        BLOCK,
+        /// Throw IllegalStateException.
+        FAIL
+    }
+
+    /**
+     * Identifies the state a message reports, for replacing a queued message by a newer one.
+     */
+    private static final class ReplaceKey {
+        static final int EVENT_REPORT = 0;
+        static final int PRODUCER_STATE = 1;
+        static final int CONSUMER_STATE = 2;
+        static final int NODE_ID = 3;
+
+        final int kind;
+        final NodeID source;
+        /// Null for kinds without an event.
+        final EventID event;
+
+        ReplaceKey(int kind, NodeID source, EventID event) {
+            this.kind = kind;
+            this.source = source;
+            this.event = event;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ReplaceKey)) return false;
+            ReplaceKey k = (ReplaceKey) o;
+            return kind == k.kind && source.equals(k.source) && (event == null ? k.event ==
+                    null : event.equals(k.event));
+        }
+
+        @Override
+        public int hashCode() {
+            return (source.hashCode() * 31 + (event == null ? 0 : event.hashCode())) * 31 + kind;
+        }
+    }
+
+    /// Default for the number of pending messages above which the output is not writable.
+    public static final int DEFAULT_HIGH_WATER_MARK = 1024;
+    /// Default for the number of pending messages at which the output is writable again.
+    public static final int DEFAULT_LOW_WATER_MARK = 512;
+
+    private final Lane[] laneByType;
+    private final int[] weights;
+    private final int[] maxDepths;
+    private final Overflow[] overflows;
+    private final boolean[] replaces;
+    private int lowWaterMark = DEFAULT_LOW_WATER_MARK;
+    private int highWaterMark = DEFAULT_HIGH_WATER_MARK;
+
+    /**
+     * Creates the default policy: traction messages are strict priority, and the event,
+     * normal and bulk lanes share the rest in a ratio of 8:4:1. No lane has a depth limit;
+     * when a limit is set, the default overflow behavior is {@link Overflow#BLOCK}, without
+     * replacing queued messages.
+     */
+    public OutputQueuePolicy() {
+        laneByType = new Lane[MessageTypeIdentifier.values().length];
+        Arrays.fill(laneByType, Lane.NORMAL);
+        weights = new int[Lane.values().length];
+        maxDepths = new int[Lane.values().length];
+        overflows = new Overflow[Lane.values().length];
+        Arrays.fill(overflows, Overflow.BLOCK);
+        replaces = new boolean[Lane.values().length];
+        setLane(MessageTypeIdentifier.TractionControlRequest, Lane.URGENT);
+        setLane(MessageTypeIdentifier.TractionControlReply, Lane.URGENT);
+        setLane(MessageTypeIdentifier.TractionProxyRequest, Lane.URGENT);
+        setLane(MessageTypeIdentifier.TractionProxyReply, Lane.URGENT);
+        for (MessageTypeIdentifier t : MessageTypeIdentifier.values()) {
+            if (t.hasEventID) setLane(t, Lane.EVENT);
+        }
+        setLane(MessageTypeIdentifier.Datagram, Lane.BULK);
+        setLane(MessageTypeIdentifier.StreamDataSend, Lane.BULK);
+        // Shares the lane of the data it completes.
+        setLane(MessageTypeIdentifier.StreamDataComplete, Lane.BULK);
+        setWeight(Lane.URGENT, 0);
+        setWeight(Lane.EVENT, 8);
+        setWeight(Lane.NORMAL, 4);
+        setWeight(Lane.BULK, 1);
+    }
+
+    /**
+     * Copy constructor.
+     * @param other policy to copy
+     */
+    public OutputQueuePolicy(OutputQueuePolicy other) {
+        laneByType = other.laneByType.clone();
+        weights = other.weights.clone();
+        maxDepths = other.maxDepths.clone();
+        overflows = other.overflows.clone();
+        replaces = other.replaces.clone();
+        lowWaterMark = other.lowWaterMark;
+        highWaterMark = other.highWaterMark;
+    }
+
+    /**
+     * Assigns a message type to a lane.
+     * @param type message type
+     * @param lane where to queue messages of this type
+     */
+    public void setLane(MessageTypeIdentifier type, Lane lane) {
+        laneByType[type.ordinal()] = lane;
+    }
+
+    /**
+     * Sets the share of a lane.
+     * @param lane which lane to configure
+     * @param weight 0 to make the lane strict priority over all later lanes, otherwise how many
+     *               messages the lane may send in each round of the round robin.
+     */
+    public void setWeight(Lane lane, int weight) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("negative weight " + weight);
+        }
+        weights[lane.ordinal()] = weight;
+    }
+
+    /**
+     * Limits the number of messages waiting in a lane.
+     * @param lane which lane to configure
+     * @param maxDepth maximum number of queued messages, or 0 for no limit.
+     */
+    public void setMaxDepth(Lane lane, int maxDepth) {
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("negative depth " + maxDepth);
+        }
+        maxDepths[lane.ordinal()] = maxDepth;
+    }
+
+    /**
+     * Sets what happens when a message is added to a lane at its depth limit.
+     * @param lane which lane to configure
+     * @param overflow behavior for a full lane
+     */
+    public void setOverflow(Lane lane, Overflow overflow) {
+        overflows[lane.ordinal()] = overflow;
+    }
+
+    /**
+     * Selects whether a message added to a lane at its depth limit may replace a queued message
+     * reporting the same state (see {@link #getReplaceKey}). The queued message is discarded and
+     * counted as dropped. Use this for lanes carrying reports that are superseded by later
+     * ones, such as event reports and producer/consumer identified messages. When no queued
+     * message is replaced, the lane's {@link Overflow} setting applies.
+     * @param lane which lane to configure
+     * @param replace true to replace queued messages on overflow
+     */
+    public void setReplace(Lane lane, boolean replace) {
+        replaces[lane.ordinal()] = replace;
+    }
+
+    /**
+     * Sets when the output is reported as not writable.
+     * @param low the output becomes writable again when the number of pending messages drops
+     *            to this value.
+     * @param high the output becomes not writable when the number of pending messages exceeds
+     *             this value. 0 means that the output is always writable.
+     */
+    public void setWaterMarks(int low, int high) {
+        if (low < 0 || (high > 0 && low > high)) {
+            throw new IllegalArgumentException("invalid water marks " + low + ", " + high);
+        }
+        lowWaterMark = low;
+        highWaterMark = high;
+    }
+
+    /**
+     * @param msg outgoing message
+     * @return the lane where the message should be queued.
+     */
+    public Lane getLane(Message msg) {
+        if (msg instanceof ProducerConsumerEventReportMessage && isEmergencyEvent((
+                (ProducerConsumerEventReportMessage) msg).getEventID())) {
+            return Lane.URGENT;
+        }
+        int type = MessageTypeIdentifier.ordinalForMti(msg.getMTI());
+        if (type < 0) return Lane.NORMAL;
+        return laneByType[type];
+    }
+
+    /// @return true for the well-known emergency off/stop events (and their clear events).
+    private static boolean isEmergencyEvent(EventID event) {
+        return event.equals(CommonIdentifiers.EMERGENCY_STOP) || event.equals(CommonIdentifiers
+                .EMERGENCY_OFF) || event.equals(CommonIdentifiers.CLEAR_EMERGENCY_STOP) || event
+                .equals(CommonIdentifiers.CLEAR_EMERGENCY_OFF);
+    }
+
+    /**
+     * @param lane lane
+     * @return the weight of the lane, 0 for strict priority.
+     */
+    public int getWeight(Lane lane) {
+        return weights[lane.ordinal()];
+    }
+
+    /**
+     * @param lane lane
+     * @return the maximum number of messages waiting in the lane, 0 for no limit.
+     */
+    public int getMaxDepth(Lane lane) {
+        return maxDepths[lane.ordinal()];
+    }
+
+    /**
+     * @param lane lane
+     * @return the behavior when the lane is at its depth limit.
+     */
+    public Overflow getOverflow(Lane lane) {
+        return overflows[lane.ordinal()];
+    }
+
+    /**
+     * @param lane lane
+     * @return true if a message added to the full lane may replace a queued message.
+     */
+    public boolean isReplace(Lane lane) {
+        return replaces[lane.ordinal()];
+    }
+
+    /**
+     * Computes which queued message an outgoing message supersedes. Two messages with equal keys
+     * report the same state of the same node, so only the newer one needs to be sent:
+     * <ul>
+     * <li>event reports of the same event from the same node;</li>
+     * <li>producer identified messages (valid, invalid or unknown) of the same event from the
+     * same node, and likewise consumer identified messages;</li>
+     * <li>verified node ID messages of the same node.</li>
+     * </ul>
+     * Everything else, in particular datagrams, stream data and all addressed messages, has no
+     * key and is never replaced.
+     * @param msg outgoing message
+     * @return the key of the message, or null if the message must not be replaced.
+     */
+    public static Object getReplaceKey(Message msg) {
+        NodeID source = msg.getSourceNodeID();
+        if (source == null || msg instanceof AddressedMessage) return null;
+        if (msg instanceof ProducerConsumerEventReportMessage) {
+            return new ReplaceKey(ReplaceKey.EVENT_REPORT, source, (
+                    (ProducerConsumerEventReportMessage) msg).getEventID());
+        } else if (msg instanceof ProducerIdentifiedMessage) {
+            return new ReplaceKey(ReplaceKey.PRODUCER_STATE, source, ((ProducerIdentifiedMessage)
+                    msg).getEventID());
+        } else if (msg instanceof ConsumerIdentifiedMessage) {
+            return new ReplaceKey(ReplaceKey.CONSUMER_STATE, source, ((ConsumerIdentifiedMessage)
+                    msg).getEventID());
+        } else if (msg instanceof VerifiedNodeIDNumberMessage) {
+            return new ReplaceKey(ReplaceKey.NODE_ID, source, null);
+        }
+        return null;
+    }
+
+    /// @return the number of pending messages at which the output becomes writable again.
+    public int getLowWaterMark() {
+        return lowWaterMark;
+    }
+
+    /// @return the number of pending messages above which the output is not writable, or 0.
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+}
@@ -34,5 +34,7 @@ public class ProducerConsumerEventReportMessage extends EventMessage {
                 +" Producer/Consumer Event Report with "+eventID.toString();     
     }
     
-    public int getMTI() { return MTI_PC_EVENT_REPORT; }
+    public int getMTI() {
+        return MessageTypeIdentifier.ProducerConsumerEventReport.mti();
+    }
 }
@@ -45,5 +45,7 @@ public class ProducerIdentifiedMessage extends EventMessage {
         return super.toString() + " Producer Identified " + eventState.toString() + " for " + eventID.toString();
     }
 
-    public int getMTI() { return MTI_PRODUCER_IDENTIFIED; }
+    public int getMTI() {
+        return (MessageTypeIdentifier.ProducerIdentifiedValid.mti() & ~3) | eventState.getModifier();
+    }
 }
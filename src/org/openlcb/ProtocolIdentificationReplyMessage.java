@@ -59,6 +59,4 @@ public class ProtocolIdentificationReplyMessage extends AddressedPayloadMessage
     public MessageTypeIdentifier getEMTI() {
         return MessageTypeIdentifier.ProtocolSupportReply;
     }
-
-    public int getMTI() { return MTI_PROTOCOL_IDENT_REPLY; }
 }
@@ -0,0 +1,553 @@
+package org.openlcb;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Timer and thread pool service for the components of an interface.
+ * <p>
+ * One scheduler is created by each {@link OlcbInterface}, unless one is given to its
+ * constructor; a single scheduler (such as {@link #getDefault}) can be shared by any number of
+ * interfaces. Every component of the stack schedules its timeouts and background work here
+ * instead of creating its own {@link java.util.Timer} threads or thread pools.
+ * <p>
+ * Delayed tasks are kept in a hashed timing wheel (the same structure as Netty's
+ * HashedWheelTimer): scheduling and cancelling take constant time, and a single thread serves
+ * any number of timeouts. The timeouts fire with a resolution of one tick. The timer thread is
+ * started on first use and sleeps while there are no pending timeouts. Timeout tasks run on the
+ * timer thread in the order of their deadlines, so they must not block; work that may block,
+ * such as sending messages or calling back the user, is scheduled with {@link #scheduleBlocking}
+ * or handed to {@link #execute}.
+ * <p>
+ * When the JVM supports virtual threads (Java 21+), {@link #createVirtualThreadExecutor} gives
+ * an executor that can be used for the scheduler. The shared default scheduler uses virtual
+ * threads if the system property {@value #VIRTUAL_THREADS_PROPERTY} is set to true.
+ */
+public class Scheduler implements Executor {
+    private final static Logger logger = Logger.getLogger(Scheduler.class.getName());
+    /// System property that selects virtual threads for the default scheduler.
+    public static final String VIRTUAL_THREADS_PROPERTY = "org.openlcb.scheduler.virtualThreads";
+    /// Default duration of a tick of the timing wheel.
+    public static final long DEFAULT_TICK_MSEC = 10;
+    /// Default number of buckets of the timing wheel.
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+    /// How long shutdown waits for the running tasks to finish.
+    private static final long SHUTDOWN_WAIT_MSEC = 100;
+
+    /**
+     * Handle of a scheduled task.
+     */
+    public interface Timeout {
+        /**
+         * Prevents the task from running.
+         * @return true if the task was cancelled, false if it has already run or was cancelled
+         * before.
+         */
+        boolean cancel();
+
+        /// @return true if the task was cancelled.
+        boolean isCancelled();
+
+        /// @return true if the task was started.
+        boolean isExpired();
+    }
+
+    private static final int ST_INIT = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    private final class TimeoutImpl implements Timeout {
+        final Runnable task;
+        /// Deadline in nanoseconds since the start of the scheduler.
+        final long deadline;
+        final long sequence;
+        final AtomicInteger state = new AtomicInteger(ST_INIT);
+        // These are only touched by the timer thread.
+        long remainingRounds;
+        Bucket bucket;
+        TimeoutImpl next;
+        TimeoutImpl prev;
+
+        TimeoutImpl(Runnable task, long deadline, long sequence) {
+            this.task = task;
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!state.compareAndSet(ST_INIT, ST_CANCELLED)) return false;
+            pendingCount.decrementAndGet();
+            // The timer thread unlinks it from its bucket.
+            cancelledTimeouts.add(this);
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state.get() == ST_CANCELLED;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return state.get() == ST_EXPIRED;
+        }
+    }
+
+    /// Doubly linked list of the timeouts that fall into one slot of the wheel.
+    private static final class Bucket {
+        TimeoutImpl head;
+        TimeoutImpl tail;
+
+        void add(TimeoutImpl t) {
+            t.bucket = this;
+            t.prev = tail;
+            t.next = null;
+            if (tail == null) {
+                head = t;
+            } else {
+                tail.next = t;
+            }
+            tail = t;
+        }
+
+        void remove(TimeoutImpl t) {
+            if (t.prev == null) {
+                head = t.next;
+            } else {
+                t.prev.next = t.next;
+            }
+            if (t.next == null) {
+                tail = t.prev;
+            } else {
+                t.next.prev = t.prev;
+            }
+            t.bucket = null;
+            t.next = null;
+            t.prev = null;
+        }
+    }
+
+    private static final Comparator<TimeoutImpl> DEADLINE_ORDER = new Comparator<TimeoutImpl>() {
+        @Override
+        public int compare(TimeoutImpl a, TimeoutImpl b) {
+            if (a.deadline != b.deadline) return a.deadline < b.deadline ? -1 : 1;
+            return Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    private final ExecutorService executor;
+    private final boolean shared;
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startNanos = System.nanoTime();
+    private final Queue<TimeoutImpl> newTimeouts = new ConcurrentLinkedQueue<>();
+    private final Queue<TimeoutImpl> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+    /// Threads in {@link #waitForDueTimeouts}.
+    private final Queue<CountDownLatch> flushWaiters = new ConcurrentLinkedQueue<>();
+    /// Timeouts that are scheduled and neither expired nor cancelled.
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+    /// Tasks of {@link #scheduleBlocking} handed to the executor that have not finished yet.
+    private final AtomicInteger blockingCount = new AtomicInteger();
+    /// Number of tasks of {@link #scheduleBlocking} ever handed to the executor.
+    private final AtomicLong blockingStarted = new AtomicLong();
+    /// Lock to wait for blockingCount to become zero.
+    private final Object blockingLock = new Object();
+    /// Set on the executor threads while running a task of {@link #scheduleBlocking}.
+    private final ThreadLocal<Boolean> inBlockingTask = new ThreadLocal<>();
+    private volatile boolean shutdown = false;
+    /// Set while the timer thread is parked without a deadline.
+    private volatile boolean idle = false;
+    private Thread timerThread = null; // guarded by this
+    /// Current tick of the wheel; only used by the timer thread.
+    private long tick = 0;
+
+    /**
+     * Creates a scheduler with its own thread pool, whose threads are created as needed and
+     * exit when idle.
+     */
+    public Scheduler() {
+        this(createThreadPool(false));
+    }
+
+    /**
+     * Creates a scheduler with the default timing wheel.
+     * @param executor runs the background tasks. The scheduler takes ownership of it;
+     *                 {@link #shutdown} shuts it down.
+     */
+    public Scheduler(ExecutorService executor) {
+        this(executor, DEFAULT_TICK_MSEC, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param executor runs the background tasks. The scheduler takes ownership of it;
+     *                 {@link #shutdown} shuts it down.
+     * @param tickMsec resolution of the timeouts
+     * @param wheelSize number of buckets of the timing wheel, rounded up to a power of two.
+     *                  Timeouts up to tickMsec * wheelSize away are found without iterating
+     *                  over other timeouts.
+     */
+    public Scheduler(ExecutorService executor, long tickMsec, int wheelSize) {
+        this(executor, tickMsec, wheelSize, false);
+    }
+
+    private Scheduler(ExecutorService executor, long tickMsec, int wheelSize, boolean shared) {
+        if (tickMsec <= 0 || wheelSize <= 0 || wheelSize > (1 << 30)) {
+            throw new IllegalArgumentException("invalid wheel " + tickMsec + " msec, " +
+                    wheelSize + " buckets");
+        }
+        this.executor = executor;
+        this.shared = shared;
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMsec);
+        int size = 1;
+        while (size < wheelSize) size <<= 1;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; ++i) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+    }
+
+    private static class DefaultHolder {
+        static final Scheduler INSTANCE = createDefault();
+
+        private static Scheduler createDefault() {
+            ExecutorService ex = null;
+            if (Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY)) {
+                ex = createVirtualThreadExecutor();
+                if (ex == null) {
+                    logger.warning("Virtual threads are not supported by this JVM; using a " +
+                            "thread pool.");
+                }
+            }
+            if (ex == null) ex = createThreadPool(true);
+            return new Scheduler(ex, DEFAULT_TICK_MSEC, DEFAULT_WHEEL_SIZE, true);
+        }
+    }
+
+    /**
+     * @return a scheduler shared by everything in the JVM that does not have its own. Its
+     * threads are daemon threads; it cannot be shut down.
+     */
+    public static Scheduler getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    private static ExecutorService createThreadPool(boolean daemon) {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 10, TimeUnit.SECONDS, new
+                SynchronousQueue<Runnable>(), new OlcbThreadFactory(daemon));
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task.
+     * @return the executor, or null if the JVM does not support virtual threads (before Java
+     * 21).
+     */
+    public static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method m = java.util.concurrent.Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Runs a task once after a delay. The task runs on the timer thread and must not block; see
+     * {@link #scheduleBlocking} otherwise.
+     * @param task what to run
+     * @param delayMsec how many milliseconds to wait before running the task
+     * @return handle to cancel the task
+     * @throws IllegalStateException if the scheduler was shut down
+     */
+    public Timeout schedule(Runnable task, long delayMsec) {
+        if (task == null) throw new NullPointerException("task");
+        if (shutdown) throw new IllegalStateException("Scheduler is shut down");
+        startTimerThread();
+        long deadline = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max
+                (0, delayMsec));
+        TimeoutImpl t = new TimeoutImpl(task, deadline, sequence.incrementAndGet());
+        pendingCount.incrementAndGet();
+        newTimeouts.add(t);
+        if (idle) {
+            LockSupport.unpark(timerThread);
+        }
+        return t;
+    }
+
+    /**
+     * Runs a task once after a delay on the executor of the scheduler. Unlike {@link #schedule},
+     * the task may block, so use this for timeouts that send messages or invoke callbacks.
+     * @param task what to run
+     * @param delayMsec how many milliseconds to wait before running the task
+     * @return handle to cancel the task; it cannot be cancelled any more once it was handed to
+     * the executor.
+     * @throws IllegalStateException if the scheduler was shut down
+     */
+    public Timeout scheduleBlocking(final Runnable task, long delayMsec) {
+        if (task == null) throw new NullPointerException("task");
+        return schedule(new Runnable() {
+            @Override
+            public void run() {
+                blockingCount.incrementAndGet();
+                blockingStarted.incrementAndGet();
+                try {
+                    execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            inBlockingTask.set(Boolean.TRUE);
+                            try {
+                                task.run();
+                            } catch (Throwable e) {
+                                logger.log(Level.SEVERE, "Exception in scheduled task", e);
+                            } finally {
+                                inBlockingTask.remove();
+                                blockingDone();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // Shut down meanwhile.
+                    blockingDone();
+                }
+            }
+        }, delayMsec);
+    }
+
+    private void blockingDone() {
+        if (blockingCount.decrementAndGet() == 0) {
+            synchronized (blockingLock) {
+                blockingLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Runs a task on the executor of the scheduler. The task may block.
+     * @param task what to run
+     * @throws java.util.concurrent.RejectedExecutionException if the scheduler was shut down
+     */
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /// @return the executor of the background tasks.
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Waits until all timeouts whose deadline has passed have run, including the tasks of
+     * {@link #scheduleBlocking} on the executor. Unlike scheduling a marker task, this does not
+     * wait for the next tick of the wheel.
+     * @throws InterruptedException if interrupted
+     */
+    public void waitForDueTimeouts() throws InterruptedException {
+        while (true) {
+            long started = blockingStarted.get();
+            CountDownLatch latch = new CountDownLatch(1);
+            synchronized (this) {
+                if (shutdown || Thread.currentThread() == timerThread) return;
+                startTimerThread();
+                flushWaiters.add(latch);
+                LockSupport.unpark(timerThread);
+            }
+            latch.await();
+            // A blocking task would wait for itself.
+            if (inBlockingTask.get() != null) return;
+            synchronized (blockingLock) {
+                while (blockingCount.get() > 0) {
+                    blockingLock.wait();
+                }
+            }
+            // The blocking tasks may have scheduled more due timeouts.
+            if (blockingStarted.get() == started) return;
+        }
+    }
+
+    /// @return the number of timeouts that are waiting to run.
+    public int getPendingTimeouts() {
+        return pendingCount.get();
+    }
+
+    /// @return true if {@link #shutdown} was called.
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Stops the timer thread, discarding the pending timeouts, and shuts down the executor. Has
+     * no effect on the shared default scheduler.
+     */
+    public void shutdown() {
+        if (shared) return;
+        synchronized (this) {
+            shutdown = true;
+            if (timerThread != null) {
+                LockSupport.unpark(timerThread);
+            }
+        }
+        if (executor.isShutdown()) return;
+        executor.shutdown(); // Disable new tasks from being submitted
+        try {
+            // Wait a while for existing tasks to terminate
+            if (!executor.awaitTermination(SHUTDOWN_WAIT_MSEC, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow(); // Cancel currently executing tasks
+                // Wait a while for tasks to respond to being cancelled
+                if (!executor.awaitTermination(SHUTDOWN_WAIT_MSEC, TimeUnit.MILLISECONDS))
+                    logger.warning("Pool did not terminate");
+            }
+        } catch (InterruptedException ie) {
+            // (Re-)Cancel if current thread also interrupted
+            executor.shutdownNow();
+            // Preserve interrupt status
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void startTimerThread() {
+        if (timerThread != null) return;
+        timerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runTimer();
+            }
+        }, "OpenLCB-scheduler");
+        timerThread.setDaemon(true);
+        timerThread.start();
+    }
+
+    /// @return nanoseconds since the start of the scheduler.
+    private long now() {
+        return System.nanoTime() - startNanos;
+    }
+
+    private void runTimer() {
+        List<TimeoutImpl> expired = new ArrayList<>();
+        tick = now() / tickNanos;
+        while (!shutdown) {
+            processCancelled();
+            if (!flushWaiters.isEmpty()) {
+                transferNewTimeouts();
+                collectDue(wheel[(int) (tick & mask)], now(), expired);
+                runExpired(expired);
+                releaseFlushWaiters();
+            }
+            if (pendingCount.get() == 0) {
+                idle = true;
+                if (pendingCount.get() == 0 && flushWaiters.isEmpty() && !shutdown) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+                // The wheel is empty, no need to go through the ticks we slept over.
+                tick = Math.max(tick, now() / tickNanos);
+                continue;
+            }
+            long sleep = (tick + 1) * tickNanos - now();
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                continue;
+            }
+            transferNewTimeouts();
+            collectExpired(wheel[(int) (tick & mask)], expired);
+            ++tick;
+            runExpired(expired);
+        }
+        releaseFlushWaiters();
+    }
+
+    private void runExpired(List<TimeoutImpl> expired) {
+        if (expired.isEmpty()) return;
+        Collections.sort(expired, DEADLINE_ORDER);
+        for (TimeoutImpl t : expired) {
+            try {
+                t.task.run();
+            } catch (Throwable e) {
+                logger.log(Level.SEVERE, "Exception in scheduled task", e);
+            }
+        }
+        expired.clear();
+    }
+
+    private void releaseFlushWaiters() {
+        CountDownLatch l;
+        while ((l = flushWaiters.poll()) != null) {
+            l.countDown();
+        }
+    }
+
+    private void processCancelled() {
+        TimeoutImpl t;
+        while ((t = cancelledTimeouts.poll()) != null) {
+            if (t.bucket != null) {
+                t.bucket.remove(t);
+            }
+        }
+    }
+
+    private void transferNewTimeouts() {
+        TimeoutImpl t;
+        while ((t = newTimeouts.poll()) != null) {
+            if (t.state.get() != ST_INIT) continue;
+            long ticks = t.deadline / tickNanos;
+            t.remainingRounds = (ticks - tick) / wheel.length;
+            // Timeouts that are already due go to the current bucket.
+            ticks = Math.max(ticks, tick);
+            wheel[(int) (ticks & mask)].add(t);
+        }
+    }
+
+    /// Expires the timeouts of the current tick whose deadline has already passed.
+    private void collectDue(Bucket b, long now, List<TimeoutImpl> expired) {
+        TimeoutImpl t = b.head;
+        while (t != null) {
+            TimeoutImpl next = t.next;
+            if (t.remainingRounds <= 0 && t.deadline <= now) {
+                b.remove(t);
+                if (t.state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+                    pendingCount.decrementAndGet();
+                    expired.add(t);
+                }
+            }
+            t = next;
+        }
+    }
+
+    private void collectExpired(Bucket b, List<TimeoutImpl> expired) {
+        TimeoutImpl t = b.head;
+        while (t != null) {
+            TimeoutImpl next = t.next;
+            if (t.remainingRounds <= 0) {
+                b.remove(t);
+                if (t.state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+                    pendingCount.decrementAndGet();
+                    expired.add(t);
+                }
+            } else {
+                t.remainingRounds--;
+            }
+            t = next;
+        }
+    }
+}
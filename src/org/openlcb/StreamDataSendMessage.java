@@ -62,5 +62,7 @@ public class StreamDataSendMessage extends AddressedMessage {
         return new String(value);
     }
 
-    public int getMTI() { return MTI_STREAM_DATA_SEND; }
+    public int getMTI() {
+        return MessageTypeIdentifier.StreamDataSend.mti();
+    }
 }
@@ -68,6 +68,4 @@ public class StreamInitiateRequestMessage extends AddressedPayloadMessage {
     public MessageTypeIdentifier getEMTI() {
         return MessageTypeIdentifier.StreamInitiateRequest;
     }
-
-    public int getMTI() { return MTI_STREAM_INIT_REQUEST; }
 }
@@ -203,4 +203,23 @@ public class Utilities {
         arr[offset+5] = (byte) ((value) & 0xff);
     }
 
+    static public long NetworkToHostUint64(byte[] arr, int offset) {
+        if (arr == null || arr.length < (offset+8)) {
+            return 0;
+        }
+        long ret = 0;
+        for (int i = 0; i < 8; ++i) {
+            ret <<= 8;
+            ret |= ((int)arr[offset+i]) & 0xff;
+        }
+        return ret;
+    }
+
+    static public void HostToNetworkUint64(byte[] arr, int offset, long value) {
+        for (int i = 7; i >= 0; --i) {
+            arr[offset+i] = (byte) (value & 0xff);
+            value >>>= 8;
+        }
+    }
+
 }
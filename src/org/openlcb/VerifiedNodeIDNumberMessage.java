@@ -34,5 +34,7 @@ public class VerifiedNodeIDNumberMessage extends Message {
                 +" Verified Node ID Number";     
     }
 
-    public int getMTI() { return MTI_VERIFIED_NID; }
+    public int getMTI() {
+        return MessageTypeIdentifier.VerifiedNodeId.mti();
+    }
 }
@@ -66,5 +66,7 @@ public class VerifyNodeIDNumberMessage extends Message {
                 + ((content != null) ? (content+" only") : ("all nodes"));    
     }
 
-    public int getMTI() { return MTI_VERIFY_NID; }
+    public int getMTI() {
+        return MessageTypeIdentifier.VerifyNodeIdGlobal.mti();
+    }
 }
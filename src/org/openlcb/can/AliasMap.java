@@ -1,51 +1,107 @@
 package org.openlcb.can;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 import org.openlcb.NodeID;
 
 /**
  * Maintains a 2-way map between nodes and CAN node ID aliases.
  *<p>
  * Input is CAN frames, looking for VerifyNodeID frames.
- * 
+ *<p>
+ * Aliases are 12 bits, so the alias to node direction is a directly indexed table. Lookups in
+ * both directions are lock-free and do not allocate memory; updates are serialized. Lookups
+ * may be called from any thread while the frame input thread is updating the map.
+ *
  * @author  Bob Jacobsen   Copyright 2010
  * @version $Revision$
  */
 public class AliasMap {
+    /// Number of distinct CAN aliases.
+    static final int ALIAS_COUNT = 4096;
+    /// Returned by {@link #getNodeID} for aliases that are not known.
+    public static final NodeID UNKNOWN_NODE = new NodeID();
 
     public AliasMap() {
     }
-    java.util.HashMap<NodeID, Integer> iMap = new java.util.HashMap<NodeID, Integer>();
-    java.util.HashMap<Integer, NodeID> nMap = new java.util.HashMap<Integer, NodeID>();
-    
+    /// Node ID for each alias, or null if unknown.
+    private final AtomicReferenceArray<NodeID> nMap = new AtomicReferenceArray<>(ALIAS_COUNT);
+    private final ConcurrentHashMap<NodeID, Integer> iMap = new ConcurrentHashMap<>();
+    /// Nonzero for each unknown alias a Verify Node ID was already sent to.
+    private final AtomicIntegerArray queried = new AtomicIntegerArray(ALIAS_COUNT);
+    /// Where to send the Verify Node ID frames for unknown aliases; null if disabled.
+    private volatile CanFrameListener queryOutput = null;
+    private volatile int queryAlias = 0;
+
     public void processFrame(OpenLcbCanFrame f) {
         // check type
         if (f.isInitializationComplete() || f.isVerifiedNID() || f.isAliasMapDefinition()) {
-            Integer alias = Integer.valueOf(f.getSourceAlias());
+            int alias = f.getSourceAlias();
             NodeID nid = f.getNodeID();
             insert(alias, nid);
         } else if (f.isAliasMapReset()) {
-            Integer alias = Integer.valueOf(f.getSourceAlias());
-            remove(alias);
+            remove(f.getSourceAlias());
         }
     }
-    
-    public void insert(int alias, NodeID nid) {
-        nMap.put(alias, nid);
-        iMap.put(nid, alias);
+
+    /**
+     * Enables asking the node behind an alias when {@link #getNodeID} is called for an alias
+     * that is not known. The question is a Verify Node ID message addressed to that alias, so
+     * only the one node answers (a global alias map enquiry would make every node on the
+     * segment answer). It is sent only once per alias (until the alias gets defined or reset);
+     * the answering Verified Node ID frame updates this map via {@link #processFrame}.
+     * @param output where to send the frames; null disables asking.
+     * @param localAlias source alias to use for the frames.
+     */
+    public void setQueryOutput(CanFrameListener output, int localAlias) {
+        queryAlias = localAlias;
+        queryOutput = output;
+    }
+
+    public synchronized void insert(int alias, NodeID nid) {
+        alias &= ALIAS_COUNT - 1;
+        NodeID old = nMap.get(alias);
+        if (old != null && !old.equals(nid)) {
+            iMap.remove(old, alias);
+        }
+        Integer oldAlias = iMap.put(nid, alias);
+        if (oldAlias != null && oldAlias != alias && nid.equals(nMap.get(oldAlias))) {
+            // The node got a new alias.
+            nMap.set(oldAlias, null);
+        }
+        nMap.set(alias, nid);
+        queried.set(alias, 0);
     }
-    
-    public void remove(int alias) {
-        NodeID nid = getNodeID(alias);
+
+    public synchronized void remove(int alias) {
+        alias &= ALIAS_COUNT - 1;
+        NodeID nid = nMap.get(alias);
+        queried.set(alias, 0);
         if (nid == null) return;
-        nMap.remove(alias);
-        iMap.remove(nid);
+        nMap.set(alias, null);
+        iMap.remove(nid, alias);
     }
-    
+
+    /**
+     * @param alias CAN alias to look up
+     * @return the Node ID with the given alias, or {@link #UNKNOWN_NODE} if the alias is not
+     * known.
+     */
     public NodeID getNodeID(int alias) {
-        NodeID retVal = nMap.get(Integer.valueOf(alias));
+        if (alias < 0 || alias >= ALIAS_COUNT) return UNKNOWN_NODE;
+        NodeID retVal = nMap.get(alias);
         if (retVal != null) return retVal;
-        else return new NodeID();
+        CanFrameListener output = queryOutput;
+        if (output != null && queried.compareAndSet(alias, 0, 1)) {
+            OpenLcbCanFrame f = new OpenLcbCanFrame(queryAlias);
+            f.setVerifyNIDAddressed(alias);
+            output.send(f);
+        }
+        return UNKNOWN_NODE;
     }
+
     public int getAlias(NodeID nid) {
         Integer r = iMap.get(nid);
         if (r == null) return -1;
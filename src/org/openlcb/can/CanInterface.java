@@ -12,6 +12,7 @@ import org.openlcb.Connection.ConnectionListener;
 import org.openlcb.Message;
 import org.openlcb.NodeID;
 import org.openlcb.OlcbInterface;
+import org.openlcb.Scheduler;
 import java.util.logging.Logger;
 
 /**
@@ -42,37 +43,66 @@ public class CanInterface {
     private final NIDaAlgorithm aliasWatcher;
 
     protected boolean initialized = false;
+    private volatile boolean reuseOutputFrames = false;
+    private volatile boolean queryUnknownAliases = false;
 
-    private ThreadPoolExecutor threadPool = null;
+    /// Timers and background threads of the interface.
+    private final Scheduler scheduler;
+    /// True if the scheduler was created for this interface and is shut down with it.
+    private final boolean ownsScheduler;
     final static int minThreads = 10;
     final static int maxThreads = 10;
     final static long threadTimeout = 10; // allowed idle time for threads, in seconds.
 
     public CanInterface(NodeID interfaceId, CanFrameListener frameOutput) {
-        this(interfaceId,frameOutput,
-                          new ThreadPoolExecutor(minThreads,maxThreads,
-                          threadTimeout,TimeUnit.SECONDS,
-                          new LinkedBlockingQueue<Runnable>(),
-                          new org.openlcb.OlcbThreadFactory()));
-        threadPool.allowCoreThreadTimeOut(true);
+        this(interfaceId, frameOutput, createThreadPool());
     }
 
+    private static ThreadPoolExecutor createThreadPool() {
+        ThreadPoolExecutor tpe = new ThreadPoolExecutor(minThreads, maxThreads, threadTimeout,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new org.openlcb
+                .OlcbThreadFactory());
+        tpe.allowCoreThreadTimeOut(true);
+        return tpe;
+    }
+
+    /**
+     * @param interfaceId node ID of the interface
+     * @param frameOutput where to send the CAN frames
+     * @param tpe thread pool of the interface. It is shut down when the interface is disposed.
+     */
     public CanInterface(NodeID interfaceId, CanFrameListener frameOutput, ThreadPoolExecutor tpe ) {
-        threadPool=tpe;
-        this.frameOutput = frameOutput;
+        this(interfaceId, frameOutput, new Scheduler(tpe), true);
+    }
+
+    /**
+     * @param interfaceId node ID of the interface
+     * @param frameOutput where to send the CAN frames
+     * @param scheduler runs the timers and background tasks of the interface. It may be shared
+     *                  with other interfaces; it is not shut down when the interface is disposed.
+     */
+    public CanInterface(NodeID interfaceId, CanFrameListener frameOutput, Scheduler scheduler) {
+        this(interfaceId, frameOutput, scheduler, false);
+    }
+
+    private CanInterface(NodeID interfaceId, CanFrameListener frameOutput, Scheduler scheduler,
+                         boolean ownsScheduler) {
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+        this.frameOutput = new FrameCounter(frameOutput);
         this.frameRenderer = new FrameRenderer();
         this.nodeId = interfaceId;
 
         // Creates high-level OpenLCB interface.
-        olcbInterface = new OlcbInterface(nodeId, frameRenderer,threadPool);
+        olcbInterface = new OlcbInterface(nodeId, frameRenderer, scheduler);
 
         // Creates CAN-level OpenLCB objects.
         aliasMap = new AliasMap();
         messageBuilder = new MessageBuilder(aliasMap);
-        aliasWatcher = new NIDaAlgorithm(interfaceId, frameOutput);
+        aliasWatcher = new NIDaAlgorithm(interfaceId, this.frameOutput, scheduler);
 
         this.frameInput = new FrameParser();
-        threadPool.execute(new Runnable() {
+        scheduler.execute(new Runnable() {
             @Override
             public void run() {
                 initialize();
@@ -82,6 +112,31 @@ public class CanInterface {
 
     public CanFrameListener frameInput() { return frameInput; }
 
+    /**
+     * Selects how outgoing messages are rendered to CAN frames.
+     * @param reuseOutputFrames if true, the frame output receives frame objects that are reused
+     *                          for subsequent messages (and are only valid during the send call);
+     *                          this makes sending event reports free of memory allocation. If
+     *                          false (the default), every frame sent is a new object.
+     */
+    public void setReuseOutputFrames(boolean reuseOutputFrames) {
+        this.reuseOutputFrames = reuseOutputFrames;
+    }
+
+    /**
+     * Selects whether the node behind an alias that is not in the alias map is asked for its
+     * Node ID when a frame arrives from it, with a Verify Node ID message addressed to the
+     * alias. Each unknown alias is asked only once.
+     * @param queryUnknownAliases true to ask; defaults to false.
+     */
+    public void setQueryUnknownAliases(boolean queryUnknownAliases) {
+        this.queryUnknownAliases = queryUnknownAliases;
+        synchronized (listeners) {
+            if (!initialized) return;
+        }
+        aliasMap.setQueryOutput(queryUnknownAliases ? frameOutput : null, aliasWatcher.getNIDa());
+    }
+
     public void addStartListener(ConnectionListener l) {
         synchronized (listeners) {
             if (!initialized) {
@@ -126,6 +181,9 @@ public class CanInterface {
         }
         // Stores local node alias.
         aliasMap.insert(aliasWatcher.getNIDa(), nodeId);
+        if (queryUnknownAliases) {
+            aliasMap.setQueryOutput(frameOutput, aliasWatcher.getNIDa());
+        }
         /// TODO(balazs.racz): If the alias changes, we need to update the local alias map.
 
         // Notify all listeners waiting for init. Call them outside of the lock.
@@ -144,9 +202,25 @@ public class CanInterface {
         return olcbInterface;
     }
 
+    /// Counts the frames sent for the interface metrics.
+    class FrameCounter implements CanFrameListener {
+        private final CanFrameListener output;
+
+        FrameCounter(CanFrameListener output) {
+            this.output = output;
+        }
+
+        @Override
+        public void send(CanFrame frame) {
+            olcbInterface.getMetrics().recordFrameOut();
+            output.send(frame);
+        }
+    }
+
     class FrameParser implements CanFrameListener {
         @Override
         public void send(CanFrame frame) {
+            olcbInterface.getMetrics().recordFrameIn();
             aliasWatcher.send(frame);
             aliasMap.processFrame(new OpenLcbCanFrame(frame));
             List<Message> l = messageBuilder.processFrame(frame);
@@ -160,6 +234,10 @@ public class CanInterface {
     class FrameRenderer implements Connection {
         @Override
         public void put(Message msg, Connection sender) {
+            if (reuseOutputFrames) {
+                messageBuilder.processMessage(msg, frameOutput);
+                return;
+            }
             List<OpenLcbCanFrame> l = messageBuilder.processMessage(msg);
             for (CanFrame f : l) {
                 frameOutput.send(f);
@@ -174,26 +252,9 @@ public class CanInterface {
 
     public void dispose(){
         aliasWatcher.dispose();
-        // shut down the thread pool
-        if(threadPool != null && !(threadPool.isShutdown())) {
-           // modified from the javadoc for ExecutorService 
-           threadPool.shutdown(); // Disable new tasks from being submitted
-           try {
-              // Wait a while for existing tasks to terminate
-              if (!threadPool.awaitTermination(10, TimeUnit.MILLISECONDS)) {
-                 threadPool.shutdownNow(); // Cancel currently executing tasks
-                 // Wait a while for tasks to respond to being cancelled
-                 if (!threadPool.awaitTermination(10, TimeUnit.SECONDS))
-                     logger.warning("Pool did not terminate");
-              }
-            } catch (InterruptedException ie) {
-                // (Re-)Cancel if current thread also interrupted
-                threadPool.shutdownNow();
-                // Preserve interrupt status
-                Thread.currentThread().interrupt();
-            }
+        if (ownsScheduler) {
+            scheduler.shutdown();
         }
-        threadPool = null;
     }
 
 }
@@ -1,8 +1,8 @@
 package org.openlcb.can;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.openlcb.*;
@@ -56,6 +56,13 @@ public class MessageBuilder {
         // break into types
         int format = ( f.getHeader() & 0x07000000 ) >> 24;
 
+        // The reassembly buffers are also updated from the sending thread (stream windows).
+        synchronized (buffers) {
+            return processFrameFormat(format, f);
+        }
+    }
+
+    private List<Message> processFrameFormat(int format, CanFrame f) {
         switch (format) {
             case 0:
                 return processFormat0(f);
@@ -78,89 +85,84 @@ public class MessageBuilder {
         }
     }
     
-    HashMap<NodeID, List<Integer>> datagramData = new HashMap<NodeID, List<Integer>>();
-    // dph
-    HashMap<NodeID, List<Integer>> streamData = new HashMap<NodeID, List<Integer>>();
-    
+    /// Partial payloads of multi-frame messages, keyed by source and destination alias.
+    final ReassemblyBuffers buffers = new ReassemblyBuffers();
+
+    /**
+     * @return the current time in milliseconds, used for expiring stale reassembly state.
+     * Overridden in tests.
+     */
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
     int getSourceID(CanFrame f) { return f.getHeader()&0x00000FFF; }
     int getMTI(CanFrame f) { return ( f.getHeader() & 0x00FFF000 ) >> 12; }
-    EventID getEventID(CanFrame f) { return new EventID(f.getData()); }
+    int getDestID(CanFrame f) { return ( f.getHeader() & 0x00FFF000 ) >> 12; }
+    EventID getEventID(CanFrame f) {
+        if (f.getNumDataElements() != 8) return new EventID(f.getData());
+        long value = 0;
+        for (int i = 0; i < 8; ++i) {
+            value = (value << 8) | f.getElement(i);
+        }
+        return EventID.fromLong(value);
+    }
     
     List<Message> processFormat0(CanFrame f) {
         // reserved
         return null;
     }
 
-    class AccumulationMemo {
-        long header;
-        NodeID source;
-        NodeID dest;
-        byte[] data;
-        
-        public AccumulationMemo(long header, NodeID source, NodeID dest, byte[] data) {
-            this.header = header;
-            this.source = source;
-            this.dest = dest;
-            this.data = data;
-        }
-        
-        public boolean equals(Object obj) {
-            if (! (obj instanceof AccumulationMemo) )
-                    return false;
-            
-            AccumulationMemo other = (AccumulationMemo)obj;
-            if (header != other.header) return false;
-            if ( ! source.equals(other.source)) return false;
-            if ( ! dest.equals(other.dest)) return false;
-            return true;
-        }
-        
-        // data varies in length, not considered.
-        public int hashCode() {
-            return (int)(header+dest.hashCode()+source.hashCode());
-        }
-    }
-    
-    HashMap<Integer, AccumulationMemo> accumulations = new HashMap<Integer, AccumulationMemo>();
-    
     List<Message> processFormat1(CanFrame f) {
         // MTI
         List<Message> retlist = new java.util.ArrayList<Message>();
-        NodeID source = map.getNodeID(getSourceID(f));
+        int srcAlias = getSourceID(f);
+        NodeID source = map.getNodeID(srcAlias);
         NodeID dest = null;
+        int dstAlias = -1;
         int mti = getMTI(f);
-        byte[] data = f.getData();
+        // Length of the data including the two address bytes for addressed messages.
+        int length = f.getNumDataElements();
 
         byte[] content = null;
 
         if ( ((mti&0x008) != 0) && (f.getNumDataElements() >= 2) ) {
             // addressed message 
-            dest = map.getNodeID( ( (f.getElement(0) << 8) + (f.getElement(1) & 0xff) ) & 0xFFF );
-            AccumulationMemo mnew = new AccumulationMemo(f.getHeader(), source, dest, data);
-            // is header already in map?
-            AccumulationMemo mold = accumulations.get(f.getHeader());
-            if (mold == null) {
-                // no - start accumulation
-                accumulations.put(f.getHeader(),mnew);
-                mold = mnew;
+            dstAlias = ( (f.getElement(0) << 8) + (f.getElement(1) & 0xff) ) & 0xFFF;
+            int continuation = f.getElement(0) & 0x30;
+            if (continuation == 0) {
+                // only frame; no reassembly needed
+                content = new byte[length - 2];
+                for (int i = 2; i < length; ++i) {
+                    content[i - 2] = (byte) f.getElement(i);
+                }
             } else {
-                // combine data into old one
-                byte[] newdata = new byte[mold.data.length+mnew.data.length-2];  // skip address
-                System.arraycopy(mold.data, 0, newdata, 0, mold.data.length);
-                System.arraycopy(mnew.data, 2, newdata, mold.data.length, mnew.data.length-2);
-                mold.data = newdata;
+                long key = ReassemblyBuffers.key(ReassemblyBuffers.KIND_ADDRESSED, mti,
+                        srcAlias, dstAlias);
+                long now = currentTimeMillis();
+                ReassemblyBuffers.Entry e;
+                if ((continuation & 0x20) == 0) {
+                    // first frame
+                    e = buffers.start(key, now);
+                } else {
+                    e = buffers.findOrStart(key, now);
+                }
+                e.append(f, 2);
+                // see if final bit active
+                if ((continuation & 0x10) != 0) {
+                    // no, accumulate
+                    return retlist;
+                }
+                boolean overflow = e.overflow;
+                content = e.toByteArray();
+                buffers.release(e);
+                if (overflow) {
+                    logger.warning("Dropping overlong addressed message from alias " + srcAlias);
+                    return retlist;
+                }
             }
-            // see if final bit active
-            if ( (f.getElement(0) & 0x10 ) != 0) {
-                // no, accumulate
-                return retlist; // which is null right now
-            } 
-            // we're going to continue processing with the accumulated data
-            data = mold.data;
-            accumulations.remove(f.getHeader());
-
-            content = new byte[data.length-2];
-            System.arraycopy(data, 2, content, 0, content.length);
+            length = content.length + 2;
+            dest = map.getNodeID(dstAlias);
         }
         
         MessageTypeIdentifier value = MessageTypeIdentifier.get(mti);
@@ -178,8 +180,8 @@ public class MessageBuilder {
                 return retlist;
             case VerifyNodeIdGlobal:
                 // check for content
-                if (data.length >= 6) {
-                    NodeID node = new NodeID(data);
+                if (length >= 6) {
+                    NodeID node = new NodeID(f.getData());
                     retlist.add(new VerifyNodeIDNumberMessage(source, node));
                 } else {
                     retlist.add(new VerifyNodeIDNumberMessage(source));
@@ -190,10 +192,10 @@ public class MessageBuilder {
                 return retlist;
 
             case OptionalInteractionRejected: {
-                    int d2 = data.length >= 3 ? f.getElement(2) : 0;
-                    int d3 = data.length >= 4 ? f.getElement(3) : 0;
-                    int d4 = data.length >= 5 ? f.getElement(4) : 0;
-                    int d5 = data.length >= 6 ? f.getElement(5) : 0;
+                    int d2 = length >= 3 ? f.getElement(2) : 0;
+                    int d3 = length >= 4 ? f.getElement(3) : 0;
+                    int d4 = length >= 5 ? f.getElement(4) : 0;
+                    int d5 = length >= 6 ? f.getElement(5) : 0;
                     int retmti = ((d2&0xff)<<8) | (d3&0xff);
                     int code = ((d4&0xff)<<8) | (d5&0xff);;
                     retlist.add(new OptionalIntRejectedMessage(source, dest,retmti,code));
@@ -276,7 +278,8 @@ public class MessageBuilder {
                 return retlist;
          // dph: add all stream messages reply and proceed.
             case StreamInitiateRequest:
-                retlist.add(new StreamInitiateRequestMessage(source,dest,Utilities.NetworkToHostUint16(content, 2),content[4],
+                // max buffer(2), flags(2), source stream ID, [destination stream ID]
+                retlist.add(new StreamInitiateRequestMessage(source,dest,Utilities.NetworkToHostUint16(content, 0),content[4],
                         (content.length > 5 ? content[5] : -1)));
                 return retlist;
             case StreamInitiateReply:
@@ -284,11 +287,15 @@ public class MessageBuilder {
                 return retlist;
             // case StreamData is Format 7
             case StreamDataProceed:
-                retlist.add(new StreamDataProceedMessage(source,dest,content[2], content[3]));
+                retlist.add(new StreamDataProceedMessage(source,dest,content[0], content[1]));
                 return retlist;
             case StreamDataComplete:
-                retlist.add(new StreamDataCompleteMessage(source,dest,content.length > 2 ?
-                        content[2] : -1, content.length > 3 ? content[3] : -1));
+                if (content.length >= 2) {
+                    // Delivers the data of the last (partial) window before the completion.
+                    flushStream(retlist, srcAlias, dstAlias, dest, content[1]);
+                }
+                retlist.add(new StreamDataCompleteMessage(source,dest,content.length > 0 ?
+                        content[0] : -1, content.length > 1 ? content[1] : -1));
                 return retlist;
                 
             default:
@@ -298,78 +305,55 @@ public class MessageBuilder {
     }
     List<Message> processFormat2(CanFrame f) {
         // datagram only-segment
-        NodeID source = map.getNodeID(getSourceID(f));
-        List<Integer> list = datagramData.get(source);
-        if (list == null) {
-            list = new ArrayList<Integer>();
-            // don't need to put it back, as we're doing just one
-        } else {
+        int srcAlias = getSourceID(f);
+        int dstAlias = getDestID(f);
+        ReassemblyBuffers.Entry e = buffers.find(ReassemblyBuffers.key(ReassemblyBuffers
+                .KIND_DATAGRAM, 0, srcAlias, dstAlias));
+        if (e != null) {
             // this is actually an error, datagram already in process for only-segment
+            buffers.release(e);
         }
-        for (int i = 0; i < f.getNumDataElements(); i++) {
-            list.add(f.getElement(i));
+        int[] data = new int[f.getNumDataElements()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = f.getElement(i);
         }
         
         // done, forward
-        
-        int[] data = new int[list.size()];
-        for (int i=0; i<list.size(); i++) {
-            data[i] = list.get(i);
-        }
         List<Message> retlist = new java.util.ArrayList<Message>();
-        NodeID dest = map.getNodeID( (f.getHeader() & 0x00FFF000) >> 12);
-        retlist.add(new DatagramMessage(source, dest, data));
+        retlist.add(new DatagramMessage(map.getNodeID(srcAlias), map.getNodeID(dstAlias), data));
         return retlist;
     }
     List<Message> processFormat3(CanFrame f) {
         // datagram first-segment
-        NodeID source = map.getNodeID(getSourceID(f));
-        List<Integer> list = datagramData.get(source);
-        if (list == null) {
-            list = new ArrayList<Integer>();
-            datagramData.put(source, list);
-        } else {
-            // this is actually an error, datagram already in process for only-segment
-        }
-        for (int i = 0; i < f.getNumDataElements(); i++) {
-            list.add(f.getElement(i));
-        }
+        ReassemblyBuffers.Entry e = buffers.start(ReassemblyBuffers.key(ReassemblyBuffers
+                .KIND_DATAGRAM, 0, getSourceID(f), getDestID(f)), currentTimeMillis());
+        e.append(f, 0);
         return null;
     }
     List<Message> processFormat4(CanFrame f) {
         // datagram middle-segment
-        NodeID source = map.getNodeID(getSourceID(f));
-        List<Integer> list = datagramData.get(source);
-        if (list == null) {
-            // this is actually an error, should be already started
-            list = new ArrayList<Integer>();
-            datagramData.put(source, list);
-        }
-        for (int i = 0; i < f.getNumDataElements(); i++) {
-            list.add(f.getElement(i));
-        }
+        // if not already started, this is actually an error; we start anyway.
+        ReassemblyBuffers.Entry e = buffers.findOrStart(ReassemblyBuffers.key(ReassemblyBuffers
+                .KIND_DATAGRAM, 0, getSourceID(f), getDestID(f)), currentTimeMillis());
+        e.append(f, 0);
         return null;
     }
     List<Message> processFormat5(CanFrame f) {
         // datagram last
-        NodeID source = map.getNodeID(getSourceID(f));
-        List<Integer> list = datagramData.get(source);
-        if (list == null) {
-            list = new ArrayList<Integer>();
-        }
-        for (int i = 0; i < f.getNumDataElements(); i++) {
-            list.add(f.getElement(i));
-        }
-        
-        datagramData.put(source, null); // not accumulating any more
-        
-        int[] data = new int[list.size()];
-        for (int i=0; i<list.size(); i++) {
-            data[i] = list.get(i);
-        }
+        int srcAlias = getSourceID(f);
+        int dstAlias = getDestID(f);
+        ReassemblyBuffers.Entry e = buffers.findOrStart(ReassemblyBuffers.key(ReassemblyBuffers
+                .KIND_DATAGRAM, 0, srcAlias, dstAlias), currentTimeMillis());
+        e.append(f, 0);
+        boolean overflow = e.overflow;
+        int[] data = e.toIntArray();
+        buffers.release(e); // not accumulating any more
         List<Message> retlist = new java.util.ArrayList<Message>();
-        NodeID dest = map.getNodeID( (f.getHeader() & 0x00FFF000) >> 12);
-        retlist.add(new DatagramMessage(source, dest, data));
+        if (overflow) {
+            logger.warning("Dropping overlong datagram from alias " + srcAlias);
+            return retlist;
+        }
+        retlist.add(new DatagramMessage(map.getNodeID(srcAlias), map.getNodeID(dstAlias), data));
         return retlist;
     }
     List<Message> processFormat6(CanFrame f) {
@@ -378,36 +362,84 @@ public class MessageBuilder {
     }
     List<Message> processFormat7(CanFrame f) {
         // stream data
-        NodeID source = map.getNodeID(getSourceID(f));
-        // @todo need to define this  !!!!!!!!!!!!!!!!!!!!!!!!!!
-        int bufSize = 64;
-        int destID = f.getElement(0);
-        // @todo support more than one stream per destination, use destID as key.
-        List<Integer> list = streamData.get(source);
-        if (list == null) {
-            list = new ArrayList<Integer>();
-        }
-        int n = Math.min(bufSize, f.getNumDataElements());
-        if(n < bufSize) {
-            // won't fill buffer, so add all
-            for (int i = 1; i < f.getNumDataElements(); i++) list.add(f.getElement(i));
-            return null;
-        } else {
-            // got a full buffer, fill it and send it on
-            for (int i = 1; i < n; i++) list.add(f.getElement(i));
-            int[] data = new int[list.size()];
-            for(int i=0; i<bufSize; i++) data[i] = list.get(i);
-            List<Message> retlist = new java.util.ArrayList<Message>();
-            NodeID dest = map.getNodeID( (f.getHeader() & 0x00FFF000) >> 12);
-            //retlist.add(new DatagramMessage(source, dest, data));
-            retlist.add(new StreamDataSendMessage(source, dest, (byte)destID, data));
-            // make a new List and fill it with the rest of received data
-            list = new ArrayList<Integer>();
-            for (int i=n; i<f.getNumDataElements(); i++) list.add(f.getElement(i));
+        if (f.getNumDataElements() < 1) return null;
+        int srcAlias = getSourceID(f);
+        int dstAlias = getDestID(f);
+        byte destID = (byte) f.getElement(0);
+        ReassemblyBuffers.Entry e = buffers.find(ReassemblyBuffers.key(ReassemblyBuffers
+                .KIND_STREAM, destID & 0xff, srcAlias, dstAlias));
+        List<Message> retlist = new java.util.ArrayList<Message>();
+        if (e == null || e.window <= 0) {
+            // We do not know the buffer size of this stream; forward the data of every frame
+            // as it arrives.
+            int[] data = new int[f.getNumDataElements() - 1];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = f.getElement(i + 1);
+            }
+            retlist.add(new StreamDataSendMessage(map.getNodeID(srcAlias), map.getNodeID
+                    (dstAlias), destID, data));
             return retlist;
         }
-        // @todo the list variable needs to be saved into the streamData map, otherwise we lose
-        // the accumulated bytes.
+        e.lastUpdate = currentTimeMillis();
+        e.append(f, 1);
+        if (e.length >= e.window || e.overflow) {
+            // got a full buffer, send it on; the receiver will ask for the next one.
+            flushStream(retlist, e, map.getNodeID(dstAlias), destID);
+        }
+        return retlist;
+    }
+
+    /**
+     * Forwards the accumulated data of a stream as a StreamDataSend message.
+     * @param retlist where to add the message
+     * @param srcAlias alias of the node sending the stream data
+     * @param dstAlias alias of the node receiving the stream data
+     * @param dest node receiving the stream data
+     * @param destID destination stream ID
+     */
+    private void flushStream(List<Message> retlist, int srcAlias, int dstAlias, NodeID dest,
+                             byte destID) {
+        ReassemblyBuffers.Entry e = buffers.find(ReassemblyBuffers.key(ReassemblyBuffers
+                .KIND_STREAM, destID & 0xff, srcAlias, dstAlias));
+        if (e == null) return;
+        flushStream(retlist, e, dest, destID);
+        buffers.release(e);
+    }
+
+    private void flushStream(List<Message> retlist, ReassemblyBuffers.Entry e, NodeID dest,
+                             byte destID) {
+        if (e.length == 0) return;
+        int srcAlias = (int) (e.key >> 12) & 0xFFF;
+        retlist.add(new StreamDataSendMessage(map.getNodeID(srcAlias), dest, destID, e
+                .toIntArray()));
+        e.length = 0;
+        e.overflow = false;
+    }
+
+    /**
+     * Records the buffer size of a stream we are receiving, so that the stream data frames can
+     * be reassembled into one message per buffer.
+     * @param msg the reply we are sending to the stream source.
+     */
+    void registerStreamWindow(StreamInitiateReplyMessage msg) {
+        synchronized (buffers) {
+            registerStreamWindowLocked(msg);
+        }
+    }
+
+    private void registerStreamWindowLocked(StreamInitiateReplyMessage msg) {
+        int srcAlias = map.getAlias(msg.getDestNodeID());
+        int dstAlias = map.getAlias(msg.getSourceNodeID());
+        if (srcAlias < 0 || dstAlias < 0) return;
+        long key = ReassemblyBuffers.key(ReassemblyBuffers.KIND_STREAM, msg
+                .getDestinationStreamID() & 0xff, srcAlias, dstAlias);
+        if (msg.getBufferSize() <= 0) {
+            ReassemblyBuffers.Entry e = buffers.find(key);
+            if (e != null) buffers.release(e);
+            return;
+        }
+        ReassemblyBuffers.Entry e = buffers.start(key, currentTimeMillis());
+        e.window = msg.getBufferSize();
     }
         
 
@@ -428,6 +460,54 @@ public class MessageBuilder {
         FrameBuilder f = new FrameBuilder();
         return f.convert(msg);
     }
+
+    /**
+     * Accept an OpenLCB Message, and send the frame(s) representing it to a sink.
+     * <p>
+     * Unlike {@link #processMessage(Message)}, this does not build a list. Event reports are
+     * encoded into a frame object owned by this MessageBuilder, so sending them does not allocate
+     * any memory. The frames passed to the sink are therefore only valid for the duration of the
+     * {@link CanFrameListener#send} call; sinks that need to keep a frame must copy it.
+     * <p>
+     * May be called from multiple threads; concurrent or reentrant calls fall back to allocating
+     * new frames.
+     * @param msg    OpenLCB Message object to send
+     * @param sink   receives the CAN frames (one or more) representing that message
+     */
+    public void processMessage(Message msg, CanFrameListener sink) {
+        if (!sinkBusy.compareAndSet(false, true)) {
+            for (OpenLcbCanFrame f : processMessage(msg)) {
+                sink.send(f);
+            }
+            return;
+        }
+        try {
+            if (msg instanceof ProducerConsumerEventReportMessage) {
+                // Fast path for the most frequent message.
+                ProducerConsumerEventReportMessage m = (ProducerConsumerEventReportMessage) msg;
+                sinkFrame.setEventMessage(map.getAlias(m.getSourceNodeID()),
+                        MessageTypeIdentifier.ProducerConsumerEventReport.mti(), m.getEventID()
+                                .toLong());
+                sink.send(sinkFrame);
+                return;
+            }
+            sinkBuilder.sink = sink;
+            try {
+                sinkBuilder.put(msg, null);
+            } finally {
+                sinkBuilder.sink = null;
+            }
+        } finally {
+            sinkBusy.set(false);
+        }
+    }
+
+    /// Guards sinkFrame and sinkBuilder.
+    private final AtomicBoolean sinkBusy = new AtomicBoolean(false);
+    /// Reused for every event report sent via processMessage(msg, sink).
+    private final OpenLcbCanFrame sinkFrame = new OpenLcbCanFrame(0x00);
+    /// Reused for the other messages sent via processMessage(msg, sink).
+    private final FrameBuilder sinkBuilder = new FrameBuilder();
     
     private class FrameBuilder extends org.openlcb.MessageDecoder {
         /**
@@ -444,7 +524,17 @@ public class MessageBuilder {
         }
         
         List<OpenLcbCanFrame> retlist;
-        
+        /// If not null, frames are sent here instead of being added to retlist.
+        CanFrameListener sink;
+
+        private void emit(OpenLcbCanFrame f) {
+            if (sink != null) {
+                sink.send(f);
+            } else {
+                retlist.add(f);
+            }
+        }
+
         List<OpenLcbCanFrame> convert(Message msg) {
             retlist = new java.util.ArrayList<OpenLcbCanFrame>();
             
@@ -470,10 +560,16 @@ public class MessageBuilder {
                 f.setData(data);
                 f.setDestAlias(map.getAlias(msg.getDestNodeID()));
                 f.setContinuation(i == 0, (i + 6 >= payload.length));
-                retlist.add(f);
+                emit(f);
             }
         }
 
+        @Override
+        public void handleStreamInitiateReply(StreamInitiateReplyMessage msg, Connection sender) {
+            registerStreamWindow(msg);
+            handleAddressedPayloadMessage(msg, sender);
+        }
+
         /**
          * Handle "Initialization Complete" message
          */
@@ -482,7 +578,7 @@ public class MessageBuilder {
             OpenLcbCanFrame f = new OpenLcbCanFrame(0x00);
             f.setInitializationComplete(map.getAlias(msg.getSourceNodeID()), msg.getSourceNodeID());
             f.setSourceAlias(map.getAlias(msg.getSourceNodeID()));
-            retlist.add(f);
+            emit(f);
         }
         /**
          * Handle "Verified Node ID Number" message
@@ -491,7 +587,7 @@ public class MessageBuilder {
             OpenLcbCanFrame f = new OpenLcbCanFrame(0x00);
             f.setVerifiedNID(msg.getSourceNodeID());
             f.setSourceAlias(map.getAlias(msg.getSourceNodeID()));
-            retlist.add(f);
+            emit(f);
         }
         /**
          * Handle "Verify Node ID Number" message
@@ -503,7 +599,7 @@ public class MessageBuilder {
             f.setSourceAlias(map.getAlias(msg.getSourceNodeID()));
             if (msg.getContent() != null) 
                 f.setData(msg.getContent().getContents());
-            retlist.add(f);
+            emit(f);
         }
 
         /**
@@ -514,7 +610,7 @@ public class MessageBuilder {
             OpenLcbCanFrame f = new OpenLcbCanFrame(0x00);
             f.setPCEventReport(msg.getEventID());
             f.setSourceAlias(map.getAlias(msg.getSourceNodeID()));
-            retlist.add(f);
+            emit(f);
         }
         /**
          * Handle "Identify Consumers" message
@@ -525,7 +621,7 @@ public class MessageBuilder {
             f.setOpenLcbMTI(MessageTypeIdentifier.IdentifyConsumer.mti());
             f.setSourceAlias(map.getAlias(msg.getSourceNodeID()));
             f.loadFromEid(msg.getEventID());
-            retlist.add(f);
+            emit(f);
         }
         /**
          * Handle "Consumer Identified" message
@@ -536,7 +632,7 @@ public class MessageBuilder {
             f.setOpenLcbMTI(msg.getEventState().getConsumerIdentifierMti().mti());
             f.setSourceAlias(map.getAlias(msg.getSourceNodeID()));
             f.loadFromEid(msg.getEventID());
-            retlist.add(f);
+            emit(f);
         }
 
         @Override
@@ -546,7 +642,7 @@ public class MessageBuilder {
             f.setOpenLcbMTI(MessageTypeIdentifier.ConsumerRangeIdentified.mti());
             f.setSourceAlias(map.getAlias(msg.getSourceNodeID()));
             f.loadFromEid(msg.getEventID());
-            retlist.add(f);
+            emit(f);
         }
 
         /**
@@ -558,7 +654,7 @@ public class MessageBuilder {
             f.setOpenLcbMTI(MessageTypeIdentifier.IdentifyProducer.mti());
             f.setSourceAlias(map.getAlias(msg.getSourceNodeID()));
             f.loadFromEid(msg.getEventID());
-            retlist.add(f);
+            emit(f);
         }
 
         @Override
@@ -568,7 +664,7 @@ public class MessageBuilder {
             f.setOpenLcbMTI(MessageTypeIdentifier.ProducerRangeIdentified.mti());
             f.setSourceAlias(map.getAlias(msg.getSourceNodeID()));
             f.loadFromEid(msg.getEventID());
-            retlist.add(f);
+            emit(f);
         }
 
         /**
@@ -580,7 +676,7 @@ public class MessageBuilder {
             f.setOpenLcbMTI(msg.getEventState().getProducerIdentifierMti().mti());
             f.setSourceAlias(map.getAlias(msg.getSourceNodeID()));
             f.loadFromEid(msg.getEventID());
-            retlist.add(f);
+            emit(f);
         }
         /**
          * Handle "Identify Event" message
@@ -595,7 +691,7 @@ public class MessageBuilder {
                 f.setOpenLcbMTI(MessageTypeIdentifier.IdentifyEventsGlobal.mti());
             }
             f.setSourceAlias(map.getAlias(msg.getSourceNodeID()));
-            retlist.add(f);
+            emit(f);
         }
         /**
          * Handle "Learn Event" message
@@ -625,7 +721,7 @@ public class MessageBuilder {
                 OpenLcbCanFrame f = new OpenLcbCanFrame(0x00);
                 f.setDatagram(data, map.getAlias(msg.getDestNodeID()), first, remains <= 8);
                 f.setSourceAlias(map.getAlias(msg.getSourceNodeID()));
-                retlist.add(f);
+                emit(f);
                 
                 remains = remains - size;
                 first = false;
@@ -652,7 +748,7 @@ public class MessageBuilder {
                 
                 OpenLcbCanFrame f = new OpenLcbCanFrame(map.getAlias(msg.getSourceNodeID()));
                 f.setStream(data, map.getAlias(msg.getDestNodeID()));
-                retlist.add(f);
+                emit(f);
                 
                 remains = remains - size;
             } while (remains > 0);
@@ -1,10 +1,9 @@
 package org.openlcb.can;
 
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.logging.Logger;
 
 import org.openlcb.NodeID;
+import org.openlcb.Scheduler;
 
 /**
  * Implementation of Node ID Alias assignment computation.
@@ -18,22 +17,24 @@ public class NIDaAlgorithm implements CanFrameListener {
     /// Callback to invoke when the alias was successfully reserved.
     private Runnable done;
     private CanFrameListener sendInterface;
-    private static Timer timer;
-    private TimerTask task;
+    /// Runs the timeouts; null when there is no send interface (unit tests).
+    private Scheduler scheduler;
+    private Scheduler.Timeout task;
+    private volatile boolean disposed = false;
     private final static Logger logger = Logger.getLogger(NIDaAlgorithm.class.getName());
 
     private synchronized void scheduleTimer(long delay) {
-        task = new TimerTask() {
-            @Override
-            public void run() {
-                timerExpired();
-            }
-        };
-
+        if (disposed || scheduler == null) return;
         try {
-           timer.schedule(task, delay);
-        } catch (IllegalStateException | NullPointerException ise){
-           // the timer was canceled, dispose occurred before the task was scheduled.
+           // Sends frames, which may block.
+           task = scheduler.scheduleBlocking(new Runnable() {
+               @Override
+               public void run() {
+                   if (!disposed) timerExpired();
+               }
+           }, delay);
+        } catch (IllegalStateException ise){
+           // the scheduler was shut down, dispose occurred before the task was scheduled.
         }
     }
 
@@ -43,15 +44,19 @@ public class NIDaAlgorithm implements CanFrameListener {
     }
 
     public NIDaAlgorithm(NodeID n, CanFrameListener sendInterface) {
+        this(n, sendInterface, Scheduler.getDefault());
+    }
+
+    /**
+     * @param n node ID to reserve an alias for
+     * @param sendInterface where to send the frames
+     * @param scheduler runs the timeouts of the reservation
+     */
+    public NIDaAlgorithm(NodeID n, CanFrameListener sendInterface, Scheduler scheduler) {
         this(n);
         
         this.sendInterface = sendInterface;
-        
-        synchronized(NIDaAlgorithm.class) {
-            if (timer == null ) {
-                timer = new Timer("OpenLCB NIDaAlgorithm Timer");
-            }
-        }
+        this.scheduler = scheduler;
     }
 
     public void start(Runnable done) {
@@ -112,11 +117,11 @@ public class NIDaAlgorithm implements CanFrameListener {
     }
 
     protected void cancelTimer() {
-        if (timer == null) {
+        if (scheduler == null) {
             return; // Probably running from a unit test.
         }
-        if (task == null || task.cancel()) {
-            // Task was not yet run.
+        if (task == null || task.cancel() || (complete && task.isExpired())) {
+            // Task was not yet run, or we are defending an alias that is already reserved.
             scheduleTimer(0);
         }
     }
@@ -147,11 +152,11 @@ public class NIDaAlgorithm implements CanFrameListener {
     }
 
     public void dispose(){
-       cancelTimer();  // dispose of the timer task
-       
-       synchronized(NIDaAlgorithm.class) {
-           timer.cancel();
-           timer = null;
+       synchronized(this) {
+           // dispose of the timer task
+           disposed = true;
+           if (task != null) task.cancel();
+           task = null;
        }
        
        done = null;
@@ -190,13 +190,7 @@ public class OpenLcbCanFrame implements CanFrame {
     setFrameTypeCAN();
     setVariableField(AMR_VAR_FIELD);
     length=6;
-    byte[] val = nid.getContents();
-    data[0] = val[0];
-    data[1] = val[1];
-    data[2] = val[2];
-    data[3] = val[3];
-    data[4] = val[4];
-    data[5] = val[5];
+    Utilities.HostToNetworkUint48(data, 0, nid.toLong());
   }
 
   void setAME(int alias, @Nullable NodeID nid) {
@@ -207,13 +201,7 @@ public class OpenLcbCanFrame implements CanFrame {
         length = 0;
     } else {
         length=6;
-        byte[] val = nid.getContents();
-        data[0] = val[0];
-        data[1] = val[1];
-        data[2] = val[2];
-        data[3] = val[3];
-        data[4] = val[4];
-        data[5] = val[5];
+        Utilities.HostToNetworkUint48(data, 0, nid.toLong());
     }
   }
 
@@ -252,6 +240,22 @@ public class OpenLcbCanFrame implements CanFrame {
     loadFromEid(eid);
   }
   
+  /**
+   * Fills in a global message carrying an event ID without allocating memory. Used for reusing
+   * the same frame object for sending many event reports.
+   * @param alias   source alias
+   * @param mti     CAN MTI of the message
+   * @param eid     event ID as returned by {@link EventID#toLong()}
+   */
+  void setEventMessage(int alias, int mti, long eid) {
+    nodeAlias = alias;
+    init(alias);
+    setOpenLcbMTI(mti);
+    if (data.length < 8) data = new byte[8];
+    length = 8;
+    Utilities.HostToNetworkUint64(data, 0, eid);
+  }
+
   boolean isPCEventReport() {
       return isOpenLcbMTI(MessageTypeIdentifier.ProducerConsumerEventReport.mti());
   }
@@ -272,13 +276,7 @@ public class OpenLcbCanFrame implements CanFrame {
     init(nodeAlias);
     setOpenLcbMTI(MessageTypeIdentifier.InitializationComplete.mti());
     length=6;
-    byte[] val = nid.getContents();
-    data[0] = val[0];
-    data[1] = val[1];
-    data[2] = val[2];
-    data[3] = val[3];
-    data[4] = val[4];
-    data[5] = val[5];
+    Utilities.HostToNetworkUint48(data, 0, nid.toLong());
   }
   
   boolean isInitializationComplete() {
@@ -286,11 +284,13 @@ public class OpenLcbCanFrame implements CanFrame {
   }
   
   EventID getEventID() {
-    return new EventID(data);
+    if (data.length != 8) return new EventID(data);
+    return EventID.fromLong(Utilities.NetworkToHostUint64(data, 0));
   }
   
   NodeID getNodeID() {
-    return new NodeID(data);
+    if (data.length < 6) return new NodeID(data);
+    return NodeID.fromLong(Utilities.NetworkToHostUint48(data, 0));
   }
   
   boolean isVerifyNID() {
@@ -303,6 +303,18 @@ public class OpenLcbCanFrame implements CanFrame {
     length=0;
   }
 
+  /**
+   * Sets up a Verify Node ID frame addressed to one alias; only that node answers, with a
+   * Verified Node ID frame.
+   * @param destAlias alias of the node to ask
+   */
+  void setVerifyNIDAddressed(int destAlias) {
+    init(nodeAlias);
+    setOpenLcbMTI(MessageTypeIdentifier.VerifyNodeIdAddressed.mti());
+    length=0;
+    setDestAlias(destAlias);
+  }
+
   boolean isVerifiedNID() {
       return isOpenLcbMTI(MessageTypeIdentifier.VerifiedNodeId.mti());
   }
@@ -311,13 +323,7 @@ public class OpenLcbCanFrame implements CanFrame {
     init(nodeAlias);
     setOpenLcbMTI(MessageTypeIdentifier.VerifiedNodeId.mti());
     length=6;
-    byte[] val = nid.getContents();
-    data[0] = val[0];
-    data[1] = val[1];
-    data[2] = val[2];
-    data[3] = val[3];
-    data[4] = val[4];
-    data[5] = val[5];
+    Utilities.HostToNetworkUint48(data, 0, nid.toLong());
   }
 
   boolean isIdentifyConsumers() {
@@ -348,15 +354,7 @@ public class OpenLcbCanFrame implements CanFrame {
 
   void loadFromEid(EventID eid) {
     length = 8;
-    byte[] val = eid.getContents();
-    data[0] = val[0];
-    data[1] = val[1];
-    data[2] = val[2];
-    data[3] = val[3];
-    data[4] = val[4];
-    data[5] = val[5];
-    data[6] = val[6];
-    data[7] = val[7];
+    Utilities.HostToNetworkUint64(data, 0, eid.toLong());
   }
   
   // general, but not efficient
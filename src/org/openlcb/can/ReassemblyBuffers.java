@@ -0,0 +1,231 @@
+package org.openlcb.can;
+
+import java.util.logging.Logger;
+
+/**
+ * Holds the partial payloads of multi-frame messages (addressed messages, datagrams, stream
+ * data) while they are being reassembled from CAN frames.
+ * <p>
+ * Entries are keyed by a long that packs the kind of the message, the 12-bit source alias and
+ * the 12-bit destination alias, so no objects are needed for lookups. The payload is
+ * accumulated in a growable byte array; entries and their arrays are recycled through a pool.
+ * <p>
+ * Memory is bounded: there are at most a fixed number of entries, each entry is limited in
+ * length, and entries that have not been touched for a timeout are discarded (e.g. when the
+ * source node rebooted in the middle of a datagram). When the table is full, the least recently
+ * updated entry is evicted.
+ * <p>
+ * Not thread safe; the owner (MessageBuilder) is called from a single frame input thread.
+ */
+class ReassemblyBuffers {
+    private final static Logger logger = Logger.getLogger(ReassemblyBuffers.class.getName());
+
+    /// Default for the maximum number of messages that can be reassembled at the same time.
+    static final int DEFAULT_MAX_ENTRIES = 64;
+    /// Default for how long an entry may be idle before it is discarded, in milliseconds.
+    static final long DEFAULT_TIMEOUT_MSEC = 3000;
+    /// Longest payload an entry may accumulate.
+    static final int MAX_LENGTH = 4096;
+    /// Arrays grown above this size are not kept in the pool.
+    static final int POOLED_CAPACITY_LIMIT = 256;
+    private static final int INITIAL_CAPACITY = 16;
+
+    /// Key kinds, stored above the two aliases and the 8-bit extra field.
+    static final long KIND_ADDRESSED = 1L << 40;
+    static final long KIND_DATAGRAM = 2L << 40;
+    static final long KIND_STREAM = 3L << 40;
+
+    /**
+     * Computes the lookup key of an entry.
+     * @param kind one of the KIND_ constants
+     * @param extra kind-dependent discriminator (MTI for addressed messages, destination stream
+     *              ID for streams), at most 16 bits
+     * @param srcAlias 12-bit source alias
+     * @param dstAlias 12-bit destination alias
+     * @return key
+     */
+    static long key(long kind, int extra, int srcAlias, int dstAlias) {
+        return kind | ((long) (extra & 0xFFFF) << 24) | ((srcAlias & 0xFFF) << 12) | (dstAlias
+                & 0xFFF);
+    }
+
+    /**
+     * Reassembly state of one message.
+     */
+    static final class Entry {
+        long key;
+        byte[] data = new byte[INITIAL_CAPACITY];
+        int length;
+        long lastUpdate;
+        /// For streams: the negotiated buffer size, or 0 if unknown.
+        int window;
+        /// Set when the entry exceeded MAX_LENGTH; the message will be dropped.
+        boolean overflow;
+
+        private void ensureCapacity(int needed) {
+            if (needed <= data.length) return;
+            int cap = data.length;
+            while (cap < needed) cap <<= 1;
+            byte[] n = new byte[cap];
+            System.arraycopy(data, 0, n, 0, length);
+            data = n;
+        }
+
+        /**
+         * Appends the payload of a CAN frame.
+         * @param f frame
+         * @param from index of the first frame data byte to append
+         */
+        void append(CanFrame f, int from) {
+            int n = f.getNumDataElements() - from;
+            if (n <= 0) return;
+            if (length + n > MAX_LENGTH) {
+                overflow = true;
+                return;
+            }
+            ensureCapacity(length + n);
+            for (int i = 0; i < n; ++i) {
+                data[length++] = (byte) f.getElement(from + i);
+            }
+        }
+
+        /// @return a copy of the accumulated bytes.
+        byte[] toByteArray() {
+            byte[] r = new byte[length];
+            System.arraycopy(data, 0, r, 0, length);
+            return r;
+        }
+
+        /// @return a copy of the accumulated bytes as unsigned values.
+        int[] toIntArray() {
+            int[] r = new int[length];
+            for (int i = 0; i < length; ++i) {
+                r[i] = data[i] & 0xff;
+            }
+            return r;
+        }
+    }
+
+    private final int maxEntries;
+    private final long timeoutMsec;
+    /// Entries currently in use; the first `count` elements are valid.
+    private final Entry[] active;
+    private int count = 0;
+    /// Recycled entries; the first `freeCount` elements are valid.
+    private final Entry[] free;
+    private int freeCount = 0;
+
+    ReassemblyBuffers() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TIMEOUT_MSEC);
+    }
+
+    ReassemblyBuffers(int maxEntries, long timeoutMsec) {
+        this.maxEntries = maxEntries;
+        this.timeoutMsec = timeoutMsec;
+        active = new Entry[maxEntries];
+        free = new Entry[maxEntries];
+    }
+
+    /// @return number of messages currently being reassembled.
+    int size() {
+        return count;
+    }
+
+    /**
+     * Looks up an entry.
+     * @param key key of the entry
+     * @return the entry, or null if there is no reassembly in progress for this key.
+     */
+    Entry find(long key) {
+        for (int i = 0; i < count; ++i) {
+            if (active[i].key == key) return active[i];
+        }
+        return null;
+    }
+
+    /**
+     * Starts a new reassembly, discarding any existing partial data for the same key.
+     * @param key key of the entry
+     * @param now current time in milliseconds
+     * @return an empty entry
+     */
+    Entry start(long key, long now) {
+        Entry e = find(key);
+        if (e != null) {
+            logger.fine("Discarding incomplete message for key " + Long.toHexString(key));
+            reset(e, now);
+            return e;
+        }
+        expire(now);
+        if (count >= maxEntries) {
+            Entry oldest = active[0];
+            for (int i = 1; i < count; ++i) {
+                if (active[i].lastUpdate < oldest.lastUpdate) oldest = active[i];
+            }
+            logger.warning("Too many messages in reassembly; discarding key " + Long.toHexString
+                    (oldest.key));
+            release(oldest);
+        }
+        e = freeCount > 0 ? free[--freeCount] : new Entry();
+        e.key = key;
+        e.window = 0;
+        reset(e, now);
+        active[count++] = e;
+        return e;
+    }
+
+    /**
+     * Looks up an entry, creating an empty one if it does not exist yet.
+     * @param key key of the entry
+     * @param now current time in milliseconds
+     * @return the entry
+     */
+    Entry findOrStart(long key, long now) {
+        Entry e = find(key);
+        if (e == null) {
+            return start(key, now);
+        }
+        e.lastUpdate = now;
+        return e;
+    }
+
+    private static void reset(Entry e, long now) {
+        e.length = 0;
+        e.overflow = false;
+        e.lastUpdate = now;
+    }
+
+    /**
+     * Finishes an entry and returns it to the pool. The entry must not be used afterwards.
+     * @param e entry to release
+     */
+    void release(Entry e) {
+        for (int i = 0; i < count; ++i) {
+            if (active[i] == e) {
+                active[i] = active[--count];
+                active[count] = null;
+                if (e.data.length > POOLED_CAPACITY_LIMIT) {
+                    e.data = new byte[INITIAL_CAPACITY];
+                }
+                if (freeCount < free.length) {
+                    free[freeCount++] = e;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Discards all entries that have not been updated within the timeout.
+     * @param now current time in milliseconds
+     */
+    void expire(long now) {
+        for (int i = count - 1; i >= 0; --i) {
+            if (now - active[i].lastUpdate > timeoutMsec) {
+                logger.fine("Expiring incomplete message for key " + Long.toHexString(active[i]
+                        .key));
+                release(active[i]);
+            }
+        }
+    }
+}
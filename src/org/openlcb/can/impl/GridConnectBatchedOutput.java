@@ -0,0 +1,335 @@
+package org.openlcb.can.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.CanFrameListener;
+
+/**
+ * Converts the sent CAN frames to gridconnect protocol and writes them to an output stream,
+ * coalescing consecutive frames into as few writes as possible.
+ * <p>
+ * This is an alternative to {@link GridConnectOutput}. The caller's thread encodes the frame
+ * directly into a pre-sized byte ring (without going through String.format) and returns. A
+ * dedicated writer thread drains the ring into the output stream and flushes the stream only when
+ * the ring becomes empty, or when data has been waiting unflushed for longer than the configured
+ * deadline. A 64-byte datagram therefore typically results in a single write to the socket
+ * instead of 10+ separate flushed writes.
+ * <p>
+ * If the ring is full, {@link #send} blocks until the writer thread has made space.
+ */
+public class GridConnectBatchedOutput implements CanFrameListener {
+    private final static Logger logger = Logger.getLogger(GridConnectBatchedOutput.class.getName());
+    /// Default size of the byte ring.
+    public static final int DEFAULT_RING_SIZE = 16384;
+    /// Default maximum time data is allowed to wait unflushed, in microseconds.
+    public static final long DEFAULT_FLUSH_DEADLINE_MICROS = 1000;
+    /// Longest possible encoding of a frame: ":X" + 8 header + "N" + 16 data + ";\n".
+    static final int MAX_FRAME_LENGTH = 29;
+
+    private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+            'A', 'B', 'C', 'D', 'E', 'F'};
+
+    private final OutputStream output;
+    private final Runnable onError;
+    private final long flushDeadlineNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    /// Circular buffer of encoded frames. Guarded by lock.
+    private final byte[] ring;
+    /// Index of the first valid byte in the ring. Guarded by lock.
+    private int head = 0;
+    /// Number of valid bytes in the ring. Guarded by lock.
+    private int count = 0;
+    /// Number of frames in the ring. Guarded by lock.
+    private int queuedFrames = 0;
+    /// True after an IO error or dispose; frames sent afterwards are dropped. Guarded by lock.
+    private boolean closed = false;
+    /// Scratch space for encoding one frame. Guarded by lock.
+    private final byte[] encodeBuffer = new byte[MAX_FRAME_LENGTH];
+    /// Writer thread's private copy of the ring contents.
+    private final byte[] drainBuffer;
+    private final Thread writerThread;
+
+    // Statistics. Written by the writer thread, or under the lock.
+    private volatile long framesSent = 0;
+    private volatile long flushCount = 0;
+    private volatile int maxFramesPerFlush = 0;
+    private volatile int maxQueuedFrames = 0;
+
+    /**
+     * Creates the object used for rendering CAN frames to GridConnect format using default
+     * settings. Starts the writer thread.
+     * @param output the (raw) output socket to send the gridconnect data to.
+     * @param onError will be called when the output experiences an IO error. May be null.
+     */
+    public GridConnectBatchedOutput(OutputStream output, Runnable onError) {
+        this(output, onError, DEFAULT_RING_SIZE, DEFAULT_FLUSH_DEADLINE_MICROS);
+    }
+
+    /**
+     * Creates the object used for rendering CAN frames to GridConnect format. Starts the writer
+     * thread.
+     * @param output the (raw) output socket to send the gridconnect data to.
+     * @param onError will be called when the output experiences an IO error. May be null.
+     * @param ringSize how many bytes of encoded frames may be waiting for the writer thread.
+     * @param flushDeadlineMicros how long data may stay in the output buffer unflushed while
+     *                            more frames keep arriving, in microseconds.
+     */
+    public GridConnectBatchedOutput(OutputStream output, Runnable onError, int ringSize,
+                                    long flushDeadlineMicros) {
+        if (ringSize < MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Ring size too small: " + ringSize);
+        }
+        this.output = new BufferedOutputStream(output, ringSize);
+        this.onError = onError;
+        this.flushDeadlineNanos = TimeUnit.MICROSECONDS.toNanos(flushDeadlineMicros);
+        this.ring = new byte[ringSize];
+        this.drainBuffer = new byte[ringSize];
+        writerThread = new Thread("openlcb-gc-output") {
+            public void run() {
+                threadBody();
+            }
+        };
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Renders a frame in gridconnect format into a byte array.
+     * @param frame the frame to render
+     * @param dst destination array; must have at least MAX_FRAME_LENGTH bytes after offset.
+     * @param offset where to start writing in dst
+     * @return number of bytes written, including the terminating newline.
+     */
+    static int encode(CanFrame frame, byte[] dst, int offset) {
+        int p = offset;
+        dst[p++] = ':';
+        int header = frame.getHeader();
+        int digits;
+        if (frame.isExtended()) {
+            dst[p++] = 'X';
+            digits = 8;
+        } else {
+            dst[p++] = 'S';
+            digits = 3;
+        }
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            dst[p++] = HEX_DIGITS[(header >>> shift) & 0xf];
+        }
+        dst[p++] = (byte) (frame.isRtr() ? 'R' : 'N');
+        int len = frame.getNumDataElements();
+        if (len > 8) {
+            logger.warning("Output frame with too many data elements: " + Integer.toString(len));
+            len = 8;
+        }
+        for (int i = 0; i < len; ++i) {
+            int d = frame.getElement(i);
+            dst[p++] = HEX_DIGITS[(d >> 4) & 0xf];
+            dst[p++] = HEX_DIGITS[d & 0xf];
+        }
+        dst[p++] = ';';
+        dst[p++] = '\n';
+        return p - offset;
+    }
+
+    @Override
+    public void send(CanFrame frame) {
+        lock.lock();
+        try {
+            int len = encode(frame, encodeBuffer, 0);
+            while (!closed && ring.length - count < len) {
+                notFull.awaitUninterruptibly();
+            }
+            if (closed) {
+                return;
+            }
+            int tail = (head + count) % ring.length;
+            int first = Math.min(len, ring.length - tail);
+            System.arraycopy(encodeBuffer, 0, ring, tail, first);
+            System.arraycopy(encodeBuffer, first, ring, 0, len - first);
+            count += len;
+            ++queuedFrames;
+            if (queuedFrames > maxQueuedFrames) {
+                maxQueuedFrames = queuedFrames;
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void threadBody() {
+        // Number of frames written to the output since the last flush.
+        int unflushedFrames = 0;
+        long firstUnflushedNanos = 0;
+        try {
+            while (true) {
+                int len;
+                int frames;
+                lock.lock();
+                try {
+                    while (count == 0 && !closed) {
+                        if (unflushedFrames > 0) {
+                            break;
+                        }
+                        notEmpty.await();
+                    }
+                    if (count == 0 && closed && unflushedFrames == 0) {
+                        return;
+                    }
+                    // Copies out everything in the ring (in up to two segments).
+                    len = count;
+                    frames = queuedFrames;
+                    int first = Math.min(len, ring.length - head);
+                    System.arraycopy(ring, head, drainBuffer, 0, first);
+                    System.arraycopy(ring, 0, drainBuffer, first, len - first);
+                    head = (head + len) % ring.length;
+                    count = 0;
+                    queuedFrames = 0;
+                    notFull.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                if (len > 0) {
+                    if (unflushedFrames == 0) {
+                        firstUnflushedNanos = System.nanoTime();
+                    }
+                    output.write(drainBuffer, 0, len);
+                    unflushedFrames += frames;
+                    framesSent += frames;
+                }
+                if (isRingEmpty() || System.nanoTime() - firstUnflushedNanos >=
+                        flushDeadlineNanos) {
+                    output.flush();
+                    recordFlush(unflushedFrames);
+                    unflushedFrames = 0;
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("Error writing to gridconnect output: " + e.toString());
+            try {
+                output.close();
+            } catch (IOException e1) {
+                logger.fine("Error closing gridconnect output: " + e1.toString());
+            }
+            markClosed();
+            if (onError != null) {
+                onError.run();
+            }
+        } catch (InterruptedException e) {
+            markClosed();
+        }
+    }
+
+    private boolean isRingEmpty() {
+        lock.lock();
+        try {
+            return count == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void markClosed() {
+        lock.lock();
+        try {
+            closed = true;
+            count = 0;
+            queuedFrames = 0;
+            notFull.signalAll();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recordFlush(int frames) {
+        ++flushCount;
+        if (frames > maxFramesPerFlush) {
+            maxFramesPerFlush = frames;
+        }
+    }
+
+    /**
+     * Stops the writer thread after the frames already in the ring are written out. Frames sent
+     * after this call are dropped.
+     */
+    public void dispose() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return total number of frames written to the output stream.
+     */
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    /**
+     * @return how many times the output stream was flushed.
+     */
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    /**
+     * @return average number of frames sent per flush of the output stream.
+     */
+    public double getAverageFramesPerFlush() {
+        long flushes = flushCount;
+        return flushes == 0 ? 0 : ((double) framesSent) / flushes;
+    }
+
+    /**
+     * @return the largest number of frames sent by a single flush of the output stream.
+     */
+    public int getMaxFramesPerFlush() {
+        return maxFramesPerFlush;
+    }
+
+    /**
+     * @return how many frames are currently waiting in the ring for the writer thread.
+     */
+    public int getQueuedFrames() {
+        lock.lock();
+        try {
+            return queuedFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return how many bytes are currently waiting in the ring for the writer thread.
+     */
+    public int getQueuedBytes() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the largest number of frames that were waiting in the ring at the same time.
+     */
+    public int getMaxQueuedFrames() {
+        return maxQueuedFrames;
+    }
+}
@@ -0,0 +1,279 @@
+package org.openlcb.can.impl;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.logging.Logger;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.CanFrameListener;
+
+/**
+ * Parses a byte channel according to the GridConnect protocol and forwards a set of CAN frames.
+ * <p>
+ * This is a drop-in alternative to {@link GridConnectInput} that reads from a
+ * {@link ReadableByteChannel} into a direct buffer and decodes the characters using a lookup
+ * table. No objects are allocated per byte or per frame: every decoded frame is written into
+ * the same reusable {@link CanFrame} object, which is then handed to the listener. The frame
+ * object is only valid for the duration of the {@link CanFrameListener#send} call; listeners that
+ * need to keep the frame must copy it (e.g. using {@code new OpenLcbCanFrame(frame)}).
+ */
+public class GridConnectChannelInput {
+    private final static Logger logger = Logger.getLogger(GridConnectChannelInput.class.getName());
+    /// Size of the direct buffer the channel is read into.
+    static final int BUFFER_SIZE = 4096;
+    /// Maximum number of payload bytes in a CAN frame.
+    static final int MAX_DATA_LENGTH = 8;
+
+    /// Maps an ASCII character to its hex digit value, or -1 if it is not a hex digit.
+    private static final byte[] HEX_VALUE = new byte[256];
+
+    static {
+        for (int i = 0; i < HEX_VALUE.length; ++i) {
+            HEX_VALUE[i] = -1;
+        }
+        for (int i = 0; i < 10; ++i) {
+            HEX_VALUE['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; ++i) {
+            HEX_VALUE['A' + i] = (byte) (10 + i);
+            HEX_VALUE['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    private static final int STATE_NOPACKET = 0;
+    private static final int STATE_EXTENDED = 1;
+    private static final int STATE_HEADER = 2;
+    private static final int STATE_BODYHI_OR_END = 3;
+    private static final int STATE_BODYLO = 4;
+
+    private final ReadableByteChannel input;
+    private final CanFrameListener listener;
+    private final Runnable onError;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ReusableCanFrame frame = new ReusableCanFrame();
+
+    private int state = STATE_NOPACKET;
+    private int currData;
+
+    /**
+     * Creates the gridconnect input parser. Starts the parsing thread.
+     *
+     * @param input the channel (usually a blocking SocketChannel) to read from
+     * @param listener the parsed CAN frames will be forwarded to this listener
+     * @param onError will be called when an IO error happens on the input thread. May be null.
+     */
+    public GridConnectChannelInput(ReadableByteChannel input, CanFrameListener listener,
+                                   Runnable onError) {
+        this(input, listener, onError, true);
+    }
+
+    /**
+     * Creates the gridconnect input parser.
+     *
+     * @param input the channel to read from; may be null if only {@link #process} will be used.
+     * @param listener the parsed CAN frames will be forwarded to this listener
+     * @param onError will be called when an IO error happens on the input thread. May be null.
+     * @param startThread if true, starts the thread reading the channel.
+     */
+    GridConnectChannelInput(ReadableByteChannel input, CanFrameListener listener,
+                            Runnable onError, boolean startThread) {
+        this.input = input;
+        this.listener = listener;
+        this.onError = onError;
+        if (startThread) {
+            new Thread("openlcb-gc-input") {
+                public void run() {
+                    threadBody();
+                }
+            }.start();
+        }
+    }
+
+    private void threadBody() {
+        try {
+            while (true) {
+                // Called through Buffer: the ByteBuffer overrides of JDK 9+ do not exist on Java 8.
+                ((Buffer) buffer).clear();
+                if (input.read(buffer) < 0) {
+                    throw new IOException("end of stream");
+                }
+                ((Buffer) buffer).flip();
+                process(buffer);
+            }
+        } catch (IOException e) {
+            logger.info("Error reading from gridconnect port " + e.toString());
+            try {
+                input.close();
+            } catch (IOException e1) {
+                logger.fine("Error closing from gridconnect port " + e1.toString());
+            }
+            if (onError != null) {
+                onError.run();
+            }
+        }
+    }
+
+    /**
+     * Parses all remaining bytes in a buffer. Partial frames at the end of the buffer are kept
+     * in the parser state and continued with the next call.
+     *
+     * @param b buffer to consume; its position will be advanced to the limit.
+     */
+    void process(ByteBuffer b) {
+        int pos = b.position();
+        final int limit = b.limit();
+        while (pos < limit) {
+            int c = b.get(pos) & 0xff;
+            if (consume(c)) {
+                ++pos;
+            }
+        }
+        ((Buffer) b).position(pos);
+    }
+
+    /**
+     * Runs one step of the parser state machine.
+     *
+     * @param c next input character
+     * @return true if the character was consumed, false if it needs to be offered again in the
+     * new state.
+     */
+    private boolean consume(int c) {
+        switch (state) {
+            case STATE_NOPACKET: {
+                if (c == ':') {
+                    state = STATE_EXTENDED;
+                }
+                return true;
+            }
+            case STATE_EXTENDED: {
+                if (c == 'X') {
+                    frame.isExtended = true;
+                } else if (c == 'S') {
+                    frame.isExtended = false;
+                } else {
+                    // Unknown message type character.
+                    logger.fine("Unknown gridconnect type character: " + c);
+                    state = STATE_NOPACKET;
+                    return false;
+                }
+                frame.header = 0;
+                state = STATE_HEADER;
+                return true;
+            }
+            case STATE_HEADER: {
+                int dvalue = HEX_VALUE[c];
+                if (dvalue >= 0) {
+                    frame.header = (frame.header << 4) | dvalue;
+                    return true;
+                }
+                if (c == 'N') {
+                    frame.isRtr = false;
+                } else if (c == 'R') {
+                    frame.isRtr = true;
+                } else {
+                    // Unknown message format.
+                    logger.fine("Unknown gridconnect remote character: " + c);
+                    state = STATE_NOPACKET;
+                    return false;
+                }
+                frame.len = 0;
+                state = STATE_BODYHI_OR_END;
+                return true;
+            }
+            case STATE_BODYHI_OR_END: {
+                if (c == ';') {
+                    // End of frame.
+                    state = STATE_NOPACKET;
+                    listener.send(frame);
+                    return true;
+                }
+                int dvalue = HEX_VALUE[c];
+                if (dvalue < 0 || frame.len >= MAX_DATA_LENGTH) {
+                    logger.fine("Unexpected gridconnect payload character: " + c);
+                    state = STATE_NOPACKET;
+                    return false;
+                }
+                currData = dvalue << 4;
+                state = STATE_BODYLO;
+                return true;
+            }
+            case STATE_BODYLO: {
+                int dvalue = HEX_VALUE[c];
+                if (dvalue < 0) {
+                    logger.fine("Unexpected gridconnect payload character: " + c);
+                    state = STATE_NOPACKET;
+                    return false;
+                }
+                frame.data[frame.len++] = (byte) (currData | dvalue);
+                state = STATE_BODYHI_OR_END;
+                return true;
+            }
+            default:
+                state = STATE_NOPACKET;
+                return true;
+        }
+    }
+
+    /**
+     * CAN frame that is overwritten in place by the parser for every incoming frame.
+     */
+    static class ReusableCanFrame implements CanFrame {
+        private boolean isExtended;
+        private boolean isRtr;
+        private int header;
+        private int len;
+        private final byte[] data = new byte[MAX_DATA_LENGTH];
+
+        @Override
+        public int getHeader() {
+            return header;
+        }
+
+        @Override
+        public boolean isExtended() {
+            return isExtended;
+        }
+
+        @Override
+        public boolean isRtr() {
+            return isRtr;
+        }
+
+        @Override
+        public int getNumDataElements() {
+            return len;
+        }
+
+        @Override
+        public int getElement(int n) {
+            return data[n] & 0xff;
+        }
+
+        @Override
+        public long bodyAsLong() {
+            long retval = 0;
+            for (int i = 0; i < len; i++) {
+                retval = retval << 8 | (data[i] & 0xFF);
+            }
+            return retval;
+        }
+
+        @Override
+        public long dataAsLong() {
+            long retval = 0;
+            for (int i = 2; i < len; i++) {
+                retval = retval << 8 | (data[i] & 0xFF);
+            }
+            return retval;
+        }
+
+        @Override
+        public byte[] getData() {
+            byte[] b = new byte[len];
+            System.arraycopy(data, 0, b, 0, len);
+            return b;
+        }
+    }
+}
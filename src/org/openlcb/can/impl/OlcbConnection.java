@@ -5,7 +5,9 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -30,7 +32,14 @@ public class OlcbConnection {
     private String hostName;
     private int portNumber;
     private GridConnectInput input;
-    private GridConnectOutput output;
+    private GridConnectChannelInput channelInput;
+    /// If true, the incoming data is parsed using the NIO GridConnectChannelInput.
+    private boolean useChannelInput = false;
+    private CanFrameListener output;
+    /// Non-null if the output is rendered by the batching writer.
+    private GridConnectBatchedOutput batchedOutput;
+    /// If true, the outgoing frames are written using the GridConnectBatchedOutput.
+    private boolean useBatchedOutput = false;
     /// Hub for received frames (from network).
     private CanFrameHub inputHub;
     /// Hub for sent frames (to network).
@@ -48,6 +57,33 @@ public class OlcbConnection {
         this.nodeId = nodeId;
     }
 
+    /**
+     * Selects the parser for the incoming gridconnect data. Must be called before
+     * {@link #startConnect()}.
+     * @param useChannelInput if true, reads the socket using a {@link GridConnectChannelInput},
+     *                        which does not allocate memory per frame; otherwise uses the
+     *                        character-based {@link GridConnectInput}. The channel input
+     *                        reuses one frame object for all incoming frames, so listeners
+     *                        added to the input hub must copy frames they want to keep.
+     */
+    public synchronized void setUseChannelInput(boolean useChannelInput) {
+        this.useChannelInput = useChannelInput;
+    }
+
+    /**
+     * Selects the writer for the outgoing gridconnect data. Must be called before
+     * {@link #startConnect()}.
+     * @param useBatchedOutput if true, writes the socket using a
+     *                         {@link GridConnectBatchedOutput}, which coalesces frames into
+     *                         fewer writes on a dedicated thread; otherwise uses the synchronous
+     *                         {@link GridConnectOutput}. The batched output also makes the
+     *                         interface reuse the outgoing frame objects, so listeners added to
+     *                         the output hub must copy frames they want to keep.
+     */
+    public synchronized void setUseBatchedOutput(boolean useBatchedOutput) {
+        this.useBatchedOutput = useBatchedOutput;
+    }
+
     public void startConnect() {
         new Thread("openlcb-connect") {
             public void run() {
@@ -74,25 +110,41 @@ public class OlcbConnection {
         this.outputHub = new CanFrameHub();
         listenerProxy.onConnectionPending();
         listenerProxy.onStatusChange("Connecting...");
-        BufferedReader reader;
+        BufferedReader reader = null;
+        SocketChannel channel = null;
         OutputStream outputStream;
         try {
-            socket = new Socket(hostName, portNumber);
+            if (useChannelInput) {
+                channel = SocketChannel.open(new InetSocketAddress(hostName, portNumber));
+                socket = channel.socket();
+            } else {
+                socket = new Socket(hostName, portNumber);
+                reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(),"ISO-8859-1"));
+            }
             socket.setTcpNoDelay(true);
-            reader = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream(),"ISO-8859-1"));
             outputStream = socket.getOutputStream();
         } catch (IOException e) {
             listenerProxy.onStatusChange("Connection failed: " + e.toString());
             listenerProxy.onDisconnect();
             return;
         }
-        input = new GridConnectInput(reader, inputHub, mOnError);
-        output = new GridConnectOutput(outputStream, mOnError);
+        if (channel != null) {
+            channelInput = new GridConnectChannelInput(channel, inputHub, mOnError);
+        } else {
+            input = new GridConnectInput(reader, inputHub, mOnError);
+        }
+        if (useBatchedOutput) {
+            batchedOutput = new GridConnectBatchedOutput(outputStream, mOnError);
+            output = batchedOutput;
+        } else {
+            output = new GridConnectOutput(outputStream, mOnError);
+        }
         outputHub.addEntry(output);
 
         // Creates the actual OpenLCB objects and wires up with the interface.
         canInterface = new CanInterface(nodeId, outputHub);
+        canInterface.setReuseOutputFrames(useBatchedOutput);
         inputHub.addEntry(canInterface.frameInput());
         canInterface.addStartListener(new Connection.ConnectionListener() {
             @Override
@@ -113,7 +165,12 @@ public class OlcbConnection {
             outputHub = null;
         }
         input = null;
+        channelInput = null;
         output = null;
+        if (batchedOutput != null) {
+            batchedOutput.dispose();
+            batchedOutput = null;
+        }
 
         if (socket == null) return;
 
@@ -152,8 +209,12 @@ public class OlcbConnection {
      * other nodes).
      * <p>
      * This can be used for two purposes:
-     * - get a copy of all frames arriving from the network;
+     * - see all frames arriving from the network;
      * - inject fake messages as if they were coming from the network (not super useful).
+     * <p>
+     * With {@link #setUseChannelInput} the frame objects are reused for the next frame once
+     * the listeners return; a listener that keeps a frame must copy it, e.g. with
+     * {@code new OpenLcbCanFrame(frame)}.
      */
     public CanFrameHub getInputHub() {
         return inputHub;
@@ -166,6 +227,9 @@ public class OlcbConnection {
      * This can be used for two purposes:
      * - send packets to the network
      * - get a copy of (aka sniff) all outgoing packets before they are sent.
+     * <p>
+     * With {@link #setUseBatchedOutput} the outgoing frame objects are reused as well; a
+     * listener that keeps a frame must copy it.
      */
     public CanFrameHub getOutputHub() {
         return outputHub;
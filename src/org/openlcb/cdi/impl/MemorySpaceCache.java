@@ -39,6 +39,8 @@ public class MemorySpaceCache {
     private Queue<Range> rangesToLoad = new LinkedList<>();
     private final ReadWriteAccess access;
     private final String remoteNodeString; // used for error printouts
+    // Set when a stream read failed; the rest is read in datagrams.
+    private boolean streamReadFailed = false;
 
 
     public MemorySpaceCache(OlcbInterface connection, final NodeID remoteNode, int space) {
@@ -56,6 +58,17 @@ public class MemorySpaceCache {
                     .McsReadHandler handler) {
                 mcs.requestRead(remoteNode, space, address, length, handler);
             }
+
+            @Override
+            public boolean supportsStreamRead() {
+                return mcs.isStreamReadSupported(remoteNode);
+            }
+
+            @Override
+            public void doReadStream(long address, int space, long length,
+                                     MemoryConfigurationService.McsReadHandler handler) {
+                mcs.requestReadStream(remoteNode, space, address, length, handler);
+            }
         };
         this.space = space;
     }
@@ -221,14 +234,22 @@ public class MemorySpaceCache {
             continueLoading();
             return;
         }
-        if (count > 64) {
+        final boolean stream = count > 64 && !streamReadFailed && access.supportsStreamRead();
+        if (count > 64 && !stream) {
             count = 64;
         }
         final int fcount = count;
-        access.doRead(currentRangeNextOffset, space, count,
+        MemoryConfigurationService.McsReadHandler handler =
                 new MemoryConfigurationService.McsReadHandler() {
                     @Override
                     public void handleFailure(int code) {
+                        if (stream) {
+                            logger.fine("Stream read failed, reading with datagrams: dest " +
+                                    remoteNodeString + " error 0x" + Integer.toHexString(code));
+                            streamReadFailed = true;
+                            loadRange();
+                            return;
+                        }
                         logger.warning("Error reading memory space cache: dest " + remoteNodeString +
                                 "space" + space + " offset " + currentRangeNextOffset + " error " +
                                 "0x" + Integer.toHexString(code));
@@ -279,7 +300,12 @@ public class MemorySpaceCache {
                             loadRange();
                         }
                     }
-                });
+                };
+        if (stream) {
+            access.doReadStream(currentRangeNextOffset, space, count, handler);
+        } else {
+            access.doRead(currentRangeNextOffset, space, count, handler);
+        }
     }
 
     private Map.Entry<Range, byte[]> getCacheForRange(long offset, int len) {
@@ -20,4 +20,16 @@ public class ReadWriteAccess {
             .McsReadHandler handler) {
         logger.log(Level.FINE, "Read from {0} in space {1}", new Object[]{address, space});
     }
+
+    /**
+     * @return true if long reads should use {@link #doReadStream}.
+     */
+    public boolean supportsStreamRead() {
+        return false;
+    }
+
+    public void doReadStream(long address, int space, long length, final
+                             MemoryConfigurationService.McsReadHandler handler) {
+        logger.log(Level.FINE, "Stream read from {0} in space {1}", new Object[]{address, space});
+    }
 }
@@ -14,6 +14,9 @@ import org.openlcb.implementations.*;
  * This first implementation reads the entire data before providing the Reader
  * by call back.
  *
+ * Nodes that support streams are read with a single stream read; if that fails,
+ * or the node does not support streams, the CDI is read in 64-byte datagrams.
+ *
  * @author	Bob Jacobsen   Copyright (C) 2012
  * @version	$Revision$
  */
@@ -50,7 +53,47 @@ public class CdiMemConfigReader  {
         this.retval = retval;
         nextAddress = 0;
         buf = new StringBuffer();
-        nextRequest();
+        if (service.isStreamReadSupported(node)) {
+            streamRequest();
+        } else {
+            nextRequest();
+        }
+    }
+
+    void streamRequest() {
+        if (retval != null) {
+            retval.progressNotify(0, -1);
+        }
+        service.requestReadStream(node, space, 0, MemoryConfigurationService.STREAM_READ_TO_END,
+                new MemoryConfigurationService.McsReadHandler() {
+                    @Override
+                    public void handleFailure(int code) {
+                        logger.log(Level.FINE, "Stream read of CDI failed: {0}, reading with " +
+                                "datagrams", Integer.toHexString(code));
+                        nextAddress = 0;
+                        buf = new StringBuffer();
+                        nextRequest();
+                    }
+
+                    @Override
+                    public void handleReadData(NodeID dest, int space, long address, byte[]
+                            data) {
+                        for (int i = 0; i < data.length; i++) {
+                            if (data[i] == 0) {
+                                done();
+                                return;
+                            }
+                            buf.append((char) data[i]);
+                        }
+                        if (data.length == 0) {
+                            done();
+                            return;
+                        }
+                        // no terminator yet, get the rest with datagrams
+                        nextAddress = data.length;
+                        nextRequest();
+                    }
+                });
     }
     
     void nextRequest() {
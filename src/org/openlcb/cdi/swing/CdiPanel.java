@@ -1,6 +1,7 @@
 package org.openlcb.cdi.swing;
 
 import org.openlcb.EventID;
+import org.openlcb.Scheduler;
 import org.openlcb.cdi.CdiRep;
 import org.openlcb.cdi.cmd.BackupConfig;
 import org.openlcb.cdi.cmd.RestoreConfig;
@@ -41,8 +42,6 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -117,7 +116,6 @@ public class CdiPanel extends JPanel {
 
     public CdiPanel () {
         super();
-        tabColorTimer = new Timer("OpenLCB CDI Reader Tab Color Timer");
     }
 
     /**
@@ -129,7 +127,7 @@ public class CdiPanel extends JPanel {
             task.run();
         }
         cleanupTasks.clear();
-        tabColorTimer.cancel(); 
+        released = true;
     }
 
     /**
@@ -423,19 +421,23 @@ public class CdiPanel extends JPanel {
     JButton moreButton;
     SearchPane searchPane = new SearchPane();
 
-    private Timer tabColorTimer;
-    long lastColorRefreshNeeded = 0; // guarded by tabColorTimer
-    long lastColorRefreshDone = Long.MAX_VALUE; // guarded by tabColorTimer
+    private final Object tabColorLock = new Object();
+    long lastColorRefreshNeeded = 0; // guarded by tabColorLock
+    long lastColorRefreshDone = Long.MAX_VALUE; // guarded by tabColorLock
+    /// Set by release(); stops the pending tab color refreshes.
+    private volatile boolean released = false;
 
     private void notifyTabColorRefresh() {
         long currentTick;
-        synchronized (tabColorTimer) {
+        synchronized (tabColorLock) {
             currentTick = ++lastColorRefreshNeeded;
         }
         final long actualRequest = currentTick;
-        tabColorTimer.schedule(new TimerTask() {
+        if (released) return;
+        Scheduler.getDefault().schedule(new Runnable() {
             @Override
             public void run() {
+                if (released) return;
                 EventQueue.invokeLater(() -> performTabColorRefresh(actualRequest));
             }
         }, 500);
@@ -507,7 +509,7 @@ public class CdiPanel extends JPanel {
         // add glue at bottom
         contentPanel.add(Box.createVerticalGlue());
         repack();
-        synchronized (tabColorTimer) {
+        synchronized (tabColorLock) {
             lastColorRefreshDone = 0;
         }
         notifyTabColorRefresh();
@@ -561,7 +563,7 @@ public class CdiPanel extends JPanel {
     }
 
     private void performTabColorRefresh(long requestTick) {
-        synchronized (tabColorTimer) {
+        synchronized (tabColorLock) {
             if (lastColorRefreshDone >= requestTick) return; // nothing to do
             lastColorRefreshDone = lastColorRefreshNeeded;
         }
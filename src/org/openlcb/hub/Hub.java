@@ -18,8 +18,8 @@ import java.util.logging.Logger;
  * <p>
  * Current threading model does all the sending from a
  * a single thread.  If this is observed to back up &amp;
- * halt all flow, individual transmit queues and threads
- * may be needed.
+ * halt all flow, use {@link NioHub} instead, which has
+ * individual transmit queues per connection.
  *
  * @author  Bob Jacobsen   Copyright 2012
  * @version $Revision: 17977 $
@@ -59,7 +59,8 @@ public class Hub {
     }
     
     BlockingQueue<Memo> queue = new LinkedBlockingQueue<Memo>();
-    ArrayList<Forwarding> threads = new ArrayList<Forwarding>();
+    // Modified by the accept and reader threads while the output thread iterates it.
+    List<Forwarding> threads = new CopyOnWriteArrayList<Forwarding>();
     int port;
     
     ServerSocket service;
@@ -102,12 +103,27 @@ public class Hub {
     }
     
     public void putLine(String line) {
+        putLine(line, null);
+    }
+
+    /**
+     * Forwards a line to every connection except its source. Lets in-process
+     * nodes attached with {@link #addForwarder} send without getting their
+     * own lines back.
+     * @param line   GridConnect line to forward
+     * @param source connection the line came from, or null to send to all
+     */
+    public void putLine(String line, Forwarding source) {
         try {
-            queue.put(new Memo(line, null));
+            queue.put(new Memo(line, source));
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE, "", e);
         }
     }
+
+    public void removeForwarder(Forwarding f) {
+        threads.remove(f);
+    }
     
     public interface Forwarding {
         public void forward(Memo m);
@@ -0,0 +1,616 @@
+package org.openlcb.hub;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.GridConnect;
+
+/**
+ * Single-threaded, non-blocking OpenLCB hub implementation.
+ * <P>
+ * Multiple connections send lines terminated by newline,
+ * each of which is echoed to all other connections, the same way as {@link Hub} does.
+ * <P>
+ * All sockets are serviced by one selector thread. Each incoming line is encoded into bytes
+ * only once and the same bytes are queued for every destination client. Every client has its
+ * own bounded outbound queue, so a slow or stalled client does not hold up delivery to the
+ * others. When a client's queue would exceed the limit, the client is either disconnected or the
+ * line is dropped for that client only, depending on the {@link SlowConsumerPolicy}.
+ * <P>
+ * Per-client statistics (queue depth, lag, drops) are available from {@link #getClientStats()}.
+ * <P>
+ * Optionally ({@link #setFrameRouting}) the hub parses the lines as GridConnect CAN frames and
+ * learns which node aliases are behind which connection. Addressed frames (addressed MTIs,
+ * datagrams and stream data) are then forwarded only to the connection that owns the
+ * destination alias; global frames and frames to unknown aliases are sent to everyone.
+ */
+public class NioHub {
+    private final static Logger logger = Logger.getLogger(NioHub.class.getName());
+    /// Default limit on how many bytes may be waiting to be sent to a single client.
+    public final static int DEFAULT_MAX_QUEUED_BYTES = 256 * 1024;
+    /// Longest line accepted from a client.
+    final static int READ_BUFFER_SIZE = 4096;
+    /// Size of the per-client staging buffer for socket writes.
+    final static int WRITE_BUFFER_SIZE = 16384;
+
+    /**
+     * What to do with a client whose outbound queue is full.
+     */
+    public enum SlowConsumerPolicy {
+        /// Closes the connection to the slow client.
+        DISCONNECT,
+        /// Drops the new line for that client only, keeping the connection.
+        DROP
+    }
+
+    private int port;
+    private final int maxQueuedBytes;
+    private final SlowConsumerPolicy policy;
+
+    private volatile Selector selector;
+    private ServerSocketChannel service;
+    private volatile boolean running = false;
+    /// Lines injected by putLine from other threads.
+    private final ConcurrentLinkedQueue<String> injectedLines = new ConcurrentLinkedQueue<>();
+    /// All connected clients. Modified only by the selector thread.
+    final List<Client> clients = new CopyOnWriteArrayList<>();
+    /// Clients with newly queued data that need a write attempt. Selector thread only.
+    private final List<Client> dirtyClients = new ArrayList<>();
+    /// If true, addressed frames are only forwarded to the client owning the destination alias.
+    private volatile boolean frameRouting = false;
+    /// For each 12-bit alias, the client the alias was last seen from. Selector thread only.
+    private final Client[] aliasOwner = new Client[4096];
+    private volatile long routedLines = 0;
+    private volatile long floodedLines = 0;
+
+    public NioHub() {
+        this(Hub.DEFAULT_PORT);
+    }
+
+    public NioHub(int port) {
+        this(port, DEFAULT_MAX_QUEUED_BYTES, SlowConsumerPolicy.DISCONNECT);
+    }
+
+    /**
+     * @param port TCP port to listen on; 0 picks a free port, see {@link #getPort()}.
+     * @param maxQueuedBytes limit of data waiting to be sent to a single client.
+     * @param policy what to do when a client's queue reaches the limit.
+     */
+    public NioHub(int port, int maxQueuedBytes, SlowConsumerPolicy policy) {
+        this.port = port;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * Opens the listening socket and runs the hub on the calling thread. Does not return until
+     * {@link #stop()} is called or a fatal error occurs.
+     */
+    public void start() {
+        try {
+            bind();
+            run();
+        } catch (IOException e) {
+            logger.severe("Hub: Exception in main loop");
+            logger.log(Level.SEVERE, "", e);
+        }
+    }
+
+    /**
+     * Opens the listening socket. After this call {@link #getPort()} returns the actual port.
+     * @throws IOException if the port cannot be opened
+     */
+    public synchronized void bind() throws IOException {
+        selector = Selector.open();
+        service = ServerSocketChannel.open();
+        service.socket().setReuseAddress(true);
+        service.bind(new InetSocketAddress(port));
+        port = service.socket().getLocalPort();
+        service.configureBlocking(false);
+        service.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+    }
+
+    /**
+     * Runs the selector loop on the calling thread. {@link #bind()} must have been called before.
+     * @throws IOException on a fatal error of the selector or the listening socket
+     */
+    public void run() throws IOException {
+        try {
+            while (running) {
+                selector.select();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Client c = (Client) key.attachment();
+                    if (key.isReadable()) {
+                        c.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        c.flush();
+                    }
+                }
+                String line;
+                while ((line = injectedLines.poll()) != null) {
+                    dispatch(new Line(line, null));
+                }
+                for (int i = 0; i < dirtyClients.size(); ++i) {
+                    dirtyClients.get(i).flush();
+                }
+                dirtyClients.clear();
+            }
+        } finally {
+            for (Client c : clients) {
+                c.close();
+            }
+            service.close();
+            selector.close();
+        }
+    }
+
+    /**
+     * Asks the hub thread to close all connections and return from {@link #run()}.
+     */
+    public void stop() {
+        running = false;
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+    }
+
+    public int getPort() { return port; }
+
+    /**
+     * Enables or disables alias-based routing of addressed frames. Should be called before the
+     * clients connect; otherwise aliases are learned as traffic arrives.
+     * @param frameRouting if true, addressed frames are sent only to the connection owning the
+     *                     destination alias. If false, every line goes to every connection.
+     */
+    public void setFrameRouting(boolean frameRouting) {
+        this.frameRouting = frameRouting;
+    }
+
+    /// @return how many lines were forwarded to a single connection by alias routing.
+    public long getRoutedLines() { return routedLines; }
+
+    /// @return how many lines were forwarded to all connections while routing was enabled.
+    public long getFloodedLines() { return floodedLines; }
+
+    public void notifyOwner(String line) {
+        logger.info(line);
+    }
+
+    /**
+     * Sends a line to all connected clients. May be called from any thread.
+     * @param line text to send, without the line terminator.
+     */
+    public void putLine(String line) {
+        injectedLines.add(line);
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+    }
+
+    /**
+     * @return a snapshot of the statistics of every connected client.
+     */
+    public List<ClientStats> getClientStats() {
+        List<ClientStats> l = new ArrayList<>(clients.size());
+        long now = System.nanoTime();
+        for (Client c : clients) {
+            l.add(new ClientStats(c, now));
+        }
+        return l;
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch = service.accept();
+        if (ch == null) return;
+        ch.configureBlocking(false);
+        ch.socket().setTcpNoDelay(true);
+        Client c = new Client(ch);
+        c.key = ch.register(selector, SelectionKey.OP_READ, c);
+        clients.add(c);
+        notifyOwner("Connection started with " + c.address);
+    }
+
+    /**
+     * Queues a line for every client except its source.
+     */
+    void dispatch(Line line) {
+        for (Client c : clients) {
+            if (c != line.source) {
+                c.enqueue(line);
+            }
+        }
+    }
+
+    /**
+     * One line of text as received, already encoded for sending.
+     */
+    static class Line {
+        /// Line content including the line terminator.
+        final byte[] data;
+        /// Client this line arrived from, or null if it was injected locally.
+        final Client source;
+        /// When the line arrived at the hub (System.nanoTime).
+        final long timestamp;
+
+        Line(byte[] data, Client source) {
+            this.data = data;
+            this.source = source;
+            this.timestamp = System.nanoTime();
+        }
+
+        Line(String line, Client source) {
+            this((line + "\n").getBytes(StandardCharsets.ISO_8859_1), source);
+        }
+    }
+
+    /**
+     * State of one connected socket.
+     */
+    class Client {
+        final SocketChannel channel;
+        final String address;
+        SelectionKey key;
+        private final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        /// Data copied from the queue but not yet accepted by the socket. Kept in flipped state.
+        private final ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        private final ArrayDeque<Line> queue = new ArrayDeque<>();
+        /// How many bytes of the line at the head of the queue are already in the out buffer.
+        private int headOffset = 0;
+        /// Arrival time of the oldest line that has data in the out buffer.
+        private long outTimestamp = 0;
+        private boolean dirty = false;
+        private boolean closed = false;
+        /// Parses the lines of this client when frame routing is enabled.
+        private final GridConnect.Input parser = new GridConnect.Input() {
+            @Override
+            public void onFrame(CanFrame f) {
+                lastFrame = f;
+                ++frameCount;
+            }
+        };
+        private CanFrame lastFrame;
+        private int frameCount;
+
+        // Statistics; written only by the selector thread.
+        volatile int queuedBytes = 0;
+        volatile int queuedLines = 0;
+        volatile int peakQueuedBytes = 0;
+        volatile long linesReceived = 0;
+        volatile long linesSent = 0;
+        volatile long bytesSent = 0;
+        volatile long droppedLines = 0;
+        volatile long oldestPendingTimestamp = 0;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+            String a;
+            try {
+                a = channel.getRemoteAddress().toString();
+            } catch (Throwable e) {
+                a = "<unknown>";
+            }
+            this.address = a;
+            // Buffer methods are called through Buffer: the ByteBuffer overrides of JDK 9+ do
+            // not exist on Java 8. (compact() is ByteBuffer's own.)
+            ((Buffer) out).flip();
+        }
+
+        void read() {
+            int n;
+            try {
+                n = channel.read(in);
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Hub: Error while handling input from {0}", address);
+                close();
+                return;
+            }
+            if (n < 0) {
+                close();
+                return;
+            }
+            int start = 0;
+            int end = in.position();
+            byte[] buf = in.array();
+            for (int i = 0; i < end; ++i) {
+                if (buf[i] == '\n' || buf[i] == '\r') {
+                    if (i > start) {
+                        byte[] data = new byte[i - start + 1];
+                        System.arraycopy(buf, start, data, 0, i - start);
+                        data[i - start] = '\n';
+                        ++linesReceived;
+                        onLine(new Line(data, this));
+                    }
+                    start = i + 1;
+                }
+            }
+            if (start == 0 && end == buf.length) {
+                logger.fine("Hub: Discarding overlong line from " + address);
+                ((Buffer) in).clear();
+                return;
+            }
+            ((Buffer) in).flip();
+            ((Buffer) in).position(start);
+            in.compact();
+        }
+
+        /**
+         * Appends a line to the outbound queue, applying the slow consumer policy.
+         */
+        void enqueue(Line line) {
+            if (closed) return;
+            int len = line.data.length;
+            if (queuedBytes + len > maxQueuedBytes) {
+                if (policy == SlowConsumerPolicy.DROP) {
+                    ++droppedLines;
+                    return;
+                }
+                notifyOwner("Disconnecting slow client " + address + " with " + queuedBytes
+                        + " bytes queued");
+                close();
+                return;
+            }
+            if (queue.isEmpty() && !out.hasRemaining()) {
+                oldestPendingTimestamp = line.timestamp;
+            }
+            queue.add(line);
+            queuedBytes += len;
+            ++queuedLines;
+            if (queuedBytes > peakQueuedBytes) {
+                peakQueuedBytes = queuedBytes;
+            }
+            if (!dirty) {
+                dirty = true;
+                dirtyClients.add(this);
+            }
+        }
+
+        /**
+         * Writes as much of the queued data as the socket accepts without blocking.
+         */
+        void flush() {
+            dirty = false;
+            if (closed) return;
+            try {
+                while (true) {
+                    if (!out.hasRemaining()) {
+                        fillOut();
+                        if (!out.hasRemaining()) {
+                            key.interestOps(SelectionKey.OP_READ);
+                            oldestPendingTimestamp = 0;
+                            return;
+                        }
+                    }
+                    int n = channel.write(out);
+                    queuedBytes -= n;
+                    bytesSent += n;
+                    if (out.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        oldestPendingTimestamp = outTimestamp;
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Hub: Error while writing to {0}", address);
+                close();
+            }
+        }
+
+        /**
+         * Copies queued lines into the (empty) out buffer.
+         */
+        private void fillOut() {
+            ((Buffer) out).clear();
+            boolean first = true;
+            while (!queue.isEmpty() && out.hasRemaining()) {
+                Line l = queue.peekFirst();
+                if (first) {
+                    outTimestamp = l.timestamp;
+                    first = false;
+                }
+                int len = Math.min(out.remaining(), l.data.length - headOffset);
+                out.put(l.data, headOffset, len);
+                headOffset += len;
+                if (headOffset == l.data.length) {
+                    queue.pollFirst();
+                    headOffset = 0;
+                    --queuedLines;
+                    ++linesSent;
+                }
+            }
+            ((Buffer) out).flip();
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            clients.remove(this);
+            for (int i = 0; i < aliasOwner.length; ++i) {
+                if (aliasOwner[i] == this) aliasOwner[i] = null;
+            }
+            queue.clear();
+            queuedBytes = 0;
+            queuedLines = 0;
+            oldestPendingTimestamp = 0;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Hub: Error while closing socket at end of connection", e);
+            }
+            notifyOwner("Connection ended with " + address);
+        }
+    }
+
+    /**
+     * Called on the hub thread for every line arriving from a client.
+     * @param line the line that arrived.
+     */
+    void onLine(Line line) {
+        Client src = line.source;
+        if (!frameRouting || src == null) {
+            dispatch(line);
+            return;
+        }
+        src.frameCount = 0;
+        src.lastFrame = null;
+        for (byte b : line.data) {
+            src.parser.send((char) (b & 0xff));
+        }
+        if (src.frameCount != 1) {
+            // Not a single CAN frame; we cannot route it.
+            ++floodedLines;
+            dispatch(line);
+            return;
+        }
+        CanFrame f = src.lastFrame;
+        src.lastFrame = null;
+        if (!f.isExtended()) {
+            ++floodedLines;
+            dispatch(line);
+            return;
+        }
+        int srcAlias = f.getHeader() & 0xFFF;
+        if ((f.getHeader() & 0x0FFFF000) == AMR_HEADER) {
+            aliasOwner[srcAlias] = null;
+        } else {
+            aliasOwner[srcAlias] = src;
+        }
+        int dst = getDestinationAlias(f);
+        Client owner = dst < 0 ? null : aliasOwner[dst];
+        if (owner == null) {
+            ++floodedLines;
+            dispatch(line);
+            return;
+        }
+        ++routedLines;
+        if (owner != src) {
+            owner.enqueue(line);
+        }
+    }
+
+    /// Header bits (without the source alias) of an Alias Map Reset frame.
+    static final int AMR_HEADER = 0x00703000;
+
+    /**
+     * Finds where an OpenLCB CAN frame is addressed to.
+     * @param f an extended CAN frame
+     * @return the destination alias of an addressed message, datagram or stream frame; -1 for
+     * global messages and CAN control frames.
+     */
+    static int getDestinationAlias(CanFrame f) {
+        int header = f.getHeader();
+        if ((header & 0x08000000) == 0) {
+            // CAN control frame (CID, RID, AMD, AME, AMR)
+            return -1;
+        }
+        int format = (header & 0x07000000) >> 24;
+        switch (format) {
+            case 1: {
+                int mti = (header & 0x00FFF000) >> 12;
+                if ((mti & 0x008) == 0 || f.getNumDataElements() < 2) {
+                    return -1;
+                }
+                return ((f.getElement(0) << 8) | f.getElement(1)) & 0xFFF;
+            }
+            case 2:
+            case 3:
+            case 4:
+            case 5:
+            case 7:
+                return (header & 0x00FFF000) >> 12;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Statistics about one connected client at a given time.
+     */
+    public static class ClientStats {
+        private final String address;
+        private final int queuedBytes;
+        private final int queuedLines;
+        private final int maxQueuedBytes;
+        private final long linesReceived;
+        private final long linesSent;
+        private final long bytesSent;
+        private final long droppedLines;
+        private final long lagMillis;
+
+        ClientStats(Client c, long now) {
+            address = c.address;
+            queuedBytes = c.queuedBytes;
+            queuedLines = c.queuedLines;
+            maxQueuedBytes = c.peakQueuedBytes;
+            linesReceived = c.linesReceived;
+            linesSent = c.linesSent;
+            bytesSent = c.bytesSent;
+            droppedLines = c.droppedLines;
+            long oldest = c.oldestPendingTimestamp;
+            lagMillis = oldest == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(now - oldest);
+        }
+
+        /// @return remote address of the client.
+        public String getAddress() { return address; }
+        /// @return number of bytes waiting to be sent to this client.
+        public int getQueuedBytes() { return queuedBytes; }
+        /// @return number of lines waiting to be sent to this client.
+        public int getQueuedLines() { return queuedLines; }
+        /// @return largest number of bytes that were waiting for this client at the same time.
+        public int getMaxQueuedBytes() { return maxQueuedBytes; }
+        /// @return number of lines received from this client.
+        public long getLinesReceived() { return linesReceived; }
+        /// @return number of lines handed to the socket of this client.
+        public long getLinesSent() { return linesSent; }
+        /// @return number of bytes written to the socket of this client.
+        public long getBytesSent() { return bytesSent; }
+        /// @return number of lines dropped because this client's queue was full.
+        public long getDroppedLines() { return droppedLines; }
+        /// @return age of the oldest data not yet written to this client, in milliseconds.
+        public long getLagMillis() { return lagMillis; }
+
+        @Override
+        public String toString() {
+            return address + ": queued " + queuedLines + " lines/" + queuedBytes + " bytes (max "
+                    + maxQueuedBytes + "), lag " + lagMillis + " ms, received " + linesReceived
+                    + ", sent " + linesSent + ", dropped " + droppedLines;
+        }
+    }
+
+    static public void main(String[] args) {
+        NioHub h = new NioHub();
+
+        h.start();
+
+    }
+}
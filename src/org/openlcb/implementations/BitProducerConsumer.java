@@ -73,7 +73,8 @@ public class BitProducerConsumer extends MessageDecoder {
                         .getNodeId(), id));
             }
         };
-        iface.registerMessageListener(this);
+        iface.registerEventListener(eventOn, this);
+        iface.registerEventListener(eventOff, this);
         iface.getOutputConnection().registerStartNotification(new ConnectionListener() {
             @Override
             public void connectionActive(Connection c) {
@@ -160,7 +161,7 @@ public class BitProducerConsumer extends MessageDecoder {
     }
 
     public void release() {
-        iface.unRegisterMessageListener(this);
+        iface.unRegisterEventListener(this);
     }
 
     @Override
@@ -1,29 +1,40 @@
 package org.openlcb.implementations;
 
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.openlcb.*;
 
 /**
  * Accepts Datagrams over a Connection from "upstream", and meters them out
- * to "downstream" nodes (e.g. on a CAN network), one at a time.
+ * to "downstream" nodes (e.g. on a CAN network), one at a time per
+ * destination node.
  * This is to ensure that e.g. simple CAN nodes that can't accept more
  * than one datagram at a time get a chance to reply before the next one
  * arrives.
  *<p>
+ * Datagrams to different nodes are sent in parallel, so a slow node does not hold up the
+ * others. The datagrams to one node are sent in the order they were put. The number of
+ * datagrams waiting for a reply across all nodes is limited by {@link #setMaxInFlight}.
+ *<p>
  * Datagram negative replies cause a local retransmission. Positive
  * replies are reflected upstream to original source of the datagram.
- *<ul>
- *<li>Does not parallelize Datagrams to separate nodes
- *<li>Needs to timeout and resume operation if no reply received
- *</ul>
+ * If no reply arrives within the timeout, a permanent error is reported upstream and the
+ * next datagram to that node is sent. The timeout follows the round trip times measured to
+ * each node, see {@link #getRoundTripEstimator}. Timed out datagrams are not retransmitted:
+ * the node may have received and executed the datagram and only its reply got lost, and
+ * datagrams carry nothing to detect a duplicate. Only the sender knows whether running the
+ * datagram twice does harm; a datagram whose reply connection says it is {@link Idempotent}
+ * times out as soon as the estimate allows, so that its sender can resend it promptly. Other
+ * datagrams wait at least 3 seconds, since a late reply fails them for good.
  *<p>
  *
  * @author  Bob Jacobsen   Copyright 2012
@@ -31,10 +42,20 @@ import org.openlcb.*;
  */
 public class DatagramMeteringBuffer extends MessageDecoder {
 
-    //final static int TIMEOUT = 700;
+    /// Shortest reply timeout of the datagrams that are not idempotent, in milliseconds. Timed
+    /// out datagrams are not resent, so a late reply fails the request; the estimate may only
+    /// make the timeout longer.
     final static int TIMEOUT = 3000;
+    /// Error code reported upstream for a datagram without a reply.
+    final static int ERROR_TIMEOUT = 0x0100;
+    /// Default limit of the datagrams waiting for a reply, across all destinations.
+    public final static int DEFAULT_MAX_IN_FLIGHT = 8;
     private final static Logger logger = Logger.getLogger(DatagramMeteringBuffer.class.getName());
-    private ThreadPoolExecutor threadPool = null;
+    /// Runs the timeouts and the threads sending the datagrams.
+    private final Scheduler scheduler;
+    /// True if the scheduler was created for this buffer and is shut down with it.
+    private final boolean ownsScheduler;
+    private volatile boolean disposed = false;
     final static int minThreads = 10;
     final static int maxThreads = 10;
     final static long threadTimeout = 10; // allowed idle time for threads, in seconds.
@@ -42,7 +63,7 @@ public class DatagramMeteringBuffer extends MessageDecoder {
     /**
      * @param toDownstream connection object associated with the new buffer 
      *
-     * @deprecated since OlcbLibrary version 0.18.  Use {@link #DatagramMeteringBuffer(Connection,ThreadPoolExecutor)} instead.
+     * @deprecated since OlcbLibrary version 0.18.  Use {@link #DatagramMeteringBuffer(Connection,Scheduler)} instead.
      */
     @Deprecated
     public DatagramMeteringBuffer(Connection toDownstream ){
@@ -58,21 +79,32 @@ public class DatagramMeteringBuffer extends MessageDecoder {
      * @param tpe Thread pool in which threads associated with the buffer run.
      */
     public DatagramMeteringBuffer(Connection toDownstream,ThreadPoolExecutor tpe) {
-        threadPool = tpe;
-        if(timer == null){
-           timer = new Timer("OpenLCB-datagram-timer");
-        }
+        this(toDownstream, new Scheduler(tpe), true);
+    }
+
+    /**
+     * @param toDownstream Connection object associated with the new buffer
+     * @param scheduler runs the timeouts and the threads sending the datagrams. It is not shut
+     *                  down when the buffer is disposed.
+     */
+    public DatagramMeteringBuffer(Connection toDownstream, Scheduler scheduler) {
+        this(toDownstream, scheduler, false);
+    }
+
+    private DatagramMeteringBuffer(Connection toDownstream, Scheduler scheduler, boolean
+            ownsScheduler) {
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
         this.toDownstream = toDownstream;
-        datagramComplete();
-        
         fromDownstream = new ReplyHandler();
     }
     
     Connection toDownstream;
     Connection fromDownstream;
-    MessageMemo currentMemo;
-    private Timer timer = null;
-    int timeoutMillis = TIMEOUT;
+    /// Derives the reply timeout of each destination from its round trip times.
+    private final RoundTripEstimator roundTripEstimator = new RoundTripEstimator();
+    /// Shortest reply timeout of the datagrams that are not idempotent.
+    private volatile long minTimeoutMillis = TIMEOUT;
 
     /**
      * This is where e.g. replies from the OpenLCB
@@ -82,31 +114,203 @@ public class DatagramMeteringBuffer extends MessageDecoder {
     public Connection connectionForRepliesFromDownstream() {
         return fromDownstream;
     }
-    
-    BlockingQueue<MessageMemo> queue = new LinkedBlockingQueue<MessageMemo>();
-    int pendingEntries = 0;
-    int threadPending = 0;
 
+    /// Datagrams waiting or in flight, by destination node. Guarded by this.
+    private final Map<NodeID, Destination> destinations = new HashMap<>();
+    /// Destinations with a datagram that can be sent once the in-flight count allows it, in
+    /// the order they became ready. Guarded by this.
+    private final ArrayDeque<Destination> ready = new ArrayDeque<>();
+    /// Number of datagrams waiting to be sent. Guarded by this.
+    private int waitingCount = 0;
+    /// Number of datagrams sent and waiting for a reply. Guarded by this.
+    private int inFlight = 0;
+    /// Number of datagrams handed to the scheduler to be sent, but not sent yet. Guarded by this.
+    private int dispatching = 0;
+    /// Maximum number of datagrams in flight. Guarded by this.
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    /// Maximum number of datagrams waiting in the queue, 0 for no limit. Guarded by this.
+    private int queueLimit = 0;
+    /// What to do with a datagram that does not fit into the queue. Guarded by this.
+    private OutputQueuePolicy.Overflow overflow = OutputQueuePolicy.Overflow.BLOCK;
+    /// Whether the queue has space for more datagrams. Guarded by this.
+    private boolean writable = true;
+    private final java.beans.PropertyChangeSupport pcs = new java.beans.PropertyChangeSupport(this);
+    /// Property name for the changes of {@link #isWritable}.
+    public static final String UPDATE_PROP_WRITABLE = "writable";
+    private final LongAdder sentCount = new LongAdder();
+    private final LongAdder retryCount = new LongAdder();
+    private final LongAdder timeoutCount = new LongAdder();
+    /// Milliseconds from sending a datagram to the reply.
+    private final Histogram roundTrip = new Histogram();
+
+    /**
+     * Tells whether a datagram may be executed twice by its destination, such as a memory
+     * configuration read. The reply connection given to {@link #put} with a datagram may
+     * implement this. The sender of such a datagram resends it itself when the reply times out,
+     * so the timeout can be short.
+     */
+    public interface Idempotent {
+        /// @return true if the datagram may be executed more than once.
+        boolean isIdempotent();
+    }
+
+    /**
+     * Uses a fixed reply timeout instead of the one estimated from the round trip times of
+     * each destination.
+     * @param timeoutMillis how long to wait for the reply of a datagram, in milliseconds.
+     */
     public void setTimeout(int timeoutMillis) {
-        this.timeoutMillis = timeoutMillis;
+        roundTripEstimator.setFixedTimeout(timeoutMillis);
+        minTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * The reply timeout of each destination is its smoothed round trip time plus four times
+     * the variation, doubled after each timeout until the next reply; the limits of the
+     * timeouts can be configured here. Datagrams that are not {@link Idempotent} wait at least
+     * 3 seconds regardless.
+     * @return the round trip estimates of the destination nodes.
+     */
+    public RoundTripEstimator getRoundTripEstimator() {
+        return roundTripEstimator;
+    }
+
+    /**
+     * Limits the number of datagrams sent and waiting for a reply, across all destination
+     * nodes. There is never more than one datagram in flight to each node. Lower values keep
+     * the datagram traffic from crowding out the other messages on the bus; 1 sends one
+     * datagram at a time.
+     * @param limit maximum number of datagrams in flight, at least 1.
+     */
+    public void setMaxInFlight(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("In-flight limit must be at least 1: " + limit);
+        }
+        List<MessageMemo> toSend;
+        synchronized (this) {
+            maxInFlight = limit;
+            toSend = startReady();
+        }
+        dispatch(toSend);
+    }
+
+    public synchronized int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /// @return the number of datagrams waiting to be sent.
+    public synchronized int getQueueDepth() {
+        return waitingCount;
+    }
+
+    /// @return the number of datagrams sent and waiting for a reply.
+    public synchronized int getInFlightCount() {
+        return inFlight;
+    }
+
+    /// @return the number of datagram transmissions, including retransmissions.
+    public long getSentCount() {
+        return sentCount.sum();
+    }
+
+    /// @return the number of datagrams retransmitted after a temporary rejection.
+    public long getRetryCount() {
+        return retryCount.sum();
+    }
+
+    /// @return the number of datagrams that got no reply within the timeout.
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    /// @return the milliseconds between sending each datagram and receiving its reply.
+    public Histogram getRoundTripHistogram() {
+        return roundTrip;
+    }
+
+    /// Clears the counters and the round trip histogram.
+    public void resetStatistics() {
+        sentCount.reset();
+        retryCount.reset();
+        timeoutCount.reset();
+        roundTrip.reset();
+    }
+
+    /**
+     * Limits the number of datagrams waiting to be sent.
+     * <p>
+     * With {@link OutputQueuePolicy.Overflow#BLOCK} the thread adding a datagram to a full queue
+     * waits. Datagrams are metered out when the previous one is acknowledged, so do not use this
+     * if datagrams are sent from the thread that delivers the incoming messages: it would only
+     * be released by the reply timeout. {@link OutputQueuePolicy.Overflow#FAIL} throws
+     * IllegalStateException from put(). Datagrams are never discarded to make space.
+     * @param limit maximum number of waiting datagrams, across all destinations; 0 for no
+     *              limit.
+     * @param overflow what to do with a datagram when the queue is full.
+     */
+    public void setQueueLimit(int limit, OutputQueuePolicy.Overflow overflow) {
+        boolean changed;
+        synchronized (this) {
+            queueLimit = limit;
+            this.overflow = overflow;
+            notifyAll();
+            changed = updateWritable();
+        }
+        if (changed) fireWritableChanged();
+    }
+
+    /**
+     * @return false if the datagram queue is full, true if there is space. After becoming full,
+     * the queue is reported writable again when it is only half full. Changes are reported to
+     * the property change listeners as {@link #UPDATE_PROP_WRITABLE}.
+     */
+    public synchronized boolean isWritable() {
+        return writable;
+    }
+
+    public void addPropertyChangeListener(java.beans.PropertyChangeListener l) {
+        pcs.addPropertyChangeListener(l);
+    }
+
+    public void removePropertyChangeListener(java.beans.PropertyChangeListener l) {
+        pcs.removePropertyChangeListener(l);
+    }
+
+    /**
+     * Recomputes the writable state. Must be called with the lock held.
+     * @return true if the state changed.
+     */
+    private boolean updateWritable() {
+        int size = waitingCount;
+        if (writable && queueLimit > 0 && size >= queueLimit) {
+            writable = false;
+            return true;
+        }
+        if (!writable && (queueLimit == 0 || size <= queueLimit / 2)) {
+            writable = true;
+            return true;
+        }
+        return false;
+    }
+
+    private void fireWritableChanged() {
+        boolean w = isWritable();
+        pcs.firePropertyChange(UPDATE_PROP_WRITABLE, !w, w);
     }
 
     /**
-     * Waits until all pending entries are sent or we are blocked on sending multiple requests to
-     * the same target node.
+     * Waits until all datagrams that may be sent are sent. Datagrams waiting for the reply to
+     * an earlier datagram to the same node, or for the in-flight limit, are not waited for.
      */
     public void waitForSendQueue() {
-        while(true) {
-            synchronized (this) {
-                if (pendingEntries == 0 || threadPending == 0) {
-                    break;
+        synchronized (this) {
+            while (dispatching != 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return;
                 }
             }
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                return;
-            }
         }
         waitForTimer();
     }
@@ -116,31 +320,17 @@ public class DatagramMeteringBuffer extends MessageDecoder {
      * @throws java.lang.InterruptedException when interrupted.
      */
     public void waitForSendCallbacks() throws InterruptedException {
-        while(true) {
-            synchronized (this) {
-                if (pendingEntries == 0 && threadPending == 1) {
-                    break;
-                }
-            }
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                throw e;
+        synchronized (this) {
+            while (waitingCount != 0 || dispatching != 0) {
+                wait();
             }
         }
         waitForTimer();
     }
 
     private void waitForTimer() {
-        final Semaphore s = new Semaphore(0);
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                s.release();
-            }
-        }, 1);
         try {
-            s.acquire();
+            scheduler.waitForDueTimeouts();
         } catch (InterruptedException e) {
             return;
         }
@@ -152,33 +342,177 @@ public class DatagramMeteringBuffer extends MessageDecoder {
     @Override
     public void put(Message msg, Connection toUpstream) {
         if (msg instanceof DatagramMessage) {
+            List<MessageMemo> toSend;
+            boolean changed;
             synchronized (this) {
-                ++pendingEntries;
+                while (queueLimit > 0 && waitingCount >= queueLimit) {
+                    if (overflow == OutputQueuePolicy.Overflow.FAIL) {
+                        throw new IllegalStateException("Datagram queue is full");
+                    } else {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                }
+                MessageMemo memo = new MessageMemo((DatagramMessage) msg, toUpstream,
+                        toDownstream);
+                NodeID dest = memo.message.getDestNodeID();
+                Destination d = destinations.get(dest);
+                if (d == null) {
+                    d = new Destination(dest);
+                    destinations.put(dest, d);
+                }
+                memo.destination = d;
+                d.waiting.add(memo);
+                ++waitingCount;
+                toSend = startNext(d);
+                changed = updateWritable();
             }
-            queue.add(new MessageMemo((DatagramMessage) msg, toUpstream, toDownstream));
+            if (changed) fireWritableChanged();
+            dispatch(toSend);
         } else {
             toDownstream.put(msg, fromDownstream);
         }
     }
 
-    private void datagramComplete() {
-        currentMemo = null;
+    /**
+     * Starts the next datagram to a destination, if it has no datagram in flight. Must be
+     * called with the lock held.
+     * @return the datagrams to give to {@link #dispatch}.
+     */
+    private List<MessageMemo> startNext(Destination d) {
+        if (d.active != null || d.waiting.isEmpty()) {
+            forgetIfIdle(d);
+        } else if (!d.ready) {
+            d.ready = true;
+            ready.add(d);
+        }
+        return startReady();
+    }
+
+    /**
+     * Takes datagrams from the ready destinations while the in-flight limit allows. Must be
+     * called with the lock held.
+     * @return the datagrams to give to {@link #dispatch}.
+     */
+    private List<MessageMemo> startReady() {
+        List<MessageMemo> toSend = null;
+        while (inFlight < maxInFlight && !ready.isEmpty()) {
+            Destination d = ready.poll();
+            d.ready = false;
+            if (d.active != null || d.waiting.isEmpty()) {
+                forgetIfIdle(d);
+                continue;
+            }
+            MessageMemo m = d.waiting.poll();
+            d.active = m;
+            --waitingCount;
+            ++inFlight;
+            ++dispatching;
+            if (toSend == null) toSend = new ArrayList<>();
+            toSend.add(m);
+        }
+        if (toSend != null) {
+            // Wakes up the producers waiting for space.
+            notifyAll();
+        }
+        return toSend;
+    }
+
+    /// Removes a destination without datagrams. Must be called with the lock held.
+    private void forgetIfIdle(Destination d) {
+        if (d.active == null && d.waiting.isEmpty() && !d.ready) {
+            destinations.remove(d.node);
+        }
+    }
+
+    /**
+     * Sends datagrams on the scheduler's threads. Must be called without the lock held.
+     * @param toSend datagrams returned by {@link #startReady}, may be null.
+     */
+    private void dispatch(List<MessageMemo> toSend) {
+        if (toSend == null) return;
+        for (final MessageMemo m : toSend) {
+            if (disposed) {
+                synchronized (this) {
+                    dispatching--;
+                    notifyAll();
+                }
+                continue;
+            }
+            scheduler.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (!disposed) m.sendIt();
+                    } finally {
+                        synchronized (DatagramMeteringBuffer.this) {
+                            dispatching--;
+                            DatagramMeteringBuffer.this.notifyAll();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Frees the destination's slot after the reply (or the timeout) of its datagram in flight,
+     * and starts the next datagrams.
+     */
+    private void datagramComplete(MessageMemo memo) {
+        List<MessageMemo> toSend;
+        boolean changed;
         synchronized (this) {
-            threadPending++;
+            Destination d = memo.destination;
+            if (d.active != memo) return; // already completed
+            d.active = null;
+            --inFlight;
+            toSend = startNext(d);
+            changed = updateWritable();
+            notifyAll();
+        }
+        if (changed) fireWritableChanged();
+        dispatch(toSend);
+    }
+
+    /**
+     * The datagrams to one destination node.
+     */
+    private static class Destination {
+        final NodeID node;
+        /// Datagrams not sent yet, in the order they were put.
+        final ArrayDeque<MessageMemo> waiting = new ArrayDeque<>();
+        /// The datagram sent and waiting for a reply, or null.
+        MessageMemo active;
+        /// Whether this destination is in the ready queue.
+        boolean ready = false;
+
+        Destination(NodeID node) {
+            this.node = node;
         }
-        threadPool.execute(new Consumer(queue));
     }
 
     class ReplyHandler extends AbstractConnection {
         /*
-         * Find the current handler and have it handle it
+         * Find the handler of the datagram to the sender of the reply and have it handle it
          */
         @Override
         public void put(Message msg, Connection sender) {
-            if (currentMemo == null) {
+            NodeID source = msg.getSourceNodeID();
+            if (source == null) return;
+            MessageMemo m;
+            synchronized (DatagramMeteringBuffer.this) {
+                Destination d = destinations.get(source);
+                if (d == null) return;
+                m = d.active;
+            }
+            if (m == null || !m.sent) {
                 return;
             }
-            currentMemo.put(msg, sender);
+            m.put(msg, sender);
         }
     }
         
@@ -186,50 +520,74 @@ public class DatagramMeteringBuffer extends MessageDecoder {
         DatagramMessage message;
         Connection toDownstream;
         Connection toUpstream;
-        TimerTask timerTask;
+        Scheduler.Timeout timeout;
+        /// When the datagram was last sent, from System.nanoTime().
+        long sentNanos;
+        /// Number of times the datagram was sent.
+        int sendCount = 0;
+        Destination destination;
+        /// Set when the datagram is first sent; replies before that are stale.
+        volatile boolean sent = false;
+        /// True if the sender resends the datagram when its reply is lost.
+        final boolean idempotent;
 
         MessageMemo(DatagramMessage msg, Connection toUpstream, Connection toDownstream) {
             message = msg;
             this.toUpstream = toUpstream;
             this.toDownstream = toDownstream;
+            idempotent = toUpstream instanceof Idempotent && ((Idempotent) toUpstream)
+                    .isIdempotent();
         }
         
         public void sendIt() {
-            currentMemo = this;
+            sent = true;
             forwardDownstream();
         }
-
         void forwardDownstream() {
+            sentCount.increment();
+            sentNanos = System.nanoTime();
+            ++sendCount;
             startTimeout();
             toDownstream.put(message, fromDownstream);
         }
         
         void startTimeout() {
-            timerTask = new TimerTask(){
-                public void run(){
-                    timerExpired();
-                }
-            };
             try {
-                timer.schedule(timerTask, timeoutMillis);
+                // Reports the failure upstream, which may block.
+                long delay = roundTripEstimator.getTimeoutMillis(message.getDestNodeID());
+                if (!idempotent) delay = Math.max(delay, minTimeoutMillis);
+                timeout = scheduler.scheduleBlocking(new Runnable() {
+                    public void run(){
+                        timerExpired();
+                    }
+                }, delay);
             } catch( java.lang.IllegalStateException ise) {
                 logger.log(Level.WARNING, "Timer already canceled when starting timeout for datagram {0}", message != null ? message : " == null");
-            } catch( java.util.concurrent.RejectedExecutionException ree) {
-                logger.log(Level.WARNING, "Timer rejected execution when starting timeout for datagram {0}", message != null ? message : " == null");
             }
         }
 
+        /// Records the round trip time of a reply.
+        void recordReply() {
+            long nanos = System.nanoTime() - sentNanos;
+            roundTrip.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+            // After a retransmission the reply may be for an earlier copy, so its round trip
+            // is unknown.
+            if (sendCount == 1) roundTripEstimator.sample(message.getDestNodeID(), nanos);
+        }
+
         void endTimeout() {
-            if (timerTask != null) timerTask.cancel();
+            if (timeout != null) timeout.cancel();
             else logger.log(Level.INFO, "Found timer null for datagram {0}", message != null ? message : " == null");
         }
 
         void timerExpired() {
             // should not happen, but if it does, 
             // fabricate a permanent error and forward up
-            DatagramRejectedMessage msg = new DatagramRejectedMessage(message.getDestNodeID(), message.getSourceNodeID(), 0x0100);
+            DatagramRejectedMessage msg = new DatagramRejectedMessage(message.getDestNodeID(), message.getSourceNodeID(), ERROR_TIMEOUT);
+            timeoutCount.increment();
+            roundTripEstimator.backoff(message.getDestNodeID());
             logger.log(Level.INFO, "Never received reply for datagram {0}", message);
-            handleDatagramRejected(msg, null);
+            rejected(msg, false);
             // Inject message to upstream listener
             toUpstream.put(msg, toUpstream);
         }
@@ -247,7 +605,7 @@ public class DatagramMeteringBuffer extends MessageDecoder {
                         .getDestNodeID(), message.getSourceNodeID(),
                         DatagramRejectedMessage.DATAGRAM_REJECTED_DST_REBOOT);
                 logger.log(Level.INFO, "Destination node has rebooted while waiting for datagram reply {0}", message);
-                handleDatagramRejected(rejectedMessage, null);
+                rejected(rejectedMessage, false);
                 // Inject message to upstream listener
                 toUpstream.put(rejectedMessage, toUpstream);
             }
@@ -264,8 +622,9 @@ public class DatagramMeteringBuffer extends MessageDecoder {
                 return;
             }
             endTimeout();
+            recordReply();
             // allow sending another
-            datagramComplete();
+            datagramComplete(this);
         }
         
         /**
@@ -273,18 +632,28 @@ public class DatagramMeteringBuffer extends MessageDecoder {
          */
         @Override
         public void handleDatagramRejected(DatagramRejectedMessage msg, Connection sender) {
+            rejected(msg, true);
+        }
+
+        /**
+         * @param msg rejection to process
+         * @param fromNetwork false if the rejection was generated locally (e.g. timeout)
+         */
+        private void rejected(DatagramRejectedMessage msg, boolean fromNetwork) {
             // check if this is from right source & to us
             if ( ! (msg.getDestNodeID()!=null && msg.getSourceNodeID()!=null && msg.getDestNodeID().equals(message.getSourceNodeID()) && message.getDestNodeID().equals(msg.getSourceNodeID()) ) ) {
                 // not for us
                 return;
             }
             endTimeout();
+            if (fromNetwork) recordReply();
             // check if resend permitted
             if (msg.canResend()) {
+                retryCount.increment();
                 forwardDownstream();
             } else {
                 // allow sending another
-                datagramComplete();
+                datagramComplete(this);
             }
         }
     }
@@ -293,55 +662,18 @@ public class DatagramMeteringBuffer extends MessageDecoder {
      * cleanup local resources
      */
     public void dispose(){
-        // shut down the thread pool
-        if(threadPool != null && !(threadPool.isShutdown())) {
-           // modified from the javadoc for ExecutorService 
-           threadPool.shutdown(); // Disable new tasks from being submitted
-           try {
-              // Wait a while for existing tasks to terminate
-              if (!threadPool.awaitTermination(10, TimeUnit.MILLISECONDS)) {
-                 threadPool.shutdownNow(); // Cancel currently executing tasks
-                 // Wait a while for tasks to respond to being cancelled
-                 if (!threadPool.awaitTermination(10, TimeUnit.SECONDS))
-                     logger.warning("Pool did not terminate");
-              }
-            } catch (InterruptedException ie) {
-                // (Re-)Cancel if current thread also interrupted
-                threadPool.shutdownNow();
-                // Preserve interrupt status
-                Thread.currentThread().interrupt();
+        disposed = true;
+        List<MessageMemo> active = new ArrayList<>();
+        synchronized (this) {
+            for (Destination d : destinations.values()) {
+                if (d.active != null) active.add(d.active);
             }
         }
-        threadPool = null;
-        // and cancel the timer
-        timer.cancel();
-        timer = null;
-    }    
-
-
-    class Consumer implements Runnable {
-        private final BlockingQueue<MessageMemo> queue;
-        Consumer(BlockingQueue<MessageMemo> q) { queue = q; }
-        @Override
-        public void run() {
-            if(threadPool == null || threadPool.isShutdown()) {
-               // the buffer has been disposed of, so just return
-               return;
-            }
-            try {
-                consume(queue.take());
-                synchronized (DatagramMeteringBuffer.this) {
-                    pendingEntries--;
-                }
-            } catch (InterruptedException ex) {
-                // interrupted while processing, but not in a loop.
-            } finally {
-                synchronized (DatagramMeteringBuffer.this) {
-                    threadPending--;
-                }
-            }
-            // and exits. Another has to be started with this item is done.
+        for (MessageMemo m : active) {
+            if (m.timeout != null) m.timeout.cancel();
+        }
+        if (ownsScheduler) {
+            scheduler.shutdown();
         }
-        void consume(MessageMemo x) { x.sendIt(); }
     }    
 }
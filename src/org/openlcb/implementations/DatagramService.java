@@ -1,5 +1,9 @@
 package org.openlcb.implementations;
 
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.jcip.annotations.Immutable;
@@ -20,11 +24,12 @@ import org.openlcb.*;
  * <p>
  * Multiple copies of this can exist.  
  * <ul>
- * <li>Replies to sent datagrams are processed one-by-one here. This object
- *      can send to multiple destination nodes, but it cannot overlap sent messages:
- *      each send&amp;reply must be complete before the next is started.
+ * <li>Any number of datagrams may be outstanding, to the same or to different destination
+ *      nodes. The replies from each node are matched to its datagrams in the order they
+ *      were sent, which is the order the {@link DatagramMeteringBuffer} delivers them in.
  * <li>Incoming datagrams for this node are forwarded to the receiving
- *      code, regardless of whether the sending node was ever a destination.
+ *      code registered for their type (first byte), regardless of whether the sending node
+ *      was ever a destination.
  * </ul>
  *
  * @author  Bob Jacobsen   Copyright 2012, 2015
@@ -45,6 +50,8 @@ public class DatagramService extends MessageDecoder {
     }
 
     public static final int FLAG_REPLY_PENDING = 0x80;
+    /// With reply pending, the reply arrives within 2^N seconds; 0 if the node does not say.
+    public static final int FLAG_REPLY_TIMEOUT_MASK = 0x0F;
     static final int DEFAULT_ERROR_CODE = 0x1000;
     NodeID here;
     Connection downstream;
@@ -54,12 +61,21 @@ public class DatagramService extends MessageDecoder {
      * @param memo    datagram to send
      */
     public void sendData(DatagramServiceTransmitMemo memo){
-        if (xmtMemo != null) {
-            logger.log(Level.SEVERE, "Overriding datagram transmit memo. old {0} new {1}", new Object[]{xmtMemo, memo}); //log
-        }
-        xmtMemo = memo;
         Message m = new DatagramMessage(here, memo.dest, memo.data);
-        downstream.put(m, this);
+        // The replies are matched to the memos in the order the datagrams are sent, so the
+        // memo and its datagram must not be overtaken by another thread sending to the same
+        // node.
+        synchronized (sendLocks[(memo.dest.hashCode() & 0x7FFFFFFF) % sendLocks.length]) {
+            synchronized (xmtMemos) {
+                ArrayDeque<DatagramServiceTransmitMemo> q = xmtMemos.get(memo.dest);
+                if (q == null) {
+                    q = new ArrayDeque<>();
+                    xmtMemos.put(memo.dest, q);
+                }
+                q.add(memo);
+            }
+            downstream.put(m, new TransmitReplyConnection(memo));
+        }
     }
 
     /**
@@ -68,16 +84,60 @@ public class DatagramService extends MessageDecoder {
      * @param data    datagram payload
      */
     public void sendData(NodeID dest, int[] data){
-        DatagramServiceTransmitMemo memo = new DatagramServiceTransmitMemo(dest, data) {
+        sendData(new DatagramServiceTransmitMemo(dest, data) {
             @Override
             public void handleSuccess(int flags) {}
 
             @Override
             public void handleFailure(int errorCode) {}
-        };
-        xmtMemo = memo;
-        Message m = new DatagramMessage(here, memo.dest, memo.data);
-        downstream.put(m, this);
+        });
+    }
+
+    /// @return the number of datagrams sent and not yet acknowledged or rejected.
+    public int getPendingTransmitCount() {
+        synchronized (xmtMemos) {
+            int n = 0;
+            for (ArrayDeque<DatagramServiceTransmitMemo> q : xmtMemos.values()) {
+                n += q.size();
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Removes the oldest outstanding datagram to a node.
+     * @param dest destination node of the datagram
+     * @return the memo of the datagram, or null if there is none outstanding to that node.
+     */
+    private DatagramServiceTransmitMemo takeTransmitMemo(NodeID dest) {
+        synchronized (xmtMemos) {
+            ArrayDeque<DatagramServiceTransmitMemo> q = xmtMemos.get(dest);
+            if (q == null) return null;
+            DatagramServiceTransmitMemo memo = q.poll();
+            if (q.isEmpty()) xmtMemos.remove(dest);
+            return memo;
+        }
+    }
+
+    /**
+     * Removes a specific outstanding datagram.
+     * @return true if it was outstanding.
+     */
+    private boolean removeTransmitMemo(DatagramServiceTransmitMemo memo) {
+        synchronized (xmtMemos) {
+            ArrayDeque<DatagramServiceTransmitMemo> q = xmtMemos.get(memo.dest);
+            if (q == null) return false;
+            // Compares identity; the memo's equals() compares the contents.
+            for (java.util.Iterator<DatagramServiceTransmitMemo> it = q.iterator(); it
+                    .hasNext(); ) {
+                if (it.next() == memo) {
+                    it.remove();
+                    if (q.isEmpty()) xmtMemos.remove(memo.dest);
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 
     /**
@@ -97,7 +157,11 @@ public class DatagramService extends MessageDecoder {
         if (msg.getData() != null && msg.getData().length == 0) {
             new Exception("Unexpected zero length content of datagram").printStackTrace();
         }
-        if (rcvMemo != null && msg.getData()!=null && msg.getData().length > 0 && rcvMemo.type == msg.getData()[0]) {
+        DatagramServiceReceiveMemo rcvMemo = null;
+        if (msg.getData() != null && msg.getData().length > 0) {
+            rcvMemo = rcvMemos.get(msg.getData()[0] & 0xFF);
+        }
+        if (rcvMemo != null) {
             rcvMemo.handleData(msg.getSourceNodeID(), msg.getData(), replyMemo);
             // check that client replied
             if (! replyMemo.hasReplied())
@@ -114,12 +178,9 @@ public class DatagramService extends MessageDecoder {
      */
     @Override
     public void handleDatagramRejected(DatagramRejectedMessage msg, Connection sender){
-        if (xmtMemo != null && msg.getDestNodeID().equals(here) && xmtMemo.dest.equals(msg.getSourceNodeID()) ) {
-            if (msg.canResend()) return;
-            DatagramServiceTransmitMemo temp = xmtMemo;
-            xmtMemo = null;
-            temp.handleFailure(msg.getCode());
-        }
+        if (!here.equals(msg.getDestNodeID()) || msg.canResend()) return;
+        DatagramServiceTransmitMemo memo = takeTransmitMemo(msg.getSourceNodeID());
+        if (memo != null) memo.handleFailure(msg.getCode());
     }
 
     /**
@@ -127,23 +188,75 @@ public class DatagramService extends MessageDecoder {
      */
     @Override
     public void handleDatagramAcknowledged(DatagramAcknowledgedMessage msg, Connection sender){
-        if (xmtMemo != null && msg.getDestNodeID().equals(here) && xmtMemo.dest.equals(msg.getSourceNodeID()) ) {
-            DatagramServiceTransmitMemo temp = xmtMemo;
-            xmtMemo = null;
-            temp.handleSuccess(msg.getFlags());
-        }
+        if (!here.equals(msg.getDestNodeID())) return;
+        DatagramServiceTransmitMemo memo = takeTransmitMemo(msg.getSourceNodeID());
+        if (memo != null) memo.handleSuccess(msg.getFlags());
     }
 
-    DatagramServiceReceiveMemo rcvMemo;
-    DatagramServiceTransmitMemo xmtMemo;
+    /// Receivers by datagram type.
+    private final Map<Integer, DatagramServiceReceiveMemo> rcvMemos = new ConcurrentHashMap<>();
+    /// Datagrams sent and waiting for a reply, by destination node, oldest first.
+    private final Map<NodeID, ArrayDeque<DatagramServiceTransmitMemo>> xmtMemos = new
+            HashMap<>();
+    /// Held while sending a datagram, selected by the destination node. The replies are not
+    /// blocked by a sender waiting for space in the output queue.
+    private final Object[] sendLocks = new Object[16];
+    {
+        for (int i = 0; i < sendLocks.length; ++i) {
+            sendLocks[i] = new Object();
+        }
+    }
     
     /**
      * Accept request to notify for a particular
-     * type of datagram
+     * type of datagram. Replaces the memo registered earlier for the same type.
      * @param memo    datgram listener
      */
     public void registerForReceive(DatagramServiceReceiveMemo memo) {
-        this.rcvMemo = memo;
+        DatagramServiceReceiveMemo old = rcvMemos.put(memo.type & 0xFF, memo);
+        if (old != null && old != memo) {
+            logger.log(Level.FINE, "Replacing datagram receiver {0}", old);
+        }
+    }
+
+    /**
+     * Stops notifying a memo of datagrams.
+     * @param memo    datagram listener registered earlier
+     */
+    public void unregisterForReceive(DatagramServiceReceiveMemo memo) {
+        rcvMemos.remove(memo.type & 0xFF, memo);
+    }
+
+    /**
+     * Gets the failures that the {@link DatagramMeteringBuffer} reports for one datagram
+     * itself (timeout, queue overflow, destination reboot). These are not seen on the network,
+     * and belong to this datagram even if others to the same node are outstanding.
+     */
+    private class TransmitReplyConnection extends AbstractConnection implements
+            DatagramMeteringBuffer.Idempotent {
+        private final DatagramServiceTransmitMemo memo;
+
+        TransmitReplyConnection(DatagramServiceTransmitMemo memo) {
+            this.memo = memo;
+        }
+
+        @Override
+        public boolean isIdempotent() {
+            return memo.isIdempotent();
+        }
+
+        @Override
+        public void put(Message msg, Connection sender) {
+            if (!(msg instanceof DatagramRejectedMessage)) return;
+            DatagramRejectedMessage r = (DatagramRejectedMessage) msg;
+            if (r.canResend()) return;
+            if (!removeTransmitMemo(memo)) return;
+            if (r.getCode() == DatagramMeteringBuffer.ERROR_TIMEOUT) {
+                memo.handleTimeout(r.getCode());
+            } else {
+                memo.handleFailure(r.getCode());
+            }
+        }
     }
     
     @Immutable
@@ -290,6 +403,23 @@ public class DatagramService extends MessageDecoder {
          */
         public abstract void handleFailure(int errorCode);
 
+        /**
+         * Notifies that no reply to the datagram arrived in time. The destination may or may
+         * not have executed it. By default reports the failure to {@link #handleFailure}.
+         * @param errorCode the error code of the failure.
+         */
+        public void handleTimeout(int errorCode) {
+            handleFailure(errorCode);
+        }
+
+        /**
+         * @return true if the destination may execute the datagram more than once, so that it
+         * can be sent again when its reply is lost. Such datagrams time out sooner.
+         */
+        protected boolean isIdempotent() {
+            return false;
+        }
+
     }
     
 }
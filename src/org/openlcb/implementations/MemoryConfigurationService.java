@@ -4,15 +4,24 @@ import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 import net.jcip.annotations.Immutable;
 import net.jcip.annotations.ThreadSafe;
+import org.openlcb.Connection;
 import org.openlcb.FailureCallback;
+import org.openlcb.InitializationCompleteMessage;
+import org.openlcb.MessageDecoder;
+import org.openlcb.MimicNodeStore;
 import org.openlcb.NoReturnCallback;
 import org.openlcb.NodeID;
+import org.openlcb.ProtocolIdentification;
+import org.openlcb.Scheduler;
+import org.openlcb.StreamDataCompleteMessage;
+import org.openlcb.StreamDataSendMessage;
+import org.openlcb.StreamInitiateRequestMessage;
 import org.openlcb.Utilities;
 
 /**
@@ -22,6 +31,15 @@ import org.openlcb.Utilities;
  * process via read and write primitives.
  * <p>
  * Can accept requests without the using code having to serialize them.
+ * <p>
+ * Read and write requests have at most one request outstanding to each node; further requests
+ * to the same node wait and are sent in order. Requests to different nodes run concurrently,
+ * up to the limit set by {@link #setMaxConcurrentRequests}, so reading the configuration of a
+ * whole layout takes about as long as reading the slowest nodes.
+ * <p>
+ * Once {@link #enableStreamReads} connected the service to the stream messages, large reads
+ * from nodes that support streams can be done with {@link #requestReadStream}, which moves the
+ * data in windows of up to 4 KB instead of a datagram round trip per 64 bytes.
  *
  * @author  Bob Jacobsen   Copyright 2012
  * @author  David Harris   Copyright 2016
@@ -47,15 +65,39 @@ public class MemoryConfigurationService {
     private static final int SUBCMD_READ = 0x40;
     private static final int SUBCMD_READ_STREAM = 0x60;
     private final static long TIMEOUT = 3000;
+    /// Inactivity timeout of stream reads.
     private long timeoutMillis = TIMEOUT;
     private final static long MAX_TRIES = 3;
+    /// Default limit of the nodes with a request outstanding at the same time.
+    public final static int DEFAULT_MAX_CONCURRENT_REQUESTS = 8;
+    /// Read count of a stream read that returns the data up to the end of the space.
+    public final static long STREAM_READ_TO_END = 0xFFFFFFFFL;
+    /// Largest stream buffer accepted; the CAN layer reassembles each window in one buffer.
+    public final static int MAX_STREAM_BUFFER_SIZE = 4096;
+    /// Default time after a stalled stream read before stream reads from the node are tried
+    /// again.
+    public final static long DEFAULT_STREAM_RETRY_MSEC = 60000;
+    /// Marks a node that rejected stream reads in streamReadFailed.
+    private final static long STREAM_FAILED_UNTIL_INIT = Long.MAX_VALUE;
 
     /**
+     * Creates the service with its timeouts running on the {@link Scheduler#getDefault()
+     * default scheduler}.
      * @param here       our node ID
      * @param downstream Connection in the direction of the layout
      */
     public MemoryConfigurationService(NodeID here, DatagramService downstream) {
-        retryTimer = new Timer("OpenLCB Memory Configuration Service Retry Timer");
+        this(here, downstream, Scheduler.getDefault());
+    }
+
+    /**
+     * @param here       our node ID
+     * @param downstream Connection in the direction of the layout
+     * @param scheduler  runs the retry timeouts
+     */
+    public MemoryConfigurationService(NodeID here, DatagramService downstream, Scheduler
+            scheduler) {
+        this.scheduler = scheduler;
         this.here = here;
         this.downstream = downstream;   
         
@@ -70,11 +112,26 @@ public class MemoryConfigurationService {
             //
             // doesn't check for match of reply to memo, but eventually should.
             @Override
-            public synchronized void handleData(NodeID dest, int[] data, DatagramService.ReplyMemo
-                    service) {
+            public void handleData(NodeID dest, int[] data, DatagramService.ReplyMemo service) {
                 //log System.out.println("OLCB: handleData");
                 service.acceptData(0);
-                if (addrSpaceMemo != null) {
+                // The callbacks run after the lock is released.
+                McsAddrSpaceMemo addrMemo = null;
+                McsConfigMemo cfgMemo = null;
+                McsWriteStreamMemo streamMemo = null;
+                synchronized (MemoryConfigurationService.this) {
+                    if (addrSpaceMemo != null) {
+                        addrMemo = addrSpaceMemo;
+                        addrSpaceMemo = null;
+                    } else if (configMemo != null) {
+                        cfgMemo = configMemo;
+                        configMemo = null;
+                    } else if (writeStreamMemo != null) {
+                        streamMemo = writeStreamMemo;
+                        writeStreamMemo = null;
+                    }
+                }
+                if (addrMemo != null) {
                     // doesn't handle decode of desc string, but should
                     int space = data[2] & 0xFF;
                     long highAddress = (((long) data[3] & 0xFF) << 24) | (((long) data[4] & 0xFF)
@@ -85,21 +142,17 @@ public class MemoryConfigurationService {
                         lowAddress = (((long) data[8] & 0xFF) << 24) | (((long) data[9] & 0xFF)
                                 << 16) | (((long) data[10] & 0xFF) << 8) | ((long) data[11] & 0xFF);
 
-                    McsAddrSpaceMemo memo = addrSpaceMemo;
-                    addrSpaceMemo = null;
-                    memo.handleAddrSpaceData(dest, space, highAddress, lowAddress, flags, "");
+                    addrMemo.handleAddrSpaceData(dest, space, highAddress, lowAddress, flags, "");
                     return;
                 }
                 // config memo may trigger address space read, so do second
-                if (configMemo != null) {
+                if (cfgMemo != null) {
                     // doesn't handle decode of name string, but should
                     int commands = (data[2] << 8) + data[3];
                     int options = data[4];
                     int highSpace = data[5];
                     int lowSpace = data[6];
-                    McsConfigMemo memo = configMemo;
-                    configMemo = null;
-                    memo.handleConfigData(dest, commands, options, highSpace, lowSpace, "");
+                    cfgMemo.handleConfigData(dest, commands, options, highSpace, lowSpace, "");
                     return;
                 }
                 /*
@@ -122,52 +175,43 @@ public class MemoryConfigurationService {
                     }
                     memo.handleWriteReply(code);
                 }*/
-                if (writeStreamMemo != null) {
+                if (streamMemo != null) {
                     // figure out address space uses byte?
                     boolean spaceByte = ((data[1] & 0x03) == 0);
                     int spaceOfs = spaceByte ? 1 : 0;
-                    McsWriteStreamMemo memo = writeStreamMemo;
-                    writeStreamMemo = null;
                     // TODO: compare the incoming parameters to the information in the memo.
                     if ((data[1] & 0x08) == 0) {
                         // OK
-                        memo.handleSuccess();
+                        streamMemo.handleSuccess();
                     } else {
                         // error
-                        memo.handleFailure("WriteStreamReply", DatagramUtils.parseErrorCode(data,
-                                6 + spaceOfs));
+                        streamMemo.handleFailure("WriteStreamReply", DatagramUtils
+                                .parseErrorCode(data, 6 + spaceOfs));
                     }
                     return;
                 }
                 int requestCode = getRequestTypeFromResponseType(data[1]);
                 RequestWithReplyDatagram memo = null;
                 McsRequestMemo rqMemo = null;
-                synchronized (this) {
-                    if (pendingRequests.containsKey(requestCode)) {
-                        rqMemo = pendingRequests.get(requestCode);
-                        if (!rqMemo.getDest().equals(dest)) {
-                            logger.warning("Spurious MemCfg response datagram " + Utilities
-                                    .toHexSpaceString(data)+": expected source " + rqMemo.getDest()
-                                    + " actual source " + dest);
-                            delayRetryMemo(rqMemo);
-                            return;
-                        }
+                // Retries and failure callbacks run after the lock is released.
+                McsRequestMemo retryMemo = null;
+                synchronized (MemoryConfigurationService.this) {
+                    rqMemo = pendingRequests.get(dest);
+                    if (rqMemo != null && rqMemo.getRequestCode() == requestCode) {
                         if (!(rqMemo instanceof RequestWithReplyDatagram)) {
                             logger.warning("Spurious MemCfg response datagram " + Utilities.toHexSpaceString(data)+
                                     ": the request memo does not support response datagrams. " +
                                     "Memo: " + rqMemo);
-                            delayRetryMemo(rqMemo);
-                            return;
-                        }
-                        memo = (RequestWithReplyDatagram) rqMemo;
-                        if (!memo.compareResponse(data)) {
+                            retryMemo = rqMemo;
+                        } else if (!((RequestWithReplyDatagram) rqMemo).compareResponse(data)) {
                             logger.warning("Unexpected MemCfg response datagram from " + dest
-                                    .toString() + ": " + memo + " payload " + Utilities
+                                    .toString() + ": " + rqMemo + " payload " + Utilities
                                     .toHexSpaceString(data));
-                            delayRetryMemo(rqMemo);
-                            return;
+                            retryMemo = rqMemo;
                         } else {
-                            checkAndPopMemo(rqMemo);
+                            memo = (RequestWithReplyDatagram) rqMemo;
+                            rqMemo.foundResponse = true;
+                            rqMemo.cancelRetry();
                         }
                     } else {
                         logger.warning("Could not find a matching memo for MemCfg response " +
@@ -175,8 +219,24 @@ public class MemoryConfigurationService {
                                 .toHexSpaceString(data));
                     }
                 }
+                if (retryMemo != null) {
+                    delayRetryMemo(retryMemo);
+                    return;
+                }
                 if (memo != null) {
-                    rqMemo.foundResponse = true;
+                    // The response to a retransmission may answer an earlier copy.
+                    if (rqMemo.numTries == 1) {
+                        roundTripEstimator.sample(dest, System.nanoTime() - rqMemo.sentNanos);
+                    }
+                    if (!rqMemo.completesWithResponse(data)) {
+                        // e.g. a stream read, which also waits for the stream
+                        memo.handleResponseDatagram(data);
+                        return;
+                    }
+                    checkAndPopMemo(rqMemo);
+                    if ((data[1] & SUBCMD_ERROR) == 0) {
+                        transferredBytes.add(rqMemo.getTransferLength(data));
+                    }
                     memo.handleResponseDatagram(data);
                 }
             }
@@ -186,14 +246,129 @@ public class MemoryConfigurationService {
     
     NodeID here;
     DatagramService downstream;
-    private Timer retryTimer;
+    private final Scheduler scheduler;
+    private volatile boolean disposed = false;
+    private final LongAdder retryCount = new LongAdder();
+    /// Derives the response timeout of each node from its round trip times.
+    private final RoundTripEstimator roundTripEstimator = new RoundTripEstimator();
+    private final LongAdder completedCount = new LongAdder();
+    private final LongAdder transferredBytes = new LongAdder();
+    /// Total busy time before busySince. Guarded by this.
+    private long busyNanos = 0;
+    /// System.nanoTime() when the first of the current outstanding requests was sent; 0 if
+    /// there is none. Guarded by this.
+    private long busySince = 0;
 
     public MemoryConfigurationService(MemoryConfigurationService mcs) {
-        this(mcs.here, mcs.downstream);
+        this(mcs.here, mcs.downstream, mcs.scheduler);
     }
 
+    /**
+     * Uses a fixed timeout for the response datagrams instead of the one estimated from the
+     * round trip times of each node. Also sets the inactivity timeout of stream reads.
+     * @param t timeout in milliseconds
+     */
     public void setTimeoutMillis(long t) {
         timeoutMillis = t;
+        roundTripEstimator.setFixedTimeout(t);
+    }
+
+    /**
+     * Sets how long {@link #isStreamReadSupported} is false for a node after a stream read
+     * from it timed out. A node that rejects stream reads is not asked again until it
+     * reinitializes.
+     * @param t time in milliseconds
+     */
+    public void setStreamRetryMillis(long t) {
+        streamRetryMillis = t;
+    }
+
+    /**
+     * A read whose response datagram does not arrive in time is sent again, up to three times
+     * in all; so is a read whose datagram was not acknowledged. Other requests, such as writes,
+     * are never sent again, since the node may have executed them already; they fail instead.
+     * The timeout is the smoothed round trip time of the node plus four times its variation,
+     * doubled with each timeout until the next response, and at least as long as the node
+     * announced in its datagram acknowledgement. The limits of the timeouts can be configured
+     * here.
+     * @return the round trip estimates of the remote nodes.
+     */
+    public RoundTripEstimator getRoundTripEstimator() {
+        return roundTripEstimator;
+    }
+
+    /**
+     * Limits the number of nodes that have a read or write request outstanding at the same
+     * time. Requests to further nodes wait until one of the outstanding requests completes.
+     * @param limit maximum number of concurrent requests, at least 1.
+     */
+    public void setMaxConcurrentRequests(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Concurrent request limit must be at least 1: "
+                    + limit);
+        }
+        java.util.List<McsRequestMemo> toSend;
+        synchronized (this) {
+            maxConcurrentRequests = limit;
+            toSend = startReady();
+        }
+        sendRequests(toSend);
+    }
+
+    public synchronized int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /// @return the number of requests that are sent and waiting for a reply, or queued.
+    public synchronized int getPendingRequestCount() {
+        int r = pendingRequests.size();
+        for (ArrayDeque<McsRequestMemo> q : queuedRequests.values()) {
+            r += q.size();
+        }
+        return r;
+    }
+
+    /// @return the number of requests resent because no reply arrived in time.
+    public long getRetryCount() {
+        return retryCount.sum();
+    }
+
+    /// @return the number of read and write requests completed, successfully or not.
+    public long getCompletedRequestCount() {
+        return completedCount.sum();
+    }
+
+    /// @return the number of bytes successfully read and written.
+    public long getTransferredBytes() {
+        return transferredBytes.sum();
+    }
+
+    /// @return the nanoseconds during which at least one request was outstanding.
+    public synchronized long getBusyNanos() {
+        long r = busyNanos;
+        if (busySince != 0) r += System.nanoTime() - busySince;
+        return r;
+    }
+
+    /**
+     * @return the aggregate read and write throughput across all nodes, in bytes per second of
+     * {@link #getBusyNanos busy time}; 0 if there was no request yet.
+     */
+    public double getThroughput() {
+        long nanos = getBusyNanos();
+        if (nanos == 0) return 0;
+        return getTransferredBytes() * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+
+    /// Clears the retry and throughput counters.
+    public void resetStatistics() {
+        retryCount.reset();
+        completedCount.reset();
+        transferredBytes.reset();
+        synchronized (this) {
+            busyNanos = 0;
+            if (busySince != 0) busySince = System.nanoTime();
+        }
     }
 
     /**
@@ -202,14 +377,7 @@ public class MemoryConfigurationService {
      * @throws java.lang.InterruptedException if interrupted
      */
     public void waitForTimer() throws InterruptedException {
-        final Semaphore s = new Semaphore(0);
-        retryTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                s.release();
-            }
-        }, 1);
-        s.acquire();
+        scheduler.waitForDueTimeouts();
     }
 
     private abstract static class McsRequestMemo {
@@ -220,6 +388,10 @@ public class MemoryConfigurationService {
         protected final FailureCallback failureCallback;
         boolean foundResponse = false;
         int numTries = 0;
+        /// System.nanoTime() of the last transmission.
+        long sentNanos;
+        /// Resends the request if no response arrives. Guarded by the service.
+        Scheduler.Timeout retryTimer;
 
         McsRequestMemo(NodeID dest, int requestCode, FailureCallback cb) {
             this.dest = dest;
@@ -248,6 +420,58 @@ public class MemoryConfigurationService {
          */
         protected abstract int[] renderTransmitDatagram();
 
+        /**
+         * @param response the successful response datagram, or null if the request completed
+         *                 with the datagram acknowledgement.
+         * @return the number of data bytes read or written by the request.
+         */
+        protected int getTransferLength(int[] response) {
+            return 0;
+        }
+
+        /**
+         * @param response a response datagram matching this request
+         * @return false if the request stays pending after the response arrived.
+         */
+        protected boolean completesWithResponse(int[] response) {
+            return true;
+        }
+
+        /// Called before each transmission of the request datagram.
+        protected void handleSend() {}
+
+        /**
+         * @return false if the memo detects a missing response by itself, and the request
+         * should not be resent when the response datagram does not arrive in time.
+         */
+        protected boolean retriesOnReplyTimeout() {
+            return true;
+        }
+
+        /**
+         * @return true if the node may execute the request more than once, so that it is sent
+         * again when the datagram or the response is lost.
+         */
+        protected boolean isIdempotent() {
+            return false;
+        }
+
+        /// Must be called with the lock of the service held.
+        void cancelRetry() {
+            if (retryTimer != null) {
+                retryTimer.cancel();
+                retryTimer = null;
+            }
+        }
+
+        /**
+         * Called when the request failed, after it was removed from the pending requests.
+         * @param errorCode OpenLCB error code
+         */
+        protected void handleFailure(int errorCode) {
+            failureCallback.handleFailure(errorCode);
+        }
+
     }
 
     /**
@@ -379,7 +603,7 @@ public class MemoryConfigurationService {
         @Override
         public void handleResponseDatagram(int[] data) {
             if ((data[1] & SUBCMD_ERROR) != 0) {
-                failureCallback.handleFailure(DatagramUtils.parseErrorCode(data, getPayloadOffset(data)));
+                handleFailure(DatagramUtils.parseErrorCode(data, getPayloadOffset(data)));
                 return;
             }
             handleSuccessResponse(data);
@@ -412,38 +636,71 @@ public class MemoryConfigurationService {
     }
 
     // Holds the memo pointers to all pending operations: datagrams that were sent out and are
-    // waiting a response. Must be synchronized(this) for all accesses.
-    final Map<Integer, McsRequestMemo> pendingRequests = new HashMap<>(5);
-    final Map<Integer, ArrayDeque<McsRequestMemo>> queuedRequests = new HashMap<>(5);
-
+    // waiting a response, by destination node. Must be synchronized(this) for all accesses.
+    final Map<NodeID, McsRequestMemo> pendingRequests = new HashMap<>();
+    // Requests waiting for the pending request to their node to complete, or for the
+    // concurrency limit.
+    final Map<NodeID, ArrayDeque<McsRequestMemo>> queuedRequests = new HashMap<>();
+    // Nodes that have queued requests and none pending, in the order they became ready.
+    private final ArrayDeque<NodeID> readyNodes = new ArrayDeque<>();
+    private int maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
 
     /**
-     * Tests if the given memo is in the top memo in pendingRequests for its request type. If so,
-     * pops it.
+     * Tests if the given memo is the pending memo of its destination node. If so, pops it and
+     * sends the next requests.
      * @param memo the memo to test.
      */
     private void checkAndPopMemo(McsRequestMemo memo) {
-        int rqCode = memo.getRequestCode();
+        java.util.List<McsRequestMemo> toSend;
         synchronized(this) {
-            if (pendingRequests.get(rqCode) == memo) {
-                pendingRequests.remove(memo.getRequestCode());
-                memo = null;
-                if (queuedRequests.containsKey(rqCode)) {
-                    Queue<McsRequestMemo> l = queuedRequests.get(rqCode);
-                    if (!l.isEmpty()) {
-                        memo = l.poll();
-                        pendingRequests.put(rqCode, memo);
-                    }
+            if (pendingRequests.get(memo.getDest()) == memo) {
+                pendingRequests.remove(memo.getDest());
+                memo.cancelRetry();
+                completedCount.increment();
+                ArrayDeque<McsRequestMemo> q = queuedRequests.get(memo.getDest());
+                if (q != null && !q.isEmpty()) {
+                    readyNodes.add(memo.getDest());
+                }
+                toSend = startReady();
+                if (pendingRequests.isEmpty()) {
+                    busyNanos += System.nanoTime() - busySince;
+                    busySince = 0;
                 }
             } else {
-                logger.warning("Error checking the pending request memo for code " + rqCode + " " +
-                        "expected " + memo.toString() + " actual " +
-                        pendingRequests.get(memo.getRequestCode()));
-                memo = null;
+                logger.warning("Error checking the pending request memo for node " + memo
+                        .getDest() + " expected " + memo.toString() + " actual " +
+                        pendingRequests.get(memo.getDest()));
+                toSend = null;
             }
         }
-        if (memo != null) {
-            sendRequest(memo);
+        sendRequests(toSend);
+    }
+
+    /**
+     * Moves the first queued request of the ready nodes to pending while the concurrency limit
+     * allows. Must be called with the lock held.
+     * @return the requests to send, or null.
+     */
+    private java.util.List<McsRequestMemo> startReady() {
+        java.util.List<McsRequestMemo> toSend = null;
+        while (pendingRequests.size() < maxConcurrentRequests && !readyNodes.isEmpty()) {
+            NodeID node = readyNodes.poll();
+            ArrayDeque<McsRequestMemo> q = queuedRequests.get(node);
+            McsRequestMemo memo = q.poll();
+            if (q.isEmpty()) queuedRequests.remove(node);
+            if (busySince == 0) busySince = System.nanoTime();
+            pendingRequests.put(node, memo);
+            if (toSend == null) toSend = new java.util.ArrayList<>();
+            toSend.add(memo);
+        }
+        return toSend;
+    }
+
+    /// Sends the requests returned by {@link #startReady}. Must be called without the lock held.
+    private void sendRequests(java.util.List<McsRequestMemo> toSend) {
+        if (toSend == null) return;
+        for (McsRequestMemo m : toSend) {
+            sendRequest(m);
         }
     }
 
@@ -455,7 +712,7 @@ public class MemoryConfigurationService {
      */
     private boolean isBlockingPendingQueue(McsRequestMemo memo) {
         synchronized (this) {
-            return (pendingRequests.get(memo.getRequestCode()) == memo);
+            return (pendingRequests.get(memo.getDest()) == memo);
         }
     }
 
@@ -464,29 +721,81 @@ public class MemoryConfigurationService {
      * @param memo request memo with expected response.
      */
     private void delayRetryMemo(final McsRequestMemo memo) {
+        if (!memo.isIdempotent()) {
+            // Sending it again could execute it twice; the reply timeout fails it if needed.
+            return;
+        }
         if (memo.numTries >= MAX_TRIES) {
             // TODO: add proper error code.
             checkAndPopMemo(memo);
-            memo.failureCallback.handleFailure(0x1000);
+            memo.handleFailure(0x1000);
+            return;
+        }
+        scheduleRetry(memo, roundTripEstimator.getTimeoutMillis(memo.getDest()), false);
+    }
+
+    /**
+     * Waits for the response datagram of a request the node acknowledged with reply pending.
+     * @param memo  request memo with expected response.
+     * @param flags flags of the datagram acknowledgement
+     */
+    private void startReplyTimeout(McsRequestMemo memo, int flags) {
+        if (!memo.retriesOnReplyTimeout()) return;
+        // Each timeout has doubled the timeout of the node.
+        long delay = roundTripEstimator.getTimeoutMillis(memo.getDest());
+        int exponent = flags & DatagramService.FLAG_REPLY_TIMEOUT_MASK;
+        if (exponent != 0) {
+            // The node promises the reply within 2^N seconds.
+            delay = Math.max(delay, TimeUnit.SECONDS.toMillis(1L << exponent));
+        }
+        scheduleRetry(memo, delay, true);
+    }
+
+    /**
+     * Resends a request, or fails it after the last try, unless a response arrives or the
+     * request is resent otherwise within the delay.
+     * @param memo     request memo with expected response.
+     * @param delay    milliseconds to wait
+     * @param timedOut true if the node did not respond at all, false if it sent a response
+     *                 not matching the request.
+     */
+    private void scheduleRetry(final McsRequestMemo memo, long delay, final boolean timedOut) {
+        final int tries = memo.numTries;
+        synchronized (this) {
+            if (disposed || memo.foundResponse) return;
+            memo.cancelRetry();
+            // Sends the request or calls the failure callback, which may block.
+            memo.retryTimer = scheduler.scheduleBlocking(new Runnable() {
+                @Override
+                public void run() {
+                    if (disposed || memo.foundResponse || memo.numTries != tries) return;
+                    if (!isBlockingPendingQueue(memo)) return;
+                    if (timedOut) {
+                        roundTripEstimator.backoff(memo.getDest());
+                        logger.info("No response from " + memo.getDest() + " for " + memo);
+                        if (memo.numTries >= MAX_TRIES || !memo.isIdempotent()) {
+                            checkAndPopMemo(memo);
+                            memo.handleFailure(0x1000);
+                            return;
+                        }
+                    }
+                    retryCount.increment();
+                    sendRequest(memo);
+                }
+            }, delay);
         }
-        TimerTask tt = new TimerTask() {
-            @Override
-            public void run() {
-                if (memo.foundResponse) return;
-                if (!isBlockingPendingQueue(memo)) return;
-                sendRequest(memo);
-            }
-        };
-        retryTimer.schedule(tt, timeoutMillis);
     }
 
     private void sendRequest(final McsRequestMemo memo) {
         ++memo.numTries;
+        memo.sentNanos = System.nanoTime();
+        memo.handleSend();
         downstream.sendData(new DatagramService.DatagramServiceTransmitMemo(memo.getDest(), memo.renderTransmitDatagram()) {
             @Override
             public void handleSuccess(int flags) {
                 if (memo instanceof RequestWithNoReply &&
                         ((flags & DatagramService.FLAG_REPLY_PENDING) == 0)) {
+                    transferredBytes.add(memo.getTransferLength(null));
                     checkAndPopMemo(memo);
                     ((RequestWithNoReply) memo).getNoReturnCallback().handleSuccess();
                     return;
@@ -494,12 +803,14 @@ public class MemoryConfigurationService {
                 if (memo instanceof RequestWithReplyDatagram &&
                         ((flags & DatagramService.FLAG_REPLY_PENDING) != 0)) {
                     // Leave the memo in the pending, wait for reply datagram.
+                    startReplyTimeout(memo, flags);
                     return;
                 }
                 // Now: something is fishy.
                 if (memo instanceof RequestWithReplyDatagram) {
                     logger.info("Expected reply pending, got zero.");
                     // We will still wait for a reply datagram.
+                    startReplyTimeout(memo, flags);
                     return;
                 }
                 logger.warning("The remote node wants to send a reply but we don't know how to " +
@@ -511,22 +822,46 @@ public class MemoryConfigurationService {
             @Override
             public void handleFailure(int errorCode) {
                 checkAndPopMemo(memo);
-                memo.failureCallback.handleFailure(errorCode);
+                memo.handleFailure(errorCode);
+            }
+
+            @Override
+            public void handleTimeout(int errorCode) {
+                // The datagram or its acknowledgement was lost.
+                if (memo.isIdempotent() && memo.numTries < MAX_TRIES && !disposed &&
+                        isBlockingPendingQueue(memo)) {
+                    logger.info("No acknowledgement from " + memo.getDest() + " for " + memo);
+                    retryCount.increment();
+                    sendRequest(memo);
+                    return;
+                }
+                handleFailure(errorCode);
+            }
+
+            @Override
+            protected boolean isIdempotent() {
+                return memo.isIdempotent();
             }
         });
     }
 
     public void request(McsRequestMemo memo) {
         synchronized(this) {
-            int rqCode = memo.getRequestCode();
-            if (pendingRequests.containsKey(rqCode)) {
-                if (!queuedRequests.containsKey(rqCode)) {
-                    queuedRequests.put(rqCode, new ArrayDeque<>());
+            NodeID node = memo.getDest();
+            ArrayDeque<McsRequestMemo> q = queuedRequests.get(node);
+            if (pendingRequests.containsKey(node) || q != null || pendingRequests.size() >=
+                    maxConcurrentRequests) {
+                if (q == null) {
+                    q = new ArrayDeque<>();
+                    queuedRequests.put(node, q);
+                    // Without a pending request the node waits for the concurrency limit.
+                    if (!pendingRequests.containsKey(node)) readyNodes.add(node);
                 }
-                queuedRequests.get(rqCode).add(memo);
+                q.add(memo);
                 return;
             } else {
-                pendingRequests.put(memo.getRequestCode(), memo);
+                if (busySince == 0) busySince = System.nanoTime();
+                pendingRequests.put(node, memo);
             }
         }
         sendRequest(memo);
@@ -572,6 +907,11 @@ public class MemoryConfigurationService {
             callback.handleSuccess();
         }
 
+        @Override
+        protected int getTransferLength(int[] response) {
+            return data.length;
+        }
+
         @Override
         public NoReturnCallback getNoReturnCallback() {
             return callback;
@@ -618,6 +958,11 @@ public class MemoryConfigurationService {
             return true;
         }
 
+        @Override
+        protected boolean isIdempotent() {
+            return true;
+        }
+
         @Override
         protected int getPayloadLength() {
             return 1;
@@ -635,6 +980,11 @@ public class MemoryConfigurationService {
             DatagramUtils.intToByteArray(response, 0, data, payofs, response.length);
             callback.handleReadData(dest, space, address, response);
         }
+
+        @Override
+        protected int getTransferLength(int[] response) {
+            return response == null ? 0 : response.length - getPayloadOffset(response);
+        }
     }
 
     public void requestRead(NodeID dest, int space, long address, int len, McsReadHandler
@@ -642,6 +992,283 @@ public class MemoryConfigurationService {
         request(new McsReadMemo(dest, space, address, len, cb));
     }
 
+    /// Where the stream replies go; null until stream reads are enabled.
+    private volatile Connection streamOutput = null;
+    private volatile MimicNodeStore nodeStore = null;
+    /// Stream reads by our stream ID, from the request until they complete or fail.
+    private final Map<Integer, McsReadStreamMemo> streamReads = new ConcurrentHashMap<>();
+    /// Nodes that claimed stream support but rejected or stalled a stream read, with the
+    /// System.nanoTime() until which stream reads are not tried, or STREAM_FAILED_UNTIL_INIT.
+    /// Cleared when the node reinitializes.
+    private final Map<NodeID, Long> streamReadFailed = new ConcurrentHashMap<>();
+    private volatile long streamRetryMillis = DEFAULT_STREAM_RETRY_MSEC;
+    /// Guarded by this.
+    private int nextStreamID = 1;
+
+    /// Hands the incoming stream messages to the receiver of the stream read they belong to.
+    private final MessageDecoder streamListener = new MessageDecoder() {
+        @Override
+        public void handleStreamInitiateRequest(StreamInitiateRequestMessage msg, Connection
+                sender) {
+            if (!here.equals(msg.getDestNodeID())) return;
+            McsReadStreamMemo memo = streamReads.get(msg.getDestinationStreamID() & 0xFF);
+            if (memo == null || !memo.dest.equals(msg.getSourceNodeID())) {
+                // The node may leave the stream ID to us.
+                memo = null;
+                for (McsReadStreamMemo m : streamReads.values()) {
+                    if (m.dest.equals(msg.getSourceNodeID()) && isBlockingPendingQueue(m)) {
+                        memo = m;
+                        break;
+                    }
+                }
+            }
+            if (memo != null) memo.receiver.put(msg, sender);
+        }
+
+        @Override
+        public void handleStreamDataSend(StreamDataSendMessage msg, Connection sender) {
+            if (!here.equals(msg.getDestNodeID())) return;
+            McsReadStreamMemo memo = streamReads.get(msg.getDestinationStreamID() & 0xFF);
+            if (memo != null) memo.receiver.put(msg, sender);
+        }
+
+        @Override
+        public void handleStreamDataComplete(StreamDataCompleteMessage msg, Connection sender) {
+            if (!here.equals(msg.getDestNodeID())) return;
+            McsReadStreamMemo memo = streamReads.get(msg.getDestinationStreamID() & 0xFF);
+            if (memo != null) memo.receiver.put(msg, sender);
+        }
+
+        @Override
+        public void handleInitializationComplete(InitializationCompleteMessage msg, Connection
+                sender) {
+            // Maybe with new firmware.
+            streamReadFailed.remove(msg.getSourceNodeID());
+        }
+    };
+
+    /**
+     * Allows stream reads. The returned connection has to get the incoming Stream Initiate
+     * Request, Stream Data Send, Stream Data Complete and Initialization Complete messages.
+     * @param output    where to send the stream replies
+     * @param store     tells which nodes support streams
+     * @return the connection to register for the incoming stream messages.
+     */
+    public Connection enableStreamReads(Connection output, MimicNodeStore store) {
+        nodeStore = store;
+        streamOutput = output;
+        return streamListener;
+    }
+
+    /// @return the connection for the incoming stream messages, or null if stream reads are
+    /// not enabled.
+    public Connection getStreamConnection() {
+        return streamOutput == null ? null : streamListener;
+    }
+
+    /**
+     * Tells whether reads from a node should use {@link #requestReadStream}. This is the case if
+     * stream reads are enabled, the protocol identification of the node lists streams, the node
+     * did not reject a stream read since it last initialized, and no stream read from it timed
+     * out recently (see {@link #setStreamRetryMillis}).
+     * @param dest node to read from
+     * @return true if stream reads are worth trying.
+     */
+    public boolean isStreamReadSupported(NodeID dest) {
+        MimicNodeStore store = nodeStore;
+        if (streamOutput == null || store == null) return false;
+        Long until = streamReadFailed.get(dest);
+        if (until != null) {
+            if (until == STREAM_FAILED_UNTIL_INIT || System.nanoTime() - until < 0) return false;
+            streamReadFailed.remove(dest, until);
+        }
+        ProtocolIdentification pip = store.getProtocolIdentification(dest);
+        return pip != null && pip.hasProtocol(ProtocolIdentification.Protocol.Stream);
+    }
+
+    /// @return a stream ID not used by an outstanding stream read, 1 to 254.
+    private synchronized int allocateStreamID() {
+        for (int i = 0; i < 254; i++) {
+            int id = nextStreamID;
+            nextStreamID = nextStreamID % 254 + 1;
+            if (!streamReads.containsKey(id)) return id;
+        }
+        throw new IllegalStateException("Too many stream reads outstanding");
+    }
+
+    class McsReadStreamMemo extends McsAddressedRequestMemo {
+        McsReadStreamMemo(NodeID dest, int space, long address, long count, McsReadHandler
+                cb) {
+            super(dest, SUBCMD_READ_STREAM, space, address, cb);
+            this.count = count;
+            this.callback = cb;
+            this.streamID = allocateStreamID();
+            this.receiver = new StreamReceiver(here, dest, (byte) streamID,
+                    MAX_STREAM_BUFFER_SIZE, streamOutput, new StreamReceiver.Handler() {
+                @Override
+                public void handleComplete(byte[] data) {
+                    synchronized (McsReadStreamMemo.this) {
+                        streamData = data;
+                    }
+                    tryComplete();
+                }
+            });
+        }
+
+        final long count;
+        final McsReadHandler callback;
+        final int streamID;
+        final StreamReceiver receiver;
+        /// Guarded by this.
+        boolean replyReceived = false;
+        byte[] streamData = null;
+        boolean finished = false;
+        Scheduler.Timeout timer = null;
+        /// System.nanoTime() of the last transmission or reply.
+        volatile long lastActivity = System.nanoTime();
+
+        @Override
+        public boolean equals(Object o) {
+            if (!super.equals(o)) return false;
+            if (! (o instanceof McsReadStreamMemo)) return false;
+            return this.count == ((McsReadStreamMemo) o).count;
+        }
+
+        @Override
+        protected int getPayloadLength() {
+            return 6;
+        }
+
+        @Override
+        protected void fillPayload(int[] data) {
+            int ofs = getPayloadOffset();
+            data[ofs] = 0xFF; // source stream ID is chosen by the node
+            data[ofs + 1] = streamID;
+            DatagramUtils.renderLong(data, ofs + 2, count);
+        }
+
+        @Override
+        protected boolean completesWithResponse(int[] response) {
+            return (response[1] & SUBCMD_ERROR) != 0;
+        }
+
+        @Override
+        protected boolean retriesOnReplyTimeout() {
+            // The inactivity timeout covers the response datagram too.
+            return false;
+        }
+
+        @Override
+        protected void handleSend() {
+            lastActivity = System.nanoTime();
+            synchronized (this) {
+                if (timer == null) scheduleTimeout(timeoutMillis);
+            }
+        }
+
+        /// Must be called with the lock held.
+        private void scheduleTimeout(long delay) {
+            timer = scheduler.scheduleBlocking(new Runnable() {
+                @Override
+                public void run() {
+                    checkTimeout();
+                }
+            }, delay);
+        }
+
+        private void checkTimeout() {
+            long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - Math.max
+                    (lastActivity, receiver.getLastActivity()));
+            synchronized (this) {
+                if (finished || disposed) return;
+                if (idle < timeoutMillis) {
+                    scheduleTimeout(timeoutMillis - idle);
+                    return;
+                }
+                finish();
+            }
+            logger.warning("Stream read timed out: " + this + " after " + receiver.getCount() +
+                    " bytes");
+            checkAndPopMemo(this);
+            failed(0x1000);
+        }
+
+        @Override
+        protected void handleSuccessResponse(int[] data) {
+            synchronized (this) {
+                replyReceived = true;
+            }
+            lastActivity = System.nanoTime();
+            tryComplete();
+        }
+
+        /// Completes the read once both the reply datagram and the stream have arrived.
+        private void tryComplete() {
+            synchronized (this) {
+                if (!replyReceived || streamData == null || !finish()) return;
+            }
+            checkAndPopMemo(this);
+            transferredBytes.add(streamData.length);
+            callback.handleReadData(dest, space, address, streamData);
+        }
+
+        /// @return true if this call finished the memo. Must be called with the lock held.
+        private boolean finish() {
+            if (finished) return false;
+            finished = true;
+            streamReads.remove(streamID);
+            if (timer != null) timer.cancel();
+            return true;
+        }
+
+        @Override
+        protected void handleFailure(int errorCode) {
+            synchronized (this) {
+                if (!finish()) return;
+            }
+            failed(errorCode);
+        }
+
+        private void failed(int errorCode) {
+            if ((errorCode & 0xFFF0) == 0x1040) {
+                // not implemented
+                streamReadFailed.put(dest, STREAM_FAILED_UNTIL_INIT);
+            } else if (errorCode == 0x1000) {
+                // stalled, maybe only because the node was busy
+                streamReadFailed.put(dest, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(
+                        streamRetryMillis));
+            }
+            super.handleFailure(errorCode);
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + " count 0x" + Long.toHexString(count) + " stream " +
+                    streamID;
+        }
+    }
+
+    /**
+     * Reads from a memory space with a stream. The data arrives in large windows, so this is
+     * much faster than datagram reads for more than a few hundred bytes. Use only if {@link
+     * #isStreamReadSupported} is true, and fall back to datagram reads on failure.
+     * @param dest    node to read from
+     * @param space   memory space
+     * @param address where to start reading
+     * @param count   how many bytes to read, or {@link #STREAM_READ_TO_END}. The node may
+     *                return fewer bytes at the end of the space.
+     * @param cb      gets the data, or the failure
+     */
+    public void requestReadStream(NodeID dest, int space, long address, long count,
+                                  McsReadHandler cb) {
+        if (streamOutput == null) {
+            throw new IllegalStateException("Stream reads are not enabled");
+        }
+        McsReadStreamMemo memo = new McsReadStreamMemo(dest, space, address, count, cb);
+        streamReads.put(memo.streamID, memo);
+        request(memo);
+    }
+
 
 /*    McsReadMemo readMemo;
     Stack<McsReadMemo> pendingReads = new Stack<>();
@@ -666,7 +1293,9 @@ public class MemoryConfigurationService {
         // forward as write Datagram
                                       //System.out.println("writeStreamMemo: "+memo.dest+","+memo.space+","+memo.address);
                                       // System.out.println("writeStreamMemo: "+memo.dest);
-        writeStreamMemo = memo;
+        synchronized (this) {
+            writeStreamMemo = memo;
+        }
         WriteStreamMemo dg = new WriteStreamMemo(memo.dest, memo.space, memo.address, memo.srcStreamId,
                 memo);
         downstream.sendData(dg);
@@ -675,7 +1304,9 @@ public class MemoryConfigurationService {
     McsConfigMemo configMemo;
     public void request(McsConfigMemo memo) {
         // forward as read Datagram
-        configMemo = memo;
+        synchronized (this) {
+            configMemo = memo;
+        }
         ConfigDatagramMemo dg = new ConfigDatagramMemo(memo.dest, memo);
         downstream.sendData(dg);
     }
@@ -683,7 +1314,9 @@ public class MemoryConfigurationService {
     McsAddrSpaceMemo addrSpaceMemo;
     public void request(McsAddrSpaceMemo memo) {
         // forward as read Datagram
-        addrSpaceMemo = memo;
+        synchronized (this) {
+            addrSpaceMemo = memo;
+        }
         AddrSpaceDatagramMemo dg = new AddrSpaceDatagramMemo(memo.dest, memo);
         downstream.sendData(dg);
     }
@@ -771,13 +1404,17 @@ public class MemoryConfigurationService {
             if (0 != (flags & DatagramService.FLAG_REPLY_PENDING)) {
                 return;
             }
-            writeStreamMemo = null;
+            synchronized (MemoryConfigurationService.this) {
+                writeStreamMemo = null;
+            }
             memo.handleSuccess();
         }
 
         @Override
         public void handleFailure(int errorCode) {
-            writeStreamMemo = null;
+            synchronized (MemoryConfigurationService.this) {
+                writeStreamMemo = null;
+            }
             memo.handleFailure("TxDatagram", errorCode);
         }
     }
@@ -954,6 +1591,7 @@ public class MemoryConfigurationService {
 
 
     public void dispose(){
-       retryTimer.cancel();
+       // The scheduler may be shared; the pending retries see the flag and do nothing.
+       disposed = true;
     }
 }
@@ -0,0 +1,249 @@
+package org.openlcb.implementations;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+import org.openlcb.NodeID;
+
+/**
+ * Estimates the round trip time to each remote node and derives retry timeouts from it, the
+ * way TCP does (Jacobson/Karels, RFC 6298).
+ * <p>
+ * Each node has a smoothed round trip time (SRTT) and a round trip variation (RTTVAR). The
+ * timeout is SRTT + 4 * RTTVAR, limited to the floor and ceiling. Until the first sample of a
+ * node the initial timeout is used. Every timeout doubles the node's timeout (up to the
+ * ceiling) until the next sample, so a node that is slower than its estimate is not timed out
+ * over and over. Callers should not sample the replies of retransmitted requests, as it is
+ * unknown which transmission they answer (Karn's algorithm).
+ */
+@ThreadSafe
+public class RoundTripEstimator {
+    /// Timeout of nodes without a sample, in milliseconds.
+    public final static long DEFAULT_INITIAL_TIMEOUT = 3000;
+    /// Shortest timeout, in milliseconds.
+    public final static long DEFAULT_MIN_TIMEOUT = 200;
+    /// Longest timeout, in milliseconds.
+    public final static long DEFAULT_MAX_TIMEOUT = 20000;
+    /// Smallest variation term; covers the timer granularity.
+    private final static long MIN_VARIATION_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    /// Backoff beyond this many doublings would not fit the ceiling anyway.
+    private final static int MAX_BACKOFF = 16;
+
+    /**
+     * The estimate of one node.
+     */
+    @Immutable
+    public static class Estimate {
+        private final long smoothedNanos;
+        private final long variationNanos;
+        private final long timeoutMillis;
+        private final int backoff;
+        private final long samples;
+
+        Estimate(long smoothedNanos, long variationNanos, long timeoutMillis, int backoff,
+                 long samples) {
+            this.smoothedNanos = smoothedNanos;
+            this.variationNanos = variationNanos;
+            this.timeoutMillis = timeoutMillis;
+            this.backoff = backoff;
+            this.samples = samples;
+        }
+
+        /// @return the smoothed round trip time in milliseconds; 0 without samples.
+        public double getSmoothedRttMillis() {
+            return smoothedNanos / 1e6;
+        }
+
+        /// @return the round trip time variation in milliseconds; 0 without samples.
+        public double getRttVariationMillis() {
+            return variationNanos / 1e6;
+        }
+
+        /// @return the timeout of the next transmission, in milliseconds.
+        public long getTimeoutMillis() {
+            return timeoutMillis;
+        }
+
+        /// @return how many times the timeout was doubled since the last sample.
+        public int getBackoff() {
+            return backoff;
+        }
+
+        /// @return the number of round trips measured.
+        public long getSampleCount() {
+            return samples;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(java.util.Locale.ROOT, "srtt %.1f ms rttvar %.1f ms timeout " +
+                    "%d ms backoff %d samples %d", getSmoothedRttMillis(),
+                    getRttVariationMillis(), timeoutMillis, backoff, samples);
+        }
+    }
+
+    /**
+     * Mutable state of one node. Guarded by the estimator.
+     */
+    private static class Node {
+        long smoothedNanos = 0;
+        long variationNanos = 0;
+        int backoff = 0;
+        long samples = 0;
+    }
+
+    private final Map<NodeID, Node> nodes = new HashMap<>();
+    private long initialMillis = DEFAULT_INITIAL_TIMEOUT;
+    private long minMillis = DEFAULT_MIN_TIMEOUT;
+    private long maxMillis = DEFAULT_MAX_TIMEOUT;
+
+    /**
+     * Sets the limits of the timeouts.
+     * @param initialMillis timeout of nodes without a sample
+     * @param minMillis     floor of the timeouts
+     * @param maxMillis     ceiling of the timeouts, including the backoff
+     */
+    public synchronized void setLimits(long initialMillis, long minMillis, long maxMillis) {
+        if (minMillis < 1 || maxMillis < minMillis) {
+            throw new IllegalArgumentException("Invalid timeout limits " + minMillis + ".." +
+                    maxMillis);
+        }
+        this.initialMillis = initialMillis;
+        this.minMillis = minMillis;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Uses the same timeout for every node and attempt, as before the estimator existed.
+     * @param millis the timeout
+     */
+    public void setFixedTimeout(long millis) {
+        setLimits(millis, millis, millis);
+    }
+
+    public synchronized long getInitialTimeoutMillis() {
+        return initialMillis;
+    }
+
+    public synchronized long getMinTimeoutMillis() {
+        return minMillis;
+    }
+
+    public synchronized long getMaxTimeoutMillis() {
+        return maxMillis;
+    }
+
+    /**
+     * Records a measured round trip and clears the backoff of the node.
+     * @param node  the remote node
+     * @param nanos time from sending the request to the reply
+     */
+    public synchronized void sample(NodeID node, long nanos) {
+        if (node == null || nanos < 0) return;
+        Node n = nodes.get(node);
+        if (n == null) {
+            n = new Node();
+            nodes.put(node, n);
+        }
+        if (n.samples == 0) {
+            n.smoothedNanos = nanos;
+            n.variationNanos = nanos / 2;
+        } else {
+            n.variationNanos += (Math.abs(n.smoothedNanos - nanos) - n.variationNanos) / 4;
+            n.smoothedNanos += (nanos - n.smoothedNanos) / 8;
+        }
+        n.samples++;
+        n.backoff = 0;
+    }
+
+    /**
+     * Records a timeout: the following timeouts of the node are doubled until the next sample.
+     * @param node the remote node
+     */
+    public synchronized void backoff(NodeID node) {
+        if (node == null) return;
+        Node n = nodes.get(node);
+        if (n == null) {
+            n = new Node();
+            nodes.put(node, n);
+        }
+        if (n.backoff < MAX_BACKOFF) n.backoff++;
+    }
+
+    /**
+     * @param node the remote node
+     * @return the timeout of the next transmission to the node, including the backoff after
+     * timeouts, in milliseconds.
+     */
+    public synchronized long getTimeoutMillis(NodeID node) {
+        Node n = nodes.get(node);
+        return timeout(n, n == null ? 0 : n.backoff);
+    }
+
+    /// Must be called with the lock held.
+    private long timeout(Node n, int backoff) {
+        long base;
+        if (n == null || n.samples == 0) {
+            base = initialMillis;
+        } else {
+            base = TimeUnit.NANOSECONDS.toMillis(n.smoothedNanos + Math.max(MIN_VARIATION_NANOS,
+                    4 * n.variationNanos));
+        }
+        base = Math.max(minMillis, Math.min(maxMillis, base));
+        backoff = Math.min(backoff, MAX_BACKOFF);
+        return Math.min(maxMillis, base << backoff);
+    }
+
+    /**
+     * @param node the remote node
+     * @return the estimate of the node, or null if it had neither samples nor timeouts.
+     */
+    public synchronized Estimate getEstimate(NodeID node) {
+        Node n = nodes.get(node);
+        if (n == null) return null;
+        return new Estimate(n.smoothedNanos, n.variationNanos, timeout(n, n.backoff), n
+                .backoff, n.samples);
+    }
+
+    /// @return the estimates of all nodes seen, by node ID.
+    public synchronized Map<NodeID, Estimate> getEstimates() {
+        Map<NodeID, Estimate> r = new HashMap<>();
+        for (Map.Entry<NodeID, Node> e : nodes.entrySet()) {
+            Node n = e.getValue();
+            r.put(e.getKey(), new Estimate(n.smoothedNanos, n.variationNanos, timeout(n, n
+                    .backoff), n.backoff, n.samples));
+        }
+        return r;
+    }
+
+    /// @return the current timeout of each node seen, in milliseconds, by node ID string.
+    public synchronized Map<String, Long> getTimeoutsByNode() {
+        Map<String, Long> r = new TreeMap<>();
+        for (Map.Entry<NodeID, Node> e : nodes.entrySet()) {
+            Node n = e.getValue();
+            r.put(e.getKey().toString(), timeout(n, n.backoff));
+        }
+        return r;
+    }
+
+    /// @return the smoothed round trip time of each node sampled, in milliseconds, by node ID
+    /// string.
+    public synchronized Map<String, Double> getSmoothedRttByNode() {
+        Map<String, Double> r = new TreeMap<>();
+        for (Map.Entry<NodeID, Node> e : nodes.entrySet()) {
+            Node n = e.getValue();
+            if (n.samples == 0) continue;
+            r.put(e.getKey().toString(), n.smoothedNanos / 1e6);
+        }
+        return r;
+    }
+
+    /// Forgets all estimates.
+    public synchronized void reset() {
+        nodes.clear();
+    }
+}
@@ -1,35 +1,124 @@
 package org.openlcb.implementations;
 
+import java.util.Arrays;
+
 import org.openlcb.*;
 
 /**
- * Example of receiving a OpenLCB stream.
+ * Receives an OpenLCB stream from one remote node.
+ *<p>
+ * Accepts the Stream Initiate Request of the remote node, shrinking the buffer size to our
+ * limit, collects the data of the Stream Data Send messages, sends a Stream Data Proceed each
+ * time a whole buffer of data has arrived, and hands the data to the handler when the Stream
+ * Data Complete message arrives.
  *<p>
+ * Messages from other nodes, or for other streams, are ignored, so the receiver can be given
+ * all the stream messages of an interface.
  *
  * @author  Bob Jacobsen   Copyright 2009
  * @version $Revision$
  */
 public class StreamReceiver extends MessageDecoder {
+    /**
+     * Gets the data of a completed stream.
+     */
+    public interface Handler {
+        /**
+         * Called once, when the sender has completed the stream.
+         * @param data all the bytes received on the stream.
+         */
+        void handleComplete(byte[] data);
+    }
+
     public StreamReceiver(NodeID here, NodeID far, Connection c) {
+        this(here, far, (byte) 3, 0, c, null);  //  notional stream ID
+    }
+
+    /**
+     * @param here          our node ID
+     * @param far           the node sending the stream
+     * @param destStreamID  our stream ID; the initiate request may propose it, or leave it to
+     *                      us with 0 or 0xFF.
+     * @param maxBufferSize largest buffer size to accept; 0 to accept what the sender
+     *                      requests.
+     * @param c             where to send the replies
+     * @param handler       gets the data when the stream is complete; may be null.
+     */
+    public StreamReceiver(NodeID here, NodeID far, byte destStreamID, int maxBufferSize,
+                          Connection c, Handler handler) {
         this.here = here;
         this.far = far;
+        this.destStreamID = destStreamID;
+        this.maxBufferSize = maxBufferSize;
         this.connection = c;
+        this.handler = handler;
     }
-    
+
     NodeID here;
     NodeID far;
     Connection connection;
+    final Handler handler;
+    final int maxBufferSize;
 
     byte sourceStreamID;
-    byte destStreamID = 3;  //  notional value
+    byte destStreamID;
+    /// Negotiated buffer size; 0 until the stream is initiated.
+    int bufferSize = 0;
+    /// Data received so far; the first count bytes are valid.
+    byte[] data = new byte[0];
+    int count = 0;
+    /// Bytes received since the last proceed.
+    int windowCount = 0;
+    boolean complete = false;
+    /// System.nanoTime() of the last stream message from the sender.
+    volatile long lastActivity = System.nanoTime();
+
+    public NodeID getFarNode() {
+        return far;
+    }
+
+    public byte getDestinationStreamID() {
+        return destStreamID;
+    }
+
+    /// @return the negotiated buffer size, or 0 if the stream was not initiated yet.
+    public synchronized int getBufferSize() {
+        return bufferSize;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /// @return System.nanoTime() when the last message of this stream arrived.
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    private boolean isOurs(Message msg, byte streamID) {
+        return far.equals(msg.getSourceNodeID()) && streamID == destStreamID;
+    }
 
     /**
      * Handle "Stream Init Request" message
      */
+    @Override
     public void handleStreamInitiateRequest(StreamInitiateRequestMessage msg, Connection sender){
-        // send reply with same length
-        int len = msg.getBufferSize();
-        sourceStreamID = msg.getSourceStreamID();
+        if (!far.equals(msg.getSourceNodeID())) return;
+        byte proposed = msg.getDestinationStreamID();
+        if (proposed != destStreamID && proposed != 0 && proposed != (byte) 0xFF) return;
+        int len;
+        synchronized (this) {
+            len = msg.getBufferSize();
+            if (maxBufferSize > 0 && len > maxBufferSize) len = maxBufferSize;
+            bufferSize = len;
+            sourceStreamID = msg.getSourceStreamID();
+            lastActivity = System.nanoTime();
+        }
 
         Message m = new StreamInitiateReplyMessage(here, far, len, sourceStreamID, destStreamID);
         connection.put(m, this);
@@ -38,10 +127,48 @@ public class StreamReceiver extends MessageDecoder {
     /**
      * Handle "Stream Data Send" message
      */
+    @Override
     public void handleStreamDataSend(StreamDataSendMessage msg, Connection sender){
-        // send proceed reply
-        Message m = new StreamDataProceedMessage(here, far, sourceStreamID, destStreamID);
-        connection.put(m, this);
+        if (!isOurs(msg, msg.getDestinationStreamID())) return;
+        int proceeds = 0;
+        synchronized (this) {
+            if (bufferSize == 0 || complete) return;
+            lastActivity = System.nanoTime();
+            int[] payload = msg.getData();
+            if (count + payload.length > data.length) {
+                data = Arrays.copyOf(data, Math.max(count + payload.length, data.length * 2));
+            }
+            for (int i = 0; i < payload.length; i++) {
+                data[count++] = (byte) payload[i];
+            }
+            windowCount += payload.length;
+            // The sender may have several messages in one window; proceed only when the
+            // whole window arrived.
+            while (windowCount >= bufferSize) {
+                windowCount -= bufferSize;
+                ++proceeds;
+            }
+        }
+        for (int i = 0; i < proceeds; i++) {
+            Message m = new StreamDataProceedMessage(here, far, sourceStreamID, destStreamID);
+            connection.put(m, this);
+        }
+    }
+
+    /**
+     * Handle "Stream Data Complete" message
+     */
+    @Override
+    public void handleStreamDataComplete(StreamDataCompleteMessage msg, Connection sender){
+        if (!isOurs(msg, msg.getDestinationStreamID())) return;
+        byte[] result;
+        synchronized (this) {
+            if (bufferSize == 0 || complete) return;
+            lastActivity = System.nanoTime();
+            complete = true;
+            result = Arrays.copyOf(data, count);
+        }
+        if (handler != null) handler.handleComplete(result);
     }
 
 }
@@ -9,6 +9,9 @@ import org.openlcb.*;
  * from a fixed-size input array.  The protocol
  * permits continuous transmission, but this class
  * is not intended to implement that.
+ *<p>
+ * Replies from other nodes, or for other streams, are ignored, so
+ * the transmitter can be given all the stream messages of an interface.
  *
  * @author  Bob Jacobsen   Copyright 2009
  * @version $Revision$
@@ -16,17 +19,31 @@ import org.openlcb.*;
 public class StreamTransmitter extends MessageDecoder {
 
     public StreamTransmitter(NodeID here, NodeID far, int bufferSize, int[] bytes, Connection c) {
+        // The destination stream ID is left to the receiver.
+        this(here, far, bufferSize, bytes, (byte) 4, (byte) 0, c);  // notional source ID
+    }
+
+    /**
+     * @param here           our node ID
+     * @param far            the node receiving the stream
+     * @param bufferSize     buffer size to propose; the receiver may shrink it
+     * @param bytes          the data to send
+     * @param sourceStreamID our stream ID
+     * @param destStreamID   stream ID to propose to the receiver, e.g. the one given in a
+     *                       memory configuration read stream command; 0 to leave it to the
+     *                       receiver.
+     * @param c              where to send the messages
+     */
+    public StreamTransmitter(NodeID here, NodeID far, int bufferSize, int[] bytes,
+                             byte sourceStreamID, byte destStreamID, Connection c) {
         //System.out.println("StreamTransmitter");
         this.here = here;
         this.far = far;
         this.bufferSize = bufferSize;
         this.bytes = bytes;
         this.connection = c;
-        
-        // We need to set destStreamID before we set it,  Not setting it is
-        // a high priorty error identified by spotbugs.  The value here may 
-        // not be right, but we don't have a value passed to this method.
-        destStreamID = 0;
+        this.sourceStreamID = sourceStreamID;
+        this.destStreamID = destStreamID;
 
         // start negotiation
         StreamInitiateRequestMessage m = new StreamInitiateRequestMessage(here, far, bufferSize, sourceStreamID, destStreamID);
@@ -39,15 +56,33 @@ public class StreamTransmitter extends MessageDecoder {
     int[] bytes;
     Connection connection;
     int nextIndex;
+    boolean done = false;
     
     byte destStreamID;
-    byte sourceStreamID = 4;  // notional value
+    byte sourceStreamID;
+
+    private boolean isOurs(Message msg, byte streamID) {
+        return far.equals(msg.getSourceNodeID()) && streamID == sourceStreamID;
+    }
+
+    /// @return true once the stream was completed or rejected.
+    public synchronized boolean isDone() {
+        return done;
+    }
     
     /**
      * Handle "Stream Init Reply" message
      */
-    public void handleStreamInitiateReply(StreamInitiateReplyMessage msg, Connection sender){
+    @Override
+    public synchronized void handleStreamInitiateReply(StreamInitiateReplyMessage msg,
+                                                       Connection sender){
         //System.out.println("StreamTransmitter handleStreamInitiateReply");
+        if (!isOurs(msg, msg.getSourceStreamID()) || done) return;
+        if (msg.getBufferSize() == 0) {
+            // rejected
+            done = true;
+            return;
+        }
         // pick up buffer size to use
         this.bufferSize = msg.getBufferSize();
         this.destStreamID = msg.getDestinationStreamID();
@@ -76,6 +111,7 @@ public class StreamTransmitter extends MessageDecoder {
         if (nextIndex < bytes.length) return; // no, wait for Data Proceed message
         
         // yes, say we're done
+        done = true;
         m = new StreamDataCompleteMessage(here, far, sourceStreamID, destStreamID);
         connection.put(m, this);
     }
@@ -83,8 +119,11 @@ public class StreamTransmitter extends MessageDecoder {
     /**
      * Handle "Stream Data Proceed" message
      */
-    public void handleStreamDataProceed(StreamDataProceedMessage msg, Connection sender){
+    @Override
+    public synchronized void handleStreamDataProceed(StreamDataProceedMessage msg,
+                                                     Connection sender){
         //System.out.println("StreamTransmitter handleStreamDataProceed");
+        if (!isOurs(msg, msg.getSourceStreamID()) || done) return;
         sendNext();
     }
     
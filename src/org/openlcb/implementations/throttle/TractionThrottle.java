@@ -1,6 +1,7 @@
 package org.openlcb.implementations.throttle;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -9,6 +10,7 @@ import javax.annotation.Nullable;
 import org.openlcb.Connection;
 import org.openlcb.Message;
 import org.openlcb.MessageDecoder;
+import org.openlcb.MessageTypeIdentifier;
 import org.openlcb.NodeID;
 import org.openlcb.OlcbInterface;
 import org.openlcb.implementations.VersionedValue;
@@ -106,7 +108,7 @@ public class TractionThrottle extends MessageDecoder {
         iface.getOutputConnection().put(m, this);
         assigned = false;
         setEnabled(false);
-        iface.unRegisterMessageListener(this);
+        iface.unRegisterNodeMessageListener(this);
         setStatus("Released node.");
     }
 
@@ -118,7 +120,8 @@ public class TractionThrottle extends MessageDecoder {
 
     private void assign() {
         setStatus("Assigning node...");
-        iface.registerMessageListener(this);
+        iface.registerNodeMessageListener(trainNode.getNodeId(), EnumSet.of
+                (MessageTypeIdentifier.TractionControlReply), this);
         pendingAssign = true;
         Message m = TractionControlRequestMessage.createAssignController(iface.getNodeId(),
                 trainNode.getNodeId());
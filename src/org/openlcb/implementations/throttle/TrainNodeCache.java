@@ -1,8 +1,11 @@
 package org.openlcb.implementations.throttle;
 
+import java.util.EnumSet;
+
 import org.openlcb.CommonIdentifiers;
 import org.openlcb.Connection;
 import org.openlcb.IdentifyProducersMessage;
+import org.openlcb.MessageTypeIdentifier;
 import org.openlcb.MimicNodeStore;
 import org.openlcb.NodeID;
 import org.openlcb.OlcbInterface;
@@ -20,7 +23,10 @@ public class TrainNodeCache extends AbstractNodeCache<RemoteTrainNode> {
     public TrainNodeCache(OlcbInterface _iface) {
         super(CommonIdentifiers.IS_TRAIN);
         iface = _iface;
-        iface.registerMessageListener(this);
+        iface.registerMessageListener(this, EnumSet.of(MessageTypeIdentifier
+                .ProducerConsumerEventReport, MessageTypeIdentifier.ProducerIdentifiedValid,
+                MessageTypeIdentifier.ProducerIdentifiedInvalid, MessageTypeIdentifier
+                .ProducerIdentifiedUnknown));
         // Sends a query to all train nodes on the network.
         iface.getOutputConnection().registerStartNotification(new ConnectionListener() {
             @Override
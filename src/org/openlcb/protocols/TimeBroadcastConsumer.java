@@ -30,7 +30,8 @@ public class TimeBroadcastConsumer extends DefaultPropertyListenerSupport implem
         this.clock = clock;
         this.timeKeeper = new TimeKeeper();
         this.iface = iface;
-        iface.registerMessageListener(messageHandler);
+        iface.registerEventRangeListener(TimeProtocol.createClockEvent(clock, 0), TimeProtocol
+                .createClockEvent(clock, 0xFFFF), messageHandler);
         iface.getOutputConnection().registerStartNotification(new Connection.ConnectionListener() {
             @Override
             public void connectionActive(Connection c) {
@@ -74,7 +75,7 @@ public class TimeBroadcastConsumer extends DefaultPropertyListenerSupport implem
 
     /// De-registers message listeners to prepare for deallocating this object.
     public void dispose() {
-        iface.unRegisterMessageListener(messageHandler);
+        iface.unRegisterEventListener(messageHandler);
     }
 
     public NodeID getClockID() {
@@ -13,12 +13,12 @@ import org.openlcb.OlcbInterface;
 import org.openlcb.ProducerConsumerEventReportMessage;
 import org.openlcb.ProducerIdentifiedMessage;
 import org.openlcb.ProducerRangeIdentifiedMessage;
+import org.openlcb.Scheduler;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.Calendar;
-import java.util.Date;
+import java.util.EnumSet;
 import java.util.TimeZone;
-import java.util.TimerTask;
 
 import static org.openlcb.MessageTypeIdentifier.ConsumerRangeIdentified;
 import static org.openlcb.MessageTypeIdentifier.ProducerConsumerEventReport;
@@ -38,7 +38,7 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
         this.timeKeeper = new TimeKeeper();
         this.fastDayLastAnnounced = timeKeeper.matchingFastTime;
         this.iface = iface;
-        iface.registerMessageListener(messageHandler);
+        iface.registerMessageListener(messageHandler, EnumSet.of(ProducerConsumerEventReport));
         iface.getOutputConnection().registerStartNotification(new Connection.ConnectionListener() {
             @Override
             public void connectionActive(Connection c) {
@@ -55,6 +55,10 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
         if (delayedSyncTask != null) {
             delayedSyncTask.cancel();
         }
+        if (midnightTimeout != null) {
+            midnightTimeout.cancel();
+        }
+        midnightTask = null;
         iface.unRegisterMessageListener(messageHandler);
     }
 
@@ -156,7 +160,7 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
             delayedSyncTask.cancel();
             delayedSyncTask = null;
         }
-        delayedSyncTask = new TimerTask() {
+        delayedSyncTask = iface.getScheduler().scheduleBlocking(new Runnable() {
             @Override
             public void run() {
                 synchronized(TimeBroadcastGenerator.this) {
@@ -164,8 +168,7 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
                 }
                 triggerClockSyncNow();
             }
-        };
-        iface.getTimer().schedule(delayedSyncTask, RESYNC_DELAY_MSEC);
+        }, RESYNC_DELAY_MSEC);
         // @todo.
     }
 
@@ -199,9 +202,11 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
     /// Internal implementation for the current (fast) time.
     TimeKeeper timeKeeper;
     /// Timer task used for delaying a sync.
-    TimerTask delayedSyncTask = null;
+    Scheduler.Timeout delayedSyncTask = null;
     /// Timer task used to announce midnight
-    private TimerTask midnightTask = null;
+    private Runnable midnightTask = null;
+    /// Handle for cancelling midnightTask.
+    private Scheduler.Timeout midnightTimeout = null;
     /// Real-time at which the current midnight task is scheduled.
     private long midnightScheduledTime = 0;
     /// Current day (by fast time) for the purpose of midnight announcements. This changes exactly
@@ -276,19 +281,20 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
         }
         if (desiredTime == midnightScheduledTime) return; // no need to change.
         if (midnightTask != null) {
-            midnightTask.cancel();
+            midnightTimeout.cancel();
             midnightTask = null;
         }
         midnightScheduledTime = 0;
         if (desiredTime == 0) return;
-        midnightTask = new TimerTask() {
+        midnightTask = new Runnable() {
             @Override
             public void run() {
                 announceMidnight(this);
             }
         };
         midnightScheduledTime = desiredTime;
-        iface.getTimer().schedule(midnightTask, new Date(midnightScheduledTime));
+        midnightTimeout = iface.getScheduler().scheduleBlocking(midnightTask,
+                midnightScheduledTime - System.currentTimeMillis());
     }
 
     /// Updates internal state and property change listeners. Does not talk to the bus.
@@ -305,7 +311,7 @@ public class TimeBroadcastGenerator extends DefaultPropertyListenerSupport imple
         firePropertyChange(TimeProtocol.PROP_TIME_UPDATE, oldTime, newTime);
     }
 
-    private synchronized void announceMidnight(TimerTask self) {
+    private synchronized void announceMidnight(Runnable self) {
         // We only run if the midnight task has not been changed from us. This is the
         // lock-protected synchronization we do to avoid outdated midnight tasks from executing.
         if (!timeKeeper.isRunning || midnightTask != self) {
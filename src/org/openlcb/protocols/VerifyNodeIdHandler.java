@@ -3,11 +3,14 @@ package org.openlcb.protocols;
 import org.openlcb.Connection;
 import org.openlcb.Message;
 import org.openlcb.MessageDecoder;
+import org.openlcb.MessageTypeIdentifier;
 import org.openlcb.NodeID;
 import org.openlcb.OlcbInterface;
 import org.openlcb.VerifiedNodeIDNumberMessage;
 import org.openlcb.VerifyNodeIDNumberMessage;
 
+import java.util.EnumSet;
+
 /**
  * Handler for verify node ID requests to the local node.
  * <p>
@@ -26,7 +29,8 @@ public class VerifyNodeIdHandler extends MessageDecoder {
     public VerifyNodeIdHandler(NodeID id, OlcbInterface iface) {
         this.iface = iface;
         this.id = id;
-        iface.registerMessageListener(this);
+        iface.registerMessageListener(this, EnumSet.of(MessageTypeIdentifier.VerifyNodeIdGlobal,
+                MessageTypeIdentifier.VerifyNodeIdAddressed));
     }
 
     @Override
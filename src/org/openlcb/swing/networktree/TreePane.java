@@ -13,8 +13,6 @@ import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import javax.swing.AbstractAction;
 import javax.swing.JButton;
@@ -34,6 +32,7 @@ import javax.swing.tree.TreeSelectionModel;
 
 import org.openlcb.Connection;
 import org.openlcb.MimicNodeStore;
+import org.openlcb.Scheduler;
 import org.openlcb.NodeID;
 import org.openlcb.SimpleNodeIdent;
 import org.openlcb.VerifyNodeIDNumberMessage;
@@ -66,8 +65,10 @@ public class TreePane extends JPanel  {
     SortOrder sortOrder = SortOrder.BY_NODE_ID;
 
     NodeID nullNode = new NodeID(new byte[]{0,0,0,0,0,0});
-    private Timer timer;
-    private boolean needResortTree = false;
+    private final Object resortLock = new Object();
+    private boolean needResortTree = false; // guarded by resortLock
+    /// Set by release(); stops the pending resorts.
+    private volatile boolean released = false;
 
     // This listener ensures that if any node's SNIP data changes we resort the visible tree.
     PropertyChangeListener resortListener = new PropertyChangeListener() {
@@ -77,13 +78,15 @@ public class TreePane extends JPanel  {
                 // This code will delay the updating of the display by a bit and coalesces update
                 // commands. This way we can ensure we don't spend too much CPU repeatedly
                 // updating the display.
-                synchronized (timer) {
+                synchronized (resortLock) {
                     needResortTree = true;
                 }
-                timer.schedule(new TimerTask() {
+                if (released) return;
+                Scheduler.getDefault().schedule(new Runnable() {
                     @Override
                     public void run() {
-                        synchronized (timer) {
+                        if (released) return;
+                        synchronized (resortLock) {
                             if (needResortTree) {
                                 SwingUtilities.invokeLater(() -> resortTree());
                                 needResortTree = false;
@@ -97,8 +100,6 @@ public class TreePane extends JPanel  {
 
     public TreePane() {
         super();
-        
-        timer = new Timer("OpenLCB Tree Pane Timer");
     }
 
     public void initComponents(MimicNodeStore store, final Connection connection,
@@ -374,6 +375,6 @@ public class TreePane extends JPanel  {
      * Cleans up all property change listeners etc in preparation when closing the window.
      */
     public void release() {
-        timer.cancel(); 
+        released = true;
     }
 }
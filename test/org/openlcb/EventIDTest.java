@@ -146,4 +146,29 @@ public class EventIDTest {
         Assert.assertEquals(-2L, new EventID(new byte[]{(byte)0xff,(byte)0xff,(byte)0xff,(byte)0xff,
                 (byte)0xff,(byte)0xff,(byte)0xff,(byte)0xfe}).toLong());
     }
+
+    @Test
+    public void testLong() {
+        EventID e1 = new EventID(new byte[]{1,2,3,4,5,6,7,(byte)0x88});
+        Assert.assertEquals(0x0102030405060788L, e1.toLong());
+        Assert.assertEquals(e1, EventID.fromLong(0x0102030405060788L));
+        Assert.assertEquals(e1.hashCode(), EventID.fromLong(0x0102030405060788L).hashCode());
+        Assert.assertEquals(0x88, e1.getByte(7));
+        Assert.assertEquals(1, e1.getByte(0));
+        Assert.assertSame(EventID.fromLong(-2L), EventID.fromLong(-2L));
+        Assert.assertEquals("EventID:FF.FF.FF.FF.FF.FF.FF.FE", EventID.fromLong(-2L).toString());
+        Assert.assertTrue(e1.startsWith(new NodeID(new byte[]{1,2,3,4,5,6})));
+        Assert.assertFalse(e1.startsWith(new NodeID(new byte[]{1,2,3,4,5,7})));
+    }
+
+    @Test
+    public void testHashSpread() {
+        // Events of the same node should not collide.
+        java.util.Set<Integer> buckets = new java.util.HashSet<>();
+        for (int i = 0; i < 256; ++i) {
+            int h = EventID.fromLong(0x0501010118000000L + (i << 16)).hashCode();
+            buckets.add((h ^ (h >>> 16)) & 255);
+        }
+        Assert.assertTrue(buckets.size() > 128);
+    }
 }
@@ -0,0 +1,50 @@
+package org.openlcb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the bucketing of the histogram.
+ */
+public class HistogramTest {
+    @Test
+    public void testBuckets() {
+        Histogram h = new Histogram();
+        h.record(0);
+        h.record(-5);
+        h.record(1);
+        h.record(2);
+        h.record(3);
+        h.record(4);
+        h.record(1000);
+        h.record(Long.MAX_VALUE / 2);
+        long[] c = h.getCounts();
+        Assert.assertEquals(2, c[0]);
+        Assert.assertEquals(1, c[1]);
+        Assert.assertEquals(2, c[2]);
+        Assert.assertEquals(1, c[3]);
+        // 512..1023
+        Assert.assertEquals(1, c[10]);
+        Assert.assertEquals(1, c[Histogram.BUCKETS - 1]);
+        Assert.assertEquals(8, h.getCount());
+
+        long[] limits = Histogram.getBucketLimits();
+        Assert.assertEquals(0, limits[0]);
+        Assert.assertEquals(1, limits[1]);
+        Assert.assertEquals(3, limits[2]);
+        Assert.assertEquals(1023, limits[10]);
+        Assert.assertEquals(Long.MAX_VALUE, limits[Histogram.BUCKETS - 1]);
+
+        h.reset();
+        Assert.assertEquals(0, h.getCount());
+        Assert.assertEquals(0, h.getMean(), 0);
+    }
+
+    @Test
+    public void testMean() {
+        Histogram h = new Histogram();
+        h.record(10);
+        h.record(20);
+        Assert.assertEquals(15, h.getMean(), 0.001);
+    }
+}
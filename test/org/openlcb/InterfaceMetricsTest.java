@@ -0,0 +1,109 @@
+package org.openlcb;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openlcb.implementations.RoundTripEstimator;
+
+/**
+ * Tests the runtime statistics of the interface.
+ */
+public class InterfaceMetricsTest extends InterfaceTestBase {
+    private final NodeID remote = new NodeID(new byte[]{5, 1, 1, 1, 3, 1});
+
+    @Test
+    public void testMessageCounts() {
+        InterfaceMetrics m = iface.getMetrics();
+        sendMessage(new VerifiedNodeIDNumberMessage(remote));
+        sendMessage(new VerifiedNodeIDNumberMessage(remote));
+        sendMessage(new ProducerConsumerEventReportMessage(remote, new EventID(
+                "05.01.01.01.03.01.00.01")));
+        Assert.assertEquals(3, m.getMessagesIn());
+        Map<String, Long> in = m.getMessagesInByType();
+        Assert.assertEquals(Long.valueOf(2), in.get("VerifiedNodeId"));
+        Assert.assertEquals(Long.valueOf(1), in.get("ProducerConsumerEventReport"));
+        Assert.assertEquals(2, in.size());
+        // The remote node and ourselves.
+        Assert.assertEquals(2, m.getNodeCount());
+
+        iface.getOutputConnection().put(new ProducerConsumerEventReportMessage(iface.getNodeId(),
+                new EventID("05.01.01.01.03.01.00.02")), null);
+        expectMessageAndNoMore(new ProducerConsumerEventReportMessage(iface.getNodeId(), new
+                EventID("05.01.01.01.03.01.00.02")));
+        // The local copy of an outgoing message is not counted as received.
+        Assert.assertEquals(3, m.getMessagesIn());
+        // Initialization complete and the event report.
+        Assert.assertEquals(2, m.getMessagesOut());
+        Assert.assertEquals(Long.valueOf(1), m.getMessagesOutByType().get(
+                "ProducerConsumerEventReport"));
+        Assert.assertEquals(0, m.getOutputQueueDepth());
+        Assert.assertTrue(m.getOutputAverageBatchSize() >= 1);
+
+        m.reset();
+        Assert.assertEquals(0, m.getMessagesIn());
+        Assert.assertEquals(0, m.getMessagesOut());
+        Assert.assertTrue(m.getMessagesInByType().isEmpty());
+    }
+
+    @Test
+    public void testDatagramRoundTrip() {
+        InterfaceMetrics m = iface.getMetrics();
+        DatagramMessage dg = new DatagramMessage(iface.getNodeId(), remote, new int[]{0x20, 1});
+        iface.getDatagramMeteringBuffer().put(dg, new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+            }
+        });
+        expectMessageAndNoMore(dg);
+        sendMessage(new DatagramRejectedMessage(remote, iface.getNodeId(), 0x210));
+        expectMessageAndNoMore(dg);
+        sendMessage(new DatagramAcknowledgedMessage(remote, iface.getNodeId()));
+        iface.getDatagramMeteringBuffer().waitForSendQueue();
+        Assert.assertEquals(2, m.getDatagramsSent());
+        Assert.assertEquals(1, m.getDatagramRetries());
+        Assert.assertEquals(0, m.getDatagramTimeouts());
+        long n = 0;
+        for (long c : m.getDatagramRoundTripHistogram()) n += c;
+        Assert.assertEquals(2, n);
+        // The acknowledgement of the retransmission is not used for the estimate.
+        Assert.assertEquals(1, iface.getDatagramMeteringBuffer().getRoundTripEstimator()
+                .getEstimate(remote).getSampleCount());
+        Assert.assertTrue(m.getDatagramSmoothedRoundTripByNode().containsKey(remote.toString()));
+        // A fast node gets the shortest timeout; datagrams that are not idempotent still wait
+        // 3 seconds.
+        Assert.assertEquals(Long.valueOf(RoundTripEstimator.DEFAULT_MIN_TIMEOUT), m
+                .getDatagramTimeoutByNode().get(remote.toString()));
+        Assert.assertEquals(0, m.getDatagramQueueDepth());
+        Assert.assertEquals(0, m.getDatagramsInFlight());
+        Assert.assertEquals(0, m.getMemoryConfigPendingRequests());
+        Assert.assertEquals(0, m.getMemoryConfigRetries());
+        Assert.assertEquals(0, m.getMemoryConfigCompletedRequests());
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        InterfaceMetrics m = iface.getMetrics();
+        ObjectName name = m.register();
+        Assert.assertNotNull(name);
+        Assert.assertSame(name, m.register());
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            Assert.assertTrue(server.isRegistered(name));
+            sendMessage(new VerifiedNodeIDNumberMessage(remote));
+            Assert.assertEquals(1L, server.getAttribute(name, "MessagesIn"));
+            Assert.assertTrue(server.getAttribute(name, "MessagesInByType") instanceof
+                    TabularData);
+            Assert.assertEquals(Histogram.BUCKETS, ((long[]) server.getAttribute(name,
+                    "HistogramBucketLimits")).length);
+        } finally {
+            m.unregister();
+        }
+        Assert.assertFalse(server.isRegistered(name));
+    }
+}
@@ -108,4 +108,43 @@ public class MessageTypeIdentifierTest  {
         Assert.assertEquals(MessageTypeIdentifier.Datagram, 
             MessageTypeIdentifier.get(MessageTypeIdentifier.Datagram.mti()));
     }
+
+    @Test
+    public void testMaskBits() {
+        // Masks are stored in a long.
+        Assert.assertTrue(MessageTypeIdentifier.values().length <= 64);
+        for (MessageTypeIdentifier item : MessageTypeIdentifier.values()) {
+            Assert.assertEquals(item.toString(), item.bit(), MessageTypeIdentifier.bitForMti(item
+                    .mti()));
+        }
+        Assert.assertEquals(0, MessageTypeIdentifier.bitForMti(0xFFFF));
+        long mask = MessageTypeIdentifier.maskOf(java.util.EnumSet.of(MessageTypeIdentifier
+                .Datagram, MessageTypeIdentifier.DatagramRejected));
+        Assert.assertTrue((mask & MessageTypeIdentifier.bitForMti(0x1C48)) != 0);
+        Assert.assertTrue((mask & MessageTypeIdentifier.bitForMti(MessageTypeIdentifier
+                .DatagramRejected.mti())) != 0);
+        Assert.assertEquals(0, mask & MessageTypeIdentifier.bitForMti(MessageTypeIdentifier
+                .DatagramReceivedOK.mti()));
+    }
+
+    @Test
+    public void testMessageMti() {
+        NodeID src = new NodeID(new byte[]{1,2,3,4,5,6});
+        NodeID dst = new NodeID(new byte[]{1,2,3,4,5,7});
+        EventID e = new EventID(new byte[]{1,2,3,4,5,6,7,8});
+        Assert.assertEquals(MessageTypeIdentifier.VerifyNodeIdGlobal.mti(), new
+                VerifyNodeIDNumberMessage(src).getMTI());
+        Assert.assertEquals(MessageTypeIdentifier.ProducerIdentifiedInvalid.mti(), new
+                ProducerIdentifiedMessage(src, e, EventState.Invalid).getMTI());
+        Assert.assertEquals(MessageTypeIdentifier.ConsumerIdentifiedUnknown.mti(), new
+                ConsumerIdentifiedMessage(src, e, EventState.Unknown).getMTI());
+        Assert.assertEquals(MessageTypeIdentifier.ConsumerRangeIdentified.mti(), new
+                ConsumerRangeIdentifiedMessage(src, e).getMTI());
+        Assert.assertEquals(MessageTypeIdentifier.IdentifyEventsGlobal.mti(), new
+                IdentifyEventsMessage(src, null).getMTI());
+        Assert.assertEquals(MessageTypeIdentifier.IdentifyEventsAddressed.mti(), new
+                IdentifyEventsMessage(src, dst).getMTI());
+        Assert.assertEquals(MessageTypeIdentifier.ProtocolSupportReply.mti(), new
+                ProtocolIdentificationReplyMessage(src, dst, 0).getMTI());
+    }
 }
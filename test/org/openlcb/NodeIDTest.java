@@ -175,4 +175,31 @@ public class NodeIDTest {
         NodeID e1 = new NodeID(new byte[]{1,0x10,0x13,0x0D,(byte)0xD0,(byte)0xAB});
         Assert.assertEquals("01.10.13.0D.D0.AB", e1.toString());
     }
+
+    @Test
+    public void testLong() {
+        NodeID e1 = new NodeID(new byte[]{1,0x10,0x13,0x0D,(byte)0xD0,(byte)0xAB});
+        Assert.assertEquals(0x0110130DD0ABL, e1.toLong());
+        Assert.assertEquals(e1, NodeID.fromLong(0x0110130DD0ABL));
+        Assert.assertEquals(e1.hashCode(), NodeID.fromLong(0x0110130DD0ABL).hashCode());
+        Assert.assertEquals(0xD0, e1.getByte(4));
+        // Upper bits are ignored.
+        Assert.assertEquals(e1, NodeID.fromLong(0xFF000110130DD0ABL));
+        // Recently used instances are reused.
+        Assert.assertSame(NodeID.fromLong(0x050101011807L), NodeID.fromLong(0x050101011807L));
+    }
+
+    @Test
+    public void testHashSpread() {
+        // Node IDs from the same manufacturer prefix should not collide.
+        java.util.Set<Integer> hashes = new java.util.HashSet<>();
+        java.util.Set<Integer> buckets = new java.util.HashSet<>();
+        for (int i = 0; i < 256; ++i) {
+            int h = NodeID.fromLong(0x050101011800L + i).hashCode();
+            hashes.add(h);
+            buckets.add((h ^ (h >>> 16)) & 255);
+        }
+        Assert.assertEquals(256, hashes.size());
+        Assert.assertTrue(buckets.size() > 128);
+    }
 }
@@ -26,6 +26,499 @@ public class OlcbInterfaceTest {
         t.dispose();
     }
 
+    private static class Counter extends AbstractConnection {
+        final java.util.List<Message> messages = new java.util.ArrayList<>();
+        public synchronized void put(Message msg, Connection node) {
+            // Ignores the messages generated by the interface itself.
+            if (msg.getSourceNodeID().equals(new NodeID(new byte[]{1,2,3,4,5,6}))) return;
+            messages.add(msg);
+        }
+    }
+
+    @Test
+    public void testEventDispatch() {
+        NodeID nodeID = new NodeID(new byte[]{1,2,3,4,5,6});
+        NodeID remote = new NodeID(new byte[]{1,2,3,4,5,7});
+        OlcbInterface t = new OlcbInterface(nodeID, new Counter());
+        Counter all = new Counter();
+        Counter exact = new Counter();
+        Counter range = new Counter();
+        t.registerMessageListener(all);
+        EventID e1 = EventID.fromLong(0x0501010118000001L);
+        EventID e2 = EventID.fromLong(0x0501010118000002L);
+        t.registerEventListener(e1, exact);
+        t.registerEventListener(e2, exact);
+        t.registerEventRangeListener(EventID.fromLong(0xFF00000000000000L), EventID.fromLong(
+                0xFF000000000000FFL), range);
+        Connection in = t.getInputConnection();
+
+        in.put(new ProducerConsumerEventReportMessage(remote, e1), null);
+        in.put(new ProducerConsumerEventReportMessage(remote, e2), null);
+        in.put(new ProducerIdentifiedMessage(remote, EventID.fromLong(0x0501010118000003L),
+                EventState.Valid), null);
+        in.put(new ProducerConsumerEventReportMessage(remote, EventID.fromLong
+                (0xFF00000000000010L)), null);
+        in.put(new ProducerConsumerEventReportMessage(remote, EventID.fromLong
+                (0xFF00000000000100L)), null);
+        Assert.assertEquals(5, all.messages.size());
+        Assert.assertEquals(2, exact.messages.size());
+        Assert.assertEquals(1, range.messages.size());
+        Assert.assertEquals(0xFF00000000000010L, ((EventMessage) range.messages.get(0))
+                .getEventID().toLong());
+
+        // Non-event messages are not delivered; identify events is delivered to everyone.
+        in.put(new VerifiedNodeIDNumberMessage(remote), null);
+        in.put(new IdentifyEventsMessage(remote, null), null);
+        Assert.assertEquals(7, all.messages.size());
+        Assert.assertEquals(3, exact.messages.size());
+        Assert.assertEquals(2, range.messages.size());
+
+        t.unRegisterEventListener(exact);
+        in.put(new ProducerConsumerEventReportMessage(remote, e1), null);
+        Assert.assertEquals(3, exact.messages.size());
+        t.dispose();
+    }
+
+    @Test
+    public void testListenerOrderAndExecutor() {
+        NodeID nodeID = new NodeID(new byte[]{1,2,3,4,5,6});
+        NodeID remote = new NodeID(new byte[]{1,2,3,4,5,7});
+        final OlcbInterface t = new OlcbInterface(nodeID, new Counter());
+        final java.util.List<String> calls = new java.util.ArrayList<>();
+        final java.util.List<Runnable> deferred = java.util.Collections.synchronizedList(new
+                java.util.ArrayList<Runnable>());
+        final Counter late = new Counter();
+        Connection first = new AbstractConnection() {
+            public void put(Message msg, Connection node) {
+                if (!msg.getSourceNodeID().equals(remote)) return;
+                calls.add("first");
+                // Registering from a callback does not affect the message being dispatched.
+                t.registerMessageListener(late);
+            }
+        };
+        Connection slow = new AbstractConnection() {
+            public void put(Message msg, Connection node) {
+                if (!msg.getSourceNodeID().equals(remote)) return;
+                calls.add("slow");
+            }
+        };
+        Connection second = new AbstractConnection() {
+            public void put(Message msg, Connection node) {
+                if (!msg.getSourceNodeID().equals(remote)) return;
+                calls.add("second");
+            }
+        };
+        int base = t.numMessageListeners();
+        t.registerMessageListener(first);
+        t.registerMessageListener(slow, new java.util.concurrent.Executor() {
+            @Override
+            public void execute(Runnable command) {
+                deferred.add(command);
+            }
+        });
+        t.registerMessageListener(second);
+        Assert.assertEquals(base + 3, t.numMessageListeners());
+
+        t.getInputConnection().put(new VerifiedNodeIDNumberMessage(remote), null);
+        Assert.assertEquals(java.util.Arrays.asList("first", "second"), calls);
+        Assert.assertEquals(0, late.messages.size());
+        Assert.assertFalse(deferred.isEmpty());
+        for (Runnable r : deferred.toArray(new Runnable[0])) {
+            r.run();
+        }
+        Assert.assertEquals(java.util.Arrays.asList("first", "second", "slow"), calls);
+
+        t.unRegisterMessageListener(first);
+        t.unRegisterMessageListener(slow);
+        t.unRegisterMessageListener(second);
+        int deferredCount = deferred.size();
+        t.getInputConnection().put(new VerifiedNodeIDNumberMessage(remote), null);
+        Assert.assertEquals(3, calls.size());
+        Assert.assertEquals(deferredCount, deferred.size());
+        Assert.assertEquals(1, late.messages.size());
+        t.dispose();
+    }
+
+    @Test
+    public void testNodeMessageDispatch() {
+        NodeID nodeID = new NodeID(new byte[]{1,2,3,4,5,6});
+        NodeID remote = new NodeID(new byte[]{1,2,3,4,5,7});
+        NodeID other = new NodeID(new byte[]{1,2,3,4,5,8});
+        OlcbInterface t = new OlcbInterface(nodeID, new Counter());
+        Counter replies = new Counter();
+        t.registerNodeMessageListener(remote, java.util.EnumSet.of(MessageTypeIdentifier
+                .DatagramReceivedOK, MessageTypeIdentifier.DatagramRejected), replies);
+        Connection in = t.getInputConnection();
+        in.put(new DatagramAcknowledgedMessage(remote, nodeID), null);
+        in.put(new DatagramRejectedMessage(remote, nodeID, 0x2000), null);
+        in.put(new DatagramAcknowledgedMessage(other, nodeID), null);
+        in.put(new VerifiedNodeIDNumberMessage(remote), null);
+        Assert.assertEquals(2, replies.messages.size());
+        Assert.assertTrue(replies.messages.get(1) instanceof DatagramRejectedMessage);
+
+        t.unRegisterNodeMessageListener(replies);
+        in.put(new DatagramAcknowledgedMessage(remote, nodeID), null);
+        Assert.assertEquals(2, replies.messages.size());
+        t.dispose();
+    }
+
+    @Test
+    public void testMessageTypeFilter() {
+        NodeID nodeID = new NodeID(new byte[]{1,2,3,4,5,6});
+        NodeID remote = new NodeID(new byte[]{1,2,3,4,5,7});
+        OlcbInterface t = new OlcbInterface(nodeID, new Counter());
+        Counter all = new Counter();
+        Counter events = new Counter();
+        Counter identified = new Counter();
+        t.registerMessageListener(all);
+        t.registerMessageListener(events, java.util.EnumSet.of(MessageTypeIdentifier
+                .ProducerConsumerEventReport));
+        t.registerMessageListener(identified, java.util.EnumSet.of(MessageTypeIdentifier
+                .ProducerIdentifiedValid, MessageTypeIdentifier.ConsumerRangeIdentified));
+        int start = t.numMessageListeners();
+        Connection in = t.getInputConnection();
+        EventID e = new EventID(new byte[]{1,2,3,4,5,6,7,8});
+        in.put(new ProducerConsumerEventReportMessage(remote, e), null);
+        in.put(new ProducerIdentifiedMessage(remote, e, EventState.Valid), null);
+        in.put(new ProducerIdentifiedMessage(remote, e, EventState.Invalid), null);
+        in.put(new ConsumerRangeIdentifiedMessage(remote, e), null);
+        in.put(new ProducerRangeIdentifiedMessage(remote, e), null);
+        in.put(new VerifiedNodeIDNumberMessage(remote), null);
+        Assert.assertEquals(6, all.messages.size());
+        Assert.assertEquals(1, events.messages.size());
+        Assert.assertEquals(2, identified.messages.size());
+        Assert.assertTrue(identified.messages.get(1) instanceof ConsumerRangeIdentifiedMessage);
+
+        t.unRegisterMessageListener(events);
+        Assert.assertEquals(start - 1, t.numMessageListeners());
+        in.put(new ProducerConsumerEventReportMessage(remote, e), null);
+        Assert.assertEquals(7, all.messages.size());
+        Assert.assertEquals(1, events.messages.size());
+        in.put(new ProducerIdentifiedMessage(remote, e, EventState.Valid), null);
+        Assert.assertEquals(3, identified.messages.size());
+        t.dispose();
+    }
+
+    /// Output connection that becomes active only when start() is called.
+    private static class DelayedStartConnection extends Counter {
+        private ConnectionListener listener;
+
+        @Override
+        public void registerStartNotification(ConnectionListener c) {
+            listener = c;
+        }
+
+        void start() {
+            listener.connectionActive(this);
+        }
+    }
+
+    @Test
+    public void testOutputPriority() {
+        NodeID nodeID = new NodeID(new byte[]{1,2,3,4,5,6});
+        NodeID remote = new NodeID(new byte[]{1,2,3,4,5,7});
+        NodeID other = new NodeID(new byte[]{1,2,3,4,5,8});
+        NodeID third = new NodeID(new byte[]{1,2,3,4,5,9});
+        NodeID train = new NodeID(new byte[]{1,2,3,4,5,10});
+        DelayedStartConnection out = new DelayedStartConnection();
+        OlcbInterface t = new OlcbInterface(nodeID, out);
+        OutputQueuePolicy policy = t.getOutputQueuePolicy();
+        Assert.assertEquals(OutputQueuePolicy.Lane.BULK, policy.getLane(new DatagramMessage
+                (other, remote, new int[]{0x20})));
+        policy.setWeight(OutputQueuePolicy.Lane.BULK, 2);
+        t.setOutputQueuePolicy(policy);
+        // Messages sent on behalf of other nodes, so that the Counter records them.
+        Connection c = t.getOutputConnection();
+        for (int i = 0; i < 10; ++i) {
+            c.put(new DatagramMessage(other, remote, new int[]{0x20, i}), null);
+        }
+        EventID e = new EventID(new byte[]{1,2,3,4,5,6,7,8});
+        // From another source, and to another destination: both may overtake the datagrams.
+        c.put(new ProducerConsumerEventReportMessage(third, e), null);
+        c.put(org.openlcb.messages.TractionControlRequestMessage.createSetSpeed(other, train,
+                true, 10.0f), null);
+        out.start();
+        t.flushSendQueue();
+        Assert.assertEquals(12, out.messages.size());
+        Assert.assertTrue(out.messages.get(0) instanceof org.openlcb.messages
+                .TractionControlRequestMessage);
+        Assert.assertTrue(out.messages.get(1) instanceof ProducerConsumerEventReportMessage);
+        Assert.assertTrue(out.messages.get(2) instanceof DatagramMessage);
+        // Bulk messages keep their order.
+        for (int i = 0; i < 10; ++i) {
+            Assert.assertEquals(i, ((DatagramMessage) out.messages.get(2 + i)).getData()[1]);
+        }
+        t.dispose();
+    }
+
+    @Test
+    public void testOutputKeepsOrderBetweenNodes() {
+        NodeID nodeID = new NodeID(new byte[]{1,2,3,4,5,6});
+        NodeID remote = new NodeID(new byte[]{1,2,3,4,5,7});
+        NodeID other = new NodeID(new byte[]{1,2,3,4,5,8});
+        DelayedStartConnection out = new DelayedStartConnection();
+        OlcbInterface t = new OlcbInterface(nodeID, out);
+        Connection c = t.getOutputConnection();
+        for (int i = 0; i < 3; ++i) {
+            c.put(new DatagramMessage(other, remote, new int[]{0x20, i}), null);
+        }
+        c.put(new StreamDataCompleteMessage(other, remote, (byte) 1, (byte) 2), null);
+        // Same destination, and global: neither may overtake the datagrams.
+        c.put(org.openlcb.messages.TractionControlRequestMessage.createSetSpeed(other, remote,
+                true, 10.0f), null);
+        c.put(new ProducerConsumerEventReportMessage(other, new EventID(new byte[]{1,2,3,4,5,6,
+                7,8})), null);
+        c.put(new DatagramAcknowledgedMessage(other, remote), null);
+        out.start();
+        t.flushSendQueue();
+        Assert.assertEquals(7, out.messages.size());
+        for (int i = 0; i < 3; ++i) {
+            Assert.assertEquals(i, ((DatagramMessage) out.messages.get(i)).getData()[1]);
+        }
+        Assert.assertTrue(out.messages.get(3) instanceof StreamDataCompleteMessage);
+        Assert.assertTrue(out.messages.get(4) instanceof org.openlcb.messages
+                .TractionControlRequestMessage);
+        Assert.assertTrue(out.messages.get(5) instanceof ProducerConsumerEventReportMessage);
+        Assert.assertTrue(out.messages.get(6) instanceof DatagramAcknowledgedMessage);
+        t.dispose();
+    }
+
+    /// Records all messages, and notifies all start listeners when start() is called.
+    private static class StartupRecorder extends AbstractConnection {
+        final java.util.List<Message> messages = java.util.Collections.synchronizedList(new
+                java.util.ArrayList<Message>());
+        private final java.util.List<ConnectionListener> listeners = new java.util.ArrayList<>();
+
+        @Override
+        public void put(Message msg, Connection node) {
+            messages.add(msg);
+        }
+
+        @Override
+        public void registerStartNotification(ConnectionListener c) {
+            listeners.add(c);
+        }
+
+        void start() {
+            for (ConnectionListener l : listeners) {
+                l.connectionActive(this);
+            }
+        }
+    }
+
+    @Test
+    public void testInitializationCompleteFirst() {
+        final NodeID nodeID = new NodeID(new byte[]{1,2,3,4,5,6});
+        final EventID e = new EventID(new byte[]{1,2,3,4,5,6,7,8});
+        StartupRecorder out = new StartupRecorder();
+        final OlcbInterface t = new OlcbInterface(nodeID, out);
+        // Event messages go to a higher priority lane than the initialization complete.
+        t.getOutputConnection().put(new ProducerIdentifiedMessage(nodeID, e, EventState.Valid),
+                null);
+        t.getOutputConnection().registerStartNotification(new Connection.ConnectionListener() {
+            @Override
+            public void connectionActive(Connection c) {
+                t.getOutputConnection().put(new ProducerConsumerEventReportMessage(nodeID, e),
+                        null);
+            }
+        });
+        out.start();
+        t.flushSendQueue();
+        Assert.assertEquals(3, out.messages.size());
+        Assert.assertTrue(out.messages.get(0) instanceof InitializationCompleteMessage);
+        Assert.assertTrue(out.messages.get(1) instanceof ProducerIdentifiedMessage);
+        Assert.assertTrue(out.messages.get(2) instanceof ProducerConsumerEventReportMessage);
+        t.dispose();
+    }
+
+    @Test
+    public void testOutputDepthLimit() throws Exception {
+        NodeID nodeID = new NodeID(new byte[]{1,2,3,4,5,6});
+        NodeID remote = new NodeID(new byte[]{1,2,3,4,5,7});
+        NodeID other = new NodeID(new byte[]{1,2,3,4,5,8});
+        DelayedStartConnection out = new DelayedStartConnection();
+        final OlcbInterface t = new OlcbInterface(nodeID, out);
+        OutputQueuePolicy policy = new OutputQueuePolicy();
+        policy.setMaxDepth(OutputQueuePolicy.Lane.BULK, 3);
+        t.setOutputQueuePolicy(policy);
+        final Connection c = t.getOutputConnection();
+        final Message m = new DatagramMessage(other, remote, new int[]{0x20});
+        for (int i = 0; i < 3; ++i) {
+            c.put(m, null);
+        }
+        Thread producer = new Thread() {
+            public void run() {
+                c.put(m, null);
+            }
+        };
+        producer.start();
+        producer.join(100);
+        // Blocked on the full lane.
+        Assert.assertTrue(producer.isAlive());
+        // Other lanes are not affected.
+        c.put(new ProducerConsumerEventReportMessage(other, new EventID(new byte[]{1,2,3,4,5,6,
+                7,8})), null);
+        out.start();
+        producer.join(5000);
+        Assert.assertFalse(producer.isAlive());
+        t.flushSendQueue();
+        Assert.assertEquals(5, out.messages.size());
+        t.dispose();
+    }
+
+    @Test
+    public void testOutputOverflowAndWritable() throws Exception {
+        NodeID nodeID = new NodeID(new byte[]{1,2,3,4,5,6});
+        NodeID other = new NodeID(new byte[]{1,2,3,4,5,8});
+        DelayedStartConnection out = new DelayedStartConnection();
+        OlcbInterface t = new OlcbInterface(nodeID, out);
+        final java.util.List<Object> writable = java.util.Collections.synchronizedList(new java
+                .util.ArrayList<>());
+        t.addPropertyChangeListener(new java.beans.PropertyChangeListener() {
+            public void propertyChange(java.beans.PropertyChangeEvent e) {
+                Assert.assertEquals(OlcbInterface.UPDATE_PROP_WRITABLE, e.getPropertyName());
+                writable.add(e.getNewValue());
+            }
+        });
+        OutputQueuePolicy policy = new OutputQueuePolicy();
+        policy.setMaxDepth(OutputQueuePolicy.Lane.EVENT, 3);
+        policy.setOverflow(OutputQueuePolicy.Lane.EVENT, OutputQueuePolicy.Overflow.FAIL);
+        policy.setReplace(OutputQueuePolicy.Lane.EVENT, true);
+        policy.setMaxDepth(OutputQueuePolicy.Lane.NORMAL, 2);
+        policy.setOverflow(OutputQueuePolicy.Lane.NORMAL, OutputQueuePolicy.Overflow.FAIL);
+        policy.setWaterMarks(2, 4);
+        t.setOutputQueuePolicy(policy);
+        Connection c = t.getOutputConnection();
+        for (int i = 0; i < 5; ++i) {
+            // Events 0, 1, 2, then 1 and 2 again, which replace the earlier reports.
+            c.put(new ProducerConsumerEventReportMessage(other, new EventID(new byte[]{1,2,3,4,
+                    5,6,7,(byte) (i < 3 ? i : i - 2)})), null);
+        }
+        Assert.assertEquals(2, t.getOutputDroppedCount());
+        Assert.assertTrue(t.isOutputWritable());
+        c.put(new VerifiedNodeIDNumberMessage(other), null);
+        c.put(new VerifiedNodeIDNumberMessage(other), null);
+        Assert.assertFalse(t.isOutputWritable());
+        try {
+            c.put(new VerifiedNodeIDNumberMessage(other), null);
+            Assert.fail("expected exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        out.start();
+        t.flushSendQueue();
+        Assert.assertTrue(t.isOutputWritable());
+        Assert.assertEquals(java.util.Arrays.asList((Object) false, true), writable);
+        // Only the replaced event reports were dropped.
+        Assert.assertEquals(5, out.messages.size());
+        for (int i = 0; i < 3; ++i) {
+            Assert.assertEquals(i, ((ProducerConsumerEventReportMessage) out.messages.get(i))
+                    .getEventID().getContents()[7]);
+        }
+        t.dispose();
+    }
+
+    @Test
+    public void testOutputOverflowKeepsUnrelatedMessages() throws Exception {
+        NodeID nodeID = new NodeID(new byte[]{1,2,3,4,5,6});
+        NodeID remote = new NodeID(new byte[]{1,2,3,4,5,7});
+        NodeID other = new NodeID(new byte[]{1,2,3,4,5,8});
+        DelayedStartConnection out = new DelayedStartConnection();
+        OlcbInterface t = new OlcbInterface(nodeID, out);
+        OutputQueuePolicy policy = new OutputQueuePolicy();
+        for (OutputQueuePolicy.Lane lane : OutputQueuePolicy.Lane.values()) {
+            policy.setMaxDepth(lane, 2);
+            policy.setOverflow(lane, OutputQueuePolicy.Overflow.FAIL);
+            policy.setReplace(lane, true);
+        }
+        t.setOutputQueuePolicy(policy);
+        Connection c = t.getOutputConnection();
+        EventID unrelated = new EventID(new byte[]{1,2,3,4,5,6,7,1});
+        EventID replaced = new EventID(new byte[]{1,2,3,4,5,6,7,2});
+        c.put(new ProducerConsumerEventReportMessage(other, unrelated), null);
+        c.put(new ProducerIdentifiedMessage(other, replaced, EventState.Valid), null);
+        c.put(new ProducerIdentifiedMessage(other, replaced, EventState.Invalid), null);
+        Assert.assertEquals(1, t.getOutputDroppedCount());
+        // Nothing to replace for another event.
+        try {
+            c.put(new ProducerConsumerEventReportMessage(other, new EventID(new byte[]{1,2,3,4,5,
+                    6,7,3})), null);
+            Assert.fail("expected exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        // Datagrams are never dropped.
+        c.put(new DatagramMessage(other, remote, new int[]{0x20, 1}), null);
+        c.put(new DatagramMessage(other, remote, new int[]{0x20, 2}), null);
+        try {
+            c.put(new DatagramMessage(other, remote, new int[]{0x20, 3}), null);
+            Assert.fail("expected exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertEquals(1, t.getOutputDroppedCount());
+        out.start();
+        t.flushSendQueue();
+        Assert.assertEquals(4, out.messages.size());
+        Assert.assertEquals(new ProducerConsumerEventReportMessage(other, unrelated), out
+                .messages.get(0));
+        Assert.assertEquals(new ProducerIdentifiedMessage(other, replaced, EventState.Invalid),
+                out.messages.get(1));
+        t.dispose();
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        NodeID nodeID = new NodeID(new byte[]{1,2,3,4,5,6});
+        Counter out = new Counter();
+        final OlcbInterface t = new OlcbInterface(nodeID, out);
+        Thread[] producers = new Thread[4];
+        for (int p = 0; p < producers.length; ++p) {
+            final NodeID src = new NodeID(new byte[]{1,2,3,4,6,(byte) p});
+            producers[p] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 1000; ++i) {
+                        t.getOutputConnection().put(new ProducerConsumerEventReportMessage(src,
+                                new EventID(new NodeID(new byte[]{0,0,0,0,0,0}), i >> 8, i &
+                                0xff)), null);
+                    }
+                }
+            };
+            producers[p].start();
+        }
+        for (Thread p : producers) {
+            p.join();
+        }
+        t.flushSendQueue();
+        Assert.assertEquals(4000, out.messages.size());
+        // Messages from the same producer are sent in order.
+        int[] next = new int[producers.length];
+        for (Message m : out.messages) {
+            byte[] e = ((ProducerConsumerEventReportMessage) m).getEventID().getContents();
+            int p = m.getSourceNodeID().getContents()[5];
+            Assert.assertEquals(next[p]++, ((e[6] & 0xff) << 8) | (e[7] & 0xff));
+        }
+        t.dispose();
+    }
+
+    @Test
+    public void testFlushDoesNotPoll() {
+        NodeID nodeID = new NodeID(new byte[]{1,2,3,4,5,6});
+        NodeID other = new NodeID(new byte[]{1,2,3,4,5,8});
+        Counter out = new Counter();
+        OlcbInterface t = new OlcbInterface(nodeID, out);
+        t.flushSendQueue();
+        long start = System.nanoTime();
+        for (int i = 0; i < 200; ++i) {
+            t.getOutputConnection().put(new VerifiedNodeIDNumberMessage(other), null);
+            t.flushSendQueue();
+        }
+        // Polling every 10 msec would take at least two seconds.
+        Assert.assertTrue(System.nanoTime() - start < 1000000000L);
+        Assert.assertEquals(200, out.messages.size());
+        t.dispose();
+    }
+
     // The minimal setup for log4J
     @Before
     public void setUp() {
@@ -0,0 +1,110 @@
+package org.openlcb;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openlcb.messages.TractionControlRequestMessage;
+
+/**
+ * Tests the mapping of messages to output lanes.
+ */
+public class OutputQueuePolicyTest {
+    private final NodeID src = new NodeID(new byte[]{1,2,3,4,5,6});
+    private final NodeID dst = new NodeID(new byte[]{1,2,3,4,5,7});
+
+    @Test
+    public void testDefaultLanes() {
+        OutputQueuePolicy p = new OutputQueuePolicy();
+        Assert.assertEquals(OutputQueuePolicy.Lane.URGENT, p.getLane(TractionControlRequestMessage
+                .createSetSpeed(src, dst, true, 1.0)));
+        Assert.assertEquals(OutputQueuePolicy.Lane.EVENT, p.getLane(new
+                ProducerConsumerEventReportMessage(src, new EventID("05.01.01.01.03.01.00.01"))));
+        Assert.assertEquals(OutputQueuePolicy.Lane.URGENT, p.getLane(new
+                ProducerConsumerEventReportMessage(src, CommonIdentifiers.EMERGENCY_STOP)));
+        Assert.assertEquals(OutputQueuePolicy.Lane.EVENT, p.getLane(new
+                ProducerIdentifiedMessage(src, CommonIdentifiers.EMERGENCY_STOP, EventState
+                .Valid)));
+        Assert.assertEquals(OutputQueuePolicy.Lane.NORMAL, p.getLane(new
+                VerifiedNodeIDNumberMessage(src)));
+        Assert.assertEquals(OutputQueuePolicy.Lane.NORMAL, p.getLane(new
+                DatagramAcknowledgedMessage(src, dst)));
+        Assert.assertEquals(OutputQueuePolicy.Lane.BULK, p.getLane(new DatagramMessage(src, dst,
+                new int[]{0x20})));
+        Assert.assertEquals(OutputQueuePolicy.Lane.BULK, p.getLane(new
+                StreamDataCompleteMessage(src, dst, (byte) 1, (byte) 2)));
+        Assert.assertEquals(0, p.getWeight(OutputQueuePolicy.Lane.URGENT));
+        Assert.assertEquals(0, p.getMaxDepth(OutputQueuePolicy.Lane.BULK));
+    }
+
+    @Test
+    public void testConfigure() {
+        OutputQueuePolicy p = new OutputQueuePolicy();
+        p.setLane(MessageTypeIdentifier.Datagram, OutputQueuePolicy.Lane.NORMAL);
+        p.setMaxDepth(OutputQueuePolicy.Lane.NORMAL, 100);
+        OutputQueuePolicy copy = new OutputQueuePolicy(p);
+        p.setLane(MessageTypeIdentifier.Datagram, OutputQueuePolicy.Lane.EVENT);
+        p.setWeight(OutputQueuePolicy.Lane.NORMAL, 1);
+        Message d = new DatagramMessage(src, dst, new int[]{0x20});
+        Assert.assertEquals(OutputQueuePolicy.Lane.EVENT, p.getLane(d));
+        Assert.assertEquals(OutputQueuePolicy.Lane.NORMAL, copy.getLane(d));
+        Assert.assertEquals(100, copy.getMaxDepth(OutputQueuePolicy.Lane.NORMAL));
+        Assert.assertEquals(4, copy.getWeight(OutputQueuePolicy.Lane.NORMAL));
+        Assert.assertEquals(OutputQueuePolicy.Overflow.BLOCK, copy.getOverflow(OutputQueuePolicy
+                .Lane.EVENT));
+        Assert.assertFalse(copy.isReplace(OutputQueuePolicy.Lane.EVENT));
+        p.setOverflow(OutputQueuePolicy.Lane.EVENT, OutputQueuePolicy.Overflow.FAIL);
+        p.setReplace(OutputQueuePolicy.Lane.EVENT, true);
+        p.setWaterMarks(10, 20);
+        copy = new OutputQueuePolicy(p);
+        Assert.assertEquals(OutputQueuePolicy.Overflow.FAIL, copy.getOverflow
+                (OutputQueuePolicy.Lane.EVENT));
+        Assert.assertTrue(copy.isReplace(OutputQueuePolicy.Lane.EVENT));
+        Assert.assertFalse(copy.isReplace(OutputQueuePolicy.Lane.NORMAL));
+        Assert.assertEquals(10, copy.getLowWaterMark());
+        Assert.assertEquals(20, copy.getHighWaterMark());
+        try {
+            p.setWaterMarks(30, 20);
+            Assert.fail("expected exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            p.setWeight(OutputQueuePolicy.Lane.BULK, -1);
+            Assert.fail("expected exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReplaceKey() {
+        EventID e1 = new EventID("05.01.01.01.03.01.00.01");
+        EventID e2 = new EventID("05.01.01.01.03.01.00.02");
+        Assert.assertEquals(OutputQueuePolicy.getReplaceKey(new
+                ProducerConsumerEventReportMessage(src, e1)), OutputQueuePolicy.getReplaceKey(new
+                ProducerConsumerEventReportMessage(src, e1)));
+        Assert.assertNotEquals(OutputQueuePolicy.getReplaceKey(new
+                ProducerConsumerEventReportMessage(src, e1)), OutputQueuePolicy.getReplaceKey(new
+                ProducerConsumerEventReportMessage(src, e2)));
+        Assert.assertNotEquals(OutputQueuePolicy.getReplaceKey(new
+                ProducerConsumerEventReportMessage(src, e1)), OutputQueuePolicy.getReplaceKey(new
+                ProducerConsumerEventReportMessage(dst, e1)));
+        // A state report replaces an earlier one with another state.
+        Assert.assertEquals(OutputQueuePolicy.getReplaceKey(new ProducerIdentifiedMessage(src,
+                e1, EventState.Valid)), OutputQueuePolicy.getReplaceKey(new
+                ProducerIdentifiedMessage(src, e1, EventState.Invalid)));
+        Assert.assertNotEquals(OutputQueuePolicy.getReplaceKey(new ProducerIdentifiedMessage(src,
+                e1, EventState.Valid)), OutputQueuePolicy.getReplaceKey(new
+                ConsumerIdentifiedMessage(src, e1, EventState.Valid)));
+        Assert.assertNotEquals(OutputQueuePolicy.getReplaceKey(new ProducerIdentifiedMessage(src,
+                e1, EventState.Valid)), OutputQueuePolicy.getReplaceKey(new
+                ProducerConsumerEventReportMessage(src, e1)));
+        Assert.assertEquals(OutputQueuePolicy.getReplaceKey(new VerifiedNodeIDNumberMessage(src)),
+                OutputQueuePolicy.getReplaceKey(new VerifiedNodeIDNumberMessage(src)));
+        Assert.assertNull(OutputQueuePolicy.getReplaceKey(new DatagramMessage(src, dst,
+                new int[]{0x20})));
+        Assert.assertNull(OutputQueuePolicy.getReplaceKey(new DatagramAcknowledgedMessage(src,
+                dst)));
+        Assert.assertNull(OutputQueuePolicy.getReplaceKey(new ProtocolIdentificationRequestMessage(
+                src, dst)));
+    }
+}
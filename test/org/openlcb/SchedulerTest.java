@@ -0,0 +1,246 @@
+package org.openlcb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the timing wheel and the executor of the scheduler.
+ */
+public class SchedulerTest {
+    private Scheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new Scheduler();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    private void schedule(final List<Integer> order, final int value, long delay) {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                order.add(value);
+            }
+        }, delay);
+    }
+
+    @Test
+    public void testDeadlineOrder() throws Exception {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        schedule(order, 3, 60);
+        schedule(order, 1, 20);
+        schedule(order, 2, 20);
+        schedule(order, 0, 0);
+        final CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }, 80);
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(80));
+        Assert.assertEquals("[0, 1, 2, 3]", order.toString());
+        Assert.assertEquals(0, scheduler.getPendingTimeouts());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        Scheduler.Timeout t = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                order.add(1);
+            }
+        }, 20);
+        Assert.assertEquals(1, scheduler.getPendingTimeouts());
+        Assert.assertTrue(t.cancel());
+        Assert.assertFalse(t.cancel());
+        Assert.assertTrue(t.isCancelled());
+        Assert.assertEquals(0, scheduler.getPendingTimeouts());
+        final CountDownLatch done = new CountDownLatch(1);
+        Scheduler.Timeout t2 = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }, 50);
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(t2.isExpired());
+        Assert.assertFalse(t2.cancel());
+        Assert.assertTrue(order.isEmpty());
+    }
+
+    @Test
+    public void testLongDelayWrapsWheel() throws Exception {
+        // 4 buckets of 5 msec: the timeout goes around the wheel several times.
+        Scheduler s = new Scheduler(Executors.newCachedThreadPool(), 5, 4);
+        try {
+            final CountDownLatch done = new CountDownLatch(1);
+            long start = System.nanoTime();
+            s.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            }, 100);
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        } finally {
+            s.shutdown();
+        }
+    }
+
+    @Test
+    public void testIdleAndRestart() throws Exception {
+        for (int i = 0; i < 3; ++i) {
+            final CountDownLatch done = new CountDownLatch(1);
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            }, 10);
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+            // Lets the timer thread go idle.
+            Thread.sleep(30);
+        }
+    }
+
+    @Test
+    public void testExceptionDoesNotStopTimer() throws Exception {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                throw new RuntimeException("expected test exception");
+            }
+        }, 0);
+        final CountDownLatch done = new CountDownLatch(1);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }, 10);
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testWaitForDueTimeouts() throws Exception {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        schedule(order, 1, 0);
+        schedule(order, 2, 1000);
+        long start = System.nanoTime();
+        scheduler.waitForDueTimeouts();
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        Assert.assertEquals("[1]", order.toString());
+        Assert.assertEquals(1, scheduler.getPendingTimeouts());
+    }
+
+    @Test
+    public void testScheduleBlocking() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        scheduler.scheduleBlocking(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                order.add(1);
+            }
+        }, 0);
+        // The blocked task does not hold up the timer thread.
+        final CountDownLatch done = new CountDownLatch(1);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                order.add(2);
+                done.countDown();
+            }
+        }, 20);
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals("[2]", order.toString());
+        release.countDown();
+        // Waits for the task on the executor too.
+        scheduler.waitForDueTimeouts();
+        Assert.assertEquals("[2, 1]", order.toString());
+    }
+
+    @Test
+    public void testExecuteAndShutdown() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        scheduler.shutdown();
+        Assert.assertTrue(scheduler.isShutdown());
+        Assert.assertTrue(scheduler.getExecutor().isShutdown());
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, 0);
+            Assert.fail("expected exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDefaultIsShared() {
+        Scheduler d = Scheduler.getDefault();
+        Assert.assertSame(d, Scheduler.getDefault());
+        d.shutdown();
+        Assert.assertFalse(d.isShutdown());
+    }
+
+    @Test
+    public void testVirtualThreadExecutor() throws Exception {
+        ExecutorService ex = Scheduler.createVirtualThreadExecutor();
+        boolean supported;
+        try {
+            Thread.class.getMethod("ofVirtual");
+            supported = true;
+        } catch (NoSuchMethodException e) {
+            supported = false;
+        }
+        if (!supported) {
+            Assert.assertNull(ex);
+            return;
+        }
+        Assert.assertNotNull(ex);
+        Scheduler s = new Scheduler(ex);
+        final CountDownLatch done = new CountDownLatch(1);
+        s.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        s.shutdown();
+    }
+}
@@ -78,6 +78,12 @@ public class UtilitiesTest  {
         Utilities.HostToNetworkUint48(b, 0, 0x0501010118DAL);
         Assert.assertEquals("05 01 01 01 18 DA", Utilities.toHexSpaceString(b));
         Assert.assertEquals(0x0501010118DAL, Utilities.NetworkToHostUint48(b, 0));
+
+        b = new byte[9];
+        Utilities.HostToNetworkUint64(b, 1, 0x0102030405060708L);
+        Assert.assertEquals(0x0102030405060708L, Utilities.NetworkToHostUint64(b, 1));
+        // One byte short.
+        Assert.assertEquals(0, Utilities.NetworkToHostUint64(new byte[8], 1));
     }
 
     boolean compareArrays(byte[] a, byte[]b) {
@@ -52,4 +52,57 @@ public class AliasMapTest  {
         Assert.assertEquals("get NodeID", new NodeID(), map.getNodeID(0));
     }
     
+    @Test
+    public void testRealias() {
+        AliasMap map = new AliasMap();
+        NodeID n1 = new NodeID(new byte[]{0,1,2,3,4,5});
+        NodeID n2 = new NodeID(new byte[]{0,1,2,3,4,6});
+        map.insert(0x123, n1);
+        // Node gets a new alias.
+        map.insert(0x456, n1);
+        Assert.assertEquals(0x456, map.getAlias(n1));
+        Assert.assertSame(AliasMap.UNKNOWN_NODE, map.getNodeID(0x123));
+        // Alias gets reused by a different node.
+        map.insert(0x456, n2);
+        Assert.assertEquals(-1, map.getAlias(n1));
+        Assert.assertEquals(0x456, map.getAlias(n2));
+        Assert.assertEquals(n2, map.getNodeID(0x456));
+        Assert.assertSame(AliasMap.UNKNOWN_NODE, map.getNodeID(-1));
+        Assert.assertSame(AliasMap.UNKNOWN_NODE, map.getNodeID(0x1000));
+    }
+
+    @Test
+    public void testQueryUnknownAlias() {
+        AliasMap map = new AliasMap();
+        final java.util.List<String> sent = new java.util.ArrayList<>();
+        map.setQueryOutput(new CanFrameListener() {
+            @Override
+            public void send(CanFrame frame) {
+                sent.add(GridConnect.format(frame));
+            }
+        }, 0x555);
+        map.insert(0x123, new NodeID(new byte[]{0,1,2,3,4,5}));
+        map.getNodeID(0x123);
+        Assert.assertEquals(0, sent.size());
+        Assert.assertSame(AliasMap.UNKNOWN_NODE, map.getNodeID(0x321));
+        Assert.assertSame(AliasMap.UNKNOWN_NODE, map.getNodeID(0x321));
+        Assert.assertEquals(1, sent.size());
+        // Only the unknown alias is asked, with an addressed Verify Node ID.
+        Assert.assertEquals(":X19488555N0321;", sent.get(0));
+        // Its answer defines the alias.
+        OpenLcbCanFrame verified = new OpenLcbCanFrame(0x321);
+        verified.setVerifiedNID(new NodeID(new byte[]{0,1,2,3,4,7}));
+        map.processFrame(verified);
+        Assert.assertEquals(new NodeID(new byte[]{0,1,2,3,4,7}), map.getNodeID(0x321));
+        Assert.assertEquals(1, sent.size());
+        // After the alias is defined and released, it is queried again.
+        map.insert(0x321, new NodeID(new byte[]{0,1,2,3,4,6}));
+        map.remove(0x321);
+        map.getNodeID(0x321);
+        Assert.assertEquals(2, sent.size());
+        map.setQueryOutput(null, 0);
+        map.getNodeID(0x322);
+        Assert.assertEquals(2, sent.size());
+    }
+
 }
@@ -22,6 +22,7 @@ import org.openlcb.ProtocolIdentificationReplyMessage;
 import org.openlcb.SimpleNodeIdentInfoReplyMessage;
 import org.openlcb.StreamDataCompleteMessage;
 import org.openlcb.StreamDataProceedMessage;
+import org.openlcb.StreamDataSendMessage;
 import org.openlcb.StreamInitiateReplyMessage;
 import org.openlcb.StreamInitiateRequestMessage;
 import org.openlcb.Utilities;
@@ -703,6 +704,10 @@ public class MessageBuilderTest  {
         Assert.assertEquals("max buffer ",6,(f.getElement(2)<<8)+f.getElement(3));
         Assert.assertEquals("flags ",0,(f.getElement(4)<<8)+f.getElement(5));
         Assert.assertEquals("sourceStreamID ",4,f.getElement(6));
+        StreamInitiateRequestMessage r = (StreamInitiateRequestMessage) msg;
+        Assert.assertEquals("parsed max buffer", 6, r.getBufferSize());
+        Assert.assertEquals("parsed sourceStreamID", 4, r.getSourceStreamID());
+        Assert.assertEquals("parsed destinationStreamID", 0, r.getDestinationStreamID());
     }
     
     @Test	
@@ -789,6 +794,8 @@ public class MessageBuilderTest  {
         Assert.assertEquals("sourceStreamID ",frame.getElement(2),4);
         Assert.assertEquals("destinationStreamID ",frame.getElement(3),6);
         Assert.assertEquals("flags ",(frame.getElement(4)<<8)+frame.getElement(5),0);
+        Assert.assertEquals(4, ((StreamDataProceedMessage) msg).getSourceStreamID());
+        Assert.assertEquals(6, ((StreamDataProceedMessage) msg).getDestinationStreamID());
     }
     
     @Test
@@ -813,12 +820,180 @@ public class MessageBuilderTest  {
         Assert.assertEquals("sourceStreamID ",frame.getElement(2),4);
         Assert.assertEquals("destinationStreamID ",frame.getElement(3),6);
         Assert.assertEquals("flags ",(frame.getElement(4)<<8)+frame.getElement(5),0);
+        Assert.assertEquals(4, ((StreamDataCompleteMessage) msg).getSourceStreamID());
+        Assert.assertEquals(6, ((StreamDataCompleteMessage) msg).getDestinationStreamID());
     }
     
     String toHexString(int n) {
         return Integer.toHexString(n);
     }
     
+    OpenLcbCanFrame frame(int header, byte[] data) {
+        OpenLcbCanFrame f = new OpenLcbCanFrame(0);
+        f.setHeader(header);
+        f.setData(data);
+        return f;
+    }
+
+    @Test
+    public void testInterleavedDatagrams() {
+        NodeID other = new NodeID(new byte[]{7,7,7,7,7,7});
+        map.insert(0x456, other);
+        MessageBuilder b = new MessageBuilder(map);
+        // 0x123 -> 0x321 and 0x456 -> 0x321 first frames, interleaved.
+        Assert.assertNull(b.processFrame(frame(0x1B321123, new byte[]{1,2,3,4,5,6,7,8})));
+        Assert.assertNull(b.processFrame(frame(0x1B321456, new byte[]{11,12,13,14,15,16,17,18})));
+        Assert.assertNull(b.processFrame(frame(0x1C321123, new byte[]{9,10})));
+        Assert.assertEquals(2, b.buffers.size());
+
+        List<Message> list = b.processFrame(frame(0x1D321456, new byte[]{19}));
+        Assert.assertEquals(1, list.size());
+        DatagramMessage d = (DatagramMessage) list.get(0);
+        Assert.assertEquals(other, d.getSourceNodeID());
+        Assert.assertEquals(destination, d.getDestNodeID());
+        Assert.assertArrayEquals(new int[]{11,12,13,14,15,16,17,18,19}, d.getData());
+
+        list = b.processFrame(frame(0x1D321123, new byte[]{(byte)0xF0}));
+        d = (DatagramMessage) list.get(0);
+        Assert.assertEquals(source, d.getSourceNodeID());
+        Assert.assertArrayEquals(new int[]{1,2,3,4,5,6,7,8,9,10,0xF0}, d.getData());
+        Assert.assertEquals(0, b.buffers.size());
+    }
+
+    @Test
+    public void testRestartedDatagram() {
+        MessageBuilder b = new MessageBuilder(map);
+        // Source reboots in the middle of a datagram and starts a new one.
+        Assert.assertNull(b.processFrame(frame(0x1B321123, new byte[]{1,2,3,4,5,6,7,8})));
+        Assert.assertNull(b.processFrame(frame(0x1B321123, new byte[]{9,9,9,9,9,9,9,9})));
+        List<Message> list = b.processFrame(frame(0x1D321123, new byte[]{1}));
+        Assert.assertArrayEquals(new int[]{9,9,9,9,9,9,9,9,1}, ((DatagramMessage) list.get(0))
+                .getData());
+
+        // An only-frame datagram discards a partial one.
+        Assert.assertNull(b.processFrame(frame(0x1B321123, new byte[]{1,2,3,4,5,6,7,8})));
+        list = b.processFrame(frame(0x1A321123, new byte[]{0x20, 0x41}));
+        Assert.assertArrayEquals(new int[]{0x20, 0x41}, ((DatagramMessage) list.get(0))
+                .getData());
+        Assert.assertEquals(0, b.buffers.size());
+    }
+
+    @Test
+    public void testStaleDatagramExpires() {
+        final long[] now = new long[]{1000};
+        MessageBuilder b = new MessageBuilder(map) {
+            @Override
+            long currentTimeMillis() {
+                return now[0];
+            }
+        };
+        NodeID other = new NodeID(new byte[]{7,7,7,7,7,7});
+        map.insert(0x456, other);
+        Assert.assertNull(b.processFrame(frame(0x1B321123, new byte[]{1,2,3,4,5,6,7,8})));
+        Assert.assertEquals(1, b.buffers.size());
+        now[0] += ReassemblyBuffers.DEFAULT_TIMEOUT_MSEC + 1;
+        // Starting a new reassembly expires the stale one.
+        Assert.assertNull(b.processFrame(frame(0x1B321456, new byte[]{1,2,3,4,5,6,7,8})));
+        Assert.assertEquals(1, b.buffers.size());
+        Assert.assertNull(b.buffers.find(ReassemblyBuffers.key(ReassemblyBuffers.KIND_DATAGRAM,
+                0, 0x123, 0x321)));
+    }
+
+    @Test
+    public void testStreamDataWithWindow() {
+        MessageBuilder b = new MessageBuilder(map);
+        // Without a known buffer size every frame is forwarded.
+        List<Message> list = b.processFrame(frame(0x1F321123, new byte[]{6,1,2,3,4,5,6,7}));
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals(new StreamDataSendMessage(source, destination, (byte) 6, new int[]{1,
+                2, 3, 4, 5, 6, 7}), list.get(0));
+
+        // We (0x321) accept a stream from 0x123 with a buffer of 10 bytes.
+        b.processMessage(new StreamInitiateReplyMessage(destination, source, 10, (byte) 4,
+                (byte) 6));
+        list = b.processFrame(frame(0x1F321123, new byte[]{6,1,2,3,4,5,6,7}));
+        Assert.assertEquals(0, list.size());
+        list = b.processFrame(frame(0x1F321123, new byte[]{6,8,9,10}));
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals(new StreamDataSendMessage(source, destination, (byte) 6, new int[]{1,
+                2, 3, 4, 5, 6, 7, 8, 9, 10}), list.get(0));
+
+        // Last partial window is delivered before the stream complete message.
+        list = b.processFrame(frame(0x1F321123, new byte[]{6,11,12}));
+        Assert.assertEquals(0, list.size());
+        list = b.processFrame(frame(0x198A8123, new byte[]{0x03, 0x21, 4, 6}));
+        Assert.assertEquals(2, list.size());
+        Assert.assertEquals(new StreamDataSendMessage(source, destination, (byte) 6, new int[]{11,
+                12}), list.get(0));
+        Assert.assertTrue(list.get(1) instanceof StreamDataCompleteMessage);
+        Assert.assertEquals(0, b.buffers.size());
+    }
+
+    @Test
+    public void testEventReportToSink() {
+        MessageBuilder b = new MessageBuilder(map);
+        final List<String> frames = new java.util.ArrayList<>();
+        final List<CanFrame> objects = new java.util.ArrayList<>();
+        CanFrameListener sink = new CanFrameListener() {
+            @Override
+            public void send(CanFrame frame) {
+                frames.add(GridConnect.format(frame));
+                objects.add(frame);
+            }
+        };
+        b.processMessage(new ProducerConsumerEventReportMessage(source, event), sink);
+        b.processMessage(new ProducerConsumerEventReportMessage(destination, new EventID(new
+                byte[]{1, 2, 3, 4, 5, 6, 7, (byte) 0xff})), sink);
+        Assert.assertEquals(":X195B4123N0B0C0D0E0F101112;", frames.get(0));
+        Assert.assertEquals(":X195B4321N01020304050607FF;", frames.get(1));
+        // The same frame object is reused.
+        Assert.assertSame(objects.get(0), objects.get(1));
+        Assert.assertEquals(GridConnect.format(b.processMessage(new
+                ProducerConsumerEventReportMessage(source, event)).get(0)), frames.get(0));
+    }
+
+    @Test
+    public void testMultiFrameToSink() {
+        MessageBuilder b = new MessageBuilder(map);
+        final List<String> frames = new java.util.ArrayList<>();
+        CanFrameListener sink = new CanFrameListener() {
+            @Override
+            public void send(CanFrame frame) {
+                frames.add(GridConnect.format(frame));
+            }
+        };
+        int[] data = new int[]{0x20, 0x41, 0, 0, 0, 0, 0x40, 1, 2, 3};
+        Message m = new DatagramMessage(source, destination, data);
+        b.processMessage(m, sink);
+        List<OpenLcbCanFrame> list = b.processMessage(m);
+        Assert.assertEquals(2, frames.size());
+        for (int i = 0; i < list.size(); ++i) {
+            Assert.assertEquals(GridConnect.format(list.get(i)), frames.get(i));
+        }
+    }
+
+    @Test
+    public void testReentrantSink() {
+        final MessageBuilder b = new MessageBuilder(map);
+        final List<String> frames = new java.util.ArrayList<>();
+        CanFrameListener sink = new CanFrameListener() {
+            @Override
+            public void send(CanFrame frame) {
+                if (frames.isEmpty()) {
+                    frames.add(null);
+                    // Sends another message while the first one is being sent.
+                    b.processMessage(new ProducerConsumerEventReportMessage(destination,
+                            event), this);
+                }
+                frames.add(GridConnect.format(frame));
+            }
+        };
+        b.processMessage(new ProducerConsumerEventReportMessage(source, event), sink);
+        Assert.assertEquals(3, frames.size());
+        Assert.assertEquals(":X195B4321N0B0C0D0E0F101112;", frames.get(1));
+        Assert.assertEquals(":X195B4123N0B0C0D0E0F101112;", frames.get(2));
+    }
+
     void compareContent(byte[] data, CanFrame f) {
         if (data == null) {
             Assert.assertEquals("no data", 0, f.getNumDataElements());
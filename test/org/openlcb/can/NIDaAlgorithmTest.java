@@ -571,6 +571,62 @@ public class NIDaAlgorithmTest {
         }
     }
 
+    @Test
+    public void testStartWithoutScheduler() {
+        // The frames are driven by nextFrame() instead.
+        alg.start(null);
+        Assert.assertFalse(alg.isComplete());
+        Assert.assertNotNull(alg.nextFrame());
+    }
+
+    @Test
+    public void testDefendsReservedAlias() throws Exception {
+        final java.util.List<OpenLcbCanFrame> sent = new java.util.ArrayList<>();
+        CanFrameListener output = new CanFrameListener() {
+            @Override
+            public void send(CanFrame frame) {
+                synchronized (sent) {
+                    sent.add(new OpenLcbCanFrame(frame));
+                    sent.notifyAll();
+                }
+            }
+        };
+        org.openlcb.Scheduler scheduler = new org.openlcb.Scheduler();
+        NIDaAlgorithm a = new NIDaAlgorithm(new NodeID(new byte[]{10, 11, 12, 13, 14, 15}),
+                output, scheduler);
+        final java.util.concurrent.CountDownLatch done = new java.util.concurrent
+                .CountDownLatch(1);
+        a.start(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        Assert.assertTrue(done.await(5, java.util.concurrent.TimeUnit.SECONDS));
+        Assert.assertTrue(a.isComplete());
+        synchronized (sent) {
+            Assert.assertEquals(5, sent.size());
+            Assert.assertTrue(sent.get(4).isRIM());
+        }
+
+        // Another node checks our alias: we reply with a reserve ID frame.
+        OpenLcbCanFrame cid = new OpenLcbCanFrame(a.getNIDa());
+        cid.setCIM(0, 0x123, a.getNIDa());
+        a.processFrame(cid);
+        synchronized (sent) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (sent.size() < 6 && System.currentTimeMillis() < deadline) {
+                sent.wait(100);
+            }
+            Assert.assertEquals(6, sent.size());
+            Assert.assertTrue(sent.get(5).isRIM());
+            Assert.assertEquals(a.getNIDa(), sent.get(5).getSourceAlias());
+        }
+        Assert.assertTrue(a.isComplete());
+        a.dispose();
+        scheduler.shutdown();
+    }
+
     @Before   
     public void setUp() {
         alg = new NIDaAlgorithm(new NodeID(new byte[] {10, 11, 12, 13, 14, 15}));
@@ -0,0 +1,84 @@
+package org.openlcb.can;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the reassembly table used by the MessageBuilder.
+ */
+public class ReassemblyBuffersTest {
+
+    private static CanFrame frame(byte[] data) {
+        OpenLcbCanFrame f = new OpenLcbCanFrame(0x123);
+        f.setData(data);
+        return f;
+    }
+
+    @Test
+    public void testKey() {
+        long k1 = ReassemblyBuffers.key(ReassemblyBuffers.KIND_DATAGRAM, 0, 0x123, 0x321);
+        long k2 = ReassemblyBuffers.key(ReassemblyBuffers.KIND_DATAGRAM, 0, 0x321, 0x123);
+        long k3 = ReassemblyBuffers.key(ReassemblyBuffers.KIND_ADDRESSED, 0, 0x123, 0x321);
+        long k4 = ReassemblyBuffers.key(ReassemblyBuffers.KIND_ADDRESSED, 0xA08, 0x123, 0x321);
+        Assert.assertNotEquals(k1, k2);
+        Assert.assertNotEquals(k1, k3);
+        Assert.assertNotEquals(k3, k4);
+        Assert.assertEquals(0x123, (k4 >> 12) & 0xFFF);
+        Assert.assertEquals(0x321, k4 & 0xFFF);
+    }
+
+    @Test
+    public void testAppendAndGrow() {
+        ReassemblyBuffers b = new ReassemblyBuffers();
+        ReassemblyBuffers.Entry e = b.start(1, 0);
+        for (int i = 0; i < 10; ++i) {
+            e.append(frame(new byte[]{0, 0, (byte) i, (byte) (i + 100)}), 2);
+        }
+        Assert.assertEquals(20, e.length);
+        byte[] d = e.toByteArray();
+        Assert.assertEquals(9, d[18]);
+        Assert.assertEquals(109, d[19]);
+        Assert.assertSame(e, b.find(1));
+        b.release(e);
+        Assert.assertNull(b.find(1));
+        Assert.assertEquals(0, b.size());
+        // Entries are recycled.
+        Assert.assertSame(e, b.start(2, 0));
+        Assert.assertEquals(0, e.length);
+    }
+
+    @Test
+    public void testOverflow() {
+        ReassemblyBuffers b = new ReassemblyBuffers();
+        ReassemblyBuffers.Entry e = b.start(1, 0);
+        byte[] data = new byte[8];
+        for (int i = 0; i <= ReassemblyBuffers.MAX_LENGTH / 8; ++i) {
+            e.append(frame(data), 0);
+        }
+        Assert.assertTrue(e.overflow);
+        Assert.assertTrue(e.length <= ReassemblyBuffers.MAX_LENGTH);
+        b.release(e);
+        // Large arrays are not kept in the pool.
+        e = b.start(1, 0);
+        Assert.assertFalse(e.overflow);
+        Assert.assertTrue(e.data.length <= ReassemblyBuffers.POOLED_CAPACITY_LIMIT);
+    }
+
+    @Test
+    public void testBoundedAndExpiry() {
+        ReassemblyBuffers b = new ReassemblyBuffers(3, 100);
+        b.start(1, 10);
+        b.start(2, 5);
+        b.start(3, 20);
+        // Table full: the least recently updated entry is evicted.
+        b.start(4, 30);
+        Assert.assertEquals(3, b.size());
+        Assert.assertNull(b.find(2));
+        b.findOrStart(1, 120);
+        // 3 and 4 are stale at time 131.
+        b.start(5, 131);
+        Assert.assertEquals(2, b.size());
+        Assert.assertNotNull(b.find(1));
+        Assert.assertNotNull(b.find(5));
+    }
+}
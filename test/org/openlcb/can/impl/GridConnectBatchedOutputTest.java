@@ -0,0 +1,128 @@
+package org.openlcb.can.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.GridConnect;
+
+/**
+ * Tests the coalescing gridconnect writer.
+ */
+public class GridConnectBatchedOutputTest {
+
+    private static void waitForFrames(GridConnectBatchedOutput o, long count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (o.getFramesSent() < count || o.getQueuedFrames() > 0) {
+            Assert.assertTrue("timeout", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testEncode() {
+        String[] frames = {":X195B4123N01020304;", ":X195B4123N;", ":S121NFFFEFD80;",
+                ":X00000123R;", ":X195B4123N0102030405060708;"};
+        byte[] buf = new byte[GridConnectBatchedOutput.MAX_FRAME_LENGTH];
+        for (String s : frames) {
+            CanFrame f = GridConnect.parse(s).get(0);
+            int len = GridConnectBatchedOutput.encode(f, buf, 0);
+            Assert.assertEquals(GridConnect.format(f) + "\n", new String(buf, 0, len,
+                    StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    @Test
+    public void testSend() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        // Ring smaller than the total data to exercise wraparound.
+        GridConnectBatchedOutput o = new GridConnectBatchedOutput(os, null, 64, 100);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 50; ++i) {
+            String s = String.format(":X195B4%03XN0102030405%02X;", i, i);
+            expected.append(s).append('\n');
+            o.send(GridConnect.parse(s).get(0));
+        }
+        waitForFrames(o, 50);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (os.size() < expected.length()) {
+            Assert.assertTrue("timeout", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        o.dispose();
+        Assert.assertEquals(50, o.getFramesSent());
+        Assert.assertTrue(o.getFlushCount() >= 1);
+        Assert.assertEquals(expected.toString(), new String(os.toByteArray(), StandardCharsets
+                .ISO_8859_1));
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        final CountDownLatch firstWrite = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ByteArrayOutputStream os = new ByteArrayOutputStream() {
+            int flushes = 0;
+            @Override
+            public synchronized void flush() throws IOException {
+                if (flushes++ == 0) {
+                    // Blocks the writer thread so that the next frames pile up in the ring.
+                    firstWrite.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+            }
+        };
+        GridConnectBatchedOutput o = new GridConnectBatchedOutput(os, null);
+        CanFrame f = GridConnect.parse(":X1A22A123N0102030405060708;").get(0);
+        o.send(f);
+        Assert.assertTrue(firstWrite.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 9; ++i) {
+            o.send(f);
+        }
+        Assert.assertEquals(9, o.getQueuedFrames());
+        Assert.assertEquals(9, o.getMaxQueuedFrames());
+        release.countDown();
+        waitForFrames(o, 10);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (o.getFlushCount() < 2) {
+            Assert.assertTrue("timeout", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        o.dispose();
+        Assert.assertEquals(9, o.getMaxFramesPerFlush());
+        Assert.assertEquals(2, o.getFlushCount());
+        Assert.assertEquals(5.0, o.getAverageFramesPerFlush(), 0.01);
+    }
+
+    @Test
+    public void testError() throws Exception {
+        final CountDownLatch errored = new CountDownLatch(1);
+        GridConnectBatchedOutput o = new GridConnectBatchedOutput(new ByteArrayOutputStream() {
+            @Override
+            public void flush() throws IOException {
+                throw new IOException("test");
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                errored.countDown();
+            }
+        });
+        CanFrame f = GridConnect.parse(":X195B4123N;").get(0);
+        o.send(f);
+        Assert.assertTrue(errored.await(5, TimeUnit.SECONDS));
+        // Frames after the error are dropped, and do not block.
+        for (int i = 0; i < 2000; ++i) {
+            o.send(f);
+        }
+        Assert.assertEquals(0, o.getQueuedFrames());
+    }
+}
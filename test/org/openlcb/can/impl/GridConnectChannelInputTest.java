@@ -0,0 +1,110 @@
+package org.openlcb.can.impl;
+
+import java.io.ByteArrayInputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.CanFrameListener;
+import org.openlcb.can.GridConnect;
+import org.openlcb.can.OpenLcbCanFrame;
+
+/**
+ * Tests the NIO GridConnect parser.
+ */
+public class GridConnectChannelInputTest {
+    private final List<CanFrame> frames = new ArrayList<>();
+    private final List<String> formatted = new ArrayList<>();
+    private final CanFrameListener collector = new CanFrameListener() {
+        @Override
+        public void send(CanFrame frame) {
+            frames.add(frame);
+            formatted.add(GridConnect.format(frame));
+        }
+    };
+
+    private void process(GridConnectChannelInput parser, String data) {
+        ByteBuffer b = ByteBuffer.allocateDirect(data.length());
+        b.put(data.getBytes(StandardCharsets.ISO_8859_1));
+        ((Buffer) b).flip();
+        parser.process(b);
+        Assert.assertFalse(b.hasRemaining());
+    }
+
+    @Test
+    public void testParse() {
+        GridConnectChannelInput parser = new GridConnectChannelInput(null, collector, null, false);
+        process(parser, ":X195B4123N01020304;\n:S121Nffffff;\r\n:X195b4123N;");
+        Assert.assertEquals(3, formatted.size());
+        Assert.assertEquals(":X195B4123N01020304;", formatted.get(0));
+        Assert.assertEquals(":S121NFFFFFF;", formatted.get(1));
+        Assert.assertEquals(":X195B4123N;", formatted.get(2));
+    }
+
+    @Test
+    public void testFrameIsReused() {
+        GridConnectChannelInput parser = new GridConnectChannelInput(null, collector, null, false);
+        process(parser, ":X195B4123N0102030405060708;:X19170123N0102030405060708;");
+        Assert.assertEquals(2, frames.size());
+        Assert.assertSame(frames.get(0), frames.get(1));
+        CanFrame f = frames.get(1);
+        Assert.assertEquals(0x19170123, f.getHeader());
+        Assert.assertTrue(f.isExtended());
+        Assert.assertFalse(f.isRtr());
+        Assert.assertEquals(8, f.getNumDataElements());
+        Assert.assertEquals(0x0102030405060708L, f.bodyAsLong());
+        Assert.assertEquals(0x030405060708L, f.dataAsLong());
+        Assert.assertEquals(new OpenLcbCanFrame(f), new OpenLcbCanFrame(GridConnect.parse(
+                ":X19170123N0102030405060708;").get(0)));
+    }
+
+    @Test
+    public void testSplitAcrossBuffers() {
+        GridConnectChannelInput parser = new GridConnectChannelInput(null, collector, null, false);
+        String data = ":X195B4123N01020304;:S121NFFFEFD80;";
+        for (int i = 0; i < data.length(); ++i) {
+            process(parser, data.substring(i, i + 1));
+        }
+        Assert.assertEquals(2, formatted.size());
+        Assert.assertEquals(":X195B4123N01020304;", formatted.get(0));
+        Assert.assertEquals(":S121NFFFEFD80;", formatted.get(1));
+    }
+
+    @Test
+    public void testGarbage() {
+        GridConnectChannelInput parser = new GridConnectChannelInput(null, collector, null, false);
+        // Bad type character, bad remote character, odd number of digits, too long payload,
+        // and a frame restarting in the middle of another one.
+        process(parser, ":Q123N;:X123Q01;:X123N012;:X123N010203040506070809;"
+                + ":X195B4:X195B4123N0102;");
+        Assert.assertEquals(1, formatted.size());
+        Assert.assertEquals(":X195B4123N0102;", formatted.get(0));
+    }
+
+    @Test
+    public void testChannelThread() throws Exception {
+        final Semaphore done = new Semaphore(0);
+        byte[] data = ":X195B4123N01020304;\n:X195B4124N;\n".getBytes(StandardCharsets
+                .ISO_8859_1);
+        new GridConnectChannelInput(Channels.newChannel(new ByteArrayInputStream(data)),
+                collector, new Runnable() {
+            @Override
+            public void run() {
+                done.release();
+            }
+        });
+        // End of stream is reported as an error.
+        Assert.assertTrue(done.tryAcquire(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, formatted.size());
+        Assert.assertEquals(":X195B4123N01020304;", formatted.get(0));
+        Assert.assertEquals(":X195B4124N;", formatted.get(1));
+    }
+}
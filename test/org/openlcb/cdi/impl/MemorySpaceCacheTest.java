@@ -23,6 +23,69 @@ public class MemorySpaceCacheTest {
         Assert.assertNotNull("exists",t);
     }
 
+    /// Serves reads of 200 bytes of memory; stream reads succeed unless streamFails is set.
+    static class StreamAccess extends ReadWriteAccess {
+        byte[] mem = new byte[200];
+        boolean streamFails = false;
+        int streamReads = 0;
+        int datagramReads = 0;
+
+        StreamAccess() {
+            for (int i = 0; i < mem.length; i++) mem[i] = (byte) (i + 1);
+        }
+
+        byte[] get(long address, long length) {
+            return java.util.Arrays.copyOfRange(mem, (int) address, (int) Math.min(mem.length,
+                    address + length));
+        }
+
+        @Override
+        public boolean supportsStreamRead() {
+            return true;
+        }
+
+        @Override
+        public void doReadStream(long address, int space, long length,
+                org.openlcb.implementations.MemoryConfigurationService.McsReadHandler h) {
+            streamReads++;
+            if (streamFails) {
+                h.handleFailure(0x1041);
+            } else {
+                h.handleReadData(null, space, address, get(address, length));
+            }
+        }
+
+        @Override
+        public void doRead(long address, int space, int length,
+                org.openlcb.implementations.MemoryConfigurationService.McsReadHandler h) {
+            datagramReads++;
+            h.handleReadData(null, space, address, get(address, length));
+        }
+    }
+
+    @Test
+    public void testStreamRead() {
+        StreamAccess access = new StreamAccess();
+        MemorySpaceCache t = new MemorySpaceCache(access, 253);
+        t.addRangeToCache(0, 200, false);
+        t.fillCache();
+        Assert.assertEquals(1, access.streamReads);
+        Assert.assertEquals(0, access.datagramReads);
+        Assert.assertArrayEquals(access.mem, t.read(0, 200));
+    }
+
+    @Test
+    public void testStreamReadFallsBackToDatagrams() {
+        StreamAccess access = new StreamAccess();
+        access.streamFails = true;
+        MemorySpaceCache t = new MemorySpaceCache(access, 253);
+        t.addRangeToCache(0, 200, false);
+        t.fillCache();
+        Assert.assertEquals(1, access.streamReads);
+        Assert.assertEquals(4, access.datagramReads);
+        Assert.assertArrayEquals(access.mem, t.read(0, 200));
+    }
+
     // The minimal setup for log4J
     @Before
     public void setUp() {
@@ -0,0 +1,188 @@
+package org.openlcb.hub;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the selector-based hub.
+ */
+public class NioHubTest {
+    private NioHub hub;
+    private Thread hubThread;
+
+    private void startHub(NioHub h) throws Exception {
+        hub = h;
+        hub.bind();
+        hubThread = new Thread("test-hub") {
+            public void run() {
+                try {
+                    hub.run();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        hubThread.start();
+    }
+
+    private Socket connect() throws Exception {
+        Socket s = new Socket("localhost", hub.getPort());
+        s.setSoTimeout(5000);
+        return s;
+    }
+
+    private static BufferedReader reader(Socket s) throws Exception {
+        return new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets
+                .ISO_8859_1));
+    }
+
+    private void waitForClients(int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (hub.getClientStats().size() != count) {
+            Assert.assertTrue("timeout", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testForward() throws Exception {
+        startHub(new NioHub(0));
+        Socket a = connect();
+        Socket b = connect();
+        Socket c = connect();
+        waitForClients(3);
+        OutputStream os = a.getOutputStream();
+        os.write(":X195B4123N01;\r\n:X195B4123N02;\n".getBytes(StandardCharsets.ISO_8859_1));
+        os.flush();
+        BufferedReader rb = reader(b);
+        BufferedReader rc = reader(c);
+        Assert.assertEquals(":X195B4123N01;", rb.readLine());
+        Assert.assertEquals(":X195B4123N02;", rb.readLine());
+        Assert.assertEquals(":X195B4123N01;", rc.readLine());
+        Assert.assertEquals(":X195B4123N02;", rc.readLine());
+
+        hub.putLine(":X195B4123N03;");
+        Assert.assertEquals(":X195B4123N03;", rb.readLine());
+        Assert.assertEquals(":X195B4123N03;", reader(a).readLine());
+
+        long received = 0;
+        for (NioHub.ClientStats st : hub.getClientStats()) {
+            received += st.getLinesReceived();
+            Assert.assertEquals(0, st.getDroppedLines());
+        }
+        Assert.assertEquals(2, received);
+
+        a.close();
+        waitForClients(2);
+        b.close();
+        c.close();
+        waitForClients(0);
+    }
+
+    @Test
+    public void testDropPolicy() throws Exception {
+        hub = new NioHub(0, 40, NioHub.SlowConsumerPolicy.DROP);
+        NioHub.Client c = hub.new Client(SocketChannel.open());
+        hub.clients.add(c);
+        for (int i = 0; i < 5; ++i) {
+            hub.dispatch(new NioHub.Line(":X195B4123N01;", null));
+        }
+        // Each line is 15 bytes; only two fit.
+        List<NioHub.ClientStats> stats = hub.getClientStats();
+        Assert.assertEquals(1, stats.size());
+        Assert.assertEquals(2, stats.get(0).getQueuedLines());
+        Assert.assertEquals(30, stats.get(0).getQueuedBytes());
+        Assert.assertEquals(3, stats.get(0).getDroppedLines());
+        c.close();
+        hub = null;
+    }
+
+    @Test
+    public void testDisconnectPolicy() throws Exception {
+        hub = new NioHub(0, 40, NioHub.SlowConsumerPolicy.DISCONNECT);
+        NioHub.Client c = hub.new Client(SocketChannel.open());
+        hub.clients.add(c);
+        for (int i = 0; i < 2; ++i) {
+            hub.dispatch(new NioHub.Line(":X195B4123N01;", null));
+        }
+        Assert.assertEquals(1, hub.getClientStats().size());
+        hub.dispatch(new NioHub.Line(":X195B4123N01;", null));
+        Assert.assertEquals(0, hub.getClientStats().size());
+        Assert.assertFalse(c.channel.isOpen());
+        hub = null;
+    }
+
+    @Test
+    public void testFrameRouting() throws Exception {
+        hub = new NioHub(0);
+        hub.setFrameRouting(true);
+        NioHub.Client a = hub.new Client(SocketChannel.open());
+        NioHub.Client b = hub.new Client(SocketChannel.open());
+        NioHub.Client c = hub.new Client(SocketChannel.open());
+        hub.clients.add(a);
+        hub.clients.add(b);
+        hub.clients.add(c);
+        // Global frames from A and B are flooded; the hub learns their aliases.
+        hub.onLine(new NioHub.Line(":X19490AAAN;", a));
+        hub.onLine(new NioHub.Line(":X19170BBBN050101010203;", b));
+        assertQueued(1, 1, 2);
+        Assert.assertEquals(2, hub.getFloodedLines());
+
+        // Datagram from A to B goes only to B.
+        hub.onLine(new NioHub.Line(":X1ABBBAAAN204100000000;", a));
+        assertQueued(1, 2, 2);
+        // Addressed message (SNIP request) from A to B.
+        hub.onLine(new NioHub.Line(":X19DE8AAAN0BBB;", a));
+        assertQueued(1, 3, 2);
+        // Stream data from B to A.
+        hub.onLine(new NioHub.Line(":X1FAAABBBN0401020304;", b));
+        assertQueued(2, 3, 2);
+        Assert.assertEquals(3, hub.getRoutedLines());
+
+        // Datagram to an unknown alias is flooded.
+        hub.onLine(new NioHub.Line(":X1ACCCAAAN2040;", a));
+        assertQueued(2, 4, 3);
+        // After B's alias is released, frames to it are flooded.
+        hub.onLine(new NioHub.Line(":X10703BBBN050101010203;", b));
+        assertQueued(3, 4, 4);
+        hub.onLine(new NioHub.Line(":X19DE8AAAN0BBB;", a));
+        assertQueued(3, 5, 5);
+        for (NioHub.Client cl : new NioHub.Client[]{a, b, c}) {
+            cl.close();
+        }
+        hub = null;
+    }
+
+    private void assertQueued(int a, int b, int c) {
+        List<NioHub.ClientStats> stats = hub.getClientStats();
+        Assert.assertEquals("a", a, stats.get(0).getQueuedLines());
+        Assert.assertEquals("b", b, stats.get(1).getQueuedLines());
+        Assert.assertEquals("c", c, stats.get(2).getQueuedLines());
+    }
+
+    @Before
+    public void setUp() {
+        hub = null;
+        hubThread = null;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (hub != null) {
+            hub.stop();
+        }
+        if (hubThread != null) {
+            hubThread.join(5000);
+        }
+    }
+}
@@ -215,6 +215,137 @@ public class DatagramMeteringBufferTest {
         Assert.assertTrue(messagesForwarded.get(1).equals(datagram2));        
     }
 
+    @Test
+    public void testQueueLimitWritable() {
+        final java.util.List<Object> writable = java.util.Collections.synchronizedList(new java
+                .util.ArrayList<>());
+        buffer.addPropertyChangeListener(new java.beans.PropertyChangeListener() {
+            public void propertyChange(java.beans.PropertyChangeEvent e) {
+                writable.add(e.getNewValue());
+            }
+        });
+        buffer.setQueueLimit(1, OutputQueuePolicy.Overflow.FAIL);
+        buffer.put(datagram1, replyConnection1);
+        buffer.waitForSendQueue();
+        Assert.assertEquals("forwarded messages", 1, messagesForwarded.size());
+        Assert.assertTrue(buffer.isWritable());
+        writable.clear();
+
+        buffer.put(datagram2, replyConnection1);
+        Assert.assertFalse(buffer.isWritable());
+        DatagramMessage datagram3 = new DatagramMessage(hereID, farID, new int[]{3});
+        try {
+            buffer.put(datagram3, replyConnection1);
+            Assert.fail("expected exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        // Nothing was discarded to make space.
+        Assert.assertEquals(0, repliesReturned1.size());
+
+        returnConnection.put(replyOK, null);
+        buffer.waitForSendQueue();
+        Assert.assertEquals("forwarded messages", 2, messagesForwarded.size());
+        Assert.assertTrue(messagesForwarded.get(1).equals(datagram2));
+        Assert.assertTrue(buffer.isWritable());
+        Assert.assertEquals(java.util.Arrays.asList((Object) false, true), writable);
+    }
+
+    @Test
+    public void testQueueLimitFail() {
+        buffer.setQueueLimit(1, OutputQueuePolicy.Overflow.FAIL);
+        buffer.put(datagram1, replyConnection1);
+        buffer.waitForSendQueue();
+        buffer.put(datagram2, replyConnection1);
+        try {
+            buffer.put(datagram2, replyConnection1);
+            Assert.fail("expected exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        // Non-datagram messages are not affected.
+        buffer.put(new InitializationCompleteMessage(hereID), replyConnection1);
+        Assert.assertEquals("forwarded messages", 2, messagesForwarded.size());
+    }
+
+    @Test
+    public void testDifferentDestinationsInParallel() {
+        NodeID otherID = new NodeID(new byte[]{1,1,1,1,1,2});
+        DatagramMessage other = new DatagramMessage(hereID, otherID, new int[]{3});
+        buffer.put(datagram1, replyConnection1);
+        buffer.put(datagram2, replyConnection1);
+        buffer.put(other, replyConnection1);
+
+        buffer.waitForSendQueue();
+        // The second datagram to farID waits, the one to otherID does not.
+        Assert.assertEquals("forwarded messages", 2, messagesForwarded.size());
+        Assert.assertTrue(messagesForwarded.contains(datagram1));
+        Assert.assertTrue(messagesForwarded.contains(other));
+        Assert.assertEquals(2, buffer.getInFlightCount());
+        Assert.assertEquals(1, buffer.getQueueDepth());
+
+        // A reply from the other node does not release farID.
+        returnConnection.put(new DatagramAcknowledgedMessage(otherID, hereID), null);
+        buffer.waitForSendQueue();
+        Assert.assertEquals("forwarded messages", 2, messagesForwarded.size());
+
+        returnConnection.put(replyOK, null);
+        buffer.waitForSendQueue();
+        Assert.assertEquals("forwarded messages", 3, messagesForwarded.size());
+        Assert.assertEquals(datagram2, messagesForwarded.get(2));
+        Assert.assertEquals(1, buffer.getInFlightCount());
+        Assert.assertEquals(0, buffer.getQueueDepth());
+    }
+
+    @Test
+    public void testSlowDestinationTimeoutDoesNotBlockOthers() throws InterruptedException {
+        NodeID otherID = new NodeID(new byte[]{1,1,1,1,1,2});
+        buffer.setTimeout(50);
+        buffer.put(datagram1, replyConnection1);
+        for (int i = 0; i < 3; ++i) {
+            buffer.put(new DatagramMessage(hereID, otherID, new int[]{i}), replyConnection1);
+            buffer.waitForSendQueue();
+            Assert.assertTrue(messagesForwarded.contains(new DatagramMessage(hereID, otherID,
+                    new int[]{i})));
+            returnConnection.put(new DatagramAcknowledgedMessage(otherID, hereID), null);
+        }
+        Assert.assertEquals(0, repliesReturned1.size());
+
+        Thread.sleep(100);
+        buffer.waitForSendCallbacks();
+        // farID never replied.
+        Assert.assertEquals(1, repliesReturned1.size());
+        Assert.assertEquals(farID, repliesReturned1.get(0).getSourceNodeID());
+        Assert.assertEquals(0, buffer.getInFlightCount());
+    }
+
+    @Test
+    public void testMaxInFlight() {
+        buffer.setMaxInFlight(2);
+        NodeID[] ids = new NodeID[4];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = new NodeID(new byte[]{2,2,2,2,2,(byte) i});
+            buffer.put(new DatagramMessage(hereID, ids[i], new int[]{i}), replyConnection1);
+        }
+        buffer.waitForSendQueue();
+        Assert.assertEquals("forwarded messages", 2, messagesForwarded.size());
+        Assert.assertEquals(2, buffer.getInFlightCount());
+        Assert.assertEquals(2, buffer.getQueueDepth());
+
+        // Datagrams waiting for a slot are started in the order they were put.
+        returnConnection.put(new DatagramAcknowledgedMessage(ids[1], hereID), null);
+        buffer.waitForSendQueue();
+        Assert.assertEquals("forwarded messages", 3, messagesForwarded.size());
+        Assert.assertEquals(ids[2], ((DatagramMessage) messagesForwarded.get(2)).getDestNodeID());
+
+        buffer.setMaxInFlight(3);
+        buffer.waitForSendQueue();
+        Assert.assertEquals("forwarded messages", 4, messagesForwarded.size());
+        Assert.assertEquals(ids[3], ((DatagramMessage) messagesForwarded.get(3)).getDestNodeID());
+        Assert.assertEquals(3, buffer.getInFlightCount());
+        Assert.assertEquals(0, buffer.getQueueDepth());
+    }
+
     @After
     public void tearDown() {
         buffer.dispose(); 
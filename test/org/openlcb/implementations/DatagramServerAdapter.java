@@ -0,0 +1,72 @@
+package org.openlcb.implementations;
+
+import org.openlcb.DatagramAcknowledgedMessage;
+import org.openlcb.NodeID;
+
+/**
+ * Lets test tools outside this package serve one datagram type of a {@link DatagramService},
+ * e.g. the virtual nodes of the load generator, which answer the requests that the library
+ * only sends.
+ */
+public abstract class DatagramServerAdapter {
+    /**
+     * Replies to one received datagram. One of the methods must be called before
+     * {@link #handleData} returns.
+     */
+    public static class Reply {
+        private final DatagramService.ReplyMemo memo;
+
+        Reply(DatagramService.ReplyMemo memo) {
+            this.memo = memo;
+        }
+
+        /**
+         * @param resultCode 0 to accept the datagram, otherwise the error code to reject it
+         *                   with.
+         */
+        public void acceptData(int resultCode) {
+            memo.acceptData(resultCode);
+        }
+
+        /**
+         * Accepts the datagram with flags in the acknowledgement.
+         * @param flags e.g. {@link DatagramService#FLAG_REPLY_PENDING} if a reply datagram
+         *              will follow
+         */
+        public void acknowledge(int flags) {
+            memo.replied = true;
+            memo.downstream.put(new DatagramAcknowledgedMessage(memo.here, memo.msg
+                    .getSourceNodeID(), flags), memo.service);
+        }
+    }
+
+    private final DatagramService.DatagramServiceReceiveMemo memo;
+
+    /**
+     * @param type the datagram type (first payload byte) to serve
+     */
+    public DatagramServerAdapter(int type) {
+        memo = new DatagramService.DatagramServiceReceiveMemo(type) {
+            @Override
+            public void handleData(NodeID n, int[] data, DatagramService.ReplyMemo service) {
+                DatagramServerAdapter.this.handleData(n, data, new Reply(service));
+            }
+        };
+    }
+
+    /**
+     * Takes over the datagrams of our type from the receiver registered earlier.
+     * @param service where to receive the datagrams
+     */
+    public void register(DatagramService service) {
+        service.registerForReceive(memo);
+    }
+
+    /**
+     * Called for each datagram of our type addressed to the node of the service.
+     * @param source the sender
+     * @param data   payload of the datagram
+     * @param reply  to accept or reject the datagram
+     */
+    public abstract void handleData(NodeID source, int[] data, Reply reply);
+}
@@ -20,16 +20,19 @@ public class DatagramServiceTest {
     NodeID farID = new NodeID(new byte[]{1,2,3,4,5,7});
     Connection testConnection;
     java.util.ArrayList<Message> messagesReceived;
+    java.util.ArrayList<Connection> senders;
     boolean flag;
     DatagramService service;
    
     @Before 
     public void setUp() {
         messagesReceived = new java.util.ArrayList<Message>();
+        senders = new java.util.ArrayList<Connection>();
         testConnection = new AbstractConnection(){
             @Override
-            public void put(Message msg, Connection sender) {
+            public synchronized void put(Message msg, Connection sender) {
                 messagesReceived.add(msg);
+                senders.add(sender);
             }
         };
         service = new DatagramService(hereID, testConnection);
@@ -231,4 +234,186 @@ public class DatagramServiceTest {
 
         Assert.assertEquals("1st messages", 0, messagesReceived.size());
     }
+
+    /// Records the outcome of each datagram sent.
+    class RecordingMemo extends DatagramService.DatagramServiceTransmitMemo {
+        final java.util.List<String> results;
+
+        RecordingMemo(NodeID dest, int[] data, java.util.List<String> results) {
+            super(dest, data);
+            this.results = results;
+        }
+
+        @Override
+        public void handleSuccess(int flags) {
+            results.add("OK " + data[0]);
+        }
+
+        @Override
+        public void handleFailure(int errorCode) {
+            results.add("failed " + data[0] + " " + Integer.toHexString(errorCode));
+        }
+    }
+
+    @Test
+    public void testMultipleOutstandingSameNode() {
+        java.util.List<String> results = new java.util.ArrayList<>();
+        service.sendData(new RecordingMemo(farID, new int[]{1}, results));
+        service.sendData(new RecordingMemo(farID, new int[]{2}, results));
+        service.sendData(new RecordingMemo(farID, new int[]{3}, results));
+        Assert.assertEquals(3, messagesReceived.size());
+        Assert.assertEquals(3, service.getPendingTransmitCount());
+
+        service.put(new DatagramAcknowledgedMessage(farID, hereID), null);
+        // A temporary error is retried by the metering buffer, not reported.
+        service.put(new DatagramRejectedMessage(farID, hereID, 0x210), null);
+        service.put(new DatagramRejectedMessage(farID, hereID, 0x1000), null);
+        service.put(new DatagramAcknowledgedMessage(farID, hereID), null);
+        // Nothing is outstanding any more.
+        service.put(new DatagramAcknowledgedMessage(farID, hereID), null);
+
+        Assert.assertEquals(java.util.Arrays.asList("OK 1", "failed 2 1000", "OK 3"), results);
+        Assert.assertEquals(0, service.getPendingTransmitCount());
+    }
+
+    @Test
+    public void testMultipleOutstandingDifferentNodes() {
+        NodeID thirdID = new NodeID(new byte[]{1,2,3,4,5,8});
+        java.util.List<String> results = new java.util.ArrayList<>();
+        service.sendData(new RecordingMemo(farID, new int[]{1}, results));
+        service.sendData(new RecordingMemo(thirdID, new int[]{2}, results));
+
+        // Replies to another node are not for us.
+        service.put(new DatagramAcknowledgedMessage(thirdID, farID), null);
+        Assert.assertEquals(0, results.size());
+
+        service.put(new DatagramAcknowledgedMessage(thirdID, hereID), null);
+        service.put(new DatagramAcknowledgedMessage(farID, hereID, 0x80), null);
+        Assert.assertEquals(java.util.Arrays.asList("OK 2", "OK 1"), results);
+    }
+
+    @Test
+    public void testLocalFailureOfOneDatagram() {
+        java.util.List<String> results = new java.util.ArrayList<>();
+        service.sendData(new RecordingMemo(farID, new int[]{1}, results));
+        service.sendData(new RecordingMemo(farID, new int[]{2}, results));
+
+        // The metering buffer reports that the second datagram was dropped from its queue.
+        senders.get(1).put(new DatagramRejectedMessage(farID, hereID, 0x100), null);
+        Assert.assertEquals(java.util.Arrays.asList("failed 2 100"), results);
+
+        service.put(new DatagramAcknowledgedMessage(farID, hereID), null);
+        Assert.assertEquals(java.util.Arrays.asList("failed 2 100", "OK 1"), results);
+
+        // Already done.
+        senders.get(0).put(new DatagramRejectedMessage(farID, hereID, 0x100), null);
+        Assert.assertEquals(2, results.size());
+    }
+
+    @Test
+    public void testConcurrentSenders() throws InterruptedException {
+        final int threads = 4;
+        final int perThread = 250;
+        final java.util.List<String> results = java.util.Collections.synchronizedList(new java
+                .util.ArrayList<String>());
+        Thread[] t = new Thread[threads];
+        for (int i = 0; i < threads; ++i) {
+            final NodeID dest = new NodeID(new byte[]{2,2,2,2,2,(byte) i});
+            t[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < perThread; ++j) {
+                        service.sendData(new RecordingMemo(dest, new int[]{j}, results));
+                        service.put(new DatagramAcknowledgedMessage(dest, hereID), null);
+                    }
+                }
+            };
+            t[i].start();
+        }
+        for (Thread thread : t) thread.join();
+        Assert.assertEquals(threads * perThread, results.size());
+        Assert.assertEquals(0, service.getPendingTransmitCount());
+    }
+
+    @Test
+    public void testConcurrentSendersSameNode() throws InterruptedException {
+        final int threads = 4;
+        final int perThread = 250;
+        final java.util.List<Integer> sent = new java.util.ArrayList<>();
+        Connection downstream = new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+                // Widens the window between queueing the memo and sending the datagram.
+                Thread.yield();
+                synchronized (sent) {
+                    sent.add(((DatagramMessage) msg).getData()[0]);
+                }
+            }
+        };
+        final DatagramService s = new DatagramService(hereID, downstream);
+        final java.util.List<String> results = java.util.Collections.synchronizedList(new java
+                .util.ArrayList<String>());
+        Thread[] t = new Thread[threads];
+        for (int i = 0; i < threads; ++i) {
+            final int base = i * perThread;
+            t[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < perThread; ++j) {
+                        s.sendData(new RecordingMemo(farID, new int[]{base + j}, results));
+                    }
+                }
+            };
+            t[i].start();
+        }
+        for (Thread thread : t) thread.join();
+        Assert.assertEquals(threads * perThread, sent.size());
+        // The node acknowledges the datagrams in the order they were sent; each
+        // acknowledgement completes the memo of that datagram.
+        for (int data : sent) {
+            s.put(new DatagramAcknowledgedMessage(farID, hereID), null);
+            Assert.assertEquals("OK " + data, results.get(results.size() - 1));
+        }
+        Assert.assertEquals(0, s.getPendingTransmitCount());
+    }
+
+    @Test
+    public void testReceiveByType() {
+        final java.util.List<String> received = new java.util.ArrayList<>();
+        for (final int type : new int[]{0x20, 0x21}) {
+            service.registerForReceive(new DatagramService.DatagramServiceReceiveMemo(type) {
+                @Override
+                public void handleData(NodeID n, int[] data, DatagramService.ReplyMemo
+                        service) {
+                    received.add(Integer.toHexString(type));
+                    service.acceptData(0);
+                }
+            });
+        }
+        service.put(new DatagramMessage(farID, hereID, new int[]{0x21}), null);
+        service.put(new DatagramMessage(farID, hereID, new int[]{0x20}), null);
+        service.put(new DatagramMessage(farID, hereID, new int[]{0x22}), null);
+
+        Assert.assertEquals(java.util.Arrays.asList("21", "20"), received);
+        Assert.assertTrue(messagesReceived.get(0) instanceof DatagramAcknowledgedMessage);
+        Assert.assertTrue(messagesReceived.get(1) instanceof DatagramAcknowledgedMessage);
+        Assert.assertTrue(messagesReceived.get(2) instanceof DatagramRejectedMessage);
+    }
+
+    @Test
+    public void testUnregister() {
+        DatagramService.DatagramServiceReceiveMemo m20 = new DatagramService
+                .DatagramServiceReceiveMemo(0x20) {
+            @Override
+            public void handleData(NodeID n, int[] data, DatagramService.ReplyMemo service) {
+                flag = true;
+                service.acceptData(0);
+            }
+        };
+        service.registerForReceive(m20);
+        service.unregisterForReceive(m20);
+        service.put(new DatagramMessage(farID, hereID, new int[]{0x20}), null);
+        Assert.assertFalse(flag);
+        Assert.assertTrue(messagesReceived.get(0) instanceof DatagramRejectedMessage);
+    }
 }
@@ -14,15 +14,25 @@ import org.mockito.junit.MockitoRule;
 import org.openlcb.DatagramAcknowledgedMessage;
 import org.openlcb.DatagramMessage;
 import org.openlcb.DatagramRejectedMessage;
+import org.openlcb.InitializationCompleteMessage;
 import org.openlcb.InterfaceTestBase;
 import org.openlcb.Message;
 import org.openlcb.NodeID;
+import org.openlcb.ProtocolIdentificationReplyMessage;
+import org.openlcb.Scheduler;
+import org.openlcb.StreamDataCompleteMessage;
+import org.openlcb.StreamDataProceedMessage;
+import org.openlcb.StreamDataSendMessage;
+import org.openlcb.StreamInitiateReplyMessage;
+import org.openlcb.StreamInitiateRequestMessage;
 import org.openlcb.Utilities;
 import org.openlcb.can.CanFrame;
 import org.openlcb.can.GridConnect;
 import org.openlcb.can.MessageBuilder;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import static org.mockito.Mockito.any;
@@ -30,6 +40,7 @@ import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 
@@ -170,15 +181,15 @@ public class MemoryConfigurationServiceInterfaceTest extends InterfaceTestBase {
                     new byte[]{(byte) i, 2}, mock);
 
             if (i > 0) {
-                Assert.assertEquals(i, iface.getMemoryConfigurationService().queuedRequests.get(0).size());
+                Assert.assertEquals(i, iface.getMemoryConfigurationService().queuedRequests.get(farID).size());
                 MemoryConfigurationService.McsWriteMemo m = (MemoryConfigurationService
                         .McsWriteMemo) iface.getMemoryConfigurationService().queuedRequests.get
-                        (0).getLast();
+                        (farID).getLast();
                Assert.assertEquals(address + i * 256, m.address);
             }
         }
 
-        Assert.assertEquals(count - 1, iface.getMemoryConfigurationService().queuedRequests.get(0).size());
+        Assert.assertEquals(count - 1, iface.getMemoryConfigurationService().queuedRequests.get(farID).size());
 
         for (int i = 0; i < count; ++i) {
             MemoryConfigurationService.McsWriteHandler hnd = hnds.get(i);
@@ -329,14 +340,19 @@ public class MemoryConfigurationServiceInterfaceTest extends InterfaceTestBase {
             iface.getMemoryConfigurationService().requestRead(farID, space, address, length, hnd);
 
             // should have sent datagram
-            expectMessageAndNoMore(new DatagramMessage(hereID, farID, new int[]{
-                    0x20, 0x41, 0x12, 0x34, 0x56, 0x78, 4}));
+            DatagramMessage request = new DatagramMessage(hereID, farID, new int[]{
+                    0x20, 0x41, 0x12, 0x34, 0x56, 0x78, 4});
+            expectMessageAndNoMore(request);
 
             System.err.println("Expect 'Never received reply' here -->");
-            delay(50);
+            delay(300);
             iface.getDatagramMeteringBuffer().waitForSendCallbacks();
             System.err.println("<--");
 
+            // A read is sent again when its acknowledgement is lost, three tries in all.
+            consumeMessages();
+            verify(outputConnectionMock, times(2)).put(eq(request), any());
+            expectNoMessages();
             verify(hnd).handleFailure(0x100);
 
             verifyNoMoreInteractions(hnd);
@@ -379,14 +395,19 @@ public class MemoryConfigurationServiceInterfaceTest extends InterfaceTestBase {
             iface.getMemoryConfigurationService().requestRead(farID, space, address, length, hnd);
 
             // should have sent datagram
-            expectMessageAndNoMore(new DatagramMessage(hereID, farID, new int[]{
-                    0x20, 0x41, 0x12, 0x34, 0x56, 0x78, 4}));
+            DatagramMessage request = new DatagramMessage(hereID, farID, new int[]{
+                    0x20, 0x41, 0x12, 0x34, 0x56, 0x78, 4});
+            expectMessageAndNoMore(request);
 
             System.err.println("Expect 'Never received reply' here -->");
-            delay(50);
+            delay(300);
             iface.getDatagramMeteringBuffer().waitForSendCallbacks();
             System.err.println("<--");
 
+            // A read is sent again when its acknowledgement is lost, three tries in all.
+            consumeMessages();
+            verify(outputConnectionMock, times(2)).put(eq(request), any());
+            expectNoMessages();
             verify(hnd).handleFailure(0x100);
 
             verifyNoMoreInteractions(hnd);
@@ -442,6 +463,170 @@ public class MemoryConfigurationServiceInterfaceTest extends InterfaceTestBase {
         sendAnother(space, address+5);
     }
 
+    @Test
+    public void testMismatchedResponsesFailOutsideLock() throws InterruptedException {
+        final MemoryConfigurationService mcs = iface.getMemoryConfigurationService();
+        mcs.setTimeoutMillis(30);
+        final List<Integer> failures = new ArrayList<>();
+        final List<Boolean> lockHeld = new ArrayList<>();
+        mcs.requestRead(farID, 0xFD, 0x12345679, 4, new MemoryConfigurationService
+                .McsReadHandler() {
+            @Override
+            public void handleFailure(int errorCode) {
+                failures.add(errorCode);
+                lockHeld.add(Thread.holdsLock(mcs));
+            }
+
+            @Override
+            public void handleReadData(NodeID dest, int space, long address, byte[] data) {
+                Assert.fail("unexpected data");
+            }
+        });
+        for (int i = 0; i < 3; i++) {
+            if (i > 0) {
+                delay(50);
+                mcs.waitForTimer();
+            }
+            expectMessageAndNoMore(new DatagramMessage(hereID, farID, new int[]{
+                    0x20, 0x41, 0x12, 0x34, 0x56, 0x79, 4}));
+            sendMessage(new DatagramAcknowledgedMessage(farID, hereID, 0x80));
+            // The response is for another address.
+            sendMessageAndExpectResult(new DatagramMessage(farID, hereID, new int[]{
+                            0x20, 0x51, 0x12, 0x34, 0x56, 0x78, 0xaa}),
+                    new DatagramAcknowledgedMessage(hereID, farID));
+        }
+        Assert.assertEquals(java.util.Collections.singletonList(0x1000), failures);
+        Assert.assertEquals(java.util.Collections.singletonList(false), lockHeld);
+        Assert.assertEquals(0, mcs.getPendingRequestCount());
+    }
+
+    @Test
+    public void testReadReplyTimeout() throws InterruptedException {
+        int space = 0xFD;
+        long address = 0x12345678;
+        MemoryConfigurationService.McsReadHandler hnd = mock(MemoryConfigurationService
+                .McsReadHandler.class);
+        MemoryConfigurationService mcs = iface.getMemoryConfigurationService();
+        mcs.setTimeoutMillis(30);
+        mcs.requestRead(farID, space, address, 4, hnd);
+        DatagramMessage request = new DatagramMessage(hereID, farID, new int[]{
+                0x20, 0x41, 0x12, 0x34, 0x56, 0x78, 4});
+        // The node acknowledges each try with reply pending, but the reply never arrives.
+        for (int i = 0; i < 3; i++) {
+            expectMessageAndNoMore(request);
+            sendMessage(new DatagramAcknowledgedMessage(farID, hereID, 0x80));
+            verifyNoMoreInteractions(hnd);
+            delay(50);
+            mcs.waitForTimer();
+        }
+        verify(hnd).handleFailure(0x1000);
+        verifyNoMoreInteractions(hnd);
+        expectNoMessages();
+        Assert.assertEquals(2, mcs.getRetryCount());
+        Assert.assertEquals(0, mcs.getPendingRequestCount());
+        Assert.assertEquals(3, mcs.getRoundTripEstimator().getEstimate(farID).getBackoff());
+
+        // A response ends the backoff.
+        sendAnother(space, address);
+        Assert.assertEquals(0, mcs.getRoundTripEstimator().getEstimate(farID).getBackoff());
+        Assert.assertEquals(1, mcs.getRoundTripEstimator().getEstimate(farID).getSampleCount());
+    }
+
+    @Test
+    public void testWriteReplyTimeoutNotResent() throws InterruptedException {
+        MemoryConfigurationService.McsWriteHandler hnd = mock(MemoryConfigurationService
+                .McsWriteHandler.class);
+        MemoryConfigurationService mcs = iface.getMemoryConfigurationService();
+        mcs.setTimeoutMillis(30);
+        mcs.requestWrite(farID, 0xFD, 0x12345678, new byte[]{1, 2}, hnd);
+        expectMessageAndNoMore(new DatagramMessage(hereID, farID, new int[]{
+                0x20, 0x01, 0x12, 0x34, 0x56, 0x78, 1, 2}));
+        sendMessage(new DatagramAcknowledgedMessage(farID, hereID, 0x80));
+        delay(50);
+        mcs.waitForTimer();
+        // The node may have written the data already; the write fails instead of running twice.
+        verify(hnd).handleFailure(0x1000);
+        verifyNoMoreInteractions(hnd);
+        expectNoMessages();
+        Assert.assertEquals(0, mcs.getRetryCount());
+        Assert.assertEquals(0, mcs.getPendingRequestCount());
+    }
+
+    @Test
+    public void testLostAcknowledgement() throws InterruptedException {
+        // Reads time out after the estimate, 50 msec for a node without samples.
+        iface.getDatagramMeteringBuffer().getRoundTripEstimator().setLimits(50, 10, 1000);
+        MemoryConfigurationService mcs = iface.getMemoryConfigurationService();
+        MemoryConfigurationService.McsReadHandler hnd = mock(MemoryConfigurationService
+                .McsReadHandler.class);
+        mcs.requestRead(farID, 0xFD, 0x12345678, 4, hnd);
+        DatagramMessage request = new DatagramMessage(hereID, farID, new int[]{
+                0x20, 0x41, 0x12, 0x34, 0x56, 0x78, 4});
+        expectMessageAndNoMore(request);
+        delay(80);
+        iface.getDatagramMeteringBuffer().waitForSendCallbacks();
+        // The read is sent again right away.
+        expectMessageAndNoMore(request);
+        Assert.assertEquals(1, mcs.getRetryCount());
+        sendMessage(new DatagramAcknowledgedMessage(farID, hereID, 0x80));
+        sendMessageAndExpectResult(new DatagramMessage(farID, hereID, new int[]{
+                0x20, 0x51, 0x12, 0x34, 0x56, 0x78, 0xaa}), new DatagramAcknowledgedMessage(
+                hereID, farID));
+        verify(hnd).handleReadData(farID, 0xFD, 0x12345678, new byte[]{(byte) 0xaa});
+        verifyNoMoreInteractions(hnd);
+
+        // A write still waits 3 seconds for its acknowledgement, since it is not resent.
+        MemoryConfigurationService.McsWriteHandler whnd = mock(MemoryConfigurationService
+                .McsWriteHandler.class);
+        mcs.requestWrite(farID, 0xFD, 0x12345678, new byte[]{1}, whnd);
+        expectMessageAndNoMore(new DatagramMessage(hereID, farID, new int[]{
+                0x20, 0x01, 0x12, 0x34, 0x56, 0x78, 1}));
+        delay(200);
+        iface.getDatagramMeteringBuffer().waitForSendCallbacks();
+        verifyNoMoreInteractions(whnd);
+        expectNoMessages();
+        sendMessage(new DatagramAcknowledgedMessage(farID, hereID));
+        verify(whnd).handleSuccess();
+    }
+
+    @Test
+    public void testReadReplyTimeoutBackoff() throws InterruptedException {
+        int space = 0xFD;
+        long address = 0x12345678;
+        final List<Long> delays = Collections.synchronizedList(new ArrayList<Long>());
+        Scheduler scheduler = new Scheduler() {
+            @Override
+            public Timeout schedule(Runnable task, long delayMsec) {
+                delays.add(delayMsec);
+                return super.schedule(task, delayMsec);
+            }
+        };
+        try {
+            MemoryConfigurationService.McsReadHandler hnd = mock(MemoryConfigurationService
+                    .McsReadHandler.class);
+            // Takes over the configuration datagrams from the service of the interface.
+            MemoryConfigurationService mcs = new MemoryConfigurationService(hereID, iface
+                    .getDatagramService(), scheduler);
+            mcs.getRoundTripEstimator().setLimits(40, 10, 1000);
+            mcs.requestRead(farID, space, address, 4, hnd);
+            DatagramMessage request = new DatagramMessage(hereID, farID, new int[]{
+                    0x20, 0x41, 0x12, 0x34, 0x56, 0x78, 4});
+            for (int i = 0; i < 3; i++) {
+                expectMessageAndNoMore(request);
+                sendMessage(new DatagramAcknowledgedMessage(farID, hereID, 0x80));
+                delay((40 << i) + 30);
+                mcs.waitForTimer();
+            }
+            verify(hnd).handleFailure(0x1000);
+            expectNoMessages();
+            // Each timeout doubles the timeout once.
+            Assert.assertEquals(Arrays.asList(40L, 80L, 160L), delays);
+            Assert.assertEquals(320, mcs.getRoundTripEstimator().getTimeoutMillis(farID));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
     @Test
     public void testManyReadsInlinePrint() {
         final int space = 0xFD;
@@ -708,6 +893,156 @@ public class MemoryConfigurationServiceInterfaceTest extends InterfaceTestBase {
         verifyNoMoreInteractions(hnd2);
     }
 
+    @Test
+    public void testReadsToDifferentNodesInParallel() {
+        int space = 0xFD;
+        MemoryConfigurationService mcs = iface.getMemoryConfigurationService();
+        mcs.setMaxConcurrentRequests(2);
+        NodeID[] nodes = new NodeID[3];
+        MemoryConfigurationService.McsReadHandler[] hnds = new MemoryConfigurationService
+                .McsReadHandler[3];
+        for (int i = 0; i < nodes.length; ++i) {
+            nodes[i] = new NodeID(new byte[]{1, 2, 3, 4, 6, (byte) i});
+            aliasMap.insert(0x990 + i, nodes[i]);
+            hnds[i] = mock(MemoryConfigurationService.McsReadHandler.class);
+            mcs.requestRead(nodes[i], space, 0x100 + i, 1, hnds[i]);
+        }
+        // A second request to the first node waits for the first one.
+        MemoryConfigurationService.McsReadHandler hnd = mock(MemoryConfigurationService
+                .McsReadHandler.class);
+        mcs.requestRead(nodes[0], space, 0x200, 1, hnd);
+
+        // Two nodes are read in parallel, the third one waits for the limit.
+        expectMessage(new DatagramMessage(hereID, nodes[0], new int[]{
+                0x20, 0x41, 0, 0, 1, 0, 1}));
+        expectMessageAndNoMore(new DatagramMessage(hereID, nodes[1], new int[]{
+                0x20, 0x41, 0, 0, 1, 1, 1}));
+        Assert.assertEquals(4, mcs.getPendingRequestCount());
+
+        // The second node answers first.
+        sendMessage(new DatagramAcknowledgedMessage(nodes[1], hereID, 0x80));
+        sendMessageAndExpectResult(new DatagramMessage(nodes[1], hereID, new int[]{
+                0x20, 0x51, 0, 0, 1, 1, 0xbb}), new DatagramAcknowledgedMessage(hereID,
+                nodes[1]));
+        verify(hnds[1]).handleReadData(nodes[1], space, 0x101, new byte[]{(byte) 0xbb});
+        expectMessageAndNoMore(new DatagramMessage(hereID, nodes[2], new int[]{
+                0x20, 0x41, 0, 0, 1, 2, 1}));
+
+        sendMessage(new DatagramAcknowledgedMessage(nodes[0], hereID, 0x80));
+        sendMessageAndExpectResult(new DatagramMessage(nodes[0], hereID, new int[]{
+                0x20, 0x51, 0, 0, 1, 0, 0xaa}), new DatagramAcknowledgedMessage(hereID,
+                nodes[0]));
+        verify(hnds[0]).handleReadData(nodes[0], space, 0x100, new byte[]{(byte) 0xaa});
+        expectMessageAndNoMore(new DatagramMessage(hereID, nodes[0], new int[]{
+                0x20, 0x41, 0, 0, 2, 0, 1}));
+
+        for (int i : new int[]{2, 0}) {
+            int address = i == 0 ? 0x200 : 0x102;
+            sendMessage(new DatagramAcknowledgedMessage(nodes[i], hereID, 0x80));
+            sendMessageAndExpectResult(new DatagramMessage(nodes[i], hereID, new int[]{
+                    0x20, 0x51, 0, 0, address >> 8, address & 0xff, 0xcc}), new
+                    DatagramAcknowledgedMessage(hereID, nodes[i]));
+        }
+        verify(hnds[2]).handleReadData(nodes[2], space, 0x102, new byte[]{(byte) 0xcc});
+        verify(hnd).handleReadData(nodes[0], space, 0x200, new byte[]{(byte) 0xcc});
+        expectNoMessages();
+        Assert.assertEquals(0, mcs.getPendingRequestCount());
+        Assert.assertEquals(4, mcs.getCompletedRequestCount());
+        Assert.assertEquals(4, mcs.getTransferredBytes());
+        Assert.assertTrue(mcs.getThroughput() > 0);
+    }
+
+    @Test
+    public void testStreamRead() {
+        MemoryConfigurationService mcs = iface.getMemoryConfigurationService();
+        Assert.assertFalse(mcs.isStreamReadSupported(farID));
+        sendMessage(new ProtocolIdentificationReplyMessage(farID, hereID, 0xF41800000000L));
+        consumeMessages();
+        Assert.assertTrue(mcs.isStreamReadSupported(farID));
+
+        MemoryConfigurationService.McsReadHandler hnd = mock(MemoryConfigurationService
+                .McsReadHandler.class);
+        mcs.requestReadStream(farID, 0xFF, 0, MemoryConfigurationService.STREAM_READ_TO_END,
+                hnd);
+        expectMessageAndNoMore(new DatagramMessage(hereID, farID, new int[]{
+                0x20, 0x63, 0, 0, 0, 0, 0xFF, 1, 0xFF, 0xFF, 0xFF, 0xFF}));
+        sendMessage(new DatagramAcknowledgedMessage(farID, hereID, 0x80));
+
+        // The node opens the stream to the ID given in the command, with small windows.
+        sendMessageAndExpectResult(new StreamInitiateRequestMessage(farID, hereID, 4, (byte)
+                0x22, (byte) 1), new StreamInitiateReplyMessage(hereID, farID, 4, (byte) 0x22,
+                (byte) 1));
+        sendMessageAndExpectResult(new StreamDataSendMessage(farID, hereID, (byte) 1, new
+                int[]{1, 2, 3, 4}), new StreamDataProceedMessage(hereID, farID, (byte) 0x22,
+                (byte) 1));
+        sendMessageAndExpectResult(new DatagramMessage(farID, hereID, new int[]{
+                0x20, 0x73, 0, 0, 0, 0, 0x22, 1}), new DatagramAcknowledgedMessage(hereID,
+                farID));
+        // The reply alone does not complete the read.
+        verifyNoMoreInteractions(hnd);
+        Assert.assertEquals(1, mcs.getPendingRequestCount());
+
+        sendMessage(new StreamDataSendMessage(farID, hereID, (byte) 1, new int[]{5, 6}));
+        expectNoMessages();
+        sendMessage(new StreamDataCompleteMessage(farID, hereID, (byte) 0x22, (byte) 1));
+        verify(hnd).handleReadData(farID, 0xFF, 0, new byte[]{1, 2, 3, 4, 5, 6});
+        verifyNoMoreInteractions(hnd);
+        expectNoMessages();
+        Assert.assertEquals(0, mcs.getPendingRequestCount());
+        Assert.assertEquals(6, mcs.getTransferredBytes());
+    }
+
+    @Test
+    public void testStreamReadRejected() {
+        MemoryConfigurationService mcs = iface.getMemoryConfigurationService();
+        sendMessage(new ProtocolIdentificationReplyMessage(farID, hereID, 0xF41800000000L));
+        consumeMessages();
+
+        MemoryConfigurationService.McsReadHandler hnd = mock(MemoryConfigurationService
+                .McsReadHandler.class);
+        mcs.requestReadStream(farID, 0xFD, 0x100, 200, hnd);
+        expectMessageAndNoMore(new DatagramMessage(hereID, farID, new int[]{
+                0x20, 0x61, 0, 0, 1, 0, 0xFF, 1, 0, 0, 0, 200}));
+        sendMessage(new DatagramRejectedMessage(farID, hereID, 0x1041));
+
+        verify(hnd).handleFailure(0x1041);
+        verifyNoMoreInteractions(hnd);
+        // Callers fall back to datagrams from now on.
+        Assert.assertFalse(mcs.isStreamReadSupported(farID));
+        Assert.assertEquals(0, mcs.getPendingRequestCount());
+
+        // Until the node reinitializes, maybe with new firmware.
+        sendMessage(new InitializationCompleteMessage(farID));
+        sendMessage(new ProtocolIdentificationReplyMessage(farID, hereID, 0xF41800000000L));
+        consumeMessages();
+        Assert.assertTrue(mcs.isStreamReadSupported(farID));
+    }
+
+    @Test
+    public void testStreamReadStalled() throws InterruptedException {
+        MemoryConfigurationService mcs = iface.getMemoryConfigurationService();
+        sendMessage(new ProtocolIdentificationReplyMessage(farID, hereID, 0xF41800000000L));
+        consumeMessages();
+        mcs.setTimeoutMillis(50);
+        mcs.setStreamRetryMillis(300);
+
+        MemoryConfigurationService.McsReadHandler hnd = mock(MemoryConfigurationService
+                .McsReadHandler.class);
+        mcs.requestReadStream(farID, 0xFD, 0x100, 200, hnd);
+        expectMessageAndNoMore(new DatagramMessage(hereID, farID, new int[]{
+                0x20, 0x61, 0, 0, 1, 0, 0xFF, 1, 0, 0, 0, 200}));
+        sendMessage(new DatagramAcknowledgedMessage(farID, hereID, 0x80));
+        // The stream never opens.
+        delay(150);
+        mcs.waitForTimer();
+        verify(hnd).handleFailure(0x1000);
+        Assert.assertFalse(mcs.isStreamReadSupported(farID));
+
+        // Stream reads are tried again later.
+        delay(300);
+        Assert.assertTrue(mcs.isStreamReadSupported(farID));
+    }
+
     /*
     @Test
     @Ignore("commented out prior to JUnit 4")
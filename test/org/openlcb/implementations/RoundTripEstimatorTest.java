@@ -0,0 +1,101 @@
+package org.openlcb.implementations;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openlcb.NodeID;
+
+import org.junit.*;
+
+public class RoundTripEstimatorTest {
+    NodeID nodeA = new NodeID(new byte[]{1,1,1,1,1,1});
+    NodeID nodeB = new NodeID(new byte[]{1,1,1,1,1,2});
+
+    static long ms(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    public void testInitial() {
+        RoundTripEstimator e = new RoundTripEstimator();
+        Assert.assertEquals(RoundTripEstimator.DEFAULT_INITIAL_TIMEOUT, e.getTimeoutMillis(nodeA));
+        Assert.assertNull(e.getEstimate(nodeA));
+        Assert.assertTrue(e.getTimeoutsByNode().isEmpty());
+    }
+
+    @Test
+    public void testSamples() {
+        RoundTripEstimator e = new RoundTripEstimator();
+        e.setLimits(3000, 10, 20000);
+        // The first sample sets the variation to half of it.
+        e.sample(nodeA, ms(100));
+        Assert.assertEquals(100, e.getEstimate(nodeA).getSmoothedRttMillis(), 0.01);
+        Assert.assertEquals(50, e.getEstimate(nodeA).getRttVariationMillis(), 0.01);
+        Assert.assertEquals(300, e.getTimeoutMillis(nodeA));
+        // rttvar = 3/4 * 50 + 1/4 * 100, srtt = 7/8 * 100 + 1/8 * 200
+        e.sample(nodeA, ms(200));
+        Assert.assertEquals(112.5, e.getEstimate(nodeA).getSmoothedRttMillis(), 0.01);
+        Assert.assertEquals(62.5, e.getEstimate(nodeA).getRttVariationMillis(), 0.01);
+        Assert.assertEquals(362, e.getTimeoutMillis(nodeA));
+        Assert.assertEquals(2, e.getEstimate(nodeA).getSampleCount());
+        // Other nodes are independent.
+        Assert.assertEquals(3000, e.getTimeoutMillis(nodeB));
+
+        // A steady round trip converges, with the variation limited by the timer granularity.
+        for (int i = 0; i < 200; i++) {
+            e.sample(nodeA, ms(20));
+        }
+        Assert.assertEquals(20, e.getEstimate(nodeA).getSmoothedRttMillis(), 1);
+        Assert.assertEquals(30, e.getTimeoutMillis(nodeA), 1);
+    }
+
+    @Test
+    public void testLimits() {
+        RoundTripEstimator e = new RoundTripEstimator();
+        e.sample(nodeA, ms(1));
+        Assert.assertEquals(RoundTripEstimator.DEFAULT_MIN_TIMEOUT, e.getTimeoutMillis(nodeA));
+        e.sample(nodeB, ms(30000));
+        Assert.assertEquals(RoundTripEstimator.DEFAULT_MAX_TIMEOUT, e.getTimeoutMillis(nodeB));
+
+        e.setFixedTimeout(30);
+        Assert.assertEquals(30, e.getTimeoutMillis(nodeA));
+        Assert.assertEquals(30, e.getTimeoutMillis(nodeB));
+        e.backoff(nodeA);
+        e.backoff(nodeA);
+        Assert.assertEquals(30, e.getTimeoutMillis(nodeA));
+
+        try {
+            e.setLimits(100, 200, 100);
+            Assert.fail("expected exception");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBackoff() {
+        RoundTripEstimator e = new RoundTripEstimator();
+        e.sample(nodeA, ms(100));
+        Assert.assertEquals(300, e.getTimeoutMillis(nodeA));
+        e.backoff(nodeA);
+        Assert.assertEquals(600, e.getTimeoutMillis(nodeA));
+        e.backoff(nodeA);
+        Assert.assertEquals(1200, e.getTimeoutMillis(nodeA));
+        Assert.assertEquals(2, e.getEstimate(nodeA).getBackoff());
+        Assert.assertEquals(Long.valueOf(1200), e.getTimeoutsByNode().get(nodeA.toString()));
+        for (int i = 0; i < 100; i++) {
+            e.backoff(nodeA);
+        }
+        Assert.assertEquals(RoundTripEstimator.DEFAULT_MAX_TIMEOUT, e.getTimeoutMillis(nodeA));
+        // A new sample ends the backoff.
+        e.sample(nodeA, ms(100));
+        Assert.assertEquals(0, e.getEstimate(nodeA).getBackoff());
+        Assert.assertTrue(e.getTimeoutMillis(nodeA) < 400);
+
+        // Timeouts without any sample back off from the initial timeout.
+        e.backoff(nodeB);
+        Assert.assertEquals(6000, e.getTimeoutMillis(nodeB));
+        Assert.assertFalse(e.getSmoothedRttByNode().containsKey(nodeB.toString()));
+        e.reset();
+        Assert.assertNull(e.getEstimate(nodeA));
+    }
+}
@@ -73,4 +73,50 @@ public class StreamReceiverTest {
         Assert.assertTrue(messagesReceived.get(0)
                            .equals(new StreamDataProceedMessage(hereID, farID, (byte)12, (byte)3)));
     }
+
+    @Test
+    public void testWindowsAndComplete() {
+        messagesReceived = new java.util.ArrayList<Message>();
+        Connection testConnection = new AbstractConnection(){
+            public void put(Message msg, Connection sender) {
+                messagesReceived.add(msg);
+            }
+        };
+        final byte[][] result = new byte[1][];
+        StreamReceiver rcv = new StreamReceiver(hereID, farID, (byte)7, 8, testConnection,
+                new StreamReceiver.Handler() {
+                    @Override
+                    public void handleComplete(byte[] data) {
+                        result[0] = data;
+                    }
+                });
+
+        // buffer size is limited to ours
+        rcv.put(new StreamInitiateRequestMessage(farID, hereID, 64, (byte)12, (byte)7), null);
+        Assert.assertEquals(1, messagesReceived.size());
+        Assert.assertEquals(new StreamInitiateReplyMessage(hereID, farID, 8, (byte)12, (byte)7),
+                messagesReceived.get(0));
+        messagesReceived.clear();
+
+        // proceed only when a whole window arrived
+        rcv.put(new StreamDataSendMessage(farID, hereID, (byte)7, new int[]{1, 2, 3, 4, 5}), null);
+        Assert.assertEquals(0, messagesReceived.size());
+        rcv.put(new StreamDataSendMessage(farID, hereID, (byte)7, new int[]{6, 7, 8, 9}), null);
+        Assert.assertEquals(1, messagesReceived.size());
+        Assert.assertEquals(new StreamDataProceedMessage(hereID, farID, (byte)12, (byte)7),
+                messagesReceived.get(0));
+        messagesReceived.clear();
+
+        // other streams and nodes are ignored
+        rcv.put(new StreamDataSendMessage(farID, hereID, (byte)6, new int[]{0xff}), null);
+        rcv.put(new StreamDataSendMessage(hereID, farID, (byte)7, new int[]{0xff}), null);
+        rcv.put(new StreamDataCompleteMessage(farID, hereID, (byte)12, (byte)6), null);
+        Assert.assertNull(result[0]);
+        Assert.assertEquals(9, rcv.getCount());
+
+        rcv.put(new StreamDataCompleteMessage(farID, hereID, (byte)12, (byte)7), null);
+        Assert.assertTrue(rcv.isComplete());
+        Assert.assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9}, result[0]);
+        Assert.assertEquals(0, messagesReceived.size());
+    }
 }
@@ -7,9 +7,7 @@ import org.openlcb.FakeConnection;
 import org.openlcb.InterfaceTestBase;
 import org.openlcb.MockPropertyChangeListener;
 
-import java.util.Date;
 import java.util.TimeZone;
-import java.util.TimerTask;
 
 import static org.junit.Assert.*;
 import static org.mockito.ArgumentMatchers.any;
@@ -62,12 +60,12 @@ public class TimeBroadcastGeneratorTest extends InterfaceTestBase {
             boolean b = false;
         };
         final Holder h = new Holder();
-        iface.getTimer().schedule(new TimerTask() {
+        iface.getScheduler().schedule(new Runnable() {
             @Override
             public void run() {
                 h.b = true;
             }
-        }, new Date(System.currentTimeMillis() + 100));
+        }, 100);
         while (!h.b) {
             try {
                 Thread.sleep(10);
@@ -7,6 +7,7 @@ import org.junit.runners.Suite;
 @Suite.SuiteClasses({
         TimerTest.class,
         tools.cansim.CanSimTest.class,
+        tools.loadgen.LoadDriverTest.class,
 })
 
 /**
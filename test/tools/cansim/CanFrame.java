@@ -34,8 +34,8 @@ public class CanFrame implements org.openlcb.can.CanFrame {
     
     @Override
     public byte[] getData() { 
-        byte[] t = new byte[bytes.length];
-        for (int i = 0; i < bytes.length; i++) {
+        byte[] t = new byte[getNumDataElements()];
+        for (int i = 0; i < t.length; i++) {
             t[i] = (byte)bytes[i];
         }
         return t; 
@@ -44,8 +44,8 @@ public class CanFrame implements org.openlcb.can.CanFrame {
     @Override
     public long bodyAsLong() {
         long retval = 0;
-        for (int i = 0 ; i<bytes.length; i++) {
-            retval = retval << 8 | (bytes[0]&0xFF);
+        for (int i = 0 ; i<getNumDataElements(); i++) {
+            retval = retval << 8 | (bytes[i]&0xFF);
         }
         return retval;
     }
@@ -53,8 +53,8 @@ public class CanFrame implements org.openlcb.can.CanFrame {
     @Override
     public long dataAsLong() {
         long retval = 0;
-        for (int i = 2 ; i<bytes.length; i++) {
-            retval = retval << 8 | (bytes[0]&0xFF);
+        for (int i = 2 ; i<getNumDataElements(); i++) {
+            retval = retval << 8 | (bytes[i]&0xFF);
         }
         return retval;
     }
@@ -71,7 +71,7 @@ public class CanFrame implements org.openlcb.can.CanFrame {
     
     @Override
     public int getNumDataElements() {
-        return bytes.length;
+        return bytes == null ? 0 : bytes.length;
     }
     
     @Override
@@ -1,32 +1,519 @@
 package tools.cansim;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openlcb.Histogram;
+import org.openlcb.can.CanFrameListener;
+
 import tools.*;
 
 /**
- * CanSegment does a discrete-time simulation of a CAN link
+ * CanSegment does a discrete-event simulation of a CAN link.
+ * <p>
+ * Time is simulated, in nanoseconds, and only advances while the segment runs. Every frame
+ * occupies the bus for its exact length on the wire at the configured bit rate: the stuffed
+ * bits from start of frame through the CRC, the CRC and ACK delimiters, end of frame and the
+ * interframe space. When the bus becomes idle, the pending frames compete in arbitration; the
+ * frame with the lowest header (29-bit identifier) wins. Each port transmits its own frames in
+ * the order they were sent, like a controller with a single transmit buffer, so only the
+ * first waiting frame of every port takes part in the arbitration. A frame is delivered to all
+ * other ports at the end of its transmission.
+ * <p>
+ * Real stacks connect through {@link Port}s, which are {@link CanFrameListener}s:
+ * <pre>
+ *     CanSegment seg = new CanSegment(125000);
+ *     CanSegment.Port port = seg.attach("node 1");
+ *     CanInterface iface = new CanInterface(nodeId, port);
+ *     port.connect(iface.frameInput());
+ *     seg.addSettleHook(() -&gt; iface.getInterface().flushSendQueue());
+ *     seg.runUntilIdle();
+ * </pre>
+ * Frames sent from outside the run loop are stamped with the current simulated time. The
+ * stacks answer on their own threads, so before every arbitration the segment runs the settle
+ * hooks, which should wait until the attached stacks have sent everything they are going to
+ * send in response to the frames delivered so far. With that, the simulated timing does not
+ * depend on the thread scheduling of the host.
  *
  * @author  Bob Jacobsen   Copyright 2009
  * @version $Revision$
  */
 
 public class CanSegment implements Timed {
+    /// Bits after the CRC that are not stuffed: CRC delimiter, ACK slot and delimiter, end of
+    /// frame and interframe space.
+    static final int TRAILER_BITS = 1 + 2 + 7 + 3;
+
     java.util.List<CanInterface> interfaces = new java.util.ArrayList<CanInterface>();
     long time = 0;
-        
-    public void add(CanInterface item) {
+
+    private final List<Port> ports = new ArrayList<>();
+    private final List<Runnable> settleHooks = new ArrayList<>();
+    /// Timed actions, ordered by time and then by the order they were scheduled in.
+    private final PriorityQueue<Action> actions = new PriorityQueue<>();
+    private long actionCount = 0;
+    private int bitRate;
+    /// The frame on the wire, or null if the bus is idle.
+    private Pending current = null;
+    /// True while a thread is running the simulation.
+    private boolean running = false;
+    private long busyTime = 0;
+    private long framesSent = 0;
+
+    /**
+     * Creates a segment running at 125 kbit/s.
+     */
+    public CanSegment() {
+        this(125000);
+    }
+
+    /**
+     * @param bitRate bit rate of the bus in bits per second.
+     */
+    public CanSegment(int bitRate) {
+        setBitRate(bitRate);
+    }
+
+    public synchronized void setBitRate(int bitRate) {
+        if (bitRate <= 0) {
+            throw new IllegalArgumentException("invalid bit rate " + bitRate);
+        }
+        this.bitRate = bitRate;
+    }
+
+    public synchronized int getBitRate() {
+        return bitRate;
+    }
+
+    /**
+     * Adds a simulated device. Its frames are sent with {@link #send}.
+     * @param item device to add
+     */
+    public void add(final CanInterface item) {
         interfaces.add(item);
+        attach(item.toString(), item);
     }
-        
-    public void tick(long time) {
+
+    /**
+     * Adds a port to the segment.
+     * @param name name of the port, for diagnostics
+     * @return the new port. Frames sent to the port are transmitted on the segment.
+     */
+    public Port attach(String name) {
+        return attach(name, null);
+    }
+
+    private synchronized Port attach(String name, CanInterface device) {
+        Port p = new Port(name, device);
+        ports.add(p);
+        return p;
+    }
+
+    /**
+     * Adds an action that is run before every arbitration, outside of the segment's lock.
+     * @param hook usually waits for the output queue of an attached stack to drain.
+     */
+    public synchronized void addSettleHook(Runnable hook) {
+        settleHooks.add(hook);
     }
-    
+
+    /**
+     * Sends a frame from a simulated device. If the segment is not running, runs it until the
+     * bus becomes idle, so the frame is delivered before this call returns.
+     * @param f frame to send
+     * @param sender the device sending the frame; it is called back when the frame is sent.
+     */
     public void send(CanFrame f, CanInterface sender) {
-        // simple implementation doesn't arbitrate yet
-        sender.done();
-        for (CanInterface i : interfaces) {
-            if (i != sender)
-                i.receive(f);
+        Port port = null;
+        synchronized (this) {
+            for (Port p : ports) {
+                if (p.device == sender) port = p;
+            }
+        }
+        if (port == null) {
+            throw new IllegalArgumentException("interface was not added to the segment");
+        }
+        port.send(f);
+        boolean idle;
+        synchronized (this) {
+            idle = !running;
+        }
+        if (idle) runUntilIdle();
+    }
+
+    /**
+     * Runs the simulation up to the given time.
+     * @param time simulated time in nanoseconds
+     */
+    public void tick(long time) {
+        runUntil(time);
+    }
+
+    /**
+     * @return the simulated time in nanoseconds.
+     */
+    public synchronized long getTime() {
+        return time;
+    }
+
+    /**
+     * Schedules an action at a given simulated time, e.g. to generate traffic.
+     * @param at simulated time in nanoseconds; times in the past run at the current time.
+     * @param action runs on the thread running the simulation.
+     */
+    public synchronized void schedule(long at, Runnable action) {
+        actions.add(new Action(Math.max(at, time), actionCount++, action));
+        notifyAll();
+    }
+
+    /**
+     * Runs the simulation until the bus is idle and no scheduled actions are left.
+     */
+    public void runUntilIdle() {
+        runUntil(Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs the simulation for a given amount of simulated time.
+     * @param nanos how long to run
+     */
+    public void runFor(long nanos) {
+        runUntil(getTime() + nanos);
+    }
+
+    /**
+     * Runs the simulation, then waits for frames sent by other threads (e.g. timers of the
+     * stacks) until no new frame arrives within the given real time.
+     * @param quietMillis real time to wait for more frames, in milliseconds
+     */
+    public void runUntilQuiet(long quietMillis) {
+        while (true) {
+            runUntilIdle();
+            synchronized (this) {
+                if (!hasWork()) {
+                    try {
+                        wait(quietMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (!hasWork()) return;
+            }
+        }
+    }
+
+    /**
+     * Runs the simulation until the given time or until there is nothing more to do, whichever
+     * comes first.
+     * @param limit simulated time in nanoseconds
+     */
+    public void runUntil(long limit) {
+        synchronized (this) {
+            if (running) {
+                throw new IllegalStateException("the segment is already running");
+            }
+            running = true;
+        }
+        try {
+            while (true) {
+                settle();
+                Pending done = null;
+                Action action = null;
+                synchronized (this) {
+                    if (current == null) {
+                        current = arbitrate();
+                    }
+                    long next = Long.MAX_VALUE;
+                    if (current != null) next = current.end;
+                    if (!actions.isEmpty() && actions.peek().time < next) {
+                        next = actions.peek().time;
+                    }
+                    if (next == Long.MAX_VALUE || next > limit) {
+                        if (limit != Long.MAX_VALUE && limit > time) time = limit;
+                        return;
+                    }
+                    time = next;
+                    if (current != null && current.end == next) {
+                        done = current;
+                        current = null;
+                    } else {
+                        action = actions.poll();
+                    }
+                }
+                if (done != null) {
+                    deliver(done);
+                } else {
+                    action.runnable.run();
+                }
+            }
+        } finally {
+            synchronized (this) {
+                running = false;
+            }
+        }
+    }
+
+    private void settle() {
+        List<Runnable> hooks;
+        synchronized (this) {
+            hooks = new ArrayList<>(settleHooks);
+        }
+        for (Runnable r : hooks) {
+            r.run();
+        }
+    }
+
+    private synchronized boolean hasWork() {
+        if (current != null || !actions.isEmpty()) return true;
+        for (Port p : ports) {
+            if (!p.queue.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    /// Picks the frame to transmit next and puts it on the wire. Called with the lock held.
+    private Pending arbitrate() {
+        Pending winner = null;
+        for (Port p : ports) {
+            Pending head = p.queue.peek();
+            if (head == null) continue;
+            if (winner == null || head.priority < winner.priority) {
+                winner = head;
+            }
+        }
+        if (winner == null) return null;
+        winner.port.queue.poll();
+        winner.end = time + bitsToNanos(winner.bits);
+        winner.port.queueDelay.record(TimeUnit.NANOSECONDS.toMicros(time - winner.enqueued));
+        busyTime += winner.end - time;
+        return winner;
+    }
+
+    private long bitsToNanos(long bits) {
+        return bits * 1000000000L / bitRate;
+    }
+
+    private void deliver(Pending p) {
+        List<Port> receivers;
+        synchronized (this) {
+            receivers = new ArrayList<>(ports);
+            framesSent++;
+            p.port.framesSent++;
+            p.port.transmitDelay.record(TimeUnit.NANOSECONDS.toMicros(time - p.enqueued));
+        }
+        for (Port r : receivers) {
+            if (r != p.port) r.receive(p.frame);
+        }
+        if (p.port.device != null) p.port.device.done();
+    }
+
+    /**
+     * @return the number of frames transmitted on the segment.
+     */
+    public synchronized long getFramesSent() {
+        return framesSent;
+    }
+
+    /**
+     * @return the fraction of the simulated time the bus was transmitting.
+     */
+    public synchronized double getUtilization() {
+        return time == 0 ? 0 : (double) busyTime / time;
+    }
+
+    /**
+     * Computes the number of bits a data frame occupies on the wire, including the stuff bits
+     * and the interframe space.
+     * @param f frame to send
+     * @return frame length in bits
+     */
+    public static int frameBits(org.openlcb.can.CanFrame f) {
+        int header = f.getHeader();
+        int len = f.getNumDataElements();
+        // Collects the bits from start of frame to the end of the data field.
+        boolean[] bits = new boolean[39 + 8 * len];
+        int n = 0;
+        bits[n++] = false; // start of frame
+        if (f.isExtended()) {
+            n = put(bits, n, header >>> 18, 11);
+            bits[n++] = true; // substitute remote request
+            bits[n++] = true; // identifier extension
+            n = put(bits, n, header, 18);
+            bits[n++] = f.isRtr();
+            bits[n++] = false; // r1
+            bits[n++] = false; // r0
+        } else {
+            n = put(bits, n, header, 11);
+            bits[n++] = f.isRtr();
+            bits[n++] = false; // identifier extension
+            bits[n++] = false; // r0
+        }
+        n = put(bits, n, len, 4);
+        for (int i = 0; i < len; ++i) {
+            n = put(bits, n, f.getElement(i), 8);
+        }
+        int crc = 0;
+        for (int i = 0; i < n; ++i) {
+            boolean next = bits[i] ^ ((crc & 0x4000) != 0);
+            crc = (crc << 1) & 0x7FFF;
+            if (next) crc ^= 0x4599;
+        }
+        // Counts the stuff bits. A stuff bit is inserted after five equal bits and counts in
+        // the next run.
+        int stuffed = 0;
+        int run = 0;
+        boolean last = false;
+        for (int i = 0; i < n + 15; ++i) {
+            boolean b = i < n ? bits[i] : ((crc >> (14 - (i - n))) & 1) != 0;
+            if (run > 0 && b == last) {
+                run++;
+            } else {
+                run = 1;
+                last = b;
+            }
+            if (run == 5) {
+                stuffed++;
+                last = !last;
+                run = 1;
+            }
+        }
+        return n + 15 + stuffed + TRAILER_BITS;
+    }
+
+    private static int put(boolean[] bits, int n, int value, int count) {
+        for (int i = count - 1; i >= 0; --i) {
+            bits[n++] = ((value >> i) & 1) != 0;
+        }
+        return n;
+    }
+
+    /**
+     * Connection of one node to the segment. Frames sent to the port wait in its transmit
+     * queue until they win an arbitration.
+     */
+    public class Port implements CanFrameListener {
+        private final String name;
+        private final CanInterface device;
+        private volatile CanFrameListener receiver = null;
+        private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+        /// In microseconds; the histogram buckets then cover single frames up to seconds.
+        private final Histogram queueDelay = new Histogram();
+        private final Histogram transmitDelay = new Histogram();
+        private long framesSent = 0;
+
+        Port(String name, CanInterface device) {
+            this.name = name;
+            this.device = device;
+        }
+
+        /**
+         * @param receiver gets the frames transmitted by the other ports, on the thread running
+         *                 the simulation.
+         */
+        public void connect(CanFrameListener receiver) {
+            this.receiver = receiver;
+        }
+
+        @Override
+        public void send(org.openlcb.can.CanFrame frame) {
+            // The sender may reuse the frame object.
+            int[] data = new int[frame.getNumDataElements()];
+            for (int i = 0; i < data.length; ++i) {
+                data[i] = frame.getElement(i) & 0xFF;
+            }
+            CanFrame copy = new CanFrame(frame.getHeader(), data);
+            long priority = frame.isExtended() ? ((long) frame.getHeader() << 1) | 1 :
+                    (long) frame.getHeader() << 19;
+            synchronized (CanSegment.this) {
+                queue.add(new Pending(this, copy, frameBits(frame), priority, time));
+                CanSegment.this.notifyAll();
+            }
+        }
+
+        private void receive(CanFrame f) {
+            if (device != null) device.receive(f);
+            CanFrameListener r = receiver;
+            if (r != null) r.send(f);
+        }
+
+        /**
+         * @return the number of frames transmitted from this port.
+         */
+        public long getFramesSent() {
+            synchronized (CanSegment.this) {
+                return framesSent;
+            }
+        }
+
+        /**
+         * @return the number of frames waiting to be transmitted.
+         */
+        public int getQueueLength() {
+            synchronized (CanSegment.this) {
+                return queue.size();
+            }
+        }
+
+        /**
+         * @return the time frames waited in the transmit queue before winning an arbitration,
+         * in simulated microseconds.
+         */
+        public Histogram getQueueDelay() {
+            return queueDelay;
+        }
+
+        /**
+         * @return the time from sending a frame to its delivery to the other ports, in
+         * simulated microseconds.
+         */
+        public Histogram getTransmitDelay() {
+            return transmitDelay;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static class Pending {
+        final Port port;
+        final CanFrame frame;
+        final int bits;
+        /// Arbitration order; lower wins. An 11-bit identifier wins over the extended
+        /// identifiers starting with the same 11 bits.
+        final long priority;
+        final long enqueued;
+        long end;
+
+        Pending(Port port, CanFrame frame, int bits, long priority, long enqueued) {
+            this.port = port;
+            this.frame = frame;
+            this.bits = bits;
+            this.priority = priority;
+            this.enqueued = enqueued;
+        }
+    }
+
+    private static class Action implements Comparable<Action> {
+        final long time;
+        final long seq;
+        final Runnable runnable;
+
+        Action(long time, long seq, Runnable runnable) {
+            this.time = time;
+            this.seq = seq;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Action o) {
+            if (time != o.time) return Long.compare(time, o.time);
+            return Long.compare(seq, o.seq);
         }
     }
-    
 }
@@ -1,6 +1,18 @@
 package tools.cansim;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.junit.*;
+import org.openlcb.AbstractConnection;
+import org.openlcb.Connection;
+import org.openlcb.EventID;
+import org.openlcb.Message;
+import org.openlcb.NodeID;
+import org.openlcb.ProducerConsumerEventReportMessage;
+import org.openlcb.can.CanFrameListener;
+import org.openlcb.can.MessageBuilder;
+import org.openlcb.can.AliasMap;
 import tools.*;
 
 /**
@@ -48,4 +60,169 @@ public class CanSegmentTest  {
         
         Assert.assertTrue("received frame", received);
     }
+
+    @Test
+    public void testFrameBits() {
+        // 39 bits up to the data field, 8 per data byte, 15 CRC bits and 13 trailer bits.
+        for (int len = 0; len <= 8; ++len) {
+            int[] data = new int[len];
+            for (int i = 0; i < len; ++i) data[i] = 0x55;
+            int bits = CanSegment.frameBits(new CanFrame(0x15555555, data));
+            int raw = 39 + 8 * len + 15 + 13;
+            Assert.assertTrue("len " + len + ": " + bits, bits >= raw);
+            Assert.assertTrue("len " + len + ": " + bits, bits <= raw + (raw - 13 - 1) / 4);
+        }
+        // Zeros are stuffed: SOF and the identifier alone are 30 dominant bits.
+        int zeros = CanSegment.frameBits(new CanFrame(0, new int[8]));
+        int mixed = CanSegment.frameBits(new CanFrame(0x15555555, new int[]{0x55, 0x55, 0x55,
+                0x55, 0x55, 0x55, 0x55, 0x55}));
+        Assert.assertTrue(zeros > mixed + 10);
+    }
+
+    @Test
+    public void testFrameTiming() {
+        CanSegment seg = new CanSegment(125000);
+        CanSegment.Port a = seg.attach("a");
+        CanSegment.Port b = seg.attach("b");
+        final List<Long> times = new ArrayList<>();
+        final CanSegment s = seg;
+        b.connect(new CanFrameListener() {
+            @Override
+            public void send(org.openlcb.can.CanFrame frame) {
+                times.add(s.getTime());
+            }
+        });
+        CanFrame f = new CanFrame(0x195B4123, new int[]{1, 2, 3, 4, 5, 6, 7, 8});
+        a.send(f);
+        a.send(f);
+        seg.runUntilIdle();
+
+        long frameTime = CanSegment.frameBits(f) * 8000L;
+        Assert.assertEquals(2, times.size());
+        Assert.assertEquals(frameTime, (long) times.get(0));
+        Assert.assertEquals(2 * frameTime, (long) times.get(1));
+        Assert.assertEquals(2 * frameTime, seg.getTime());
+        Assert.assertEquals(1.0, seg.getUtilization(), 1e-9);
+        Assert.assertEquals(2, a.getFramesSent());
+        // In microseconds.
+        Assert.assertEquals(frameTime / 2000.0, a.getQueueDelay().getMean(), 1e-9);
+        Assert.assertEquals(3 * frameTime / 2000.0, a.getTransmitDelay().getMean(), 1e-9);
+        // A frame time of about a millisecond is in its own bucket, not in the overflow one.
+        long[] counts = a.getTransmitDelay().getCounts();
+        Assert.assertEquals(0, counts[counts.length - 1]);
+    }
+
+    @Test
+    public void testArbitration() {
+        CanSegment seg = new CanSegment(125000);
+        CanSegment.Port low = seg.attach("low");
+        CanSegment.Port high = seg.attach("high");
+        CanSegment.Port late = seg.attach("late");
+        CanSegment.Port monitor = seg.attach("monitor");
+        final List<Integer> headers = new ArrayList<>();
+        monitor.connect(new CanFrameListener() {
+            @Override
+            public void send(org.openlcb.can.CanFrame frame) {
+                headers.add(frame.getHeader());
+            }
+        });
+        // Each port sends its frames in order, even if a later one has a lower header.
+        low.send(new CanFrame(0x19000001, new int[0]));
+        low.send(new CanFrame(0x10000001, new int[0]));
+        high.send(new CanFrame(0x18000002, new int[0]));
+        final CanSegment.Port l = late;
+        // Arrives during the first transmission and wins the next arbitration.
+        seg.schedule(1, new Runnable() {
+            @Override
+            public void run() {
+                l.send(new CanFrame(0x17000003, new int[0]));
+            }
+        });
+        seg.runUntilIdle();
+
+        Assert.assertEquals(4, headers.size());
+        Assert.assertEquals(0x18000002, (int) headers.get(0));
+        Assert.assertEquals(0x17000003, (int) headers.get(1));
+        Assert.assertEquals(0x19000001, (int) headers.get(2));
+        Assert.assertEquals(0x10000001, (int) headers.get(3));
+    }
+
+    @Test
+    public void testRunUntil() {
+        CanSegment seg = new CanSegment(125000);
+        CanSegment.Port a = seg.attach("a");
+        CanFrame f = new CanFrame(0x195B4123, new int[]{1, 2, 3, 4, 5, 6, 7, 8});
+        a.send(f);
+        seg.runUntil(1000);
+        Assert.assertEquals(1000, seg.getTime());
+        Assert.assertEquals(0, a.getFramesSent());
+        seg.runFor(CanSegment.frameBits(f) * 8000L);
+        Assert.assertEquals(1, a.getFramesSent());
+    }
+
+    Message receivedMessage = null;
+    long receivedAt = 0;
+
+    @Test
+    public void testCanInterfaces() throws Exception {
+        final CanSegment seg = new CanSegment(125000);
+        NodeID idA = new NodeID(new byte[]{2, 1, 13, 0, 0, 1});
+        NodeID idB = new NodeID(new byte[]{2, 1, 13, 0, 0, 2});
+        CanSegment.Port portA = seg.attach("A");
+        CanSegment.Port portB = seg.attach("B");
+        final org.openlcb.can.CanInterface a = new org.openlcb.can.CanInterface(idA, portA);
+        final org.openlcb.can.CanInterface b = new org.openlcb.can.CanInterface(idB, portB);
+        portA.connect(a.frameInput());
+        portB.connect(b.frameInput());
+        seg.addSettleHook(new Runnable() {
+            @Override
+            public void run() {
+                a.getInterface().flushSendQueue();
+                b.getInterface().flushSendQueue();
+            }
+        });
+        final int[] started = new int[1];
+        Connection.ConnectionListener l = new Connection.ConnectionListener() {
+            @Override
+            public void connectionActive(Connection c) {
+                synchronized (started) {
+                    started[0]++;
+                }
+            }
+        };
+        a.addStartListener(l);
+        b.addStartListener(l);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            seg.runUntilQuiet(50);
+            synchronized (started) {
+                if (started[0] == 2) break;
+            }
+            Assert.assertTrue("interfaces did not start", System.currentTimeMillis() < deadline);
+        }
+        seg.runUntilQuiet(50);
+
+        b.getInterface().registerMessageListener(new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+                if (msg instanceof ProducerConsumerEventReportMessage) {
+                    receivedMessage = msg;
+                    receivedAt = seg.getTime();
+                }
+            }
+        });
+        Message m = new ProducerConsumerEventReportMessage(idA, new EventID(new byte[]{5, 1, 1,
+                1, 3, 1, 0, 1}));
+        long start = seg.getTime();
+        a.getInterface().getOutputConnection().put(m, null);
+        seg.runUntilQuiet(50);
+
+        Assert.assertEquals(m, receivedMessage);
+        AliasMap map = new AliasMap();
+        map.insert(0x123, idA);
+        int bits = CanSegment.frameBits(new MessageBuilder(map).processMessage(m).get(0));
+        Assert.assertEquals(bits * 8000L, receivedAt - start);
+        a.dispose();
+        b.dispose();
+    }
 }
@@ -0,0 +1,58 @@
+package tools.loadgen;
+
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.CanFrameListener;
+import org.openlcb.can.GridConnect;
+import org.openlcb.hub.Hub;
+
+/**
+ * Connects a CAN interface to an in-process {@link Hub}, exchanging GridConnect lines the same
+ * way a TCP client of the hub does.
+ * <p>
+ * Frames sent to the port are formatted and queued in the hub, which forwards them to every
+ * other connection. Lines forwarded by the hub are parsed on the hub's output thread and given
+ * to the receiver.
+ */
+public class HubPort implements CanFrameListener, Hub.Forwarding {
+    private final Hub hub;
+    private volatile CanFrameListener receiver = null;
+    /// Only used by the hub's output thread.
+    private final GridConnect.Input parser = new GridConnect.Input() {
+        @Override
+        public void onFrame(CanFrame f) {
+            CanFrameListener r = receiver;
+            if (r != null) r.send(f);
+        }
+    };
+
+    public HubPort(Hub hub) {
+        this.hub = hub;
+        hub.addForwarder(this);
+    }
+
+    /**
+     * @param receiver gets the frames sent by the other connections of the hub.
+     */
+    public void connect(CanFrameListener receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public void send(CanFrame frame) {
+        hub.putLine(GridConnect.format(frame), this);
+    }
+
+    @Override
+    public void forward(Hub.Memo m) {
+        if (m.source == this) return;
+        parser.send(m.line);
+    }
+
+    /**
+     * Stops exchanging frames with the hub.
+     */
+    public void dispose() {
+        receiver = null;
+        hub.removeForwarder(this);
+    }
+}
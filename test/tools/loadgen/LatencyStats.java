@@ -0,0 +1,84 @@
+package tools.loadgen;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Collects latency samples of one kind of operation and reports their percentiles.
+ * <p>
+ * Unlike {@link org.openlcb.Histogram}, every sample is kept, so the percentiles are exact.
+ * Thread-safe.
+ */
+public class LatencyStats {
+    private final String name;
+    private long[] samples = new long[64];
+    private int count = 0;
+    private long bytes = 0;
+
+    public LatencyStats(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param nanos latency of one operation, in nanoseconds
+     */
+    public synchronized void add(long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+    }
+
+    /**
+     * Counts data transferred, for the throughput reported by {@link #format}.
+     * @param n number of bytes
+     */
+    public synchronized void addBytes(long n) {
+        bytes += n;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @param p percentile, 0 to 100
+     * @return the smallest sample that is not less than p percent of the samples, in
+     * nanoseconds; 0 if there are no samples.
+     */
+    public synchronized long getPercentile(double p) {
+        if (count == 0) return 0;
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int i = (int) Math.ceil(p / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, i))];
+    }
+
+    /**
+     * @param elapsedNanos duration of the measurement, for the throughput
+     * @return one line with the count, throughput and the 50th, 90th, 99th and 100th
+     * percentiles in milliseconds.
+     */
+    public synchronized String format(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        StringBuilder b = new StringBuilder();
+        b.append(String.format(Locale.ROOT, "%-12s n=%-7d %9.1f/s", name, count,
+                seconds > 0 ? count / seconds : 0));
+        if (bytes > 0) {
+            b.append(String.format(Locale.ROOT, " %9.1f B/s", seconds > 0 ? bytes / seconds :
+                    0));
+        }
+        b.append(String.format(Locale.ROOT, "  p50 %8.2f  p90 %8.2f  p99 %8.2f  max %8.2f ms",
+                getPercentile(50) / 1e6, getPercentile(90) / 1e6, getPercentile(99) / 1e6,
+                getPercentile(100) / 1e6));
+        return b.toString();
+    }
+}
@@ -0,0 +1,487 @@
+package tools.loadgen;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openlcb.AbstractConnection;
+import org.openlcb.Connection;
+import org.openlcb.EventID;
+import org.openlcb.Message;
+import org.openlcb.MessageDecoder;
+import org.openlcb.MessageTypeIdentifier;
+import org.openlcb.NodeID;
+import org.openlcb.OlcbInterface;
+import org.openlcb.ProducerConsumerEventReportMessage;
+import org.openlcb.ProtocolIdentificationReplyMessage;
+import org.openlcb.ProtocolIdentificationRequestMessage;
+import org.openlcb.Scheduler;
+import org.openlcb.SimpleNodeIdent;
+import org.openlcb.SimpleNodeIdentInfoReplyMessage;
+import org.openlcb.SimpleNodeIdentInfoRequestMessage;
+import org.openlcb.VerifiedNodeIDNumberMessage;
+import org.openlcb.VerifyNodeIDNumberMessage;
+import org.openlcb.can.CanInterface;
+import org.openlcb.cdi.jdom.CdiMemConfigReader;
+import org.openlcb.hub.Hub;
+import org.openlcb.implementations.MemoryConfigurationService;
+
+/**
+ * Reproduces a large layout in one process and measures how the stack copes with it.
+ * <p>
+ * Hosts a number of {@link VirtualNode}s on an in-process {@link Hub}, plus a client interface
+ * that acts like a configuration tool. The client then
+ * <ol>
+ * <li>discovers the nodes: one global Verify Node ID, then a Protocol Identification and a
+ * Simple Node Ident Info request to every node;
+ * <li>loads the CDI of some of the nodes, one after the other, as a configuration tool does;
+ * <li>lets every node produce event reports at a fixed rate and measures their delivery to the
+ * client.
+ * </ol>
+ * Each step reports the number of operations, throughput and latency percentiles.
+ * <p>
+ * Run with
+ * <pre>
+ *     java -cp target/classes:target/test-classes:... tools.loadgen.LoadDriver --nodes 500
+ * </pre>
+ * and {@code --help} for the options. With {@code --listen} the hub also accepts TCP
+ * connections, so other tools can be pointed at the virtual layout while it runs.
+ */
+public class LoadDriver {
+    /**
+     * Settings of a load run.
+     */
+    public static class Options {
+        public int nodes = 500;
+        /// Size of each node's configuration space in 16-byte fields; sets the CDI size.
+        public int configFields = 20;
+        /// How many nodes the client loads the CDI from; -1 for all.
+        public int cdiNodes = 20;
+        /// How many nodes the client reads from at the same time.
+        public int cdiConcurrency = MemoryConfigurationService.DEFAULT_MAX_CONCURRENT_REQUESTS;
+        /// Milliseconds the nodes take to answer a memory read.
+        public long replyDelayMillis = 0;
+        /// How many of the nodes (the first ones) serve stream reads; -1 for all. The client
+        /// reads the CDI of the others with datagrams.
+        public int streamNodes = 0;
+        /// Event reports per second per node.
+        public double eventRate = 1;
+        public int eventSeconds = 10;
+        /// How many nodes start at the same time. Alias collisions are only detected if the
+        /// hub forwards the reservation frames within the 200 msec reservation time.
+        public int startBatch = 25;
+        /// Node ID of the first virtual node; the others follow consecutively.
+        public long firstNodeId = 0x050101011800L;
+        /// Whether the hub accepts TCP connections too.
+        public boolean listen = false;
+        public int port = Hub.DEFAULT_PORT;
+        /// Milliseconds to wait for the replies of each step.
+        public long timeoutMillis = 60000;
+    }
+
+    private final Options options;
+    private final Hub hub;
+    private final Scheduler scheduler;
+    private final List<VirtualNode> nodes = new ArrayList<>();
+    private final NodeID clientId;
+    private HubPort clientPort;
+    private CanInterface client;
+
+    private final LatencyStats verifyStats = new LatencyStats("verify");
+    private final LatencyStats pipStats = new LatencyStats("pip");
+    private final LatencyStats snipStats = new LatencyStats("snip");
+    private final LatencyStats cdiStats = new LatencyStats("cdi");
+    private final LatencyStats eventStats = new LatencyStats("event");
+    /// Event reports sent by the nodes in all runs of {@link #runEvents}.
+    private final AtomicInteger eventsSent = new AtomicInteger();
+    private final List<String> report = new ArrayList<>();
+
+    public LoadDriver(Options options) {
+        this.options = options;
+        hub = new Hub(options.port);
+        scheduler = new Scheduler();
+        clientId = NodeID.fromLong(options.firstNodeId - 1);
+    }
+
+    /**
+     * Creates the virtual nodes and the client, and waits until all of them have allocated
+     * their aliases.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void start() throws InterruptedException {
+        if (options.listen) {
+            Thread t = new Thread("openlcb-loadgen-hub") {
+                @Override
+                public void run() {
+                    hub.start();
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+        long begin = System.nanoTime();
+        clientPort = new HubPort(hub);
+        client = new CanInterface(clientId, clientPort, scheduler);
+        clientPort.connect(client.frameInput());
+        int started = 0;
+        if (awaitStart(Collections.singletonList(client))) ++started;
+        for (int i = 0; i < options.nodes; i += options.startBatch) {
+            List<CanInterface> batch = new ArrayList<>();
+            for (int j = i; j < Math.min(options.nodes, i + options.startBatch); ++j) {
+                VirtualNode n = new VirtualNode(NodeID.fromLong(options.firstNodeId + j), hub,
+                        scheduler, options.configFields);
+                n.setReplyDelay(options.replyDelayMillis);
+                n.setStreamSupport(options.streamNodes < 0 || j < options.streamNodes);
+                nodes.add(n);
+                batch.add(n.getCanInterface());
+            }
+            if (awaitStart(batch)) started += batch.size();
+        }
+        if (started != options.nodes + 1) {
+            report.add("startup: only " + started + " of " + (options.nodes + 1) +
+                    " interfaces started");
+        }
+        report.add(String.format(Locale.ROOT, "startup of %d nodes: %.1f s", options.nodes,
+                (System.nanoTime() - begin) / 1e9));
+    }
+
+    /// Waits until the given interfaces have allocated their aliases.
+    private boolean awaitStart(List<CanInterface> interfaces) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(interfaces.size());
+        Connection.ConnectionListener l = new Connection.ConnectionListener() {
+            @Override
+            public void connectionActive(Connection c) {
+                started.countDown();
+            }
+        };
+        for (CanInterface c : interfaces) {
+            c.addStartListener(l);
+        }
+        return started.await(options.timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public OlcbInterface getClient() {
+        return client.getInterface();
+    }
+
+    public List<VirtualNode> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Discovers the virtual nodes and reads their PIP and SNIP.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void runDiscovery() throws InterruptedException {
+        final Map<NodeID, Long> pending = new ConcurrentHashMap<>();
+        final Map<NodeID, SimpleNodeIdent> snips = new ConcurrentHashMap<>();
+        final AtomicLong start = new AtomicLong();
+        final CountDownLatch verified = new CountDownLatch(nodes.size());
+        final CountDownLatch identified = new CountDownLatch(2 * nodes.size());
+        for (VirtualNode n : nodes) {
+            pending.put(n.getNodeId(), 0L);
+        }
+        final Map<NodeID, Long> pipSent = new ConcurrentHashMap<>();
+        final Map<NodeID, Long> snipSent = new ConcurrentHashMap<>();
+        MessageDecoder listener = new MessageDecoder() {
+            @Override
+            public void handleVerifiedNodeIDNumber(VerifiedNodeIDNumberMessage msg, Connection
+                    sender) {
+                if (pending.remove(msg.getSourceNodeID()) == null) return;
+                verifyStats.add(System.nanoTime() - start.get());
+                verified.countDown();
+            }
+
+            @Override
+            public void handleProtocolIdentificationReply(ProtocolIdentificationReplyMessage
+                    msg, Connection sender) {
+                if (!clientId.equals(msg.getDestNodeID())) return;
+                Long sent = pipSent.remove(msg.getSourceNodeID());
+                if (sent == null) return;
+                pipStats.add(System.nanoTime() - sent);
+                identified.countDown();
+            }
+
+            @Override
+            public void handleSimpleNodeIdentInfoReply(SimpleNodeIdentInfoReplyMessage msg,
+                                                       Connection sender) {
+                if (!clientId.equals(msg.getDestNodeID())) return;
+                NodeID src = msg.getSourceNodeID();
+                SimpleNodeIdent ident = snips.get(src);
+                if (ident == null) return;
+                ident.addMsg(msg);
+                if (!ident.contentComplete()) return;
+                Long sent = snipSent.remove(src);
+                if (sent == null) return;
+                snipStats.add(System.nanoTime() - sent);
+                identified.countDown();
+            }
+        };
+        OlcbInterface iface = client.getInterface();
+        iface.registerMessageListener(listener, EnumSet.of(MessageTypeIdentifier.VerifiedNodeId,
+                MessageTypeIdentifier.ProtocolSupportReply, MessageTypeIdentifier
+                        .SimpleNodeIdentInfoReply));
+        try {
+            long begin = System.nanoTime();
+            start.set(begin);
+            iface.getOutputConnection().put(new VerifyNodeIDNumberMessage(clientId), null);
+            verified.await(options.timeoutMillis, TimeUnit.MILLISECONDS);
+            report.add(verifyStats.format(System.nanoTime() - begin));
+
+            long identBegin = System.nanoTime();
+            for (VirtualNode n : nodes) {
+                NodeID id = n.getNodeId();
+                snips.put(id, new SimpleNodeIdent(id, clientId));
+                pipSent.put(id, System.nanoTime());
+                iface.getOutputConnection().put(new ProtocolIdentificationRequestMessage
+                        (clientId, id), null);
+                snipSent.put(id, System.nanoTime());
+                iface.getOutputConnection().put(new SimpleNodeIdentInfoRequestMessage
+                        (clientId, id), null);
+            }
+            identified.await(options.timeoutMillis, TimeUnit.MILLISECONDS);
+            long end = System.nanoTime();
+            report.add(pipStats.format(end - identBegin));
+            report.add(snipStats.format(end - identBegin));
+            report.add(String.format(Locale.ROOT, "discovery: %d of %d nodes in %.2f s", verifyStats
+                    .getCount(), nodes.size(), (end - begin) / 1e9));
+        } finally {
+            iface.unRegisterMessageListener(listener);
+        }
+    }
+
+    /**
+     * Loads the CDI of the nodes through the client's memory configuration service, which reads
+     * {@link Options#cdiConcurrency} nodes at a time, and checks the contents.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void runCdiLoad() throws InterruptedException {
+        int count = options.cdiNodes < 0 ? nodes.size() : Math.min(options.cdiNodes, nodes
+                .size());
+        MemoryConfigurationService mcs = client.getInterface().getMemoryConfigurationService();
+        mcs.setMaxConcurrentRequests(options.cdiConcurrency);
+        mcs.resetStatistics();
+        final CountDownLatch done = new CountDownLatch(count);
+        final StringBuilder[] texts = new StringBuilder[count];
+        final long[] latency = new long[count];
+        long begin = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            final int index = i;
+            final long start = System.nanoTime();
+            texts[i] = new StringBuilder();
+            CdiMemConfigReader reader = new CdiMemConfigReader(nodes.get(i).getNodeId(), client
+                    .getInterface(), MemoryConfigurationService.SPACE_CDI);
+            reader.startLoadReader(new CdiMemConfigReader.ReaderAccess() {
+                @Override
+                public void progressNotify(long bytesRead, long totalBytes) {
+                }
+
+                @Override
+                public void provideReader(Reader r) {
+                    StringBuilder text = texts[index];
+                    synchronized (text) {
+                        try {
+                            int c;
+                            while ((c = r.read()) >= 0) {
+                                text.append((char) c);
+                            }
+                        } catch (java.io.IOException e) {
+                            // StringReader does not throw.
+                        }
+                        latency[index] = System.nanoTime() - start;
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        done.await(options.timeoutMillis, TimeUnit.MILLISECONDS);
+        int failed = 0;
+        for (int i = 0; i < count; ++i) {
+            StringBuilder text = texts[i];
+            synchronized (text) {
+                if (latency[i] == 0 || !nodes.get(i).getCdi().equals(text.toString())) {
+                    failed++;
+                    continue;
+                }
+                cdiStats.add(latency[i]);
+                cdiStats.addBytes(text.length());
+            }
+        }
+        report.add(cdiStats.format(System.nanoTime() - begin));
+        report.add(String.format(java.util.Locale.ROOT, "cdi: %d nodes at a time, %d " +
+                "requests, %d retries, %.1f B/s while busy", options.cdiConcurrency, mcs
+                .getCompletedRequestCount(), mcs.getRetryCount(), mcs.getThroughput()));
+        if (failed > 0) {
+            report.add("cdi: " + failed + " of " + count + " loads failed");
+        }
+    }
+
+    /**
+     * Runs the event traffic for the configured time and measures the delay from each node
+     * sending an event report until the client receives it.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void runEvents() throws InterruptedException {
+        final Map<EventID, Long> sent = new ConcurrentHashMap<>();
+        final AtomicInteger sentCount = new AtomicInteger();
+        Connection listener = new AbstractConnection() {
+            @Override
+            public void put(Message msg, Connection sender) {
+                Long t = sent.remove(((ProducerConsumerEventReportMessage) msg).getEventID());
+                if (t != null) eventStats.add(System.nanoTime() - t);
+            }
+        };
+        VirtualNode.EventListener produced = new VirtualNode.EventListener() {
+            @Override
+            public void eventSent(EventID event, long nanoTime) {
+                sent.put(event, nanoTime);
+                sentCount.incrementAndGet();
+                eventsSent.incrementAndGet();
+            }
+        };
+        OlcbInterface iface = client.getInterface();
+        iface.registerMessageListener(listener, EnumSet.of(MessageTypeIdentifier
+                .ProducerConsumerEventReport));
+        long begin = System.nanoTime();
+        try {
+            for (VirtualNode n : nodes) {
+                n.startEvents(options.eventRate, produced);
+            }
+            Thread.sleep(options.eventSeconds * 1000L);
+            for (VirtualNode n : nodes) {
+                n.stopEvents();
+            }
+            // Lets the reports in flight arrive.
+            long deadline = System.currentTimeMillis() + options.timeoutMillis;
+            while (!sent.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            iface.unRegisterMessageListener(listener);
+        }
+        report.add(eventStats.format(System.nanoTime() - begin));
+        if (!sent.isEmpty()) {
+            report.add("event: " + sent.size() + " of " + sentCount.get() + " reports lost");
+        }
+    }
+
+    public LatencyStats getVerifyStats() {
+        return verifyStats;
+    }
+
+    public LatencyStats getPipStats() {
+        return pipStats;
+    }
+
+    public LatencyStats getSnipStats() {
+        return snipStats;
+    }
+
+    public LatencyStats getCdiStats() {
+        return cdiStats;
+    }
+
+    public LatencyStats getEventStats() {
+        return eventStats;
+    }
+
+    /// @return the number of event reports the nodes sent in all runs of {@link #runEvents}.
+    public int getEventsSent() {
+        return eventsSent.get();
+    }
+
+    /**
+     * @return the results of the steps run so far, one line each.
+     */
+    public List<String> getReport() {
+        return report;
+    }
+
+    public void dispose() {
+        for (VirtualNode n : nodes) {
+            n.dispose();
+        }
+        if (client != null) {
+            clientPort.dispose();
+            client.getInterface().dispose();
+            client.dispose();
+        }
+        scheduler.shutdown();
+    }
+
+    static void usage() {
+        System.out.println("usage: LoadDriver [--nodes N] [--config-fields N] [--cdi-nodes N]" +
+                " [--cdi-concurrency N] [--reply-delay MSEC] [--stream-nodes N]" +
+                " [--event-rate PER_SEC] [--event-seconds N] [--start-batch N]" +
+                " [--first-node-id HEX]" +
+                " [--timeout MSEC] [--listen [PORT]]");
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Options o = new Options();
+        for (int i = 0; i < args.length; ++i) {
+            String a = args[i];
+            String next = i + 1 < args.length ? args[i + 1] : null;
+            if (a.equals("--listen")) {
+                o.listen = true;
+                if (next != null && !next.startsWith("--")) {
+                    o.port = Integer.parseInt(next);
+                    ++i;
+                }
+                continue;
+            }
+            if (next == null) {
+                usage();
+                return;
+            }
+            ++i;
+            if (a.equals("--nodes")) {
+                o.nodes = Integer.parseInt(next);
+            } else if (a.equals("--config-fields")) {
+                o.configFields = Integer.parseInt(next);
+            } else if (a.equals("--cdi-nodes")) {
+                o.cdiNodes = Integer.parseInt(next);
+            } else if (a.equals("--cdi-concurrency")) {
+                o.cdiConcurrency = Integer.parseInt(next);
+            } else if (a.equals("--reply-delay")) {
+                o.replyDelayMillis = Long.parseLong(next);
+            } else if (a.equals("--stream-nodes")) {
+                o.streamNodes = Integer.parseInt(next);
+            } else if (a.equals("--event-rate")) {
+                o.eventRate = Double.parseDouble(next);
+            } else if (a.equals("--event-seconds")) {
+                o.eventSeconds = Integer.parseInt(next);
+            } else if (a.equals("--start-batch")) {
+                o.startBatch = Integer.parseInt(next);
+            } else if (a.equals("--first-node-id")) {
+                o.firstNodeId = Long.parseLong(next, 16);
+            } else if (a.equals("--timeout")) {
+                o.timeoutMillis = Long.parseLong(next);
+            } else {
+                usage();
+                return;
+            }
+        }
+        LoadDriver d = new LoadDriver(o);
+        try {
+            d.start();
+            d.runDiscovery();
+            d.runCdiLoad();
+            d.runEvents();
+        } finally {
+            for (String line : d.getReport()) {
+                System.out.println(line);
+            }
+            d.dispose();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package tools.loadgen;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Runs the load generator with a small layout.
+ */
+public class LoadDriverTest {
+    LoadDriver driver;
+
+    @After
+    public void tearDown() {
+        if (driver != null) driver.dispose();
+    }
+
+    @Test
+    public void testSmallLayout() throws Exception {
+        LoadDriver.Options o = new LoadDriver.Options();
+        o.nodes = 5;
+        o.configFields = 3;
+        o.cdiNodes = 2;
+        o.eventRate = 20;
+        o.eventSeconds = 1;
+        o.timeoutMillis = 10000;
+        driver = new LoadDriver(o);
+        driver.start();
+
+        driver.runDiscovery();
+        Assert.assertEquals(driver.getReport().toString(), 5, driver.getVerifyStats()
+                .getCount());
+        Assert.assertEquals(5, driver.getPipStats().getCount());
+        Assert.assertEquals(5, driver.getSnipStats().getCount());
+
+        driver.runCdiLoad();
+        Assert.assertEquals(driver.getReport().toString(), 2, driver.getCdiStats().getCount());
+        Assert.assertEquals(2 * driver.getNodes().get(0).getCdi().length(), driver
+                .getCdiStats().getBytes());
+
+        driver.runEvents();
+        // How many reports the nodes manage to send in a second depends on the machine; all
+        // of them have to arrive.
+        int events = driver.getEventStats().getCount();
+        Assert.assertTrue(driver.getReport().toString(), events > 0);
+        Assert.assertEquals(driver.getReport().toString(), driver.getEventsSent(), events);
+    }
+
+    @Test
+    public void testStreamCdiLoad() throws Exception {
+        LoadDriver.Options o = new LoadDriver.Options();
+        o.nodes = 4;
+        o.configFields = 40;
+        o.cdiNodes = 4;
+        // The other nodes do not announce streams and are read with datagrams.
+        o.streamNodes = 2;
+        o.timeoutMillis = 10000;
+        driver = new LoadDriver(o);
+        driver.start();
+        driver.runDiscovery();
+
+        driver.runCdiLoad();
+        Assert.assertEquals(driver.getReport().toString(), 4, driver.getCdiStats().getCount());
+        Assert.assertEquals(4 * driver.getNodes().get(0).getCdi().length(), driver
+                .getCdiStats().getBytes());
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyStats s = new LatencyStats("test");
+        Assert.assertEquals(0, s.getPercentile(50));
+        for (int i = 100; i >= 1; --i) {
+            s.add(i);
+        }
+        Assert.assertEquals(100, s.getCount());
+        Assert.assertEquals(50, s.getPercentile(50));
+        Assert.assertEquals(99, s.getPercentile(99));
+        Assert.assertEquals(100, s.getPercentile(100));
+        Assert.assertEquals(1, s.getPercentile(0));
+    }
+}
@@ -0,0 +1,479 @@
+package tools.loadgen;
+
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.openlcb.Connection;
+import org.openlcb.EventID;
+import org.openlcb.MessageDecoder;
+import org.openlcb.MessageTypeIdentifier;
+import org.openlcb.NodeID;
+import org.openlcb.OlcbInterface;
+import org.openlcb.ProducerConsumerEventReportMessage;
+import org.openlcb.ProtocolIdentificationReplyMessage;
+import org.openlcb.ProtocolIdentificationRequestMessage;
+import org.openlcb.Scheduler;
+import org.openlcb.SimpleNodeIdentInfoReplyMessage;
+import org.openlcb.SimpleNodeIdentInfoRequestMessage;
+import org.openlcb.StreamDataProceedMessage;
+import org.openlcb.StreamInitiateReplyMessage;
+import org.openlcb.can.CanFrame;
+import org.openlcb.can.CanFrameListener;
+import org.openlcb.can.CanInterface;
+import org.openlcb.hub.Hub;
+import org.openlcb.implementations.DatagramServerAdapter;
+import org.openlcb.implementations.DatagramService;
+import org.openlcb.implementations.MemoryConfigurationService;
+import org.openlcb.implementations.StreamTransmitter;
+
+/**
+ * A lightweight node hosted in the load generator.
+ * <p>
+ * It runs a full CAN interface attached to a hub and answers Verify Node ID, Protocol
+ * Identification, Simple Node Ident Info and memory configuration reads (and writes) of the
+ * CDI space and of a configuration space described by the CDI. Reads can be datagrams or, if
+ * {@link #setStreamSupport enabled}, streams. It can also produce event reports at a fixed
+ * rate. All nodes of a layout should share one {@link Scheduler}.
+ */
+public class VirtualNode {
+    /// Datagram type of the memory configuration protocol.
+    static final int MEMORY_CONFIG = 0x20;
+    static final int ERROR_UNKNOWN_SPACE = 0x1081;
+    static final int ERROR_OUT_OF_BOUNDS = 0x1082;
+    static final int ERROR_PERMANENT = 0x1000;
+    static final int ERROR_UNIMPLEMENTED = 0x1040;
+    /// Protocol Identification, Datagram, Configuration, Producer/Consumer, SNIP and CDI.
+    static final long PROTOCOLS = 0xD41800000000L;
+    /// Protocol Identification bit of the stream protocol.
+    static final long PROTOCOL_STREAM = 0x200000000000L;
+    /// Buffer size the node proposes for its streams.
+    static final int STREAM_BUFFER_SIZE = 4096;
+    /// Header bits of a CAN frame without the priority bit and the source alias.
+    static final int HEADER_TYPE_MASK = 0x0FFFF000;
+    static final int HEADER_ALIAS_MAP_ENQUIRY = 0x00702000;
+    static final int HEADER_VERIFY_NODE_ID_GLOBAL = 0x09490000;
+
+    /**
+     * Notified of every event report a virtual node produces.
+     */
+    public interface EventListener {
+        /**
+         * @param event the event reported
+         * @param nanoTime {@link System#nanoTime} just before the report was sent
+         */
+        void eventSent(EventID event, long nanoTime);
+    }
+
+    private final NodeID id;
+    private final HubPort port;
+    private final CanInterface can;
+    private final OlcbInterface iface;
+    private final Scheduler scheduler;
+    /// Null-terminated CDI XML.
+    private final byte[] cdi;
+    private final byte[] config;
+    private final byte[] snip;
+    private final Random random;
+    private volatile Scheduler.Timeout eventTask = null;
+    private int eventSequence = 0;
+    /// Milliseconds between acknowledging a read and sending the data, like a slow node.
+    private volatile long replyDelayMillis = 0;
+    private volatile boolean streamSupport = false;
+    /// Streams being sent, until they are done.
+    private final List<StreamTransmitter> transmitters = new CopyOnWriteArrayList<>();
+    private int nextStreamID = 1;
+
+    /**
+     * @param id node ID of the virtual node
+     * @param hub where to connect the node
+     * @param scheduler runs the timers and threads of the node
+     * @param configFields number of 16-byte string fields in the configuration space. Sets the
+     *                     size of the CDI (about 110 bytes per field).
+     */
+    public VirtualNode(NodeID id, Hub hub, Scheduler scheduler, int configFields) {
+        this.id = id;
+        this.scheduler = scheduler;
+        this.random = new Random(id.toLong());
+        cdi = createCdi(id, configFields);
+        config = new byte[configFields * 16];
+        snip = createSnip(id);
+        port = new HubPort(hub);
+        can = new CanInterface(id, new StartupFilter(port), scheduler);
+        port.connect(can.frameInput());
+        iface = can.getInterface();
+        iface.registerMessageListener(new Responder(), EnumSet.of(MessageTypeIdentifier
+                .ProtocolSupportInquiry, MessageTypeIdentifier.SimpleNodeIdentInfoRequest));
+        iface.registerMessageListener(new StreamRouter(), EnumSet.of(MessageTypeIdentifier
+                .StreamInitiateReply, MessageTypeIdentifier.StreamDataProceed));
+        // Takes over the memory configuration datagrams from the (client side) configuration
+        // service of the interface.
+        new MemoryConfigServer().register(iface.getDatagramService());
+    }
+
+    public NodeID getNodeId() {
+        return id;
+    }
+
+    public CanInterface getCanInterface() {
+        return can;
+    }
+
+    public OlcbInterface getInterface() {
+        return iface;
+    }
+
+    /**
+     * Makes the node answer memory configuration reads late, as a node that has to fetch the
+     * data from slow memory does.
+     * @param millis delay between the acknowledgement and the reply datagram
+     */
+    public void setReplyDelay(long millis) {
+        replyDelayMillis = millis;
+    }
+
+    /**
+     * Makes the node announce the stream protocol and serve read stream commands. Without it
+     * the node rejects them, as most small nodes do.
+     * @param enabled true to support stream reads
+     */
+    public void setStreamSupport(boolean enabled) {
+        streamSupport = enabled;
+    }
+
+    /// @return the CDI served, without the terminating zero.
+    public String getCdi() {
+        return new String(cdi, 0, cdi.length - 1, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Starts producing event reports. The first one is sent after a random part of the period,
+     * so that the nodes of a layout do not all send at the same time.
+     * @param perSecond event reports per second
+     * @param listener notified of every event sent
+     */
+    public void startEvents(double perSecond, final EventListener listener) {
+        stopEvents();
+        final long period = Math.max(1, Math.round(1000 / perSecond));
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                EventID event = nextEvent();
+                listener.eventSent(event, System.nanoTime());
+                iface.getOutputConnection().put(new ProducerConsumerEventReportMessage(id,
+                        event), null);
+                synchronized (VirtualNode.this) {
+                    if (eventTask == null) return;
+                    eventTask = scheduler.schedule(this, period);
+                }
+            }
+        };
+        synchronized (this) {
+            eventTask = scheduler.schedule(task, (long) (random.nextDouble() * period));
+        }
+    }
+
+    public synchronized void stopEvents() {
+        if (eventTask != null) {
+            eventTask.cancel();
+            eventTask = null;
+        }
+    }
+
+    /// @return the next event ID: the node ID followed by a sequence number.
+    private synchronized EventID nextEvent() {
+        byte[] b = new byte[8];
+        System.arraycopy(id.getContents(), 0, b, 0, 6);
+        b[6] = (byte) (eventSequence >> 8);
+        b[7] = (byte) eventSequence;
+        eventSequence = (eventSequence + 1) & 0xFFFF;
+        return new EventID(b);
+    }
+
+    public void dispose() {
+        stopEvents();
+        port.dispose();
+        iface.dispose();
+        can.dispose();
+    }
+
+    static byte[] createCdi(NodeID id, int configFields) {
+        StringBuilder b = new StringBuilder();
+        b.append("<?xml version=\"1.0\"?>\n<cdi xmlns:xsi=\"http://www.w3.org/2001/" +
+                "XMLSchema-instance\" xsi:noNamespaceSchemaLocation=\"http://openlcb.org/" +
+                "schema/cdi/1/1/cdi.xsd\">\n");
+        b.append("<identification><manufacturer>OpenLCB</manufacturer><model>Virtual node " +
+                "</model><hardwareVersion>1</hardwareVersion><softwareVersion>1" +
+                "</softwareVersion></identification>\n");
+        b.append("<segment space=\"253\"><name>Settings of ").append(id).append("</name>\n");
+        for (int i = 0; i < configFields; ++i) {
+            b.append("<string size=\"16\"><name>Field ").append(i).append("</name>" +
+                    "<description>Setting number ").append(i).append("</description></string>\n");
+        }
+        b.append("</segment>\n</cdi>\n");
+        byte[] text = b.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] r = new byte[text.length + 1];
+        System.arraycopy(text, 0, r, 0, text.length);
+        return r;
+    }
+
+    static byte[] createSnip(NodeID id) {
+        String[] fields = {"OpenLCB", "Virtual node", "1", "1"};
+        StringBuilder b = new StringBuilder();
+        b.append((char) 4);
+        for (String f : fields) {
+            b.append(f).append((char) 0);
+        }
+        b.append((char) 2);
+        b.append("Node ").append(id).append((char) 0);
+        b.append("Load generator").append((char) 0);
+        return b.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Drops the alias map enquiry and the global Verify Node ID that the CAN interface sends
+     * when it starts, as a configuration tool needs to learn the nodes on the bus. A node does
+     * not, and with every virtual node asking, the replies would grow with the square of the
+     * number of nodes.
+     */
+    private static class StartupFilter implements CanFrameListener {
+        private final CanFrameListener output;
+
+        StartupFilter(CanFrameListener output) {
+            this.output = output;
+        }
+
+        @Override
+        public void send(CanFrame frame) {
+            int type = frame.getHeader() & HEADER_TYPE_MASK;
+            if (type == HEADER_ALIAS_MAP_ENQUIRY || type == HEADER_VERIFY_NODE_ID_GLOBAL) {
+                return;
+            }
+            output.send(frame);
+        }
+    }
+
+    /**
+     * Answers the Protocol Identification and Simple Node Ident Info requests.
+     */
+    private class Responder extends MessageDecoder {
+        @Override
+        public void handleProtocolIdentificationRequest(ProtocolIdentificationRequestMessage
+                msg, Connection sender) {
+            if (!id.equals(msg.getDestNodeID())) return;
+            iface.getOutputConnection().put(new ProtocolIdentificationReplyMessage(id, msg
+                    .getSourceNodeID(), streamSupport ? PROTOCOLS | PROTOCOL_STREAM :
+                    PROTOCOLS), this);
+        }
+
+        @Override
+        public void handleSimpleNodeIdentInfoRequest(SimpleNodeIdentInfoRequestMessage msg,
+                                                     Connection sender) {
+            if (!id.equals(msg.getDestNodeID())) return;
+            iface.getOutputConnection().put(new SimpleNodeIdentInfoReplyMessage(id, msg
+                    .getSourceNodeID(), snip), this);
+        }
+    }
+
+    /**
+     * Gives the replies of the stream readers to the transmitters of the node.
+     */
+    private class StreamRouter extends MessageDecoder {
+        @Override
+        public void handleStreamInitiateReply(StreamInitiateReplyMessage msg, Connection
+                sender) {
+            if (!id.equals(msg.getDestNodeID())) return;
+            route(msg, sender);
+        }
+
+        @Override
+        public void handleStreamDataProceed(StreamDataProceedMessage msg, Connection sender) {
+            if (!id.equals(msg.getDestNodeID())) return;
+            route(msg, sender);
+        }
+
+        private void route(org.openlcb.Message msg, Connection sender) {
+            // Waits for a transmitter being started, which may get its reply right away.
+            synchronized (transmitters) {
+                for (StreamTransmitter t : transmitters) {
+                    t.put(msg, sender);
+                    if (t.isDone()) transmitters.remove(t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Serves the read and write commands of the memory configuration protocol.
+     */
+    private class MemoryConfigServer extends DatagramServerAdapter {
+        MemoryConfigServer() {
+            super(MEMORY_CONFIG);
+        }
+
+        @Override
+        public void handleData(NodeID source, int[] data, DatagramServerAdapter.Reply service) {
+            int command = data.length < 2 ? -1 : data[1] & 0xFC;
+            if (command == 0x60 && streamSupport) {
+                handleReadStream(source, data, service);
+                return;
+            }
+            if (command != 0x40 && command != 0x00) {
+                // Only datagram reads and writes are supported.
+                service.acceptData(ERROR_UNIMPLEMENTED);
+                return;
+            }
+            boolean read = command == 0x40;
+            int spaceBits = data[1] & 0x03;
+            int ofs = spaceBits == 0 ? 7 : 6;
+            if (data.length < ofs || (read && data.length <= ofs)) {
+                service.acceptData(ERROR_PERMANENT);
+                return;
+            }
+            int space = spaceBits == 0 ? data[6] & 0xFF : 0xFC + spaceBits;
+            long address = ((long) (data[2] & 0xFF) << 24) | ((data[3] & 0xFF) << 16) |
+                    ((data[4] & 0xFF) << 8) | (data[5] & 0xFF);
+            byte[] mem = null;
+            if (space == MemoryConfigurationService.SPACE_CDI) {
+                mem = read ? cdi : null;
+            } else if (space == MemoryConfigurationService.SPACE_CONFIG) {
+                mem = config;
+            }
+            if (!read) {
+                // Writes are confirmed by the datagram acknowledgement alone.
+                int length = data.length - ofs;
+                if (mem == null) {
+                    service.acceptData(ERROR_UNKNOWN_SPACE);
+                } else if (address + length > mem.length) {
+                    service.acceptData(ERROR_OUT_OF_BOUNDS);
+                } else {
+                    synchronized (mem) {
+                        for (int i = 0; i < length; ++i) {
+                            mem[(int) address + i] = (byte) data[ofs + i];
+                        }
+                    }
+                    service.acceptData(0);
+                }
+                return;
+            }
+            service.acknowledge(DatagramService.FLAG_REPLY_PENDING);
+            int error = 0;
+            int length = 0;
+            if (mem == null) {
+                error = ERROR_UNKNOWN_SPACE;
+            } else {
+                length = (int) Math.max(0, Math.min(Math.min(data[ofs] & 0xFF, 64), mem.length -
+                        address));
+                if (length == 0) error = ERROR_OUT_OF_BOUNDS;
+            }
+            int[] reply = new int[ofs + (error != 0 ? 2 : length)];
+            System.arraycopy(data, 0, reply, 0, ofs);
+            reply[1] = data[1] | 0x10 | (error != 0 ? 0x08 : 0);
+            if (error != 0) {
+                reply[ofs] = error >> 8;
+                reply[ofs + 1] = error & 0xFF;
+            } else {
+                for (int i = 0; i < length; ++i) {
+                    reply[ofs + i] = mem[(int) address + i] & 0xFF;
+                }
+            }
+            sendReply(source, reply);
+        }
+
+        /**
+         * Answers a read stream command with a reply datagram, then sends the data with a
+         * stream to the stream ID given in the command.
+         */
+        private void handleReadStream(final NodeID source, int[] data, DatagramServerAdapter
+                .Reply service) {
+            int spaceBits = data[1] & 0x03;
+            int ofs = spaceBits == 0 ? 7 : 6;
+            if (data.length < ofs + 6) {
+                service.acceptData(ERROR_PERMANENT);
+                return;
+            }
+            service.acknowledge(DatagramService.FLAG_REPLY_PENDING);
+            int space = spaceBits == 0 ? data[6] & 0xFF : 0xFC + spaceBits;
+            long address = ((long) (data[2] & 0xFF) << 24) | ((data[3] & 0xFF) << 16) |
+                    ((data[4] & 0xFF) << 8) | (data[5] & 0xFF);
+            long count = ((long) (data[ofs + 2] & 0xFF) << 24) | ((data[ofs + 3] & 0xFF) << 16) |
+                    ((data[ofs + 4] & 0xFF) << 8) | (data[ofs + 5] & 0xFF);
+            final byte destStreamID = (byte) data[ofs + 1];
+            byte[] mem = null;
+            if (space == MemoryConfigurationService.SPACE_CDI) {
+                mem = cdi;
+            } else if (space == MemoryConfigurationService.SPACE_CONFIG) {
+                mem = config;
+            }
+            int error = 0;
+            final int[] bytes;
+            if (mem == null) {
+                error = ERROR_UNKNOWN_SPACE;
+                bytes = null;
+            } else if (address >= mem.length) {
+                error = ERROR_OUT_OF_BOUNDS;
+                bytes = null;
+            } else {
+                bytes = new int[(int) Math.min(count, mem.length - address)];
+                synchronized (mem) {
+                    for (int i = 0; i < bytes.length; ++i) {
+                        bytes[i] = mem[(int) address + i] & 0xFF;
+                    }
+                }
+            }
+            final byte sourceStreamID;
+            synchronized (transmitters) {
+                sourceStreamID = (byte) nextStreamID;
+                nextStreamID = nextStreamID % 254 + 1;
+            }
+            // address, space, source and destination stream IDs, or the error code
+            final int[] reply = new int[ofs + 2];
+            System.arraycopy(data, 0, reply, 0, ofs);
+            reply[1] = data[1] | 0x10 | (error != 0 ? 0x08 : 0);
+            if (error != 0) {
+                reply[ofs] = error >> 8;
+                reply[ofs + 1] = error & 0xFF;
+                sendReply(source, reply, null);
+                return;
+            }
+            reply[ofs] = sourceStreamID & 0xFF;
+            reply[ofs + 1] = destStreamID & 0xFF;
+            sendReply(source, reply, new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (transmitters) {
+                        transmitters.add(new StreamTransmitter(id, source, STREAM_BUFFER_SIZE,
+                                bytes, sourceStreamID, destStreamID, iface.getOutputConnection
+                                ()));
+                    }
+                }
+            });
+        }
+
+        private void sendReply(NodeID dest, int[] reply) {
+            sendReply(dest, reply, null);
+        }
+
+        /**
+         * Sends a reply datagram after the reply delay.
+         * @param then run after the reply was sent; may be null.
+         */
+        private void sendReply(final NodeID dest, final int[] reply, final Runnable then) {
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    iface.getDatagramService().sendData(dest, reply);
+                    if (then != null) then.run();
+                }
+            };
+            long delay = replyDelayMillis;
+            if (delay <= 0) {
+                task.run();
+                return;
+            }
+            scheduler.schedule(task, delay);
+        }
+    }
+}
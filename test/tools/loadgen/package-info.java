@@ -0,0 +1,15 @@
+/**
+
+Generates synthetic load by hosting many virtual nodes in one process.
+
+<p>
+{@link tools.loadgen.VirtualNode}s attach to an in-process
+{@link org.openlcb.hub.Hub} and answer discovery, PIP, SNIP and
+memory configuration reads, serve a CDI, and produce event reports.
+{@link tools.loadgen.LoadDriver} builds such a layout and reports latency
+and throughput percentiles for discovery, CDI loading and event delivery.
+
+@see org.openlcb.hub
+
+*/
+package tools.loadgen;